@@ -34,6 +34,30 @@ P6=$?
 cp target/org.cohorte.herald.xmpp-*.jar $COHORTE_HOME/repo
 cd ..
 
+cd org.cohorte.herald.local
+mvn clean install -Dmaven.test.skip=true
+P7=$?
+cp target/org.cohorte.herald.local-*.jar $COHORTE_HOME/repo
+cd ..
+
+cd org.cohorte.herald.shm
+mvn clean install -Dmaven.test.skip=true
+P8=$?
+cp target/org.cohorte.herald.shm-*.jar $COHORTE_HOME/repo
+cd ..
+
+cd org.cohorte.herald.uds
+mvn clean install -Dmaven.test.skip=true
+P9=$?
+cp target/org.cohorte.herald.uds-*.jar $COHORTE_HOME/repo
+cd ..
+
+cd org.cohorte.herald.tcp
+mvn clean install -Dmaven.test.skip=true
+P10=$?
+cp target/org.cohorte.herald.tcp-*.jar $COHORTE_HOME/repo
+cd ..
+
 echo ""
 echo "***********************"
 echo api   $P1 
@@ -42,4 +66,8 @@ echo http  $P3
 echo rpc   $P4 
 echo shell $P5
 echo xmpp  $P6
+echo local $P7
+echo shm   $P8
+echo uds   $P9
+echo tcp   $P10
 echo "***********************"
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+/**
+ * Statistics about the use of an access of a peer: latency of the
+ * transport, round-trip time of the requests and failures.
+ *
+ * Latencies and failure rate are exponentially weighted moving averages
+ * (EWMA): recent samples weigh more than old ones. They are used by Herald
+ * to send messages through the fastest healthy access of a peer first.
+ *
+ * @author Thomas Calmant
+ */
+public class AccessStatistics {
+
+	/** Weight of a new sample in the moving averages */
+	public static final double EWMA_WEIGHT = 0.2;
+
+	/** Number of failures since the last success */
+	private int pConsecutiveFailures;
+
+	/** Moving average of the failures (0: never fails, 1: always fails) */
+	private double pFailureRate;
+
+	/** Time of the last failure (milliseconds since epoch), 0 if none */
+	private long pLastFailure;
+
+	/** Time of the last use of the access (milliseconds since epoch) */
+	private long pLastUse;
+
+	/** Moving average of the transport latency, in milliseconds (-1: unknown) */
+	private double pLatency = -1;
+
+	/** Moving average of the round-trip time, in milliseconds (-1: unknown) */
+	private double pRoundTrip = -1;
+
+	/** Number of uses of the access */
+	private long pUses;
+
+	/**
+	 * Updates a moving average with a new sample
+	 *
+	 * @param aAverage
+	 *            Current average (negative if unknown)
+	 * @param aSample
+	 *            The new sample
+	 * @return The new average
+	 */
+	private static double ewma(final double aAverage, final double aSample) {
+
+		if (aAverage < 0) {
+			return aSample;
+		}
+		return aAverage + EWMA_WEIGHT * (aSample - aAverage);
+	}
+
+	/**
+	 * Returns the number of failures since the last success
+	 *
+	 * @return The number of consecutive failures
+	 */
+	public synchronized int getConsecutiveFailures() {
+
+		return pConsecutiveFailures;
+	}
+
+	/**
+	 * Returns the moving average of the failures
+	 *
+	 * @return The failure rate, between 0 (never fails) and 1 (always fails)
+	 */
+	public synchronized double getFailureRate() {
+
+		return pFailureRate;
+	}
+
+	/**
+	 * Returns the time of the last failure
+	 *
+	 * @return The time of the last failure (milliseconds since epoch), 0 if
+	 *         the access never failed
+	 */
+	public synchronized long getLastFailure() {
+
+		return pLastFailure;
+	}
+
+	/**
+	 * Returns the time of the last use of the access
+	 *
+	 * @return The time of the last use (milliseconds since epoch), 0 if the
+	 *         access has never been used
+	 */
+	public synchronized long getLastUse() {
+
+		return pLastUse;
+	}
+
+	/**
+	 * Returns the moving average of the time taken by the transport to send a
+	 * message
+	 *
+	 * @return The latency in milliseconds, -1 if unknown
+	 */
+	public synchronized double getLatency() {
+
+		return pLatency;
+	}
+
+	/**
+	 * Returns the moving average of the time between the sending of a
+	 * request and the reception of its reply
+	 *
+	 * @return The round-trip time in milliseconds, -1 if unknown
+	 */
+	public synchronized double getRoundTrip() {
+
+		return pRoundTrip;
+	}
+
+	/**
+	 * Returns the number of uses of the access
+	 *
+	 * @return The number of messages sent through the access
+	 */
+	public synchronized long getUses() {
+
+		return pUses;
+	}
+
+	/**
+	 * Notes that a message couldn't be sent through the access
+	 */
+	public synchronized void recordFailure() {
+
+		pUses++;
+		pConsecutiveFailures++;
+		pFailureRate = ewma(pFailureRate, 1);
+		pLastFailure = System.currentTimeMillis();
+		pLastUse = pLastFailure;
+	}
+
+	/**
+	 * Notes that a reply has been received through the access
+	 *
+	 * @param aRoundTrip
+	 *            Time between the sending of the request and the reception
+	 *            of the reply, in milliseconds
+	 */
+	public synchronized void recordRoundTrip(final double aRoundTrip) {
+
+		pRoundTrip = ewma(pRoundTrip, aRoundTrip);
+	}
+
+	/**
+	 * Notes that a message has been sent through the access
+	 *
+	 * @param aLatency
+	 *            Time taken by the transport to send the message, in
+	 *            milliseconds
+	 */
+	public synchronized void recordSuccess(final double aLatency) {
+
+		pUses++;
+		pConsecutiveFailures = 0;
+		pFailureRate = ewma(pFailureRate, 0);
+		pLatency = ewma(pLatency, aLatency);
+		pLastUse = System.currentTimeMillis();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString() {
+
+		return String.format(
+				"AccessStatistics(latency=%.1fms, round-trip=%.1fms, "
+						+ "failure-rate=%.2f, consecutive-failures=%d, "
+						+ "uses=%d)", pLatency, pRoundTrip, pFailureRate,
+				pConsecutiveFailures, pUses);
+	}
+}
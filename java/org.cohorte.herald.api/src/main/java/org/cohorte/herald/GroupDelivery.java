@@ -0,0 +1,228 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The delivery of a message fired to a group of peers with
+ * {@link IHerald#fireGroupAsync(String, Message)}.
+ *
+ * Each peer of the group is either reached, through a given access, or
+ * failed once all its accesses have been tried. The delivery is done once
+ * all peers are in one of those states.
+ *
+ * Transports implementing {@link IAsyncGroupTransport} also use it to report
+ * the result of each peer as it is known.
+ *
+ * @author Thomas Calmant
+ */
+public class GroupDelivery {
+
+	/** Set when all peers are reached or failed */
+	private final CountDownLatch pDone = new CountDownLatch(1);
+
+	/** Peer -&gt; Last error sending the message to it */
+	private final Map<Peer, HeraldException> pFailedPeers = new LinkedHashMap<>();
+
+	/** Notified of the result of each peer (can be null) */
+	private final IGroupDeliveryListener pListener;
+
+	/** UID of the message */
+	private final String pMessageUid;
+
+	/** Peers which are neither reached nor failed yet */
+	private final Set<Peer> pPendingPeers;
+
+	/** Peer -&gt; Access ID used to reach it */
+	private final Map<Peer, String> pReachedPeers = new LinkedHashMap<>();
+
+	/**
+	 * Sets up the delivery
+	 *
+	 * @param aMessageUid
+	 *            UID of the message
+	 * @param aPeers
+	 *            Peers the message is sent to
+	 */
+	public GroupDelivery(final String aMessageUid,
+			final Collection<Peer> aPeers) {
+
+		this(aMessageUid, aPeers, null);
+	}
+
+	/**
+	 * Sets up the delivery
+	 *
+	 * @param aMessageUid
+	 *            UID of the message
+	 * @param aPeers
+	 *            Peers the message is sent to
+	 * @param aListener
+	 *            Notified of the result of each peer, from the thread which
+	 *            reports it (can be null)
+	 */
+	public GroupDelivery(final String aMessageUid,
+			final Collection<Peer> aPeers,
+			final IGroupDeliveryListener aListener) {
+
+		pMessageUid = aMessageUid;
+		pListener = aListener;
+		pPendingPeers = new LinkedHashSet<>(aPeers);
+		if (pPendingPeers.isEmpty()) {
+			pDone.countDown();
+		}
+	}
+
+	/**
+	 * Waits for the delivery to be done
+	 *
+	 * @throws InterruptedException
+	 *             Interrupted while waiting
+	 */
+	public void await() throws InterruptedException {
+
+		pDone.await();
+	}
+
+	/**
+	 * Waits for the delivery to be done, at most the given time
+	 *
+	 * @param aTimeout
+	 *            Maximum time to wait, in milliseconds
+	 * @return True if the delivery is done
+	 * @throws InterruptedException
+	 *             Interrupted while waiting
+	 */
+	public boolean await(final long aTimeout) throws InterruptedException {
+
+		return pDone.await(aTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the peers which couldn't be reached, with the last error which
+	 * occurred sending the message to them
+	 *
+	 * @return A copy of the Peer -&gt; Error map
+	 */
+	public synchronized Map<Peer, HeraldException> getFailedPeers() {
+
+		return Collections.unmodifiableMap(new LinkedHashMap<>(pFailedPeers));
+	}
+
+	/**
+	 * Returns the UID of the message
+	 *
+	 * @return The UID of the message
+	 */
+	public String getMessageUid() {
+
+		return pMessageUid;
+	}
+
+	/**
+	 * Returns the peers which are neither reached nor failed yet
+	 *
+	 * @return A copy of the set of pending peers
+	 */
+	public synchronized Set<Peer> getPendingPeers() {
+
+		return Collections.unmodifiableSet(new LinkedHashSet<>(pPendingPeers));
+	}
+
+	/**
+	 * Returns the peers which have been reached, with the access used to
+	 * reach them
+	 *
+	 * @return A copy of the Peer -&gt; Access ID map
+	 */
+	public synchronized Map<Peer, String> getReachedPeers() {
+
+		return Collections.unmodifiableMap(new LinkedHashMap<>(pReachedPeers));
+	}
+
+	/**
+	 * Checks if all peers are reached or failed
+	 *
+	 * @return True if the delivery is done
+	 */
+	public boolean isDone() {
+
+		return pDone.getCount() == 0;
+	}
+
+	/**
+	 * Notes that the message couldn't be sent to a peer
+	 *
+	 * @param aPeer
+	 *            The peer
+	 * @param aError
+	 *            The last error which occurred
+	 */
+	public void peerFailed(final Peer aPeer, final HeraldException aError) {
+
+		final boolean done;
+		synchronized (this) {
+			if (!pPendingPeers.remove(aPeer)) {
+				return;
+			}
+			pFailedPeers.put(aPeer, aError);
+			done = pPendingPeers.isEmpty();
+		}
+
+		if (pListener != null) {
+			pListener.peerFailed(this, aPeer, aError);
+		}
+		if (done) {
+			pDone.countDown();
+		}
+	}
+
+	/**
+	 * Notes that the message has been sent to a peer
+	 *
+	 * @param aPeer
+	 *            The peer
+	 * @param aAccessId
+	 *            The access used to reach it
+	 */
+	public void peerReached(final Peer aPeer, final String aAccessId) {
+
+		final boolean done;
+		synchronized (this) {
+			if (!pPendingPeers.remove(aPeer)) {
+				return;
+			}
+			pReachedPeers.put(aPeer, aAccessId);
+			done = pPendingPeers.isEmpty();
+		}
+
+		if (pListener != null) {
+			pListener.peerReached(this, aPeer, aAccessId);
+		}
+		if (done) {
+			pDone.countDown();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * The result of {@link IHerald#sendGroup(String, Message, Long, int)}: the
+ * content of the replies, associated to the peers which sent them.
+ *
+ * It also describes the peers which answered with an error (no listener,
+ * overloaded, ...) and the ones which didn't answer before the quorum was
+ * met or the timeout was reached.
+ *
+ * @author Thomas Calmant
+ */
+public class GroupReplies extends LinkedHashMap<Peer, Object> {
+
+	/** Serialization version UID */
+	private static final long serialVersionUID = 1L;
+
+	/** Peer -&gt; Error it answered */
+	private final Map<Peer, HeraldException> pErrors;
+
+	/** Peers which didn't answer */
+	private final Collection<Peer> pMissingPeers;
+
+	/** Number of replies which were expected */
+	private final int pQuorum;
+
+	/**
+	 * Sets up the result
+	 *
+	 * @param aReplies
+	 *            Peer -&gt; Content of its reply
+	 * @param aErrors
+	 *            Peer -&gt; Error it answered
+	 * @param aMissingPeers
+	 *            Peers which didn't answer
+	 * @param aQuorum
+	 *            Number of replies which were expected
+	 */
+	public GroupReplies(final Map<Peer, Object> aReplies,
+			final Map<Peer, HeraldException> aErrors,
+			final Collection<Peer> aMissingPeers, final int aQuorum) {
+
+		super(aReplies);
+		pErrors = Collections
+				.unmodifiableMap(new LinkedHashMap<Peer, HeraldException>(
+						aErrors));
+		pMissingPeers = Collections
+				.unmodifiableSet(new LinkedHashSet<Peer>(aMissingPeers));
+		pQuorum = aQuorum;
+	}
+
+	/**
+	 * Returns the errors answered by peers
+	 *
+	 * @return Peer -&gt; Error (read-only)
+	 */
+	public Map<Peer, HeraldException> getErrors() {
+
+		return pErrors;
+	}
+
+	/**
+	 * Returns the peers which didn't answer, neither with a reply nor with an
+	 * error
+	 *
+	 * @return The missing peers (read-only)
+	 */
+	public Collection<Peer> getMissingPeers() {
+
+		return pMissingPeers;
+	}
+
+	/**
+	 * Returns the number of replies which were expected
+	 *
+	 * @return The quorum
+	 */
+	public int getQuorum() {
+
+		return pQuorum;
+	}
+
+	/**
+	 * Checks if enough peers replied
+	 *
+	 * @return True if the number of replies reached the quorum
+	 */
+	public boolean isQuorumReached() {
+
+		return size() >= pQuorum;
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+/**
+ * Monitoring view of the queue where Herald core admits the messages received
+ * by transports, before handling them
+ *
+ * @author Thomas Calmant
+ */
+public interface IAdmissionStatistics {
+
+	/**
+	 * Returns the maximum number of queued messages
+	 *
+	 * @return The capacity of the queue
+	 */
+	int getCapacity();
+
+	/**
+	 * Returns the number of messages dropped by the admission policy, since
+	 * Herald started
+	 *
+	 * @return The number of dropped messages
+	 */
+	long getDroppedCount();
+
+	/**
+	 * Returns the maximum size of the queued messages, in bytes
+	 *
+	 * @return The byte budget of the queue
+	 */
+	long getMaxBytes();
+
+	/**
+	 * Returns the admission policy applied when the queue is full
+	 *
+	 * @return One of the ADMISSION_* constants of {@link IConstants}
+	 */
+	String getPolicy();
+
+	/**
+	 * Returns the size of the queued messages, in bytes, as given by the
+	 * transports
+	 *
+	 * @return The size of the queued messages
+	 */
+	long getQueueBytes();
+
+	/**
+	 * Returns the number of queued messages
+	 *
+	 * @return The depth of the queue
+	 */
+	int getQueueDepth();
+
+	/**
+	 * Returns the number of messages refused by the admission policy, since
+	 * Herald started
+	 *
+	 * @return The number of rejected messages
+	 */
+	long getRejectedCount();
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+import java.util.Collection;
+
+/**
+ * Optional specification of a transport implementation which can send a
+ * message to a group of peers without blocking the caller. Herald core uses
+ * {@link ITransport#fireGroup(String, Collection, Message)} with transports
+ * which don't implement it.
+ *
+ * @author Thomas Calmant
+ */
+public interface IAsyncGroupTransport extends ITransport {
+
+    /**
+     * Fires a message to a group of peers. The method returns as soon as the
+     * message is being sent: the returned handle is completed as the peers
+     * are reached or fail, and notifies the given listener of each of them.
+     *
+     * @param aGroup
+     *            Name of a group
+     * @param aPeers
+     *            Peers to communicate with
+     * @param aMessage
+     *            Message to send
+     * @param aListener
+     *            Notified of the result of each peer (can be null)
+     * @return The completion handle of the delivery, never null
+     * @throws HeraldException
+     *             Error preparing the message
+     */
+    GroupDelivery fireGroupAsync(String aGroup, Collection<Peer> aPeers,
+            Message aMessage, IGroupDeliveryListener aListener)
+            throws HeraldException;
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+/**
+ * Optional specification of a transport implementation which can send a
+ * message to a peer without waiting for its delivery. Herald core then
+ * measures the access latency and falls back on the other accesses of the
+ * peer when the delivery completes, instead of when the call returns.
+ *
+ * @author Thomas Calmant
+ */
+public interface IAsyncTransport extends ITransport {
+
+    /**
+     * Fires a message to a peer. The method can return as soon as the message
+     * is being sent: the listener is then notified once, when the message has
+     * been delivered or has failed. If an exception is raised, the listener
+     * is never notified.
+     *
+     * @param aPeer
+     *            Peer to communicate with
+     * @param aMessage
+     *            Message to send
+     * @param aListener
+     *            Notified of the result of the delivery
+     * @throws HeraldException
+     *             Error preparing or sending the message
+     */
+    void fireAsync(Peer aPeer, Message aMessage, IDeliveryListener aListener)
+            throws HeraldException;
+}
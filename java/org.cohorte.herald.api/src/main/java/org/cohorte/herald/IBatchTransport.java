@@ -0,0 +1,42 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+import java.util.List;
+
+/**
+ * Optional specification of a transport implementation which can send several
+ * messages to a peer in a single request. Herald core sends messages one by
+ * one through transports which don't implement it.
+ *
+ * @author Thomas Calmant
+ */
+public interface IBatchTransport extends ITransport {
+
+    /**
+     * Fires a list of messages to a peer, at once. Either all messages are
+     * sent, or none.
+     *
+     * @param aPeer
+     *            The peer to send the messages to
+     * @param aMessages
+     *            Messages to send, in order
+     * @throws HeraldException
+     *             Error sending the messages or error on the server side
+     */
+    void fireBatch(Peer aPeer, List<Message> aMessages) throws HeraldException;
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+/**
+ * Monitoring view of the pool of persistent connections a transport keeps
+ * to the other peers. The pool service is registered with the
+ * {@link IConstants#PROP_ACCESS_ID} property of its transport.
+ *
+ * @author Thomas Calmant
+ */
+public interface IConnectionPoolStatistics {
+
+	/**
+	 * Returns the number of connections currently used to send a message
+	 *
+	 * @return The number of active connections
+	 */
+	int getActiveCount();
+
+	/**
+	 * Returns the number of connections opened since the transport started
+	 *
+	 * @return The number of created connections
+	 */
+	long getCreatedCount();
+
+	/**
+	 * Returns the number of connections closed because they stayed idle for
+	 * too long, since the transport started
+	 *
+	 * @return The number of evicted connections
+	 */
+	long getEvictedCount();
+
+	/**
+	 * Returns the number of open connections waiting to be used
+	 *
+	 * @return The number of idle connections
+	 */
+	int getIdleCount();
+
+	/**
+	 * Returns the maximum number of connections to a single peer
+	 *
+	 * @return The maximum number of connections per peer
+	 */
+	int getMaxConnectionsPerPeer();
+}
@@ -23,6 +23,27 @@ package org.cohorte.herald;
  */
 public interface IConstants {
 
+	/**
+	 * Admission policy: the transport thread waits until the message can be
+	 * queued (default)
+	 */
+	String ADMISSION_BLOCK = "block";
+
+	/** Admission policy: the new message is dropped */
+	String ADMISSION_DROP_NEWEST = "drop-newest";
+
+	/**
+	 * Admission policy: the oldest queued message with the same subject is
+	 * dropped (or the oldest queued message, if none has this subject)
+	 */
+	String ADMISSION_DROP_OLDEST = "drop-oldest";
+
+	/**
+	 * Admission policy: the new message is refused, and the sender gets a
+	 * "herald/error/overloaded" reply
+	 */
+	String ADMISSION_REJECT = "reject";
+
 	/**
 	 * Default application ID
 	 */
@@ -34,6 +55,56 @@ public interface IConstants {
 	 */
 	String FWPROP_APPLICATION_ID = "herald.application.id";
 
+	/**
+	 * Framework property: Maximum number of received messages waiting to be
+	 * handled by Herald core. Defaults to 10000.
+	 */
+	String FWPROP_ADMISSION_CAPACITY = "herald.admission.capacity";
+
+	/**
+	 * Framework property: Maximum number of received Herald-internal messages
+	 * and awaited replies waiting to be handled by Herald core, on top of
+	 * {@link #FWPROP_ADMISSION_CAPACITY}. Defaults to 1000.
+	 */
+	String FWPROP_ADMISSION_CONTROL_CAPACITY = "herald.admission.control.capacity";
+
+	/**
+	 * Framework property: Maximum size of the received messages waiting to be
+	 * handled by Herald core, in bytes. Defaults to 64 MB.
+	 */
+	String FWPROP_ADMISSION_MAX_BYTES = "herald.admission.max.bytes";
+
+	/**
+	 * Framework property: What to do with a received message when the
+	 * admission queue is full, one of the ADMISSION_* constants. Defaults to
+	 * {@link #ADMISSION_BLOCK}.
+	 */
+	String FWPROP_ADMISSION_POLICY = "herald.admission.policy";
+
+	/**
+	 * Framework property: Maximum number of received message UIDs kept to
+	 * detect duplicates. Defaults to 100000.
+	 */
+	String FWPROP_DEDUP_MAX_SIZE = "herald.dedup.max.size";
+
+	/**
+	 * Framework property: Time during which a received message UID is kept to
+	 * detect duplicates, in milliseconds. Defaults to 5 minutes.
+	 */
+	String FWPROP_DEDUP_WINDOW = "herald.dedup.window";
+
+	/**
+	 * Framework property: Maximum number of messages waiting in each priority
+	 * lane of a listener dispatch thread. Defaults to 1024.
+	 */
+	String FWPROP_DISPATCH_QUEUE_SIZE = "herald.dispatch.queue.size";
+
+	/**
+	 * Framework property: Number of listener dispatch threads. Defaults to
+	 * the number of available processors.
+	 */
+	String FWPROP_DISPATCH_THREADS = "herald.dispatch.threads";
+
 	/**
 	 * Framework property: Human-readable name of the node hosting the peer.
 	 * Defaults to the node UID.
@@ -63,6 +134,34 @@ public interface IConstants {
 	 */
 	String FWPROP_PEER_UID = "herald.peer.uid";
 
+	/**
+	 * Framework property: If "true", Herald threads (listeners notification,
+	 * HTTP group messages, multicast packets handling) are virtual threads,
+	 * when the JVM supports them (Java 21+). Defaults to "false".
+	 */
+	String FWPROP_VIRTUAL_THREADS = "herald.threads.virtual";
+
+	/**
+	 * Listener ordering: messages are notified in their reception order, for
+	 * each listener
+	 */
+	String ORDERING_LISTENER = "listener";
+
+	/** Listener ordering: messages can be notified in any order (default) */
+	String ORDERING_NONE = "none";
+
+	/**
+	 * Listener ordering: messages from the same sender are notified in their
+	 * reception order
+	 */
+	String ORDERING_SENDER = "sender";
+
+	/**
+	 * Listener ordering: messages with the same subject are notified in their
+	 * reception order
+	 */
+	String ORDERING_SUBJECT = "subject";
+
 	/**
 	 * Unique name of the kind of access a transport implementation handles
 	 */
@@ -73,6 +172,12 @@ public interface IConstants {
 	 */
 	String PROP_FILTERS = "herald.filters";
 
+	/**
+	 * The order in which messages must be notified to a listener, one of the
+	 * ORDERING_* constants. Defaults to {@link #ORDERING_NONE}.
+	 */
+	String PROP_ORDERING = "herald.ordering";
+
 	/** Property indicating the name of group to whom a message is sent */
 	String PROP_TARGET_GROUP = "herald.rpc.target.group";
 }
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+/**
+ * Notified of the result of a message sent with
+ * {@link IAsyncTransport#fireAsync(Peer, Message, IDeliveryListener)}
+ *
+ * @author Thomas Calmant
+ */
+public interface IDeliveryListener {
+
+	/**
+	 * The message has been delivered to the peer
+	 *
+	 * @param aPeer
+	 *            The peer
+	 * @param aMessageUid
+	 *            UID of the message
+	 */
+	void messageDelivered(Peer aPeer, String aMessageUid);
+
+	/**
+	 * The message couldn't be delivered to the peer
+	 *
+	 * @param aPeer
+	 *            The peer
+	 * @param aMessageUid
+	 *            UID of the message
+	 * @param aError
+	 *            The error which occurred
+	 */
+	void messageFailed(Peer aPeer, String aMessageUid, HeraldException aError);
+}
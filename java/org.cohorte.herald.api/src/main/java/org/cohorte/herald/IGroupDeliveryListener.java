@@ -0,0 +1,49 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+/**
+ * Notified of the result of each peer of a {@link GroupDelivery}
+ *
+ * @author Thomas Calmant
+ */
+public interface IGroupDeliveryListener {
+
+	/**
+	 * The message couldn't be sent to a peer
+	 *
+	 * @param aDelivery
+	 *            The group delivery
+	 * @param aPeer
+	 *            The peer
+	 * @param aError
+	 *            The error which occurred
+	 */
+	void peerFailed(GroupDelivery aDelivery, Peer aPeer, HeraldException aError);
+
+	/**
+	 * The message has been sent to a peer
+	 *
+	 * @param aDelivery
+	 *            The group delivery
+	 * @param aPeer
+	 *            The peer
+	 * @param aAccessId
+	 *            The access used to reach it
+	 */
+	void peerReached(GroupDelivery aDelivery, Peer aPeer, String aAccessId);
+}
@@ -17,6 +17,7 @@
 package org.cohorte.herald;
 
 import java.util.Collection;
+import java.util.List;
 
 /**
  * Specification of the Herald core services
@@ -62,6 +63,40 @@ public interface IHerald {
 	String fire(String aPeerUid, Message aMessage) throws NoTransport,
 			UnknownPeer;
 
+	/**
+	 * Fires (and forget) a list of messages to the given peer, in a single
+	 * transport request when the transport supports it (see
+	 * {@link IBatchTransport})
+	 *
+	 * @param aPeer
+	 *            The peer to send the messages to
+	 * @param aMessages
+	 *            The messages to send, in order
+	 * @return The UIDs of the messages
+	 * @throws NoTransport
+	 *             No transport found to send some messages
+	 */
+	List<String> fireBatch(Peer aPeer, List<Message> aMessages)
+			throws NoTransport;
+
+	/**
+	 * Fires (and forget) a list of messages to the given peer, in a single
+	 * transport request when the transport supports it (see
+	 * {@link IBatchTransport})
+	 *
+	 * @param aPeerUid
+	 *            The UID of the peer to send the messages to
+	 * @param aMessages
+	 *            The messages to send, in order
+	 * @return The UIDs of the messages
+	 * @throws NoTransport
+	 *             No transport found to send some messages
+	 * @throws UnknownPeer
+	 *             Unknown peer UID
+	 */
+	List<String> fireBatch(String aPeerUid, List<Message> aMessages)
+			throws NoTransport, UnknownPeer;
+
 	/**
 	 * Fires (and forget) the given message to the given group of peers
 	 *
@@ -76,6 +111,22 @@ public interface IHerald {
 	Collection<Peer> fireGroup(String aGroupName, Message aMessage)
 			throws NoTransport;
 
+	/**
+	 * Fires (and forget) the given message to the given group of peers,
+	 * without waiting for the transports. The message is given to all
+	 * transports at once, each peer being reached through its preferred
+	 * access; the peers which couldn't be reached are retried through their
+	 * other accesses.
+	 *
+	 * @param aGroupName
+	 *            The name of a group of peers
+	 * @param aMessage
+	 *            The message to send
+	 * @return The completion handle of the delivery, giving the per-peer
+	 *         results
+	 */
+	GroupDelivery fireGroupAsync(String aGroupName, Message aMessage);
+
 	/**
 	 * Tells Herald to forget informations about the given message UIDs.
 	 *
@@ -239,6 +290,23 @@ public interface IHerald {
 			IPostCallback aCallback, IPostErrback aErrback, Long aTimeout)
 			throws ValueError, NoTransport;
 
+	/**
+	 * Posts a message to a group of peers, and streams their replies. The
+	 * stream is completed once all the peers of the group have answered or
+	 * when the timeout is reached. Errors (unknown group, no transport) end
+	 * the stream.
+	 *
+	 * @param aGroupName
+	 *            The name of a group of peers
+	 * @param aMessage
+	 *            A Message bean
+	 * @param aTimeout
+	 *            Maximum time to wait for the replies (in milliseconds), null
+	 *            to wait until all peers have answered
+	 * @return The stream of replies
+	 */
+	ReplyStream postStream(String aGroupName, Message aMessage, Long aTimeout);
+
 	/**
 	 * Removes a message listener
 	 *
@@ -342,4 +410,62 @@ public interface IHerald {
 	 */
 	Object send(String aPeerUid, Message aMessage, Long aTimeout)
 			throws HeraldException;
+
+	/**
+	 * Sends a message to a group of peers, and waits for their replies. The
+	 * method returns once all peers have answered, once the quorum of
+	 * replies is reached, or when the timeout expires: Herald then forgets
+	 * about the message.
+	 *
+	 * @param aGroupName
+	 *            The name of a group of peers
+	 * @param aMessage
+	 *            The message to send
+	 * @param aTimeout
+	 *            Maximum time to wait for the replies (in milliseconds), null
+	 *            to wait for the quorum
+	 * @param aQuorum
+	 *            Number of replies to wait for (0 or less to wait for all
+	 *            peers)
+	 * @return The content of the replies, the per-peer errors and the
+	 *         missing peers
+	 * @throws ValueError
+	 *             Unknown group
+	 * @throws HeraldException
+	 *             Error sending the message
+	 */
+	GroupReplies sendGroup(String aGroupName, Message aMessage, Long aTimeout,
+			int aQuorum) throws ValueError, HeraldException;
+
+	/**
+	 * Sends a message, without waiting for its reply. Errors (unknown peer,
+	 * no transport, no listener, timeout, ...) are given to the returned
+	 * future, which completes with the first reply.
+	 *
+	 * @param aPeer
+	 *            The peer to send the message to
+	 * @param aMessage
+	 *            The message to send
+	 * @param aTimeout
+	 *            Maximum time to wait for an answer (in milliseconds), null
+	 *            to wait until the message is forgotten
+	 * @return The future reply
+	 */
+	ReplyFuture sendAsync(Peer aPeer, Message aMessage, Long aTimeout);
+
+	/**
+	 * Sends a message, without waiting for its reply. Errors (unknown peer,
+	 * no transport, no listener, timeout, ...) are given to the returned
+	 * future, which completes with the first reply.
+	 *
+	 * @param aPeerUid
+	 *            The UID of the peer to send the message to
+	 * @param aMessage
+	 *            The message to send
+	 * @param aTimeout
+	 *            Maximum time to wait for an answer (in milliseconds), null
+	 *            to wait until the message is forgotten
+	 * @return The future reply
+	 */
+	ReplyFuture sendAsync(String aPeerUid, Message aMessage, Long aTimeout);
 }
@@ -23,6 +23,24 @@ package org.cohorte.herald;
  */
 public interface IHeraldInternal {
 
+    /**
+     * Notifies Herald that a message accepted by a transport couldn't be
+     * delivered afterwards. Used by the transports which send messages
+     * asynchronously: the access statistics are updated and the callers
+     * waiting for an answer from the peer are notified.
+     *
+     * @param aPeer
+     *            The targeted peer
+     * @param aAccessId
+     *            ID of the access used to send the message
+     * @param aMessageUid
+     *            UID of the message
+     * @param aError
+     *            The delivery error
+     */
+    void deliveryFailed(Peer aPeer, String aAccessId, String aMessageUid,
+            HeraldException aError);
+
     /**
      * Handles a message received from a transport implementation.
      *
@@ -33,6 +51,48 @@ public interface IHeraldInternal {
      */
     void handleMessage(MessageReceived aMessage);
 
+    /**
+     * Handles a message received from a transport implementation, of the given
+     * size.
+     *
+     * The message is queued before being handled. If the queue is full and
+     * the admission policy is "reject", the sender gets a
+     * "herald/error/overloaded" reply and an {@link Overloaded} exception is
+     * raised, so that the transport can refuse the message too. With other
+     * policies, the caller can be blocked until the message can be queued.
+     *
+     * @param aMessage
+     *            A {@link MessageReceived} bean forged by a transport
+     * @param aSize
+     *            Size of the message on the wire, in bytes (0 if unknown)
+     * @throws Overloaded
+     *             The message has been refused
+     */
+    void handleMessage(MessageReceived aMessage, int aSize) throws Overloaded;
+
+    /**
+     * Checks if the given message is being sent by send(), i.e. if the thread
+     * which gives it to the transport is blocked until the reply arrives
+     * anyway. Transports with a blocking client can then wait for the reply
+     * on the connection which carried the message.
+     *
+     * @param aMessageUid
+     *            UID of a message sent by this peer
+     * @return True if the sending thread waits for the reply
+     */
+    boolean isBlockedOnReply(String aMessageUid);
+
+    /**
+     * Checks if a caller is waiting for a reply to the given message, sent
+     * with send() or post(). Transports can use it to get the reply through
+     * the connection which carried the message.
+     *
+     * @param aMessageUid
+     *            UID of a message sent by this peer
+     * @return True if a reply is expected
+     */
+    boolean isWaitingReply(String aMessageUid);
+
     /**
      * Replies to a message. If no subject is given, it will be the one of the
      * original message, prefixed with "reply/"
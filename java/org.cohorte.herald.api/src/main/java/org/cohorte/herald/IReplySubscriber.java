@@ -0,0 +1,61 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+/**
+ * Specification of a consumer of the replies given by a {@link ReplyStream}.
+ *
+ * The methods are called in sequence (never concurrently):
+ * {@link #onSubscribe(IReplySubscription)} first, then at most the requested
+ * number of {@link #onNext(MessageReceived)}, then either
+ * {@link #onComplete()} or {@link #onError(Throwable)}.
+ *
+ * @author Thomas Calmant
+ */
+public interface IReplySubscriber {
+
+    /**
+     * The stream has been completed: all peers have replied, or the deadline
+     * has been reached
+     */
+    void onComplete();
+
+    /**
+     * The stream failed
+     *
+     * @param aError
+     *            The error which occurred
+     */
+    void onError(Throwable aError);
+
+    /**
+     * A reply has been received
+     *
+     * @param aReply
+     *            The reply message
+     */
+    void onNext(MessageReceived aReply);
+
+    /**
+     * The subscriber has been associated to a stream. No reply is given
+     * before replies are requested with the given subscription.
+     *
+     * @param aSubscription
+     *            The subscription, to request replies or to cancel
+     */
+    void onSubscribe(IReplySubscription aSubscription);
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+/**
+ * Link between a {@link ReplyStream} and its {@link IReplySubscriber}
+ *
+ * @author Thomas Calmant
+ */
+public interface IReplySubscription {
+
+    /**
+     * Stops the stream: the subscriber won't be notified anymore and Herald
+     * forgets about the request
+     */
+    void cancel();
+
+    /**
+     * Requests the given number of replies. Replies received beforehand are
+     * kept until they are requested.
+     *
+     * @param aCount
+     *            Number of additional replies to give (strictly positive)
+     */
+    void request(long aCount);
+}
@@ -37,9 +37,11 @@ public class Message {
 	public static final String MESSAGE_HEADER_TARGET_PEER = "target-peer";
 	public static final String MESSAGE_HEADER_TARGET_GROUP = "target-group";
 	public static final String MESSAGE_HEADER_REPLIES_TO = "replies-to";
+	public static final String MESSAGE_HEADER_PRIORITY = "priority";
 	public static final String MESSAGE_SUBJECT = "subject";
 	public static final String MESSAGE_CONTENT = "content";
 	public static final String MESSAGE_METADATA = "metadata";
+	public static final String MESSAGE_BATCH = "batch";
 	
 	/** Headers **/
 	protected final Map<String, Object> pHeaders;
@@ -101,6 +103,21 @@ public class Message {
         pMetadata = new HashMap<String, Object>();
     }
 
+    /**
+     * Returns a copy of the message, with its own headers and metadata, which
+     * can be modified without affecting this message
+     *
+     * @return A copy of the message
+     */
+    public Message copy() {
+
+        final Message copy = new Message(pSubject, pContent, getUid(),
+                getTimestamp());
+        copy.pHeaders.putAll(pHeaders);
+        copy.pMetadata.putAll(pMetadata);
+        return copy;
+    }
+
     /**
      * @return the content
      */
@@ -117,6 +134,37 @@ public class Message {
 		pContent = aContent;
 	}
 	
+    /**
+     * Returns the priority of the message: messages with a higher priority
+     * are handled first. Herald-internal messages and the replies a local
+     * caller is waiting for always have the highest priority.
+     * 
+     * @return the priority (0 by default)
+     */
+    public int getPriority() {
+
+        final Object priority = pHeaders.get(MESSAGE_HEADER_PRIORITY);
+        if (priority instanceof Number) {
+            return ((Number) priority).intValue();
+        } else if (priority != null) {
+            try {
+                return Integer.parseInt(priority.toString());
+            } catch (NumberFormatException ex) {
+                // Invalid priority: use the default one
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Sets the priority of the message.
+     *
+     * @param aPriority priority (0 by default, negative for bulk messages)
+     */
+    public void setPriority(int aPriority) {
+        pHeaders.put(MESSAGE_HEADER_PRIORITY, aPriority);
+    }
+
     /**
      * @return the subject
      */
@@ -22,6 +22,8 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Represents a peer in Herald
@@ -51,6 +53,9 @@ public class Peer implements Comparable<Peer> {
     /** Node UID */
     private final String pNodeUid;
 
+    /** Access ID -&gt; Statistics about its use */
+    private final ConcurrentMap<String, AccessStatistics> pStatistics = new ConcurrentHashMap<>();
+
     /** Peer UID */
     private final String pUid;
 
@@ -164,7 +169,7 @@ public class Peer implements Comparable<Peer> {
      */
     public Collection<String> getAccesses() {
 
-        return new HashSet<>(pAccesses.keySet());
+        return new LinkedHashSet<>(pAccesses.keySet());
     }
 
     /**
@@ -209,6 +214,37 @@ public class Peer implements Comparable<Peer> {
         return pNodeUid;
     }
 
+    /**
+     * Returns the statistics about the use of the accesses of this peer
+     *
+     * @return A copy of the Access ID -&gt; Statistics map
+     */
+    public Map<String, AccessStatistics> getStatistics() {
+
+        return new LinkedHashMap<>(pStatistics);
+    }
+
+    /**
+     * Returns the statistics about the use of the given access of this peer.
+     * They are created if necessary.
+     *
+     * @param aAccessId
+     *            An access ID
+     * @return The statistics about the access
+     */
+    public AccessStatistics getStatistics(final String aAccessId) {
+
+        final AccessStatistics statistics = pStatistics.get(aAccessId);
+        if (statistics != null) {
+            return statistics;
+        }
+
+        final AccessStatistics newStatistics = new AccessStatistics();
+        final AccessStatistics oldStatistics = pStatistics.putIfAbsent(
+                aAccessId, newStatistics);
+        return oldStatistics != null ? oldStatistics : newStatistics;
+    }
+
     /**
      * @return the UID
      */
@@ -338,6 +374,7 @@ public class Peer implements Comparable<Peer> {
         }
 
         final Access data = pAccesses.remove(aAccessId);
+        pStatistics.remove(aAccessId);
         pDirectory.peerAccessUnset(this, aAccessId, data);
         return data;
     }
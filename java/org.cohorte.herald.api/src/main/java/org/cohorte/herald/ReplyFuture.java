@@ -0,0 +1,285 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The future result of a request sent with
+ * {@link IHerald#sendAsync(Peer, Message, Long)}: the reply to the message.
+ *
+ * The future is completed by the first reply, or fails with the
+ * {@link HeraldException} describing the error (no transport, no listener,
+ * message forgotten, timeout, ...), which is given as the cause of the
+ * {@link ExecutionException} thrown by the get() methods.
+ *
+ * Callbacks can be registered with
+ * {@link #whenComplete(IPostCallback, IPostErrback)}: they are called by the
+ * thread completing the future, or immediately if it is already done.
+ *
+ * @author Thomas Calmant
+ */
+public class ReplyFuture implements Future<MessageReceived> {
+
+	/** The future has been cancelled */
+	private boolean pCancelled;
+
+	/** Registered callbacks (null once done) */
+	private List<IPostCallback> pCallbacks = new ArrayList<>(1);
+
+	/** Set when the future is done */
+	private final CountDownLatch pDone = new CountDownLatch(1);
+
+	/** Registered error callbacks (null once done) */
+	private List<IPostErrback> pErrbacks = new ArrayList<>(1);
+
+	/** The error, if any */
+	private HeraldException pError;
+
+	/** The Herald service which sent the request */
+	private final IHerald pHerald;
+
+	/** UID of the request message */
+	private final String pMessageUid;
+
+	/** The reply, if any */
+	private MessageReceived pReply;
+
+	/**
+	 * Sets up the future
+	 *
+	 * @param aHerald
+	 *            The Herald service which sent the request
+	 * @param aMessageUid
+	 *            UID of the request message
+	 */
+	public ReplyFuture(final IHerald aHerald, final String aMessageUid) {
+
+		pHerald = aHerald;
+		pMessageUid = aMessageUid;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	@Override
+	public boolean cancel(final boolean aMayInterruptIfRunning) {
+
+		synchronized (this) {
+			if (isDone()) {
+				return false;
+			}
+			pCancelled = true;
+		}
+
+		completeExceptionally(new HeraldException(null, "Request cancelled: "
+				+ pMessageUid));
+
+		// Tell Herald to forget about the request (ignored by this future)
+		pHerald.forget(pMessageUid);
+		return true;
+	}
+
+	/**
+	 * Completes the future with the given reply. Does nothing if the future
+	 * is already done.
+	 *
+	 * @param aReply
+	 *            The reply to the request
+	 * @return True if the future has been completed by this call
+	 */
+	public boolean complete(final MessageReceived aReply) {
+
+		final List<IPostCallback> callbacks;
+		synchronized (this) {
+			if (pCallbacks == null || pCancelled) {
+				return false;
+			}
+
+			pReply = aReply;
+			callbacks = pCallbacks;
+			pCallbacks = null;
+			pErrbacks = null;
+			pDone.countDown();
+		}
+
+		for (final IPostCallback callback : callbacks) {
+			callback.heraldCallback(pHerald, aReply);
+		}
+		return true;
+	}
+
+	/**
+	 * Completes the future with the given error. Does nothing if the future
+	 * is already done.
+	 *
+	 * @param aError
+	 *            The error which occurred
+	 * @return True if the future has been completed by this call
+	 */
+	public boolean completeExceptionally(final HeraldException aError) {
+
+		final List<IPostErrback> errbacks;
+		synchronized (this) {
+			if (pErrbacks == null) {
+				return false;
+			}
+
+			pError = aError;
+			errbacks = pErrbacks;
+			pCallbacks = null;
+			pErrbacks = null;
+			pDone.countDown();
+		}
+
+		for (final IPostErrback errback : errbacks) {
+			errback.heraldErrback(pHerald, aError);
+		}
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#get()
+	 */
+	@Override
+	public MessageReceived get() throws InterruptedException,
+			ExecutionException {
+
+		pDone.await();
+		return getResult();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#get(long,
+	 * java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public MessageReceived get(final long aTimeout, final TimeUnit aUnit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+
+		if (!pDone.await(aTimeout, aUnit)) {
+			throw new TimeoutException("No reply to " + pMessageUid);
+		}
+		return getResult();
+	}
+
+	/**
+	 * Returns the UID of the request message
+	 *
+	 * @return The UID of the request message
+	 */
+	public String getMessageUid() {
+
+		return pMessageUid;
+	}
+
+	/**
+	 * Returns the result of the future, once done
+	 *
+	 * @return The reply
+	 * @throws ExecutionException
+	 *             The request failed
+	 */
+	private synchronized MessageReceived getResult() throws ExecutionException {
+
+		if (pCancelled) {
+			throw new CancellationException("Request cancelled: "
+					+ pMessageUid);
+
+		} else if (pError != null) {
+			throw new ExecutionException(pError);
+		}
+		return pReply;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#isCancelled()
+	 */
+	@Override
+	public synchronized boolean isCancelled() {
+
+		return pCancelled;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#isDone()
+	 */
+	@Override
+	public boolean isDone() {
+
+		return pDone.getCount() == 0;
+	}
+
+	/**
+	 * Registers the methods to call back when the future is done. If the
+	 * future is already done, the matching method is called immediately.
+	 *
+	 * @param aCallback
+	 *            Object to call back when a reply is received (can be null)
+	 * @param aErrback
+	 *            Object to call back when an error occurs (can be null)
+	 * @return This future
+	 */
+	public ReplyFuture whenComplete(final IPostCallback aCallback,
+			final IPostErrback aErrback) {
+
+		final MessageReceived reply;
+		final HeraldException error;
+		synchronized (this) {
+			if (pCallbacks != null) {
+				// Not yet done
+				if (aCallback != null) {
+					pCallbacks.add(aCallback);
+				}
+				if (aErrback != null) {
+					pErrbacks.add(aErrback);
+				}
+				return this;
+			}
+
+			reply = pReply;
+			error = pError;
+		}
+
+		// Already done
+		if (error != null) {
+			if (aErrback != null) {
+				aErrback.heraldErrback(pHerald, error);
+			}
+		} else if (aCallback != null) {
+			aCallback.heraldCallback(pHerald, reply);
+		}
+		return this;
+	}
+}
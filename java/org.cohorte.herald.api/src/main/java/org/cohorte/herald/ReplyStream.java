@@ -0,0 +1,335 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * The stream of the replies to a message posted to a group of peers with
+ * {@link IHerald#postStream(String, Message, Long)}.
+ *
+ * The stream accepts a single {@link IReplySubscriber}. It gives it the
+ * replies as they are received, within the limit of the requested number of
+ * replies: the others are kept until they are requested. The stream is
+ * completed once all the targeted peers have answered (with a reply or an
+ * error) or when the deadline is reached; {@link #getPendingPeers()} then
+ * gives the peers which haven't answered.
+ *
+ * @author Thomas Calmant
+ */
+public class ReplyStream {
+
+	/** Replies waiting to be requested */
+	private final Queue<MessageReceived> pBuffer = new ArrayDeque<>();
+
+	/** The subscriber cancelled the subscription */
+	private boolean pCancelled;
+
+	/** No more reply will be received */
+	private boolean pDone;
+
+	/** A thread is notifying the subscriber */
+	private boolean pDraining;
+
+	/** The error which ended the stream, if any */
+	private Throwable pError;
+
+	/** The Herald service which sent the request */
+	private final IHerald pHerald;
+
+	/** UID of the request message */
+	private final String pMessageUid;
+
+	/** UIDs of the peers which haven't answered yet */
+	private final Set<String> pPendingPeers;
+
+	/** Number of replies requested and not yet given */
+	private long pRequested;
+
+	/** The subscriber */
+	private IReplySubscriber pSubscriber;
+
+	/** The subscriber has been notified of its subscription */
+	private boolean pSubscribed;
+
+	/** The subscriber has been notified of the end of the stream */
+	private boolean pTerminated;
+
+	/**
+	 * Sets up the stream
+	 *
+	 * @param aHerald
+	 *            The Herald service which sent the request
+	 * @param aMessageUid
+	 *            UID of the request message
+	 * @param aPeers
+	 *            UIDs of the peers expected to answer
+	 */
+	public ReplyStream(final IHerald aHerald, final String aMessageUid,
+			final Collection<String> aPeers) {
+
+		pHerald = aHerald;
+		pMessageUid = aMessageUid;
+		pPendingPeers = new LinkedHashSet<>(aPeers);
+		pDone = pPendingPeers.isEmpty();
+	}
+
+	/**
+	 * Completes the stream: no more reply will be given. Replies already
+	 * received are still given to the subscriber, when requested.
+	 */
+	public void complete() {
+
+		synchronized (this) {
+			if (pDone) {
+				return;
+			}
+			pDone = true;
+		}
+		drain();
+	}
+
+	/**
+	 * Ends the stream with the given error. Replies already received are
+	 * still given to the subscriber, when requested.
+	 *
+	 * @param aError
+	 *            The error which occurred
+	 */
+	public void completeExceptionally(final Throwable aError) {
+
+		synchronized (this) {
+			if (pDone) {
+				return;
+			}
+			pDone = true;
+			pError = aError;
+		}
+		drain();
+	}
+
+	/**
+	 * Notifies the subscriber, as long as it has requested replies, then
+	 * notifies it of the end of the stream. Only one thread notifies the
+	 * subscriber at a time: other threads leave the new state to it.
+	 */
+	private void drain() {
+
+		synchronized (this) {
+			if (pDraining) {
+				return;
+			}
+			pDraining = true;
+		}
+
+		while (true) {
+			final IReplySubscriber subscriber;
+			MessageReceived reply = null;
+			Throwable error = null;
+			synchronized (this) {
+				subscriber = pSubscriber;
+				if (!pSubscribed || pCancelled || pTerminated) {
+					pDraining = false;
+					return;
+
+				} else if (pRequested > 0 && !pBuffer.isEmpty()) {
+					reply = pBuffer.poll();
+					pRequested--;
+
+				} else if (pDone && pBuffer.isEmpty()) {
+					pTerminated = true;
+					error = pError;
+
+				} else {
+					// Wait for more replies or requests
+					pDraining = false;
+					return;
+				}
+			}
+
+			if (reply != null) {
+				subscriber.onNext(reply);
+			} else if (error != null) {
+				subscriber.onError(error);
+			} else {
+				subscriber.onComplete();
+			}
+		}
+	}
+
+	/**
+	 * Returns the UID of the request message
+	 *
+	 * @return The UID of the request message
+	 */
+	public String getMessageUid() {
+
+		return pMessageUid;
+	}
+
+	/**
+	 * Returns the UIDs of the peers which haven't answered yet
+	 *
+	 * @return A copy of the set of outstanding peers UIDs
+	 */
+	public synchronized Set<String> getPendingPeers() {
+
+		return Collections.unmodifiableSet(new LinkedHashSet<>(pPendingPeers));
+	}
+
+	/**
+	 * Checks if the stream won't receive more replies
+	 *
+	 * @return True if the stream has been completed
+	 */
+	public synchronized boolean isDone() {
+
+		return pDone;
+	}
+
+	/**
+	 * Adds a reply to the stream. The stream is completed once all peers have
+	 * answered.
+	 *
+	 * @param aReply
+	 *            A reply to the request
+	 * @return True if the reply has been accepted, False if the stream is
+	 *         already done
+	 */
+	public boolean offer(final MessageReceived aReply) {
+
+		synchronized (this) {
+			if (pDone) {
+				return false;
+			}
+
+			pBuffer.add(aReply);
+			pPendingPeers.remove(aReply.getSender());
+			pDone = pPendingPeers.isEmpty();
+		}
+		drain();
+		return true;
+	}
+
+	/**
+	 * Notes that a peer answered with an error (no listener, overloaded, ...)
+	 * instead of a reply. The stream is completed once all peers have
+	 * answered.
+	 *
+	 * @param aPeerUid
+	 *            UID of the peer
+	 */
+	public void peerFailed(final String aPeerUid) {
+
+		synchronized (this) {
+			if (pDone || !pPendingPeers.remove(aPeerUid)) {
+				return;
+			}
+			pDone = pPendingPeers.isEmpty();
+		}
+		drain();
+	}
+
+	/**
+	 * Associates the subscriber to the stream. A stream accepts a single
+	 * subscriber: others are notified of an {@link IllegalStateException}.
+	 *
+	 * @param aSubscriber
+	 *            The subscriber
+	 */
+	public void subscribe(final IReplySubscriber aSubscriber) {
+
+		synchronized (this) {
+			if (pSubscriber != null) {
+				// Already subscribed
+				aSubscriber.onSubscribe(new IReplySubscription() {
+
+					@Override
+					public void cancel() {
+
+						// Nothing to do
+					}
+
+					@Override
+					public void request(final long aCount) {
+
+						// Nothing to do
+					}
+				});
+				aSubscriber.onError(new IllegalStateException(
+						"Reply stream already subscribed: " + pMessageUid));
+				return;
+			}
+			pSubscriber = aSubscriber;
+		}
+
+		aSubscriber.onSubscribe(new IReplySubscription() {
+
+			@Override
+			public void cancel() {
+
+				synchronized (ReplyStream.this) {
+					if (pCancelled) {
+						return;
+					}
+					pCancelled = true;
+					pBuffer.clear();
+				}
+
+				// Tell Herald to forget about the request
+				pHerald.forget(pMessageUid);
+			}
+
+			@Override
+			public void request(final long aCount) {
+
+				synchronized (ReplyStream.this) {
+					if (aCount <= 0) {
+						// Invalid demand: end the stream
+						pBuffer.clear();
+						pError = new IllegalArgumentException(
+								"Invalid number of requested replies: "
+										+ aCount);
+						pDone = true;
+
+					} else {
+						pRequested += aCount;
+						if (pRequested < 0) {
+							// Overflow: unbounded demand
+							pRequested = Long.MAX_VALUE;
+						}
+					}
+				}
+
+				if (aCount <= 0) {
+					pHerald.forget(pMessageUid);
+				}
+				drain();
+			}
+		});
+
+		synchronized (this) {
+			pSubscribed = true;
+		}
+		drain();
+	}
+}
@@ -17,6 +17,8 @@ package org.cohorte.herald.internal;
 
 import org.cohorte.herald.eventapi.DefaultEventFactory;
 import org.cohorte.herald.eventapi.IEventFactory;
+import org.cohorte.herald.utils.HashedWheelTimer;
+import org.cohorte.herald.utils.ITimerService;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
@@ -25,7 +27,7 @@ import org.osgi.framework.ServiceRegistration;
 /**
  * The Herald API bundle activator.
  *
- * Registers the default event factory, if necessary
+ * Registers the default event factory, if necessary, and the timer service
  *
  * @author Thomas Calmant
  */
@@ -34,6 +36,12 @@ public class Activator implements BundleActivator {
 	/** The service registration */
 	private ServiceRegistration<IEventFactory> pRegistration;
 
+	/** The timer service */
+	private HashedWheelTimer pTimer;
+
+	/** The timer service registration */
+	private ServiceRegistration<ITimerService> pTimerRegistration;
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -53,6 +61,12 @@ public class Activator implements BundleActivator {
 			pRegistration = aContext.registerService(IEventFactory.class,
 					new DefaultEventFactory(), null);
 		}
+
+		// Start the timer service
+		pTimer = new HashedWheelTimer();
+		pTimer.start();
+		pTimerRegistration = aContext.registerService(ITimerService.class,
+				pTimer, null);
 	}
 
 	/*
@@ -63,6 +77,16 @@ public class Activator implements BundleActivator {
 	 */
 	@Override
 	public void stop(final BundleContext aContext) throws Exception {
+		if (pTimerRegistration != null) {
+			pTimerRegistration.unregister();
+			pTimerRegistration = null;
+		}
+
+		if (pTimer != null) {
+			pTimer.stop();
+			pTimer = null;
+		}
+
 		if (pRegistration != null) {
 			pRegistration.unregister();
 			pRegistration = null;
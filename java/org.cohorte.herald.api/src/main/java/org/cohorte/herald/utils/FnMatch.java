@@ -16,17 +16,34 @@
 
 package org.cohorte.herald.utils;
 
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A wild card filter
  *
+ * The filter is parsed once into the literal segments found between its "*"
+ * wild cards. A "?" matches any single character, and a back slash escapes the
+ * next character. Matching a string doesn't allocate anything.
+ *
  * @author Thomas Calmant
  */
 public class FnMatch {
 
-    /** The compiled Regex pattern */
-    private final Pattern pPattern;
+    /** The file name match string */
+    private final String pFilter;
+
+    /** The unescaped filter, if it doesn't contain any wild card */
+    private final String pLiteral;
+
+    /** Minimal length of a matching string */
+    private final int pMinLength;
+
+    /** Segments of the filter, between "*" wild cards */
+    private final char[][] pSegments;
+
+    /** Positions of the "?" wild cards in each segment (null if none) */
+    private final boolean[][] pSingles;
 
     /**
      * Sets up the file name filter
@@ -36,63 +53,85 @@ public class FnMatch {
      */
     public FnMatch(final String aFnMatch) {
 
-        pPattern = compile(aFnMatch);
-    }
+        pFilter = aFnMatch;
 
-    /**
-     * Compiles a wild card filename filter into a Regex pattern
-     *
-     * Inspired from <a href=
-     * "http://stackoverflow.com/questions/1247772/is-there-an-equivalent-of-java-util-regex-for-glob-type-patterns"
-     * >this post on StackOverflow</a>
-     *
-     * @param aFnMatch
-     *            A file name match string
-     * @return A compiled Regex pattern
-     */
-    private Pattern compile(final String aFnMatch) {
-
-        final StringBuilder out = new StringBuilder("^");
+        // Parse the filter
+        final List<char[]> segments = new ArrayList<>();
+        final List<boolean[]> singles = new ArrayList<>();
+        final StringBuilder segment = new StringBuilder();
+        final StringBuilder mask = new StringBuilder();
         boolean escaped = false;
+        boolean hasSingle = false;
+        int minLength = 0;
 
         for (final char currentChar : aFnMatch.toCharArray()) {
+            if (escaped) {
+                // Escaped character: always a literal
+                segment.append(currentChar);
+                mask.append(' ');
+                escaped = false;
+                continue;
+            }
+
             switch (currentChar) {
+            case '\\':
+                escaped = true;
+                break;
+
             case '*':
-                if (escaped) {
-                    out.append("\\*");
-                    escaped = false;
-                } else {
-                    out.append(".*");
-                }
+                // End of segment
+                minLength += segment.length();
+                segments.add(segment.toString().toCharArray());
+                singles.add(toMask(mask));
+                segment.setLength(0);
+                mask.setLength(0);
                 break;
 
             case '?':
-                if (escaped) {
-                    out.append("\\?");
-                    escaped = false;
-                } else {
-                    out.append(".");
-                }
+                segment.append(currentChar);
+                mask.append('?');
+                hasSingle = true;
                 break;
 
-            case '.':
-                out.append("\\.");
+            default:
+                segment.append(currentChar);
+                mask.append(' ');
                 break;
+            }
+        }
 
-            case '\\':
-                if (escaped) {
-                    out.append("\\\\");
-                } else {
-                    escaped = true;
-                }
-                break;
+        // Last segment (a trailing back slash is ignored)
+        minLength += segment.length();
+        segments.add(segment.toString().toCharArray());
+        singles.add(toMask(mask));
 
-            default:
-                out.append(currentChar);
-            }
+        pMinLength = minLength;
+        pSegments = segments.toArray(new char[segments.size()][]);
+        pSingles = hasSingle ? singles.toArray(new boolean[singles.size()][])
+                : null;
+
+        if (pSegments.length == 1 && !hasSingle) {
+            // No wild card: simple equality
+            pLiteral = segment.toString();
+        } else {
+            pLiteral = null;
         }
-        out.append('$');
-        return Pattern.compile(out.toString());
+    }
+
+    /**
+     * Converts a segment mask into a "?" positions array
+     *
+     * @param aMask
+     *            A segment mask, where '?' marks a wild card
+     * @return The positions of "?" wild cards in the segment
+     */
+    private static boolean[] toMask(final CharSequence aMask) {
+
+        final boolean[] result = new boolean[aMask.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = aMask.charAt(i) == '?';
+        }
+        return result;
     }
 
     /*
@@ -104,18 +143,27 @@ public class FnMatch {
     public boolean equals(final Object aObj) {
 
         if (aObj instanceof FnMatch) {
-            // Compare by pattern string
-            return pPattern.pattern().equals(
-                    ((FnMatch) aObj).pPattern.pattern());
+            // Compare by filter string
+            return pFilter.equals(((FnMatch) aObj).pFilter);
 
         } else if (aObj instanceof CharSequence) {
-            // Compare string with pattern
-            return aObj.toString().equals(pPattern.pattern());
+            // Compare string with filter
+            return aObj.toString().equals(pFilter);
         }
 
         return false;
     }
 
+    /**
+     * Returns the file name match string this filter has been created with
+     *
+     * @return The file name match string
+     */
+    public String getFilter() {
+
+        return pFilter;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -124,7 +172,7 @@ public class FnMatch {
     @Override
     public int hashCode() {
 
-        return pPattern.pattern().hashCode();
+        return pFilter.hashCode();
     }
 
     /**
@@ -136,7 +184,81 @@ public class FnMatch {
      */
     public boolean matches(final String aName) {
 
-        return pPattern.matcher(aName).matches();
+        if (pLiteral != null) {
+            // No wild card
+            return pLiteral.equals(aName);
+        }
+
+        final int length = aName.length();
+        if (length < pMinLength) {
+            // Too short
+            return false;
+        }
+
+        final int last = pSegments.length - 1;
+        if (last == 0) {
+            // Only "?" wild cards
+            return length == pMinLength && regionMatches(0, aName, 0);
+        }
+
+        // Literal prefix and suffix
+        final int prefixEnd = pSegments[0].length;
+        final int suffixStart = length - pSegments[last].length;
+        if (!regionMatches(0, aName, 0)
+                || !regionMatches(last, aName, suffixStart)) {
+            return false;
+        }
+
+        // Find the inner segments, from left to right
+        int offset = prefixEnd;
+        for (int i = 1; i < last; i++) {
+            final int segmentLength = pSegments[i].length;
+            int found = -1;
+            for (int start = offset; start + segmentLength <= suffixStart; start++) {
+                if (regionMatches(i, aName, start)) {
+                    found = start;
+                    break;
+                }
+            }
+
+            if (found == -1) {
+                return false;
+            }
+            offset = found + segmentLength;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the given segment of the filter matches the string at the
+     * given offset
+     *
+     * @param aSegment
+     *            Index of the segment
+     * @param aName
+     *            The tested string
+     * @param aOffset
+     *            Offset in the tested string
+     * @return True if the segment matches at this offset
+     */
+    private boolean regionMatches(final int aSegment, final String aName,
+            final int aOffset) {
+
+        final char[] segment = pSegments[aSegment];
+        final boolean[] singles = pSingles != null ? pSingles[aSegment]
+                : null;
+
+        for (int i = 0; i < segment.length; i++) {
+            if (singles != null && singles[i]) {
+                // "?" matches any character
+                continue;
+            }
+
+            if (segment[i] != aName.charAt(aOffset + i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /*
@@ -147,6 +269,6 @@ public class FnMatch {
     @Override
     public String toString() {
 
-        return pPattern.pattern();
+        return pFilter;
     }
 }
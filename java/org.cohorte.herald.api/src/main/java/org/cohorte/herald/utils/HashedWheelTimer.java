@@ -0,0 +1,533 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.herald.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel implementation of {@link ITimerService}.
+ *
+ * Tasks are stored in the bucket of the wheel matching their deadline, with
+ * the number of wheel rounds left before their execution. A single thread
+ * moves from one bucket to the next at each tick, and executes the tasks which
+ * are due. Scheduling and cancelling a task are O(1) and don't lock: new and
+ * cancelled tasks are queued, then handled by the timer thread on next tick.
+ *
+ * @author Thomas Calmant
+ */
+public class HashedWheelTimer implements ITimerService {
+
+	/**
+	 * A bucket of the wheel: a doubly-linked list of timeouts, only accessed
+	 * by the timer thread
+	 *
+	 * @author Thomas Calmant
+	 */
+	private static final class Bucket {
+
+		/** First timeout of the bucket */
+		private Timeout pHead;
+
+		/** Last timeout of the bucket */
+		private Timeout pTail;
+
+		/**
+		 * Appends a timeout to the bucket
+		 *
+		 * @param aTimeout
+		 *            A timeout
+		 */
+		private void add(final Timeout aTimeout) {
+
+			aTimeout.pBucket = this;
+			if (pHead == null) {
+				pHead = pTail = aTimeout;
+			} else {
+				pTail.pNext = aTimeout;
+				aTimeout.pPrev = pTail;
+				pTail = aTimeout;
+			}
+		}
+
+		/**
+		 * Executes the timeouts which are due, and decrements the number of
+		 * rounds left of the others
+		 *
+		 * @param aDeadline
+		 *            Time of the current tick
+		 * @return The periodic timeouts to schedule again
+		 */
+		private Timeout expire(final long aDeadline) {
+
+			Timeout rescheduled = null;
+			Timeout timeout = pHead;
+			while (timeout != null) {
+				final Timeout next = timeout.pNext;
+				if (timeout.pRemainingRounds <= 0
+						&& timeout.pDeadline <= aDeadline) {
+					remove(timeout);
+					if (timeout.expire()) {
+						// Periodic task: schedule it again
+						timeout.pNext = rescheduled;
+						rescheduled = timeout;
+					}
+
+				} else if (timeout.isCancelled()) {
+					remove(timeout);
+
+				} else {
+					timeout.pRemainingRounds--;
+				}
+				timeout = next;
+			}
+			return rescheduled;
+		}
+
+		/**
+		 * Removes a timeout from the bucket
+		 *
+		 * @param aTimeout
+		 *            A timeout of this bucket
+		 */
+		private void remove(final Timeout aTimeout) {
+
+			final Timeout next = aTimeout.pNext;
+			if (aTimeout.pPrev != null) {
+				aTimeout.pPrev.pNext = next;
+			}
+			if (next != null) {
+				next.pPrev = aTimeout.pPrev;
+			}
+
+			if (aTimeout == pHead) {
+				pHead = next;
+			}
+			if (aTimeout == pTail) {
+				pTail = aTimeout.pPrev;
+			}
+
+			aTimeout.pBucket = null;
+			aTimeout.pNext = null;
+			aTimeout.pPrev = null;
+		}
+	}
+
+	/**
+	 * A scheduled task
+	 *
+	 * @author Thomas Calmant
+	 */
+	private final class Timeout implements ITimeout {
+
+		/** Bucket containing the timeout (timer thread only) */
+		private Bucket pBucket;
+
+		/** Deadline, relative to the start of the timer (in nanoseconds) */
+		private long pDeadline;
+
+		/** Next timeout in the bucket (timer thread only) */
+		private Timeout pNext;
+
+		/** Period of the task (in nanoseconds), 0 for single shot tasks */
+		private final long pPeriod;
+
+		/** Previous timeout in the bucket (timer thread only) */
+		private Timeout pPrev;
+
+		/** Number of wheel rounds before the execution (timer thread only) */
+		private long pRemainingRounds;
+
+		/** State of the timeout */
+		private final AtomicInteger pState = new AtomicInteger(ST_WAITING);
+
+		/** The task */
+		private final Runnable pTask;
+
+		/**
+		 * Sets up the timeout
+		 *
+		 * @param aTask
+		 *            The task
+		 * @param aDeadline
+		 *            Deadline, relative to the start of the timer
+		 * @param aPeriod
+		 *            Period of the task, 0 for single shot tasks
+		 */
+		private Timeout(final Runnable aTask, final long aDeadline,
+				final long aPeriod) {
+
+			pTask = aTask;
+			pDeadline = aDeadline;
+			pPeriod = aPeriod;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.cohorte.herald.utils.ITimeout#cancel()
+		 */
+		@Override
+		public boolean cancel() {
+
+			if (!pState.compareAndSet(ST_WAITING, ST_CANCELLED)) {
+				return false;
+			}
+
+			// Let the timer thread remove it from its bucket
+			pCancelled.add(this);
+			return true;
+		}
+
+		/**
+		 * Executes the task (timer thread only)
+		 *
+		 * @return True if the task must be scheduled again
+		 */
+		private boolean expire() {
+
+			if (pPeriod == 0) {
+				// Single shot task
+				if (pState.compareAndSet(ST_WAITING, ST_EXPIRED)) {
+					runTask();
+				}
+				return false;
+			}
+
+			// Periodic task
+			if (pState.get() != ST_WAITING) {
+				return false;
+			}
+
+			runTask();
+			if (pState.get() == ST_WAITING) {
+				pDeadline += pPeriod;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Runs the task. Its exceptions are given to the uncaught exception
+		 * handler of the timer thread, which keeps running; errors are
+		 * propagated.
+		 */
+		private void runTask() {
+
+			try {
+				pTask.run();
+
+			} catch (final Exception ex) {
+				// A task must not kill the timer thread
+				final Thread thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException(thread,
+						ex);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.cohorte.herald.utils.ITimeout#isCancelled()
+		 */
+		@Override
+		public boolean isCancelled() {
+
+			return pState.get() == ST_CANCELLED;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.cohorte.herald.utils.ITimeout#isExpired()
+		 */
+		@Override
+		public boolean isExpired() {
+
+			return pState.get() == ST_EXPIRED;
+		}
+	}
+
+	/** Default duration of a tick: 10 milliseconds */
+	public static final long DEFAULT_TICK = 10;
+
+	/** Default number of buckets in the wheel */
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	/** Timeout state: cancelled */
+	private static final int ST_CANCELLED = 2;
+
+	/** Timeout state: executed */
+	private static final int ST_EXPIRED = 1;
+
+	/** Timeout state: waiting for execution */
+	private static final int ST_WAITING = 0;
+
+	/** Cancelled timeouts, to remove from their bucket */
+	private final Queue<Timeout> pCancelled = new ConcurrentLinkedQueue<>();
+
+	/** Mask to compute a bucket index from a tick */
+	private final int pMask;
+
+	/** Name of the timer thread */
+	private final String pName;
+
+	/** Timeouts to add to the wheel */
+	private final Queue<Timeout> pPending = new ConcurrentLinkedQueue<>();
+
+	/** Timer start time (nanoseconds) */
+	private final long pStartTime;
+
+	/** The timer thread */
+	private Thread pThread;
+
+	/** Duration of a tick (nanoseconds) */
+	private final long pTickDuration;
+
+	/** The wheel */
+	private final Bucket[] pWheel;
+
+	/**
+	 * Sets up the timer, with default parameters
+	 */
+	public HashedWheelTimer() {
+
+		this("Herald-Timer", DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * Sets up the timer
+	 *
+	 * @param aName
+	 *            Name of the timer thread
+	 * @param aTick
+	 *            Duration of a tick (in milliseconds)
+	 * @param aWheelSize
+	 *            Number of buckets in the wheel (rounded up to a power of 2)
+	 */
+	public HashedWheelTimer(final String aName, final long aTick,
+			final int aWheelSize) {
+
+		if (aTick <= 0) {
+			throw new IllegalArgumentException("Invalid tick duration: "
+					+ aTick);
+		}
+
+		int size = 1;
+		while (size < aWheelSize) {
+			size <<= 1;
+		}
+
+		pName = aName;
+		pTickDuration = TimeUnit.MILLISECONDS.toNanos(aTick);
+		pWheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			pWheel[i] = new Bucket();
+		}
+		pMask = size - 1;
+		pStartTime = System.nanoTime();
+	}
+
+	/**
+	 * Adds the pending timeouts to the wheel (timer thread only)
+	 *
+	 * @param aTick
+	 *            The current tick
+	 */
+	private void addPending(final long aTick) {
+
+		Timeout timeout;
+		while ((timeout = pPending.poll()) != null) {
+			if (!timeout.isCancelled()) {
+				addToWheel(timeout, aTick);
+			}
+		}
+	}
+
+	/**
+	 * Stores a timeout in the bucket matching its deadline (timer thread only)
+	 *
+	 * @param aTimeout
+	 *            A timeout
+	 * @param aTick
+	 *            The current tick
+	 */
+	private void addToWheel(final Timeout aTimeout, final long aTick) {
+
+		final long expectedTick = aTimeout.pDeadline / pTickDuration;
+		aTimeout.pRemainingRounds = (expectedTick - aTick) / pWheel.length;
+
+		// Late timeouts are executed on the current tick
+		final long tick = Math.max(expectedTick, aTick);
+		pWheel[(int) (tick & pMask)].add(aTimeout);
+	}
+
+	/**
+	 * Removes cancelled timeouts from their bucket (timer thread only)
+	 */
+	private void removeCancelled() {
+
+		Timeout timeout;
+		while ((timeout = pCancelled.poll()) != null) {
+			if (timeout.pBucket != null) {
+				timeout.pBucket.remove(timeout);
+			}
+		}
+	}
+
+	/**
+	 * The timer thread loop
+	 */
+	private void run() {
+
+		long tick = 0;
+		while (!Thread.currentThread().isInterrupted()) {
+			// Wait for the end of the tick
+			final long deadline = pTickDuration * (tick + 1);
+			final long sleep = TimeUnit.NANOSECONDS.toMillis(deadline
+					- (System.nanoTime() - pStartTime) + 999999);
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+
+				} catch (final InterruptedException ex) {
+					// Timer stopped
+					break;
+				}
+			}
+
+			// Update the wheel
+			removeCancelled();
+			addPending(tick);
+
+			// Execute the tasks of the bucket
+			Timeout rescheduled = pWheel[(int) (tick & pMask)]
+					.expire(deadline);
+			while (rescheduled != null) {
+				final Timeout next = rescheduled.pNext;
+				rescheduled.pNext = null;
+				pPending.add(rescheduled);
+				rescheduled = next;
+			}
+
+			tick++;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.utils.ITimerService#schedule(java.lang.Runnable,
+	 * long)
+	 */
+	@Override
+	public ITimeout schedule(final Runnable aTask, final long aDelay) {
+
+		return schedule(aTask, aDelay, 0);
+	}
+
+	/**
+	 * Prepares a timeout and queues it
+	 *
+	 * @param aTask
+	 *            The task to execute
+	 * @param aDelay
+	 *            Delay before the first execution (in milliseconds)
+	 * @param aPeriod
+	 *            Period of the task (in milliseconds), 0 for single shot
+	 *            tasks
+	 * @return The timeout
+	 */
+	private ITimeout schedule(final Runnable aTask, final long aDelay,
+			final long aPeriod) {
+
+		if (aTask == null) {
+			throw new NullPointerException("No task given");
+		}
+
+		final long deadline = System.nanoTime() - pStartTime
+				+ TimeUnit.MILLISECONDS.toNanos(Math.max(0, aDelay));
+		final Timeout timeout = new Timeout(aTask, deadline,
+				TimeUnit.MILLISECONDS.toNanos(aPeriod));
+		pPending.add(timeout);
+		return timeout;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.cohorte.herald.utils.ITimerService#scheduleAtFixedRate(java.lang.
+	 * Runnable, long, long)
+	 */
+	@Override
+	public ITimeout scheduleAtFixedRate(final Runnable aTask,
+			final long aDelay, final long aPeriod) {
+
+		if (aPeriod <= 0) {
+			throw new IllegalArgumentException("Invalid period: " + aPeriod);
+		}
+
+		return schedule(aTask, aDelay, aPeriod);
+	}
+
+	/**
+	 * Starts the timer thread
+	 */
+	public synchronized void start() {
+
+		if (pThread != null) {
+			// Already started
+			return;
+		}
+
+		pThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				HashedWheelTimer.this.run();
+			}
+		}, pName);
+		pThread.setDaemon(true);
+		pThread.start();
+	}
+
+	/**
+	 * Stops the timer thread. Waiting tasks won't be executed.
+	 */
+	public synchronized void stop() {
+
+		if (pThread == null) {
+			// Not started
+			return;
+		}
+
+		pThread.interrupt();
+		try {
+			pThread.join(1000);
+
+		} catch (final InterruptedException ex) {
+			// Join interrupted
+		}
+
+		pThread = null;
+		pPending.clear();
+		pCancelled.clear();
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.herald.utils;
+
+/**
+ * Handle of a task scheduled with an {@link ITimerService}
+ *
+ * @author Thomas Calmant
+ */
+public interface ITimeout {
+
+	/**
+	 * Cancels the task. A periodic task won't be executed anymore.
+	 *
+	 * @return True if the task has been cancelled, False if it already has
+	 *         been executed (single shot task) or cancelled
+	 */
+	boolean cancel();
+
+	/**
+	 * Checks if the task has been cancelled
+	 *
+	 * @return True if the task has been cancelled
+	 */
+	boolean isCancelled();
+
+	/**
+	 * Checks if the task has been executed. Always false for periodic tasks.
+	 *
+	 * @return True if the single shot task has been executed
+	 */
+	boolean isExpired();
+}
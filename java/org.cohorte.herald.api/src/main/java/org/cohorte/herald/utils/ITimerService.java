@@ -0,0 +1,53 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.herald.utils;
+
+/**
+ * Specification of the Herald timer service, shared by the Herald components
+ * to execute delayed and periodic tasks without a thread per task.
+ *
+ * Tasks are executed in the timer thread: they must be short, and mustn't
+ * block.
+ *
+ * @author Thomas Calmant
+ */
+public interface ITimerService {
+
+	/**
+	 * Schedules a single shot task
+	 *
+	 * @param aTask
+	 *            The task to execute
+	 * @param aDelay
+	 *            Time to wait before executing the task (in milliseconds)
+	 * @return The handle of the scheduled task
+	 */
+	ITimeout schedule(Runnable aTask, long aDelay);
+
+	/**
+	 * Schedules a periodic task, executed until it is cancelled
+	 *
+	 * @param aTask
+	 *            The task to execute
+	 * @param aDelay
+	 *            Time to wait before the first execution (in milliseconds)
+	 * @param aPeriod
+	 *            Time between the beginning of two executions (in
+	 *            milliseconds)
+	 * @return The handle of the scheduled task
+	 */
+	ITimeout scheduleAtFixedRate(Runnable aTask, long aDelay, long aPeriod);
+}
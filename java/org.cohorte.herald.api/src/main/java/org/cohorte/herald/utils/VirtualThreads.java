@@ -0,0 +1,148 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.cohorte.herald.IConstants;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Access to the virtual threads of the JVM, when available (Java 21+).
+ *
+ * Herald is compiled for Java 7: virtual threads are created by reflection.
+ * All methods return null when the JVM doesn't support them.
+ *
+ * @author Thomas Calmant
+ */
+public final class VirtualThreads {
+
+	/** Thread.Builder.factory() */
+	private static final Method BUILDER_FACTORY;
+
+	/** Thread.Builder.name(String, long) */
+	private static final Method BUILDER_NAME;
+
+	/** Executors.newVirtualThreadPerTaskExecutor() */
+	private static final Method NEW_EXECUTOR;
+
+	/** Thread.ofVirtual() */
+	private static final Method OF_VIRTUAL;
+
+	static {
+		Method ofVirtual = null;
+		Method builderName = null;
+		Method builderFactory = null;
+		Method newExecutor = null;
+		try {
+			final Class<?> builderClass = Class
+					.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			builderName = builderClass.getMethod("name", String.class,
+					long.class);
+			builderFactory = builderClass.getMethod("factory");
+			newExecutor = java.util.concurrent.Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+
+		} catch (final ReflectiveOperationException ex) {
+			// Virtual threads not supported
+			ofVirtual = null;
+		}
+
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = builderName;
+		BUILDER_FACTORY = builderFactory;
+		NEW_EXECUTOR = newExecutor;
+	}
+
+	/**
+	 * Checks if virtual threads must be used, i.e. if they are enabled by the
+	 * {@link IConstants#FWPROP_VIRTUAL_THREADS} framework property and
+	 * supported by the JVM
+	 *
+	 * @param aContext
+	 *            A bundle context
+	 * @return True if virtual threads must be used
+	 */
+	public static boolean isEnabled(final BundleContext aContext) {
+
+		return isSupported()
+				&& Boolean.parseBoolean(aContext
+						.getProperty(IConstants.FWPROP_VIRTUAL_THREADS));
+	}
+
+	/**
+	 * Checks if the JVM supports virtual threads
+	 *
+	 * @return True if virtual threads can be used
+	 */
+	public static boolean isSupported() {
+
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Creates an executor starting a new virtual thread for each task
+	 *
+	 * @return An executor, or null if virtual threads are not supported
+	 */
+	public static ExecutorService newExecutor() {
+
+		if (NEW_EXECUTOR == null) {
+			return null;
+		}
+
+		try {
+			return (ExecutorService) NEW_EXECUTOR.invoke(null);
+
+		} catch (final ReflectiveOperationException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a factory of virtual threads
+	 *
+	 * @param aPrefix
+	 *            Prefix of the names of the threads, followed by a counter
+	 * @return A thread factory, or null if virtual threads are not supported
+	 */
+	public static ThreadFactory newThreadFactory(final String aPrefix) {
+
+		if (OF_VIRTUAL == null) {
+			return null;
+		}
+
+		try {
+			final Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null),
+					aPrefix, 0L);
+			return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+
+		} catch (final ReflectiveOperationException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Hidden constructor
+	 */
+	private VirtualThreads() {
+
+	}
+}
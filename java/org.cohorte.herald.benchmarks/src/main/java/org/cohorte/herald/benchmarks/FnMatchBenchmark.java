@@ -0,0 +1,125 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cohorte.herald.utils.FnMatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the glob matcher of {@link FnMatch} with the former Regex-based
+ * implementation, on typical Herald subjects
+ *
+ * @author Thomas Calmant
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FnMatchBenchmark {
+
+	/** Subjects tested against the filter: matches and misses */
+	private static final String[] SUBJECTS = { "herald/directory/newcomer",
+			"herald/directory/bye", "herald/error/no-listener",
+			"herald/rpc/jabsorbrpc", "reply/herald/directory/newcomer",
+			"cohorte/monitor/status/isolate/lost" };
+
+	/** The filter */
+	@Param({ "herald/directory/newcomer", "herald/directory/*",
+			"herald/*/no-listener", "herald/*/?ewcomer", "*" })
+	public String filter;
+
+	/** Glob implementation */
+	private FnMatch pGlob;
+
+	/** Regex implementation */
+	private RegexFnMatch pRegex;
+
+	/**
+	 * Compiles the filter
+	 */
+	@Setup
+	public void setup() {
+
+		pGlob = new FnMatch(filter);
+		pRegex = new RegexFnMatch(filter);
+	}
+
+	/**
+	 * Compiles the filter with the glob implementation
+	 *
+	 * @return The filter
+	 */
+	@Benchmark
+	public Object compileGlob() {
+
+		return new FnMatch(filter);
+	}
+
+	/**
+	 * Compiles the filter with the Regex implementation
+	 *
+	 * @return The filter
+	 */
+	@Benchmark
+	public Object compileRegex() {
+
+		return new RegexFnMatch(filter);
+	}
+
+	/**
+	 * Matches all subjects with the glob implementation
+	 *
+	 * @param aBlackhole
+	 *            Results consumer
+	 */
+	@Benchmark
+	public void matchGlob(final Blackhole aBlackhole) {
+
+		for (final String subject : SUBJECTS) {
+			aBlackhole.consume(pGlob.matches(subject));
+		}
+	}
+
+	/**
+	 * Matches all subjects with the Regex implementation
+	 *
+	 * @param aBlackhole
+	 *            Results consumer
+	 */
+	@Benchmark
+	public void matchRegex(final Blackhole aBlackhole) {
+
+		for (final String subject : SUBJECTS) {
+			aBlackhole.consume(pRegex.matches(subject));
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.benchmarks;
+
+import java.util.regex.Pattern;
+
+/**
+ * The former, Regex-based implementation of the wild card filter, kept as a
+ * reference for {@link FnMatchBenchmark}
+ *
+ * @author Thomas Calmant
+ */
+public class RegexFnMatch {
+
+	/** The compiled Regex pattern */
+	private final Pattern pPattern;
+
+	/**
+	 * Sets up the file name filter
+	 *
+	 * @param aFnMatch
+	 *            A file name match string
+	 */
+	public RegexFnMatch(final String aFnMatch) {
+
+		final StringBuilder out = new StringBuilder("^");
+		boolean escaped = false;
+
+		for (final char currentChar : aFnMatch.toCharArray()) {
+			switch (currentChar) {
+			case '*':
+				if (escaped) {
+					out.append("\\*");
+					escaped = false;
+				} else {
+					out.append(".*");
+				}
+				break;
+
+			case '?':
+				if (escaped) {
+					out.append("\\?");
+					escaped = false;
+				} else {
+					out.append(".");
+				}
+				break;
+
+			case '.':
+				out.append("\\.");
+				break;
+
+			case '\\':
+				if (escaped) {
+					out.append("\\\\");
+				} else {
+					escaped = true;
+				}
+				break;
+
+			default:
+				out.append(currentChar);
+			}
+		}
+		out.append('$');
+		pPattern = Pattern.compile(out.toString());
+	}
+
+	/**
+	 * Checks if the given string matches the name filter
+	 *
+	 * @param aName
+	 *            A string
+	 * @return True if the given string matches the filter
+	 */
+	public boolean matches(final String aName) {
+
+		return pPattern.matcher(aName).matches();
+	}
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.benchmarks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cohorte.herald.utils.FnMatch;
+import org.junit.Test;
+
+/**
+ * Checks that the glob matcher behaves as the former, Regex-based
+ * implementation
+ *
+ * @author Thomas Calmant
+ */
+public class FnMatchTest {
+
+	/**
+	 * Generates all the strings made of the given characters, up to the given
+	 * length (including the empty string)
+	 *
+	 * @param aAlphabet
+	 *            Characters to use
+	 * @param aMaxLength
+	 *            Maximum length of the strings
+	 * @return All the strings
+	 */
+	static List<String> generate(final String aAlphabet, final int aMaxLength) {
+
+		final List<String> result = new ArrayList<>();
+		result.add("");
+
+		int start = 0;
+		for (int length = 1; length <= aMaxLength; length++) {
+			final int end = result.size();
+			for (int i = start; i < end; i++) {
+				for (final char character : aAlphabet.toCharArray()) {
+					result.add(result.get(i) + character);
+				}
+			}
+			start = end;
+		}
+		return result;
+	}
+
+	/**
+	 * Checks the result of both implementations
+	 *
+	 * @param aFilter
+	 *            A filter
+	 * @param aName
+	 *            A string to match
+	 * @param aExpected
+	 *            Expected result
+	 */
+	private void check(final String aFilter, final String aName,
+			final boolean aExpected) {
+
+		final String message = "'" + aFilter + "' on '" + aName + "'";
+		assertEquals("Regex " + message, aExpected,
+				new RegexFnMatch(aFilter).matches(aName));
+		assertEquals("Glob " + message, aExpected,
+				new FnMatch(aFilter).matches(aName));
+	}
+
+	/**
+	 * Empty filters and subject parts
+	 */
+	@Test
+	public void testEmptyParts() {
+
+		check("", "", true);
+		check("", "a", false);
+		check("*", "", true);
+		check("a//b", "a//b", true);
+		check("a//b", "a/b", false);
+		check("a/*/b", "a//b", true);
+		check("a/*/b", "a/b", false);
+		check("a/?/b", "a///b", true);
+		check("/*", "/", true);
+	}
+
+	/**
+	 * Compares both implementations on all the short filters and names
+	 */
+	@Test
+	public void testExhaustive() {
+
+		final List<String> names = generate("ab/", 5);
+		for (final String filter : generate("ab/*?", 4)) {
+			final RegexFnMatch regex = new RegexFnMatch(filter);
+			final FnMatch glob = new FnMatch(filter);
+			for (final String name : names) {
+				assertEquals("'" + filter + "' on '" + name + "'",
+						regex.matches(name), glob.matches(name));
+			}
+		}
+	}
+
+	/**
+	 * Filters without wild cards
+	 */
+	@Test
+	public void testLiteral() {
+
+		check("herald/directory/hello", "herald/directory/hello", true);
+		check("herald/directory/hello", "herald/directory/hello2", false);
+		check("herald/directory/hello", "herald/directory", false);
+		check("a.b", "a.b", true);
+		check("a.b", "axb", false);
+		check("a\\*b", "a*b", true);
+		check("a\\*b", "axb", false);
+		check("a\\?b", "a?b", true);
+		check("a\\?b", "axb", false);
+	}
+
+	/**
+	 * The "?" wild card
+	 */
+	@Test
+	public void testSingle() {
+
+		check("?", "a", true);
+		check("?", "", false);
+		check("?", "ab", false);
+		check("a?c", "abc", true);
+		check("a?c", "a/c", true);
+		check("a?c", "ac", false);
+		check("a/??/c", "a/bb/c", true);
+		check("a/??/c", "a/b/c", false);
+	}
+
+	/**
+	 * The "*" wild card
+	 */
+	@Test
+	public void testStar() {
+
+		check("herald/*", "herald/directory/hello", true);
+		check("herald/*", "herald/", true);
+		check("herald/*", "herald", false);
+		check("*/hello", "herald/directory/hello", true);
+		check("*/hello", "hello", false);
+		check("herald/*/hello", "herald/directory/hello", true);
+		check("herald/*/hello", "herald/a/b/hello", true);
+		check("a*b*c", "abc", true);
+		check("a*b*c", "axxbyyc", true);
+		check("a*b*c", "axxcyyb", false);
+		check("**", "", true);
+		check("a*a", "a", false);
+		check("a*a", "aa", true);
+	}
+
+	/**
+	 * Filters and names ending with a "/"
+	 */
+	@Test
+	public void testTrailingSlash() {
+
+		check("herald/", "herald/", true);
+		check("herald/", "herald", false);
+		check("herald", "herald/", false);
+		check("herald/*/", "herald/a/", true);
+		check("herald/*/", "herald/a", false);
+		check("herald/?/", "herald/a/", true);
+	}
+}
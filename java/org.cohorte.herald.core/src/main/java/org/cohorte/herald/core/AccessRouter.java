@@ -0,0 +1,298 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.cohorte.herald.AccessStatistics;
+import org.cohorte.herald.Peer;
+import org.cohorte.herald.core.RouteCache.Route;
+
+/**
+ * Orders the routes to a peer (see {@link RouteCache}) for sending it a
+ * message, according to the statistics about the use of their accesses (see
+ * {@link Peer#getStatistics(String)}).
+ *
+ * Healthy accesses come first, the fastest one (lowest round-trip time, or
+ * transport latency when no reply has been received yet) leading. An
+ * access is unhealthy after {@link #FAILURE_THRESHOLD} consecutive failures,
+ * until {@link #RETRY_DELAY} milliseconds passed since its last failure.
+ * The healthy access which hasn't been used for the longest time is probed,
+ * i.e. tried first, once every {@link #PROBE_INTERVAL} milliseconds, so that
+ * the statistics of the alternatives stay up to date.
+ *
+ * @author Thomas Calmant
+ */
+public class AccessRouter {
+
+	/** Number of consecutive failures making an access unhealthy */
+	public static final int FAILURE_THRESHOLD = 3;
+
+	/** Time after which an unused healthy access is probed (milliseconds) */
+	public static final long PROBE_INTERVAL = 10000;
+
+	/** Time after which an unhealthy access is tried again (milliseconds) */
+	public static final long RETRY_DELAY = 30000;
+
+	/**
+	 * Associates a route to the statistics of its access, to sort routes
+	 */
+	private static class Candidate {
+
+		/** The route */
+		private final Route pRoute;
+
+		/** Statistics about the access */
+		private final AccessStatistics pStatistics;
+
+		/**
+		 * Sets up the candidate
+		 *
+		 * @param aRoute
+		 *            The route
+		 * @param aStatistics
+		 *            Statistics about the access of the route
+		 */
+		Candidate(final Route aRoute, final AccessStatistics aStatistics) {
+
+			pRoute = aRoute;
+			pStatistics = aStatistics;
+		}
+	}
+
+	/** Sorts healthy candidates by score */
+	private static final Comparator<Candidate> BY_SCORE = new Comparator<Candidate>() {
+
+		@Override
+		public int compare(final Candidate aFirst, final Candidate aSecond) {
+
+			return Double.compare(score(aFirst.pStatistics),
+					score(aSecond.pStatistics));
+		}
+	};
+
+	/** Sorts unhealthy candidates by last failure */
+	private static final Comparator<Candidate> BY_LAST_FAILURE = new Comparator<Candidate>() {
+
+		@Override
+		public int compare(final Candidate aFirst, final Candidate aSecond) {
+
+			return Long.compare(aFirst.pStatistics.getLastFailure(),
+					aSecond.pStatistics.getLastFailure());
+		}
+	};
+
+	/**
+	 * Computes a duration in milliseconds
+	 *
+	 * @param aStartNanos
+	 *            Start time, as given by {@link System#nanoTime()}
+	 * @return The time elapsed since the start, in milliseconds
+	 */
+	private static double elapsed(final long aStartNanos) {
+
+		return (System.nanoTime() - aStartNanos) / 1000000.0;
+	}
+
+	/**
+	 * Checks if an access is healthy
+	 *
+	 * @param aStatistics
+	 *            Statistics about the access
+	 * @param aNow
+	 *            Current time (milliseconds since epoch)
+	 * @return True if the access can be used first
+	 */
+	private static boolean isHealthy(final AccessStatistics aStatistics,
+			final long aNow) {
+
+		return aStatistics.getConsecutiveFailures() < FAILURE_THRESHOLD
+				|| aNow - aStatistics.getLastFailure() >= RETRY_DELAY;
+	}
+
+	/**
+	 * Returns the score of an access: the lower, the better
+	 *
+	 * @param aStatistics
+	 *            Statistics about the access
+	 * @return The round-trip time, else the latency, else 0
+	 */
+	private static double score(final AccessStatistics aStatistics) {
+
+		final double roundTrip = aStatistics.getRoundTrip();
+		if (roundTrip >= 0) {
+			return roundTrip;
+		}
+		return Math.max(0, aStatistics.getLatency());
+	}
+
+	/**
+	 * Returns the routes of the peer in the order they should be tried. The
+	 * first one is the one returned by {@link #select(Peer, Route[])}.
+	 *
+	 * @param aPeer
+	 *            The peer to send a message to
+	 * @param aRoutes
+	 *            The routes of the peer
+	 * @return The ordered routes
+	 */
+	public List<Route> order(final Peer aPeer, final Route[] aRoutes) {
+
+		final long now = System.currentTimeMillis();
+		final int first = select(aPeer, aRoutes);
+		final List<Candidate> healthy = new ArrayList<>();
+		final List<Candidate> unhealthy = new ArrayList<>();
+		for (int i = 0; i < aRoutes.length; i++) {
+			if (i == first) {
+				continue;
+			}
+
+			final Route route = aRoutes[i];
+			final AccessStatistics statistics = aPeer.getStatistics(route
+					.getAccessId());
+			if (isHealthy(statistics, now)) {
+				healthy.add(new Candidate(route, statistics));
+			} else {
+				unhealthy.add(new Candidate(route, statistics));
+			}
+		}
+
+		// Fastest healthy accesses first, then the unhealthy ones, the one
+		// which failed first leading (stable sorts: keep the declaration
+		// order of the peer accesses for equal scores)
+		Collections.sort(healthy, BY_SCORE);
+		Collections.sort(unhealthy, BY_LAST_FAILURE);
+
+		final List<Route> result = new ArrayList<>(aRoutes.length);
+		if (first >= 0) {
+			result.add(aRoutes[first]);
+		}
+		for (final Candidate candidate : healthy) {
+			result.add(candidate.pRoute);
+		}
+		for (final Candidate candidate : unhealthy) {
+			result.add(candidate.pRoute);
+		}
+		return result;
+	}
+
+	/**
+	 * Selects the route to try first, without allocating memory: the least
+	 * recently used healthy access if it's time to probe it, else the
+	 * fastest healthy access, else the unhealthy access which failed first.
+	 *
+	 * @param aPeer
+	 *            The peer to send a message to
+	 * @param aRoutes
+	 *            The routes of the peer
+	 * @return The index of the route to try first, -1 if there is none
+	 */
+	public int select(final Peer aPeer, final Route[] aRoutes) {
+
+		final long now = System.currentTimeMillis();
+		int fastest = -1;
+		double fastestScore = 0;
+		int oldest = -1;
+		long oldestUse = 0;
+		int retry = -1;
+		long retryFailure = 0;
+
+		for (int i = 0; i < aRoutes.length; i++) {
+			final AccessStatistics statistics = aPeer
+					.getStatistics(aRoutes[i].getAccessId());
+			if (!isHealthy(statistics, now)) {
+				if (retry == -1 || statistics.getLastFailure() < retryFailure) {
+					retry = i;
+					retryFailure = statistics.getLastFailure();
+				}
+				continue;
+			}
+
+			final double score = score(statistics);
+			if (fastest == -1 || score < fastestScore) {
+				fastest = i;
+				fastestScore = score;
+			}
+
+			final long lastUse = statistics.getLastUse();
+			if (oldest == -1 || lastUse < oldestUse) {
+				oldest = i;
+				oldestUse = lastUse;
+			}
+		}
+
+		if (oldest != -1 && now - oldestUse > PROBE_INTERVAL) {
+			// Probe the least recently used alternative
+			return oldest;
+		} else if (fastest != -1) {
+			return fastest;
+		}
+		return retry;
+	}
+
+	/**
+	 * Notes that a message couldn't be sent through an access
+	 *
+	 * @param aPeer
+	 *            The targeted peer
+	 * @param aAccess
+	 *            The access ID
+	 */
+	public void recordFailure(final Peer aPeer, final String aAccess) {
+
+		aPeer.getStatistics(aAccess).recordFailure();
+	}
+
+	/**
+	 * Notes that a reply has been received through an access
+	 *
+	 * @param aPeer
+	 *            The peer which replied
+	 * @param aAccess
+	 *            The access ID
+	 * @param aRoundTrip
+	 *            Time between the sending of the request and the reception
+	 *            of the reply, in milliseconds
+	 */
+	public void recordRoundTrip(final Peer aPeer, final String aAccess,
+			final double aRoundTrip) {
+
+		if (aAccess != null) {
+			aPeer.getStatistics(aAccess).recordRoundTrip(aRoundTrip);
+		}
+	}
+
+	/**
+	 * Notes that a message has been sent through an access
+	 *
+	 * @param aPeer
+	 *            The targeted peer
+	 * @param aAccess
+	 *            The access ID
+	 * @param aStartNanos
+	 *            Time when the transport was called, as given by
+	 *            {@link System#nanoTime()}
+	 */
+	public void recordSuccess(final Peer aPeer, final String aAccess,
+			final long aStartNanos) {
+
+		aPeer.getStatistics(aAccess).recordSuccess(elapsed(aStartNanos));
+	}
+}
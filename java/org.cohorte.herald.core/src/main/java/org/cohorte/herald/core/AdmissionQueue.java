@@ -0,0 +1,598 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.cohorte.herald.IAdmissionStatistics;
+import org.cohorte.herald.IConstants;
+import org.cohorte.herald.Message;
+import org.cohorte.herald.MessageReceived;
+import org.cohorte.herald.core.utils.PriorityLanes;
+
+/**
+ * Bounded queue of the messages received by transports, waiting to be handled
+ * by Herald core in a dedicated thread.
+ *
+ * The queue is bounded both in number of messages and in bytes (as given by
+ * the transports). When a message doesn't fit, the admission policy tells
+ * whether the transport thread must wait, or which message must be dropped.
+ * A message bigger than the byte budget is only admitted in an empty queue.
+ *
+ * Queued messages are kept in one doubly-linked list per priority lane (see
+ * {@link PriorityLanes}), in arrival order, and indexed by subject, so that
+ * dropping the oldest message of a subject doesn't require a scan. Messages of
+ * the control lane (Herald-internal messages and awaited replies) have their
+ * own bound, so that the other messages can't starve them, are never dropped
+ * once queued, and are handled before the others.
+ *
+ * @author Thomas Calmant
+ */
+public class AdmissionQueue implements IAdmissionStatistics {
+
+	/**
+	 * A queued message
+	 *
+	 * @author Thomas Calmant
+	 */
+	private static final class Entry {
+
+		/** Priority lane of the message */
+		private final int pLane;
+
+		/** The message */
+		private final MessageReceived pMessage;
+
+		/** Next entry in arrival order */
+		private Entry pNext;
+
+		/** Previous entry in arrival order */
+		private Entry pPrevious;
+
+		/** Size of the message, in bytes */
+		private final int pSize;
+
+		/**
+		 * Sets up the entry
+		 *
+		 * @param aMessage
+		 *            The message
+		 * @param aSize
+		 *            Size of the message, in bytes
+		 * @param aLane
+		 *            Priority lane of the message
+		 */
+		private Entry(final MessageReceived aMessage, final int aSize,
+				final int aLane) {
+
+			pMessage = aMessage;
+			pSize = aSize;
+			pLane = aLane;
+		}
+	}
+
+	/** Default maximum number of queued messages */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	/** Default maximum number of queued control messages */
+	public static final int DEFAULT_CONTROL_CAPACITY = 1000;
+
+	/** Default maximum size of the queued messages: 64 MB */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/** Policy: wait for a free slot */
+	public static final int POLICY_BLOCK = 0;
+
+	/** Policy: drop the new message */
+	public static final int POLICY_DROP_NEWEST = 2;
+
+	/** Policy: drop the oldest message of the same subject */
+	public static final int POLICY_DROP_OLDEST = 1;
+
+	/** Policy: refuse the new message */
+	public static final int POLICY_REJECT = 3;
+
+	/**
+	 * Converts the value of the admission policy framework property
+	 *
+	 * @param aPolicy
+	 *            Value of the {@link IConstants#FWPROP_ADMISSION_POLICY}
+	 *            property
+	 * @return One of the POLICY_* constants
+	 */
+	public static int parsePolicy(final String aPolicy) {
+
+		if (aPolicy == null) {
+			return POLICY_BLOCK;
+		}
+
+		switch (aPolicy.trim().toLowerCase()) {
+		case IConstants.ADMISSION_DROP_NEWEST:
+			return POLICY_DROP_NEWEST;
+
+		case IConstants.ADMISSION_DROP_OLDEST:
+			return POLICY_DROP_OLDEST;
+
+		case IConstants.ADMISSION_REJECT:
+			return POLICY_REJECT;
+
+		default:
+			return POLICY_BLOCK;
+		}
+	}
+
+	/** Size of the queued messages */
+	private long pBytes;
+
+	/** Maximum number of queued messages */
+	private final int pCapacity;
+
+	/** Maximum number of queued control messages */
+	private final int pControlCapacity;
+
+	/** Number of queued messages */
+	private int pCount;
+
+	/** Number of dropped messages */
+	private long pDropped;
+
+	/** Oldest queued message of each lane */
+	private final Entry[] pHeads = new Entry[PriorityLanes.NB_LANES];
+
+	/** The Herald core, which handles messages */
+	private final Herald pHerald;
+
+	/** Number of queued messages in each lane */
+	private final int[] pLaneCounts = new int[PriorityLanes.NB_LANES];
+
+	/** Lane selection */
+	private final PriorityLanes pLanes = new PriorityLanes();
+
+	/** Queue lock */
+	private final ReentrantLock pLock = new ReentrantLock();
+
+	/** Maximum size of the queued messages */
+	private final long pMaxBytes;
+
+	/** Signaled when a message is queued */
+	private final Condition pNotEmpty = pLock.newCondition();
+
+	/** Signaled when a message leaves the queue */
+	private final Condition pNotFull = pLock.newCondition();
+
+	/** Admission policy */
+	private final int pPolicy;
+
+	/** Number of rejected messages */
+	private long pRejected;
+
+	/** Queue running flag */
+	private volatile boolean pRunning;
+
+	/** Subject -&gt; Queued entries, in arrival order, for each lane */
+	private final List<Map<String, ArrayDeque<Entry>>> pSubjects = new ArrayList<>();
+
+	/** Newest queued message of each lane */
+	private final Entry[] pTails = new Entry[PriorityLanes.NB_LANES];
+
+	/** The thread handling queued messages */
+	private final Thread pThread;
+
+	/**
+	 * Sets up the queue
+	 *
+	 * @param aHerald
+	 *            The Herald core, which handles messages
+	 * @param aCapacity
+	 *            Maximum number of queued messages
+	 * @param aControlCapacity
+	 *            Maximum number of queued control messages
+	 * @param aMaxBytes
+	 *            Maximum size of the queued messages, in bytes
+	 * @param aPolicy
+	 *            One of the POLICY_* constants
+	 */
+	public AdmissionQueue(final Herald aHerald, final int aCapacity,
+			final int aControlCapacity, final long aMaxBytes,
+			final int aPolicy) {
+
+		pHerald = aHerald;
+		pCapacity = Math.max(1, aCapacity);
+		pControlCapacity = Math.max(1, aControlCapacity);
+		pMaxBytes = Math.max(1, aMaxBytes);
+		pPolicy = aPolicy;
+		for (int i = 0; i < PriorityLanes.NB_LANES; i++) {
+			pSubjects.add(new HashMap<String, ArrayDeque<Entry>>());
+		}
+
+		pThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				loop();
+			}
+		}, "Herald-Admission");
+		pThread.setDaemon(true);
+	}
+
+	/**
+	 * Checks if a message of the given size can be queued. Must be called with
+	 * the lock held.
+	 *
+	 * @param aSize
+	 *            Size of the message
+	 * @param aLane
+	 *            Priority lane of the message
+	 * @return True if the message fits in the queue
+	 */
+	private boolean fits(final int aSize, final int aLane) {
+
+		if (aLane == PriorityLanes.CONTROL) {
+			// Control messages have their own bound
+			return pLaneCounts[PriorityLanes.CONTROL] < pControlCapacity;
+		}
+
+		if (pCount == pLaneCounts[PriorityLanes.CONTROL]) {
+			// Always accept a message in an empty queue
+			return true;
+		}
+
+		return pCount - pLaneCounts[PriorityLanes.CONTROL] < pCapacity
+				&& pBytes + aSize <= pMaxBytes;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IAdmissionStatistics#getCapacity()
+	 */
+	@Override
+	public int getCapacity() {
+
+		return pCapacity;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IAdmissionStatistics#getDroppedCount()
+	 */
+	@Override
+	public long getDroppedCount() {
+
+		pLock.lock();
+		try {
+			return pDropped;
+
+		} finally {
+			pLock.unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IAdmissionStatistics#getMaxBytes()
+	 */
+	@Override
+	public long getMaxBytes() {
+
+		return pMaxBytes;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IAdmissionStatistics#getPolicy()
+	 */
+	@Override
+	public String getPolicy() {
+
+		switch (pPolicy) {
+		case POLICY_DROP_NEWEST:
+			return IConstants.ADMISSION_DROP_NEWEST;
+
+		case POLICY_DROP_OLDEST:
+			return IConstants.ADMISSION_DROP_OLDEST;
+
+		case POLICY_REJECT:
+			return IConstants.ADMISSION_REJECT;
+
+		default:
+			return IConstants.ADMISSION_BLOCK;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IAdmissionStatistics#getQueueBytes()
+	 */
+	@Override
+	public long getQueueBytes() {
+
+		pLock.lock();
+		try {
+			return pBytes;
+
+		} finally {
+			pLock.unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IAdmissionStatistics#getQueueDepth()
+	 */
+	@Override
+	public int getQueueDepth() {
+
+		pLock.lock();
+		try {
+			return pCount;
+
+		} finally {
+			pLock.unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IAdmissionStatistics#getRejectedCount()
+	 */
+	@Override
+	public long getRejectedCount() {
+
+		pLock.lock();
+		try {
+			return pRejected;
+
+		} finally {
+			pLock.unlock();
+		}
+	}
+
+	/**
+	 * Handles queued messages until the queue is stopped
+	 */
+	private void loop() {
+
+		while (pRunning) {
+			final Entry entry;
+			pLock.lock();
+			try {
+				int lane;
+				while ((lane = pLanes.select(pLaneCounts)) == -1) {
+					if (!pRunning) {
+						return;
+					}
+					pNotEmpty.await();
+				}
+
+				entry = pHeads[lane];
+				unlink(entry);
+				pNotFull.signal();
+
+			} catch (final InterruptedException ex) {
+				// Queue stopped
+				return;
+
+			} finally {
+				pLock.unlock();
+			}
+
+			try {
+				pHerald.processMessage(entry.pMessage);
+
+			} catch (final Throwable ex) {
+				// Never let the admission thread die
+				pHerald.logError("Error handling a message: " + ex, ex);
+			}
+		}
+	}
+
+	/**
+	 * Queues a message, applying the admission policy if the queue is full
+	 *
+	 * @param aMessage
+	 *            A received message
+	 * @param aSize
+	 *            Size of the message, in bytes (0 if unknown)
+	 * @return True if the message has been queued, False if it has been
+	 *         dropped or rejected (see {@link #getPolicy()})
+	 */
+	public boolean offer(final MessageReceived aMessage, final int aSize) {
+
+		final int size = Math.max(0, aSize);
+		final Object repliesTo = aMessage
+				.getHeader(Message.MESSAGE_HEADER_REPLIES_TO);
+		final int lane = PriorityLanes.laneOf(aMessage, repliesTo != null
+				&& pHerald.isWaitingReply(repliesTo.toString()));
+		pLock.lock();
+		try {
+			while (!fits(size, lane)) {
+				if (!pRunning) {
+					// Queue stopped
+					return false;
+				}
+
+				switch (pPolicy) {
+				case POLICY_DROP_NEWEST:
+					pDropped++;
+					return false;
+
+				case POLICY_DROP_OLDEST: {
+					// Drop the oldest message of the subject, or the oldest
+					// one of the lowest priority lane. Queued control
+					// messages are never dropped.
+					Entry victim = null;
+					if (lane != PriorityLanes.CONTROL) {
+						final ArrayDeque<Entry> subjectEntries = pSubjects
+								.get(lane).get(aMessage.getSubject());
+						victim = subjectEntries != null ? subjectEntries
+								.peekFirst() : null;
+						for (int i = PriorityLanes.NB_LANES - 1; victim == null
+								&& i > PriorityLanes.CONTROL; i--) {
+							victim = pHeads[i];
+						}
+					}
+
+					pDropped++;
+					if (victim == null) {
+						// Only control messages are queued
+						return false;
+					}
+					unlink(victim);
+					break;
+				}
+
+				case POLICY_REJECT:
+					pRejected++;
+					return false;
+
+				default:
+					// Wait for the handling thread
+					pNotFull.await();
+					break;
+				}
+			}
+
+			if (!pRunning) {
+				return false;
+			}
+
+			// Append the message to its lane
+			final Entry entry = new Entry(aMessage, size, lane);
+			if (pTails[lane] == null) {
+				pHeads[lane] = entry;
+			} else {
+				pTails[lane].pNext = entry;
+				entry.pPrevious = pTails[lane];
+			}
+			pTails[lane] = entry;
+
+			final Map<String, ArrayDeque<Entry>> subjects = pSubjects
+					.get(lane);
+			ArrayDeque<Entry> subjectEntries = subjects.get(aMessage
+					.getSubject());
+			if (subjectEntries == null) {
+				subjectEntries = new ArrayDeque<>();
+				subjects.put(aMessage.getSubject(), subjectEntries);
+			}
+			subjectEntries.addLast(entry);
+
+			pLaneCounts[lane]++;
+			pCount++;
+			pBytes += size;
+			pNotEmpty.signal();
+			return true;
+
+		} catch (final InterruptedException ex) {
+			// Interrupted while waiting: drop the message
+			Thread.currentThread().interrupt();
+			pDropped++;
+			return false;
+
+		} finally {
+			pLock.unlock();
+		}
+	}
+
+	/**
+	 * Starts the handling thread
+	 */
+	public void start() {
+
+		pRunning = true;
+		pThread.start();
+	}
+
+	/**
+	 * Stops the handling thread, dropping the queued messages
+	 */
+	public void stop() {
+
+		pRunning = false;
+
+		pLock.lock();
+		try {
+			for (int i = 0; i < PriorityLanes.NB_LANES; i++) {
+				pHeads[i] = null;
+				pTails[i] = null;
+				pSubjects.get(i).clear();
+				pLaneCounts[i] = 0;
+			}
+			pCount = 0;
+			pBytes = 0;
+			pNotEmpty.signalAll();
+			pNotFull.signalAll();
+
+		} finally {
+			pLock.unlock();
+		}
+
+		pThread.interrupt();
+	}
+
+	/**
+	 * Removes an entry from the queue. Entries always leave their lane in the
+	 * arrival order of their subject. Must be called with the lock held.
+	 *
+	 * @param aEntry
+	 *            The entry to remove
+	 */
+	private void unlink(final Entry aEntry) {
+
+		// Arrival order list
+		final int lane = aEntry.pLane;
+		if (aEntry.pPrevious == null) {
+			pHeads[lane] = aEntry.pNext;
+		} else {
+			aEntry.pPrevious.pNext = aEntry.pNext;
+		}
+
+		if (aEntry.pNext == null) {
+			pTails[lane] = aEntry.pPrevious;
+		} else {
+			aEntry.pNext.pPrevious = aEntry.pPrevious;
+		}
+		aEntry.pNext = null;
+		aEntry.pPrevious = null;
+
+		// Subject index
+		final String subject = aEntry.pMessage.getSubject();
+		final Map<String, ArrayDeque<Entry>> subjects = pSubjects.get(lane);
+		final ArrayDeque<Entry> subjectEntries = subjects.get(subject);
+		subjectEntries.pollFirst();
+		if (subjectEntries.isEmpty()) {
+			subjects.remove(subject);
+		}
+
+		pLaneCounts[lane]--;
+		pCount--;
+		pBytes -= aEntry.pSize;
+	}
+}
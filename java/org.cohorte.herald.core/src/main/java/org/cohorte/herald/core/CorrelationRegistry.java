@@ -0,0 +1,190 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cohorte.herald.MessageReceived;
+
+/**
+ * Associates the UIDs of posted messages to the posts waiting for their
+ * replies, for post(), send() and sendAsync().
+ *
+ * The registry is a {@link ConcurrentHashMap}: registering, completing and
+ * forgetting a post never takes a global lock. Each transition removes the
+ * post atomically, so that a post is completed (by a reply, an error, a
+ * timeout or forget()) exactly once. Deadlines are handled by the timer
+ * service, which orders them in its timing wheel.
+ *
+ * A post can expect several replies (postGroup()): it then stays in the
+ * registry until all the expected peers have answered, or until its deadline.
+ *
+ * @author Thomas Calmant
+ */
+public class CorrelationRegistry {
+
+	/** Message UID -&gt; Waiting post */
+	private final ConcurrentMap<String, WaitingPost> pPosts = new ConcurrentHashMap<>();
+
+	/**
+	 * Removes all posts and cancels their timeouts
+	 *
+	 * @return The removed posts
+	 */
+	public List<WaitingPost> clear() {
+
+		final List<WaitingPost> removed = new ArrayList<>();
+		for (final String uid : pPosts.keySet()) {
+			final WaitingPost post = remove(uid);
+			if (post != null) {
+				removed.add(post);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Checks if a post is registered for the given message
+	 *
+	 * @param aMessageUid
+	 *            UID of the posted message
+	 * @return True if the sender of the message waits for a reply
+	 */
+	public boolean contains(final String aMessageUid) {
+
+		return pPosts.containsKey(aMessageUid);
+	}
+
+	/**
+	 * Removes a post at its deadline, if it is still registered
+	 *
+	 * @param aMessageUid
+	 *            UID of the posted message
+	 * @param aPost
+	 *            The expired post
+	 * @return True if the post has been removed, False if it had already been
+	 *         completed
+	 */
+	public boolean expire(final String aMessageUid, final WaitingPost aPost) {
+
+		return pPosts.remove(aMessageUid, aPost);
+	}
+
+	/**
+	 * Handles an error sent by a peer about a posted message. The post is
+	 * removed unless it expects answers from other peers.
+	 *
+	 * @param aMessageUid
+	 *            UID of the posted message
+	 * @param aPeerUid
+	 *            UID of the peer which sent the error
+	 * @return The post to call back, or null
+	 */
+	public WaitingPost onError(final String aMessageUid, final String aPeerUid) {
+
+		final WaitingPost post = pPosts.get(aMessageUid);
+		if (post == null) {
+			return null;
+		}
+
+		if (!post.isForgetOnFirst() && !post.peerAnswered(aPeerUid)) {
+			// Other peers can still answer
+			return post;
+		}
+		return removeIfSame(aMessageUid, post);
+	}
+
+	/**
+	 * Handles a reply to a posted message
+	 *
+	 * @param aReply
+	 *            The reply message
+	 * @return The post to call back, or null if there is none (unknown or
+	 *         already completed)
+	 */
+	public WaitingPost onReply(final MessageReceived aReply) {
+
+		final String uid = aReply.getReplyTo();
+		final WaitingPost post = pPosts.get(uid);
+		if (post == null) {
+			return null;
+		}
+
+		if (!post.isForgetOnFirst() && !post.peerAnswered(aReply.getSender())) {
+			// Multiple replies expected
+			return post;
+		}
+
+		// First reply, or last expected one
+		return removeIfSame(uid, post);
+	}
+
+	/**
+	 * Registers a post
+	 *
+	 * @param aMessageUid
+	 *            UID of the posted message
+	 * @param aPost
+	 *            The waiting post
+	 */
+	public void register(final String aMessageUid, final WaitingPost aPost) {
+
+		pPosts.put(aMessageUid, aPost);
+	}
+
+	/**
+	 * Removes a post and cancels its timeout
+	 *
+	 * @param aMessageUid
+	 *            UID of the posted message
+	 * @return The removed post, or null
+	 */
+	public WaitingPost remove(final String aMessageUid) {
+
+		final WaitingPost post = pPosts.remove(aMessageUid);
+		if (post != null) {
+			post.cancelTimeout();
+		}
+		return post;
+	}
+
+	/**
+	 * Removes a post and cancels its timeout, if it is still associated to
+	 * the given UID
+	 *
+	 * @param aMessageUid
+	 *            UID of the posted message
+	 * @param aPost
+	 *            The waiting post
+	 * @return The post if it has been removed by this call, else null
+	 */
+	private WaitingPost removeIfSame(final String aMessageUid,
+			final WaitingPost aPost) {
+
+		if (!pPosts.remove(aMessageUid, aPost)) {
+			// Expired, forgotten or completed by a first answer in another
+			// thread: peerAnswered() gives the last answer to a single thread
+			return null;
+		}
+
+		aPost.cancelTimeout();
+		return aPost;
+	}
+}
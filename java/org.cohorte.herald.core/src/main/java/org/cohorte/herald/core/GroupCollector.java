@@ -0,0 +1,226 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.core;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.cohorte.herald.ForgotMessage;
+import org.cohorte.herald.GroupReplies;
+import org.cohorte.herald.HeraldException;
+import org.cohorte.herald.HeraldTimeout;
+import org.cohorte.herald.IHerald;
+import org.cohorte.herald.IPostCallback;
+import org.cohorte.herald.IPostErrback;
+import org.cohorte.herald.MessageReceived;
+import org.cohorte.herald.Peer;
+
+/**
+ * Gathers the answers to a message posted to a group of peers, for
+ * sendGroup().
+ *
+ * The collector is done once all peers have answered, once the quorum of
+ * replies is reached, or once the quorum can't be reached anymore because
+ * too many peers answered with an error. The caller then forgets about the
+ * message, so that the late answers are ignored.
+ *
+ * @author Thomas Calmant
+ */
+public class GroupCollector implements IPostCallback, IPostErrback {
+
+	/** The collector is done */
+	private boolean pDone;
+
+	/** Signaled when the collector is done */
+	private final Condition pDoneCondition;
+
+	/** Error which stopped the collection, if any */
+	private HeraldException pError;
+
+	/** Peer -&gt; Error it answered */
+	private final Map<Peer, HeraldException> pErrors = new LinkedHashMap<>();
+
+	/** Lock protecting the collected answers */
+	private final ReentrantLock pLock = new ReentrantLock();
+
+	/** Peers which haven't answered yet */
+	private final Set<Peer> pMissingPeers;
+
+	/** Peer UID -&gt; Peer */
+	private final Map<String, Peer> pPeers = new LinkedHashMap<>();
+
+	/** Number of replies to wait for */
+	private final int pQuorum;
+
+	/** Peer -&gt; Content of its reply */
+	private final Map<Peer, Object> pReplies = new LinkedHashMap<>();
+
+	/**
+	 * Sets up the collector
+	 *
+	 * @param aPeers
+	 *            The peers the message is sent to
+	 * @param aQuorum
+	 *            Number of replies to wait for (0 or less to wait for all
+	 *            peers)
+	 */
+	public GroupCollector(final Collection<Peer> aPeers, final int aQuorum) {
+
+		for (final Peer peer : aPeers) {
+			pPeers.put(peer.getUid(), peer);
+		}
+		pMissingPeers = new LinkedHashSet<>(pPeers.values());
+
+		if (aQuorum <= 0 || aQuorum > pPeers.size()) {
+			pQuorum = pPeers.size();
+		} else {
+			pQuorum = aQuorum;
+		}
+		pDoneCondition = pLock.newCondition();
+	}
+
+	/**
+	 * Waits for the collector to be done, or for the timeout
+	 *
+	 * @param aTimeout
+	 *            Maximum time to wait (in milliseconds), null to wait forever
+	 * @return The replies, errors and missing peers at the end of the wait
+	 * @throws HeraldException
+	 *             The collection stopped on an error which doesn't concern a
+	 *             single peer
+	 * @throws InterruptedException
+	 *             Interrupted while waiting
+	 */
+	public GroupReplies await(final Long aTimeout) throws HeraldException,
+			InterruptedException {
+
+		pLock.lock();
+		try {
+			if (aTimeout == null) {
+				while (!pDone) {
+					pDoneCondition.await();
+				}
+
+			} else {
+				long remaining = TimeUnit.MILLISECONDS.toNanos(aTimeout);
+				while (!pDone && remaining > 0) {
+					remaining = pDoneCondition.awaitNanos(remaining);
+				}
+			}
+
+			// Stop collecting
+			pDone = true;
+			if (pError != null) {
+				throw pError;
+			}
+			return new GroupReplies(pReplies, pErrors, pMissingPeers,
+					pQuorum);
+		} finally {
+			pLock.unlock();
+		}
+	}
+
+	/**
+	 * Checks if the collection is over, and wakes up the waiting thread. Must
+	 * be called while holding the lock.
+	 */
+	private void checkDone() {
+
+		final int replies = pReplies.size();
+		if (replies >= pQuorum || pMissingPeers.isEmpty()
+				|| replies + pMissingPeers.size() < pQuorum) {
+			// Quorum reached, all peers answered or quorum unreachable
+			pDone = true;
+			pDoneCondition.signalAll();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IPostCallback#heraldCallback(org.cohorte.herald.
+	 * IHerald, org.cohorte.herald.MessageReceived)
+	 */
+	@Override
+	public void heraldCallback(final IHerald aHerald,
+			final MessageReceived aReply) {
+
+		pLock.lock();
+		try {
+			final Peer peer = pPeers.get(aReply.getSender());
+			if (pDone || peer == null || !pMissingPeers.remove(peer)) {
+				// Late, unknown or duplicate answer
+				return;
+			}
+
+			pReplies.put(peer, aReply.getContent());
+			checkDone();
+		} finally {
+			pLock.unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IPostErrback#heraldErrback(org.cohorte.herald.
+	 * IHerald, org.cohorte.herald.HeraldException)
+	 */
+	@Override
+	public void heraldErrback(final IHerald aHerald,
+			final HeraldException aException) {
+
+		pLock.lock();
+		try {
+			if (pDone) {
+				return;
+			}
+
+			if (aException instanceof HeraldTimeout
+					|| aException instanceof ForgotMessage) {
+				// Stop waiting: the pending peers are missing
+				pDone = true;
+				pDoneCondition.signalAll();
+				return;
+			}
+
+			final String peerUid = aException.getTarget() != null ? aException
+					.getTarget().getUId() : null;
+			final Peer peer = pPeers.get(peerUid);
+			if (peer == null) {
+				// Error concerning the whole group
+				pError = aException;
+				pDone = true;
+				pDoneCondition.signalAll();
+				return;
+			}
+
+			if (pMissingPeers.remove(peer)) {
+				pErrors.put(peer, aException);
+				checkDone();
+			}
+		} finally {
+			pLock.unlock();
+		}
+	}
+}
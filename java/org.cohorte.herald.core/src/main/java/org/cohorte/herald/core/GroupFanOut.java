@@ -0,0 +1,376 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cohorte.herald.GroupDelivery;
+import org.cohorte.herald.HeraldException;
+import org.cohorte.herald.IAsyncGroupTransport;
+import org.cohorte.herald.IGroupDeliveryListener;
+import org.cohorte.herald.ITransport;
+import org.cohorte.herald.Message;
+import org.cohorte.herald.NoTransport;
+import org.cohorte.herald.Peer;
+import org.cohorte.herald.Target;
+import org.cohorte.herald.core.RouteCache.Route;
+import org.cohorte.herald.utils.VirtualThreads;
+
+/**
+ * Sends a message to a group of peers through all the transports at once.
+ *
+ * Each peer is first associated to its preferred access, i.e. the first of
+ * its accesses with a bound transport, as ordered by the {@link AccessRouter}.
+ * The message is then given to the transports of all those accesses
+ * concurrently. The peers a transport didn't reach are sent the message
+ * through their next access, as soon as that transport returns (or, for an
+ * {@link IAsyncGroupTransport}, as soon as it reports them), without waiting
+ * for the others. A peer fails once all its accesses have been tried.
+ *
+ * @author Thomas Calmant
+ */
+public class GroupFanOut {
+
+	/**
+	 * A message being sent to a group
+	 */
+	private class Delivery {
+
+		/** Peer -&gt; Routes which haven't been tried yet */
+		private final Map<Peer, Iterator<Route>> pRoutes = Collections
+				.synchronizedMap(new LinkedHashMap<Peer, Iterator<Route>>());
+
+		/** The completion handle */
+		private final GroupDelivery pDelivery;
+
+		/** Name of the group */
+		private final String pGroup;
+
+		/** The message to send, never given to the transports */
+		private final Message pMessage;
+
+		/**
+		 * Sets up the delivery
+		 *
+		 * @param aGroup
+		 *            Name of the group
+		 * @param aPeers
+		 *            Peers to send the message to
+		 * @param aMessage
+		 *            The message to send
+		 * @param aListener
+		 *            Notified of the result of each peer (can be null)
+		 */
+		Delivery(final String aGroup, final Collection<Peer> aPeers,
+				final Message aMessage,
+				final IGroupDeliveryListener aListener) {
+
+			pGroup = aGroup;
+			pMessage = aMessage;
+			pDelivery = new GroupDelivery(aMessage.getUid(), aPeers,
+					aListener);
+
+			for (final Peer peer : aPeers) {
+				// Routes of the peer, the preferred one first
+				pRoutes.put(peer,
+						pRouter.order(peer, pRouteCache.getRoutes(peer))
+								.iterator());
+			}
+		}
+
+		/**
+		 * Sends the message to the given peers, through their next access.
+		 * The peers without any other access fail.
+		 *
+		 * @param aPeers
+		 *            Peers to send the message to
+		 * @param aError
+		 *            Last error sending the message to those peers (can be
+		 *            null)
+		 */
+		void dispatch(final Collection<Peer> aPeers,
+				final HeraldException aError) {
+
+			// Group peers by next access
+			final Map<String, Set<Peer>> accesses = new LinkedHashMap<>();
+			final Map<String, ITransport> transports = new LinkedHashMap<>();
+			for (final Peer peer : aPeers) {
+				final Iterator<Route> iterator = pRoutes.get(peer);
+				if (iterator != null && iterator.hasNext()) {
+					final Route route = iterator.next();
+					transports.put(route.getAccessId(), route.getTransport());
+					Utilities.setDefault(accesses, route.getAccessId(),
+							new LinkedHashSet<Peer>()).add(peer);
+
+				} else if (aError != null) {
+					pDelivery.peerFailed(peer, aError);
+
+				} else {
+					pDelivery.peerFailed(peer, new NoTransport(new Target(
+							peer), "No transport to reach the peer"));
+				}
+			}
+
+			// Send the message through all accesses at once
+			for (final Entry<String, Set<Peer>> entry : accesses.entrySet()) {
+				final String access = entry.getKey();
+				final ITransport transport = transports.get(access);
+				final Set<Peer> peers = entry.getValue();
+
+				// Transports add their own headers: each one gets a copy
+				final Message message = pMessage.copy();
+				final Runnable task = new Runnable() {
+
+					@Override
+					public void run() {
+
+						send(access, transport, peers, message);
+					}
+				};
+
+				try {
+					pExecutor.execute(task);
+
+				} catch (final RejectedExecutionException ex) {
+					// Fan-out stopped: send in the current thread
+					task.run();
+				}
+			}
+		}
+
+		/**
+		 * Sends the message to peers through the given access, then retries
+		 * with the peers which haven't been reached
+		 *
+		 * @param aAccess
+		 *            Access ID
+		 * @param aTransport
+		 *            The transport handling the access
+		 * @param aPeers
+		 *            Peers to send the message to
+		 * @param aMessage
+		 *            The copy of the message given to this transport
+		 */
+		private void send(final String aAccess, final ITransport aTransport,
+				final Set<Peer> aPeers, final Message aMessage) {
+
+			if (aTransport instanceof IAsyncGroupTransport) {
+				sendAsync(aAccess, (IAsyncGroupTransport) aTransport, aPeers,
+						aMessage);
+				return;
+			}
+
+			final long start = System.nanoTime();
+			Collection<Peer> reachedPeers;
+			HeraldException error = null;
+			try {
+				reachedPeers = aTransport.fireGroup(pGroup, aPeers, aMessage);
+				if (reachedPeers == null) {
+					reachedPeers = Collections.emptySet();
+				}
+
+			} catch (final HeraldException ex) {
+				reachedPeers = Collections.emptySet();
+				error = ex;
+			}
+
+			final List<Peer> failedPeers = new ArrayList<>();
+			for (final Peer peer : aPeers) {
+				if (reachedPeers.contains(peer)) {
+					pRouter.recordSuccess(peer, aAccess, start);
+					pDelivery.peerReached(peer, aAccess);
+				} else {
+					pRouter.recordFailure(peer, aAccess);
+					failedPeers.add(peer);
+				}
+			}
+
+			if (!failedPeers.isEmpty()) {
+				if (error == null) {
+					error = new HeraldException(new Target(pGroup,
+							Target.toUids(failedPeers)),
+							"Peers not reached through " + aAccess);
+				}
+				dispatch(failedPeers, error);
+			}
+		}
+
+		/**
+		 * Sends the message to peers through a transport which reports the
+		 * result of each peer: a peer which hasn't been reached is retried
+		 * through its next access as soon as it fails
+		 *
+		 * @param aAccess
+		 *            Access ID
+		 * @param aTransport
+		 *            The transport handling the access
+		 * @param aPeers
+		 *            Peers to send the message to
+		 * @param aMessage
+		 *            The copy of the message given to this transport
+		 */
+		private void sendAsync(final String aAccess,
+				final IAsyncGroupTransport aTransport, final Set<Peer> aPeers,
+				final Message aMessage) {
+
+			final long start = System.nanoTime();
+			try {
+				aTransport.fireGroupAsync(pGroup, aPeers, aMessage,
+						new IGroupDeliveryListener() {
+
+							@Override
+							public void peerFailed(
+									final GroupDelivery aDelivery,
+									final Peer aPeer,
+									final HeraldException aError) {
+
+								pRouter.recordFailure(aPeer, aAccess);
+								dispatch(Collections.singleton(aPeer), aError);
+							}
+
+							@Override
+							public void peerReached(
+									final GroupDelivery aDelivery,
+									final Peer aPeer, final String aAccessId) {
+
+								pRouter.recordSuccess(aPeer, aAccess, start);
+								pDelivery.peerReached(aPeer, aAccess);
+							}
+						});
+
+			} catch (final HeraldException ex) {
+				// Nothing has been sent
+				for (final Peer peer : aPeers) {
+					pRouter.recordFailure(peer, aAccess);
+				}
+				dispatch(aPeers, ex);
+			}
+		}
+	}
+
+	/** The thread pool sending messages */
+	private final ExecutorService pExecutor;
+
+	/** Routes to the peers */
+	private final RouteCache pRouteCache;
+
+	/** Orders the routes to the peers */
+	private final AccessRouter pRouter;
+
+	/**
+	 * Sets up the fan-out thread pool
+	 *
+	 * @param aRouteCache
+	 *            Routes to the peers
+	 * @param aRouter
+	 *            Orders the routes to the peers and keeps their statistics
+	 * @param aVirtual
+	 *            Use virtual threads (must be supported by the JVM)
+	 */
+	public GroupFanOut(final RouteCache aRouteCache,
+			final AccessRouter aRouter, final boolean aVirtual) {
+
+		pRouteCache = aRouteCache;
+		pRouter = aRouter;
+
+		ExecutorService executor = null;
+		if (aVirtual) {
+			executor = VirtualThreads.newExecutor();
+		}
+
+		if (executor == null) {
+			// Threads are created on demand, and stopped when idle
+			final AtomicInteger counter = new AtomicInteger();
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(final Runnable aRunnable) {
+
+					final Thread thread = new Thread(aRunnable,
+							"Herald-FanOut-" + counter.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		pExecutor = executor;
+	}
+
+	/**
+	 * Sends a message to the given peers of a group
+	 *
+	 * @param aGroup
+	 *            Name of the group
+	 * @param aPeers
+	 *            Peers to send the message to
+	 * @param aMessage
+	 *            The message to send
+	 * @return The completion handle of the delivery
+	 */
+	public GroupDelivery fire(final String aGroup,
+			final Collection<Peer> aPeers, final Message aMessage) {
+
+		return fire(aGroup, aPeers, aMessage, null);
+	}
+
+	/**
+	 * Sends a message to the given peers of a group
+	 *
+	 * @param aGroup
+	 *            Name of the group
+	 * @param aPeers
+	 *            Peers to send the message to
+	 * @param aMessage
+	 *            The message to send
+	 * @param aListener
+	 *            Notified of the result of each peer, from the thread which
+	 *            reports it, possibly the calling one (can be null)
+	 * @return The completion handle of the delivery
+	 */
+	public GroupDelivery fire(final String aGroup,
+			final Collection<Peer> aPeers, final Message aMessage,
+			final IGroupDeliveryListener aListener) {
+
+		final Delivery delivery = new Delivery(aGroup, aPeers, aMessage,
+				aListener);
+		delivery.dispatch(aPeers, null);
+		return delivery.pDelivery;
+	}
+
+	/**
+	 * Stops the thread pool. Deliveries started afterwards send messages in
+	 * the calling thread.
+	 */
+	public void stop() {
+
+		pExecutor.shutdownNow();
+	}
+}
@@ -16,17 +16,19 @@
 
 package org.cohorte.herald.core;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.felix.ipojo.annotations.Bind;
 import org.apache.felix.ipojo.annotations.Component;
@@ -38,10 +40,18 @@ import org.apache.felix.ipojo.annotations.Requires;
 import org.apache.felix.ipojo.annotations.Unbind;
 import org.apache.felix.ipojo.annotations.Validate;
 import org.cohorte.herald.ForgotMessage;
+import org.cohorte.herald.GroupDelivery;
+import org.cohorte.herald.GroupReplies;
 import org.cohorte.herald.HeraldException;
 import org.cohorte.herald.HeraldTimeout;
+import org.cohorte.herald.IAdmissionStatistics;
+import org.cohorte.herald.IAsyncTransport;
+import org.cohorte.herald.IBatchTransport;
 import org.cohorte.herald.IConstants;
+import org.cohorte.herald.IDeliveryListener;
 import org.cohorte.herald.IDirectory;
+import org.cohorte.herald.IDirectoryListener;
+import org.cohorte.herald.IGroupDeliveryListener;
 import org.cohorte.herald.IHerald;
 import org.cohorte.herald.IHeraldInternal;
 import org.cohorte.herald.IMessageListener;
@@ -52,15 +62,18 @@ import org.cohorte.herald.Message;
 import org.cohorte.herald.MessageReceived;
 import org.cohorte.herald.NoListener;
 import org.cohorte.herald.NoTransport;
+import org.cohorte.herald.Overloaded;
 import org.cohorte.herald.Peer;
+import org.cohorte.herald.ReplyFuture;
+import org.cohorte.herald.ReplyStream;
 import org.cohorte.herald.Target;
 import org.cohorte.herald.UnknownPeer;
 import org.cohorte.herald.ValueError;
-import org.cohorte.herald.eventapi.EventData;
-import org.cohorte.herald.eventapi.EventException;
-import org.cohorte.herald.eventapi.IEventFactory;
+import org.cohorte.herald.core.RouteCache.Route;
 import org.cohorte.herald.utils.FnMatch;
-import org.cohorte.herald.utils.LoopTimer;
+import org.cohorte.herald.utils.ITimeout;
+import org.cohorte.herald.utils.ITimerService;
+import org.cohorte.herald.utils.VirtualThreads;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
@@ -76,12 +89,32 @@ import org.osgi.service.log.LogService;
 @Instantiate(name = "herald-core")
 public class Herald implements IHerald, IHeraldInternal {
 
+	/**
+	 * Maximum time to wait for the transports to reach the peers of a group
+	 * (milliseconds): the peers which are still pending are then considered
+	 * failed
+	 */
+	private static final long GROUP_DELIVERY_TIMEOUT = 10000;
+
 	/** iPOJO requirement ID */
 	private static final String ID_LISTENERS = "listeners";
 
 	/** iPOJO requirement ID */
 	private static final String ID_TRANSPORTS = "transports";
 
+	/** Orders the accesses of peers according to their statistics */
+	private final AccessRouter pAccessRouter = new AccessRouter();
+
+	/** Queue of the received messages, handled in a dedicated thread */
+	private volatile AdmissionQueue pAdmission;
+
+	/** UIDs of the messages being given to a transport by send() */
+	private final Set<String> pBlockingSends = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** Admission queue statistics service registration */
+	private ServiceRegistration<IAdmissionStatistics> pAdmissionRegistration;
+
 	/** The bundle context */
 	private final BundleContext pContext;
 
@@ -89,18 +122,8 @@ public class Herald implements IHerald, IHeraldInternal {
 	@Requires
 	private IDirectory pDirectory;
 
-	/** The event factory */
-	@Requires
-	private IEventFactory pEventFactory;
-
-	/** The garbage collection timer */
-	private LoopTimer pGarbageTimer;
-
-	/** Object used to synchronize garbage collection */
-	private final Object pGarbageToken = new Object();
-
-	/** Time stamp of the last garbage collection */
-	private long pLastGarbage = -1;
+	/** Sends messages to groups of peers */
+	private volatile GroupFanOut pFanOut;
 
 	/** Filter -&gt; Listeners */
 	private final Map<FnMatch, Set<IMessageListener>> pListeners = new LinkedHashMap<>();
@@ -108,12 +131,28 @@ public class Herald implements IHerald, IHeraldInternal {
 	/** Listener -&gt; Filters */
 	private final Map<IMessageListener, Set<FnMatch>> pListenersFilters = new LinkedHashMap<IMessageListener, Set<FnMatch>>();
 
+	/** Listener -&gt; Ordering (only for ordered listeners) */
+	private final Map<IMessageListener, Integer> pListenersOrdering = new ConcurrentHashMap<>();
+
+	/** Routes to the peers, kept up to date with directory events */
+	private final RouteCache pRouteCache = new RouteCache();
+
+	/** Route cache directory listener service registration */
+	private ServiceRegistration<IDirectoryListener> pRouteCacheRegistration;
+
+	/** Subject routing index, rebuilt each time pListeners changes */
+	private final SubjectRouter pRouter = new SubjectRouter();
+
 	/** The logger */
 	@Requires(optional = true)
 	private LogService pLogger;
 
-	/** The thread pool */
-	private ExecutorService pPool;
+	/** The listeners notification threads */
+	private volatile MessageDispatcher pDispatcher;
+
+	/** The timer service */
+	@Requires
+	private ITimerService pTimer;
 
 	/** Herald "public" service registration */
 	private ServiceRegistration<IHerald> pSvcRegistration;
@@ -121,14 +160,11 @@ public class Herald implements IHerald, IHeraldInternal {
 	/** Access ID -&gt; Transport implementation */
 	private final Map<String, ITransport> pTransports = new LinkedHashMap<>();
 
-	/** List of received messages UIDs, kept 5 minutes: UID -&gt; TTL */
-	private final Map<String, Long> pTreatedMessages = new LinkedHashMap<>();
+	/** UIDs of the recently received messages */
+	private final MessageDeduplicator pTreatedMessages;
 
-	/** Events used to block "send()" methods: UID -&gt; EventData */
-	private final Map<String, EventData<Object>> pWaitingEvents = new LinkedHashMap<>();
-
-	/** Events used for "post()" methods: UID -&gt; WaitingPost */
-	private final Map<String, WaitingPost> pWaitingPosts = new LinkedHashMap<>();
+	/** Requests waiting for a reply, for post(), send() and sendAsync() */
+	private final CorrelationRegistry pWaitingPosts = new CorrelationRegistry();
 
 	/**
 	 * Sets up members
@@ -139,6 +175,11 @@ public class Herald implements IHerald, IHeraldInternal {
 	public Herald(final BundleContext aContext) {
 
 		pContext = aContext;
+		pTreatedMessages = new MessageDeduplicator(getLongProperty(
+				IConstants.FWPROP_DEDUP_WINDOW,
+				MessageDeduplicator.DEFAULT_WINDOW),
+				(int) getLongProperty(IConstants.FWPROP_DEDUP_MAX_SIZE,
+						MessageDeduplicator.DEFAULT_MAX_SIZE));
 	}
 
 	@Override
@@ -156,6 +197,27 @@ public class Herald implements IHerald, IHeraldInternal {
 				Utilities.setDefault(pListenersFilters, aListener,
 						new LinkedHashSet<FnMatch>()).add(match);
 			}
+
+			// Update the routing index
+			pRouter.rebuild(pListeners);
+		}
+	}
+
+	/**
+	 * Waits for the transports to reach the peers of a group, at most
+	 * {@link #GROUP_DELIVERY_TIMEOUT}. The peers which are still pending then
+	 * are considered failed.
+	 *
+	 * @param aDelivery
+	 *            The group delivery
+	 * @throws InterruptedException
+	 *             Interrupted while waiting
+	 */
+	private void awaitDelivery(final GroupDelivery aDelivery)
+			throws InterruptedException {
+
+		if (!aDelivery.await(GROUP_DELIVERY_TIMEOUT)) {
+			failPendingPeers(aDelivery);
 		}
 	}
 
@@ -189,6 +251,7 @@ public class Herald implements IHerald, IHeraldInternal {
 		}
 
 		addMessageListener(aListener, filters);
+		updateOrdering(aListener, aReference);
 	}
 
 	/**
@@ -213,6 +276,7 @@ public class Herald implements IHerald, IHeraldInternal {
 		synchronized (pTransports) {
 			// Store the service
 			pTransports.put(accessId, aTransport);
+			pRouteCache.setTransports(pTransports);
 
 			if (pSvcRegistration == null) {
 				// We have at least one service: provide our service
@@ -222,6 +286,104 @@ public class Herald implements IHerald, IHeraldInternal {
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.cohorte.herald.IHeraldInternal#deliveryFailed(org.cohorte.herald.
+	 * Peer, java.lang.String, java.lang.String,
+	 * org.cohorte.herald.HeraldException)
+	 */
+	@Override
+	public void deliveryFailed(final Peer aPeer, final String aAccessId,
+			final String aMessageUid, final HeraldException aError) {
+
+		pLogger.log(LogService.LOG_WARNING, "Message " + aMessageUid
+				+ " not delivered to " + aPeer + " through " + aAccessId
+				+ ": " + aError);
+
+		if (aPeer == null) {
+			return;
+		}
+		pAccessRouter.recordFailure(aPeer, aAccessId);
+
+		// Called from transport threads: don't run the errbacks there
+		executeControl(new Runnable() {
+
+			@Override
+			public void run() {
+
+				notifyUndelivered(aPeer, aMessageUid, aError);
+			}
+		});
+	}
+
+	/**
+	 * Runs a task which calls user code or can block (callbacks, replies,
+	 * directory updates) in the control lane of the dispatch threads, so that
+	 * it doesn't hold the admission and timer threads. Never waits: if the
+	 * control queues are full, the task gets its own thread.
+	 *
+	 * @param aTask
+	 *            The task to run
+	 */
+	private void executeControl(final Runnable aTask) {
+
+		final MessageDispatcher dispatcher = pDispatcher;
+		if (dispatcher == null) {
+			// Herald is stopping
+			return;
+		}
+
+		if (!dispatcher.tryExecute(aTask)) {
+			// Control queues full: don't wait for them
+			final Thread thread = new Thread(aTask, "Herald-Control");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Considers the peers which are neither reached nor failed yet by a group
+	 * delivery as failed: their transport didn't answer in time
+	 *
+	 * @param aDelivery
+	 *            The group delivery
+	 */
+	private void failPendingPeers(final GroupDelivery aDelivery) {
+
+		for (final Peer peer : aDelivery.getPendingPeers()) {
+			aDelivery.peerFailed(peer, new HeraldTimeout(new Target(peer),
+					"Message not delivered after " + GROUP_DELIVERY_TIMEOUT
+							+ " ms", null));
+		}
+	}
+
+	/**
+	 * Computes the routes to try after the failure of the preferred route to
+	 * a peer. Only called on failures, to keep the success path free of
+	 * allocations.
+	 *
+	 * @param aPeer
+	 *            The peer to send the message to
+	 * @param aRoutes
+	 *            All the routes to the peer
+	 * @param aFailed
+	 *            The route which failed
+	 * @return The other routes, the fastest healthy one first
+	 */
+	private Iterator<Route> fallbackRoutes(final Peer aPeer,
+			final Route[] aRoutes, final Route aFailed) {
+
+		final List<Route> fallback = new ArrayList<>(aRoutes.length);
+		for (final Route route : pAccessRouter.order(aPeer, aRoutes)) {
+			if (route != aFailed) {
+				fallback.add(route);
+			}
+		}
+		return fallback.iterator();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -237,50 +399,261 @@ public class Herald implements IHerald, IHeraldInternal {
 			throw new NoTransport(new Target(aPeer), "No transport bound yet.");
 		}
 
-		// Try each access
-		boolean success = false;
-		for (final String access : aPeer.getAccesses()) {
-			final ITransport transport = pTransports.get(access);
-			if (transport == null) {
-				// No transport for this kind of access
-				continue;
+		// Try the preferred route first: the fastest healthy one
+		final Route[] routes = pRouteCache.getRoutes(aPeer);
+		final int first = pAccessRouter.select(aPeer, routes);
+		if (first != -1) {
+			final Route preferred = routes[first];
+			final boolean success;
+			if (preferred.getTransport() instanceof IAsyncTransport) {
+				// Fall back on the other routes if the delivery fails
+				success = fireAsyncRoute(aPeer, aMessage, preferred, routes,
+						null);
+			} else {
+				success = fireRoute(aPeer, aMessage, preferred);
 			}
 
-			try {
-				// Try to use it
-				transport.fire(aPeer, aMessage);
+			if (success
+					|| fireRoutes(aPeer, aMessage,
+							fallbackRoutes(aPeer, routes, preferred))) {
+				return aMessage.getUid();
+			}
+		}
+
+		// No transport succeeded
+		throw new NoTransport(new Target(aPeer),
+				"No working transport found for peer " + aPeer);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IHerald#fire(java.lang.String,
+	 * org.cohorte.herald.Message)
+	 */
+	@Override
+	public String fire(final String aPeerUid, final Message aMessage)
+			throws NoTransport, UnknownPeer {
+
+		return fire(pDirectory.getPeer(aPeerUid), aMessage);
+	}
 
-				// Success: stop here
-				success = true;
+	/**
+	 * Sends a message to a peer through the given route of an asynchronous
+	 * transport. The statistics of the access are updated when the delivery
+	 * completes; if it fails, the message is sent through the next routes.
+	 *
+	 * @param aPeer
+	 *            The peer to send the message to
+	 * @param aMessage
+	 *            The message to send
+	 * @param aRoute
+	 *            The route to use
+	 * @param aRoutes
+	 *            All the routes to the peer, to compute the fallback routes
+	 *            when aNextRoutes is null
+	 * @param aNextRoutes
+	 *            The routes to try if the delivery fails (can be null)
+	 * @return True if the transport accepted the message
+	 */
+	private boolean fireAsyncRoute(final Peer aPeer, final Message aMessage,
+			final Route aRoute, final Route[] aRoutes,
+			final Iterator<Route> aNextRoutes) {
+
+		final String access = aRoute.getAccessId();
+		final long start = System.nanoTime();
+		try {
+			((IAsyncTransport) aRoute.getTransport()).fireAsync(aPeer,
+					aMessage, new IDeliveryListener() {
+
+						@Override
+						public void messageDelivered(final Peer aDeliveredPeer,
+								final String aMessageUid) {
+
+							pAccessRouter.recordSuccess(aPeer, access, start);
+						}
+
+						@Override
+						public void messageFailed(final Peer aFailedPeer,
+								final String aMessageUid,
+								final HeraldException aError) {
+
+							pAccessRouter.recordFailure(aPeer, access);
+							pLogger.log(LogService.LOG_WARNING,
+									"Error using transport " + access + ": "
+											+ aError);
+
+							// Fall back on the next routes, out of the
+							// transport thread
+							executeControl(new Runnable() {
+
+								@Override
+								public void run() {
+
+									final Iterator<Route> nextRoutes;
+									if (aNextRoutes != null) {
+										nextRoutes = aNextRoutes;
+									} else {
+										nextRoutes = fallbackRoutes(aPeer,
+												aRoutes, aRoute);
+									}
+									if (!fireRoutes(aPeer, aMessage,
+											nextRoutes)) {
+										notifyUndelivered(aPeer, aMessageUid,
+												aError);
+									}
+								}
+							});
+						}
+					});
+			return true;
+
+		} catch (final HeraldException ex) {
+			// Exception during transport
+			pAccessRouter.recordFailure(aPeer, access);
+			pLogger.log(LogService.LOG_WARNING, "Error using transport "
+					+ access + ": " + ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Sends a message to a peer through the given route, and updates the
+	 * statistics of its access
+	 *
+	 * @param aPeer
+	 *            The peer to send the message to
+	 * @param aMessage
+	 *            The message to send
+	 * @param aRoute
+	 *            The route to use
+	 * @return True if the message has been sent
+	 */
+	private boolean fireRoute(final Peer aPeer, final Message aMessage,
+			final Route aRoute) {
+
+		final long start = System.nanoTime();
+		try {
+			aRoute.getTransport().fire(aPeer, aMessage);
+			pAccessRouter.recordSuccess(aPeer, aRoute.getAccessId(), start);
+			return true;
+
+		} catch (final HeraldException ex) {
+			// Exception during transport
+			pAccessRouter.recordFailure(aPeer, aRoute.getAccessId());
+			pLogger.log(LogService.LOG_WARNING, "Error using transport "
+					+ aRoute.getAccessId() + ": " + ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Sends a message to a peer through the first of the given routes which
+	 * accepts it
+	 *
+	 * @param aPeer
+	 *            The peer to send the message to
+	 * @param aMessage
+	 *            The message to send
+	 * @param aRoutes
+	 *            The routes to try, in order
+	 * @return True if a transport accepted the message
+	 */
+	private boolean fireRoutes(final Peer aPeer, final Message aMessage,
+			final Iterator<Route> aRoutes) {
+
+		while (aRoutes.hasNext()) {
+			final Route route = aRoutes.next();
+			if (route.getTransport() instanceof IAsyncTransport) {
+				if (fireAsyncRoute(aPeer, aMessage, route, null, aRoutes)) {
+					// Next routes are tried if the delivery fails
+					return true;
+				}
+
+			} else if (fireRoute(aPeer, aMessage, route)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IHerald#fireBatch(org.cohorte.herald.Peer,
+	 * java.util.List)
+	 */
+	@Override
+	public List<String> fireBatch(final Peer aPeer,
+			final List<Message> aMessages) throws NoTransport {
+
+		// Check if we can send the messages
+		if (pTransports.isEmpty()) {
+			throw new NoTransport(new Target(aPeer), "No transport bound yet.");
+		}
+
+		// Index of the first message to send
+		int next = 0;
+		for (final Route route : pAccessRouter.order(aPeer,
+				pRouteCache.getRoutes(aPeer))) {
+			if (next == aMessages.size()) {
 				break;
+			}
+
+			final String access = route.getAccessId();
+			final ITransport transport = route.getTransport();
+
+			final long start = System.nanoTime();
+			try {
+				if (transport instanceof IBatchTransport) {
+					// Send the remaining messages at once
+					((IBatchTransport) transport).fireBatch(aPeer,
+							aMessages.subList(next, aMessages.size()));
+					next = aMessages.size();
+
+				} else {
+					// Send messages one by one
+					while (next < aMessages.size()) {
+						transport.fire(aPeer, aMessages.get(next));
+						next++;
+					}
+				}
+				pAccessRouter.recordSuccess(aPeer, access, start);
 
 			} catch (final HeraldException ex) {
-				// Exception during transport
+				// Exception during transport: try the next one with the
+				// messages which haven't been sent
+				pAccessRouter.recordFailure(aPeer, access);
 				pLogger.log(LogService.LOG_WARNING, "Error using transport "
 						+ access + ": " + ex);
 			}
 		}
 
-		if (!success) {
+		if (next < aMessages.size()) {
 			// No transport succeeded
 			throw new NoTransport(new Target(aPeer),
-					"No working transport found for peer " + aPeer);
+					"No working transport found for peer " + aPeer + " ("
+							+ (aMessages.size() - next) + " messages not sent)");
 		}
 
-		return aMessage.getUid();
+		final List<String> uids = new ArrayList<>(aMessages.size());
+		for (final Message message : aMessages) {
+			uids.add(message.getUid());
+		}
+		return uids;
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see org.cohorte.herald.IHerald#fire(java.lang.String,
-	 * org.cohorte.herald.Message)
+	 * @see org.cohorte.herald.IHerald#fireBatch(java.lang.String,
+	 * java.util.List)
 	 */
 	@Override
-	public String fire(final String aPeerUid, final Message aMessage)
-			throws NoTransport, UnknownPeer {
+	public List<String> fireBatch(final String aPeerUid,
+			final List<Message> aMessages) throws NoTransport, UnknownPeer {
 
-		return fire(pDirectory.getPeer(aPeerUid), aMessage);
+		return fireBatch(pDirectory.getPeer(aPeerUid), aMessages);
 	}
 
 	/*
@@ -308,76 +681,62 @@ public class Herald implements IHerald, IHeraldInternal {
 					Target.toUids(allPeers)), "No transport bound yet.");
 		}
 
-		// Group peers by accesses
-		final Map<String, Set<Peer>> accesses = new LinkedHashMap<>();
-		for (final Peer peer : allPeers) {
-			for (final String access : peer.getAccesses()) {
-				Utilities.setDefault(accesses, access,
-						new LinkedHashSet<Peer>()).add(peer);
-			}
-		}
-
-		boolean allDone = false;
-		for (final Entry<String, Set<Peer>> entry : accesses.entrySet()) {
-			final String access = entry.getKey();
-			final Set<Peer> accessPeers = entry.getValue();
-
-			if (accessPeers.isEmpty()) {
-				// Nothing to do
-				continue;
-			}
+		final GroupDelivery delivery = fireGroup(aGroupName, allPeers,
+				aMessage);
+		try {
+			awaitDelivery(delivery);
 
-			// Find the transport for this access
-			final ITransport transport = pTransports.get(access);
-			if (transport == null) {
-				// No transport for this kind of access
-				pLogger.log(LogService.LOG_DEBUG, "No transport for " + access);
-				continue;
-			}
+		} catch (final InterruptedException ex) {
+			// Give up waiting: consider pending peers as missing
+			Thread.currentThread().interrupt();
+		}
 
-			final Collection<Peer> reachedPeers;
-			try {
-				// Try to send the message
-				reachedPeers = transport.fireGroup(aGroupName, accessPeers,
-						aMessage);
+		final Set<Peer> missingPeers = new LinkedHashSet<>(delivery
+				.getFailedPeers().keySet());
+		missingPeers.addAll(delivery.getPendingPeers());
+		if (!missingPeers.isEmpty()) {
+			pLogger.log(LogService.LOG_WARNING,
+					"Some peers haven't been notified: " + missingPeers);
+		}
 
-			} catch (final HeraldException ex) {
-				// Try again...
-				pLogger.log(LogService.LOG_DEBUG,
-						"Error group-firing message: " + ex, ex);
-				continue;
-			}
+		return missingPeers;
+	}
 
-			allDone = true;
-			for (final Set<Peer> remainingPeers : accesses.values()) {
-				remainingPeers.removeAll(reachedPeers);
-				if (!remainingPeers.isEmpty()) {
-					allDone = false;
-				}
-			}
+	/**
+	 * Sends a message to the given peers of a group, through all transports
+	 * at once
+	 *
+	 * @param aGroupName
+	 *            The name of the group of peers
+	 * @param aPeers
+	 *            The peers of the group
+	 * @param aMessage
+	 *            The message to send
+	 * @return The completion handle of the delivery
+	 */
+	private GroupDelivery fireGroup(final String aGroupName,
+			final Collection<Peer> aPeers, final Message aMessage) {
 
-			if (allDone) {
-				break;
-			}
-		}
+		return pFanOut.fire(aGroupName, aPeers, aMessage);
+	}
 
-		final Set<Peer> missingPeers = new LinkedHashSet<>();
-		if (!allDone) {
-			// Some peers are missing
-			for (final Set<Peer> remainingPeers : accesses.values()) {
-				missingPeers.addAll(remainingPeers);
-			}
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.cohorte.herald.IHerald#fireGroupAsync(java.lang.String,
+	 * org.cohorte.herald.Message)
+	 */
+	@Override
+	public GroupDelivery fireGroupAsync(final String aGroupName,
+			final Message aMessage) {
 
-			if (!missingPeers.isEmpty()) {
-				pLogger.log(LogService.LOG_WARNING,
-						"Some peers haven't been notified: " + missingPeers);
-			} else {
-				pLogger.log(LogService.LOG_DEBUG,
-						"No peer to send the message to.");
-			}
+		final Collection<Peer> allPeers = pDirectory
+				.getPeersForGroup(aGroupName);
+		if (allPeers.isEmpty()) {
+			pLogger.log(LogService.LOG_WARNING, "No peer in group: "
+					+ aGroupName);
 		}
-
-		return missingPeers;
+		return fireGroup(aGroupName, allPeers, aMessage);
 	}
 
 	/**
@@ -431,71 +790,38 @@ public class Herald implements IHerald, IHeraldInternal {
 		boolean result = false;
 		final ForgotMessage exception = new ForgotMessage(aMessageUid);
 
-		// Release the send() call
-		final EventData<?> event = pWaitingEvents.remove(aMessageUid);
-		if (event != null) {
-			event.raiseException(exception);
+		// Notify post() and send() callers
+		final WaitingPost waitingPost = pWaitingPosts.remove(aMessageUid);
+		if (waitingPost != null) {
+			waitingPost.errback(this, exception);
 			result = true;
 		}
 
-		synchronized (pGarbageToken) {
-			// Notify post() callers
-			final WaitingPost waitingPost = pWaitingPosts.remove(aMessageUid);
-			if (waitingPost != null) {
-				waitingPost.errback(this, exception);
-				result = true;
-			}
-		}
-
 		return result;
 	}
 
 	/**
-	 * Garbage collects dead waiting post beans. Calls on a regular basis by a
-	 * LoopTimer
+	 * Reads a numeric framework property
+	 *
+	 * @param aKey
+	 *            Name of the property
+	 * @param aDefault
+	 *            Value to use if the property is missing or invalid
+	 * @return The value of the property
 	 */
-	private void garbageCollect() {
+	private long getLongProperty(final String aKey, final long aDefault) {
 
-		synchronized (pGarbageToken) {
-			// Compute time since the last garbage collection
-			long delta;
-			if (pLastGarbage < 0) {
-				delta = 0;
-			} else {
-				delta = System.currentTimeMillis() - pLastGarbage;
-			}
-
-			// Delete timed out post message beans
-			final Set<String> toDelete = new LinkedHashSet<>();
-			for (final Entry<String, WaitingPost> entry : pWaitingPosts
-					.entrySet()) {
-				if (entry.getValue().isDead()) {
-					toDelete.add(entry.getKey());
-				}
-			}
-			for (final String uid : toDelete) {
-				pWaitingPosts.remove(uid);
-			}
+		final String rawValue = pContext.getProperty(aKey);
+		if (rawValue == null || rawValue.trim().isEmpty()) {
+			return aDefault;
+		}
 
-			// Delete UID of treated message of more than 5 minutes
-			toDelete.clear();
-			for (final Entry<String, Long> entry : pTreatedMessages.entrySet()) {
-				final String msgUid = entry.getKey();
-				final long newTTL = entry.getValue() + delta;
-				// Yes, I can *update* an entry while iterating
-				pTreatedMessages.put(msgUid, newTTL);
-
-				if (newTTL > 300000) {
-					// More than 5 minutes: forget about the message
-					toDelete.add(msgUid);
-				}
-			}
-			for (final String msgUid : toDelete) {
-				pTreatedMessages.remove(msgUid);
-			}
+		try {
+			return Long.parseLong(rawValue.trim());
 
-			// Update the last garbage collection time
-			pLastGarbage = System.currentTimeMillis();
+		} catch (final NumberFormatException ex) {
+			// Invalid value (no logger yet)
+			return aDefault;
 		}
 	}
 
@@ -514,7 +840,14 @@ public class Herald implements IHerald, IHeraldInternal {
 		case "bye": {
 			// A peer is going away
 			// Message content: the Peer UID
-			pDirectory.unregister((String) aMessage.getContent());
+			executeControl(new Runnable() {
+
+				@Override
+				public void run() {
+
+					pDirectory.unregister((String) aMessage.getContent());
+				}
+			});
 			break;
 		}
 
@@ -534,9 +867,11 @@ public class Herald implements IHerald, IHeraldInternal {
 	 */
 	private void handleError(final MessageReceived aMessage, final String aKind) {
 
+		final HeraldException exception;
 		switch (aKind) {
-		case "no-listener": {
-			// No listener found for a given message
+		case "no-listener":
+		case "overloaded": {
+			// No listener found for a given message, or message refused
 			final Map<?, ?> content = (Map<?, ?>) aMessage.getContent();
 			final String uid = (String) content.get("uid");
 			final String subject = (String) content.get("subject");
@@ -547,19 +882,25 @@ public class Herald implements IHerald, IHeraldInternal {
 			}
 
 			// Set up the exception object
-			final NoListener exception = new NoListener(new Target(
-					aMessage.getSender()), uid, subject);
-
-			// Unlock the original message sender
-			final EventData<?> eventData = pWaitingEvents.remove(uid);
-			if (eventData != null) {
-				eventData.raiseException(exception);
+			final Target target = new Target(aMessage.getSender());
+			if (aKind.equals("no-listener")) {
+				exception = new NoListener(target, uid, subject);
+			} else {
+				exception = new Overloaded(target, uid, subject);
 			}
 
-			// Notify post() callers
-			final WaitingPost waitingPost = pWaitingPosts.remove(uid);
+			// Notify post() and send() callers
+			final WaitingPost waitingPost = pWaitingPosts.onError(uid,
+					aMessage.getSender());
 			if (waitingPost != null) {
-				waitingPost.errback(this, exception);
+				executeControl(new Runnable() {
+
+					@Override
+					public void run() {
+
+						waitingPost.errback(Herald.this, exception);
+					}
+				});
 			}
 			break;
 		}
@@ -578,18 +919,257 @@ public class Herald implements IHerald, IHeraldInternal {
 	 * @see org.cohorte.herald.IHeraldInternal#handleMessage(org.cohorte.herald.
 	 * MessageReceived)
 	 */
-	@Override
-	public void handleMessage(final MessageReceived aMessage) {
+	@Override
+	public void handleMessage(final MessageReceived aMessage) {
+
+		try {
+			handleMessage(aMessage, 0);
+
+		} catch (final Overloaded ex) {
+			// Rejected by the admission queue: the sender only knows if the
+			// herald/error/overloaded reply gets through, and never for
+			// herald/error/* messages
+			pLogger.log(LogService.LOG_WARNING, "Message rejected: " + ex);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IHeraldInternal#handleMessage(org.cohorte.herald.
+	 * MessageReceived, int)
+	 */
+	@Override
+	public void handleMessage(final MessageReceived aMessage, final int aSize)
+			throws Overloaded {
+
+		final AdmissionQueue admission = pAdmission;
+		if (admission == null || admission.offer(aMessage, aSize)
+				|| !IConstants.ADMISSION_REJECT.equals(admission.getPolicy())) {
+			// Message queued, dropped or Herald stopped
+			return;
+		}
+
+		// Message rejected: tell the sender, unless it is an error itself
+		final String subject = aMessage.getSubject();
+		if (!subject.startsWith("herald/error/")) {
+			final Map<String, Object> content = new LinkedHashMap<>();
+			content.put("uid", aMessage.getUid());
+			content.put("subject", subject);
+
+			try {
+				reply(aMessage, content, "herald/error/overloaded");
+
+			} catch (final HeraldException ex) {
+				// We can't send an error back
+				pLogger.log(LogService.LOG_ERROR,
+						"Can't send an error back to the sender: " + ex);
+			}
+		}
+
+		throw new Overloaded(new Target(aMessage.getSender()),
+				aMessage.getUid(), subject);
+	}
+
+	/**
+	 * Component invalidated
+	 */
+	@Invalidate
+	public void invalidate() {
+
+		// Stop following the directory
+		pRouteCacheRegistration.unregister();
+		pRouteCacheRegistration = null;
+		pRouteCache.clear();
+
+		// Stop accepting messages
+		pAdmissionRegistration.unregister();
+		pAdmissionRegistration = null;
+		pAdmission.stop();
+
+		// Stop the notification threads
+		pDispatcher.stop();
+		pFanOut.stop();
+
+		// Release waiting requests
+		final HeraldException exception = new HeraldTimeout(null,
+				"Herald stops to listen to messages", null);
+		for (final WaitingPost waiting : pWaitingPosts.clear()) {
+			waiting.errback(this, exception);
+		}
+
+		// Clean up
+		pTreatedMessages.clear();
+		pAdmission = null;
+		pDispatcher = null;
+		pFanOut = null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.cohorte.herald.IHeraldInternal#isBlockedOnReply(java.lang.String)
+	 */
+	@Override
+	public boolean isBlockedOnReply(final String aMessageUid) {
+
+		return pBlockingSends.contains(aMessageUid);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.cohorte.herald.IHeraldInternal#isWaitingReply(java.lang.String)
+	 */
+	@Override
+	public boolean isWaitingReply(final String aMessageUid) {
+
+		return pWaitingPosts.contains(aMessageUid);
+	}
+
+	/**
+	 * Logs an error which occurred in a Herald thread
+	 *
+	 * @param aText
+	 *            Description of the error
+	 * @param aThrowable
+	 *            The associated exception
+	 */
+	void logError(final String aText, final Throwable aThrowable) {
+
+		pLogger.log(LogService.LOG_ERROR, aText, aThrowable);
+	}
+
+	/**
+	 * Calls back message senders about responses or notifies the reception of a
+	 * message
+	 *
+	 * @param aMessage
+	 *            The received message
+	 */
+	private void notify(final MessageReceived aMessage) {
+
+		final String repliesTo = aMessage.getReplyTo();
+		if (repliesTo != null && !repliesTo.isEmpty()) {
+			// This message is a reply: notify the sender of the original
+			// message
+			final WaitingPost waitingPost = pWaitingPosts.onReply(aMessage);
+			if (waitingPost != null) {
+				recordRoundTrip(aMessage, waitingPost);
+				executeControl(new Runnable() {
+
+					@Override
+					public void run() {
+
+						waitingPost.callback(Herald.this, aMessage);
+					}
+				});
+			}
+		}
+
+		// Get the listeners to notify from the routing index
+		final IMessageListener[] listeners = pRouter.route(aMessage
+				.getSubject());
+
+		if (listeners.length != 0) {
+			// Call listeners in the dispatch threads
+			final MessageDispatcher dispatcher = pDispatcher;
+			if (dispatcher == null) {
+				// Herald is stopping
+				return;
+			}
+
+			for (final IMessageListener listener : listeners) {
+				final Integer ordering = pListenersOrdering.get(listener);
+				dispatcher.dispatch(listener, aMessage,
+						ordering != null ? ordering
+								: MessageDispatcher.ORDER_NONE);
+			}
+
+		} else {
+			// No listener found: send an error message
+			final Map<String, Object> content = new LinkedHashMap<>();
+			content.put("uid", aMessage.getUid());
+			content.put("subject", aMessage.getSubject());
+
+			executeControl(new Runnable() {
+
+				@Override
+				public void run() {
+
+					try {
+						reply(aMessage, content, "herald/error/no-listener");
+
+					} catch (final HeraldException ex) {
+						// We can't send an error back
+						pLogger.log(LogService.LOG_ERROR,
+								"Can't send an error back to the sender: "
+										+ ex);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Notifies the callers waiting for an answer to a message that it couldn't
+	 * be delivered to the peer
+	 *
+	 * @param aPeer
+	 *            The targeted peer
+	 * @param aMessageUid
+	 *            UID of the message
+	 * @param aError
+	 *            The last delivery error
+	 */
+	private void notifyUndelivered(final Peer aPeer, final String aMessageUid,
+			final HeraldException aError) {
+
+		// The peer won't answer
+		final WaitingPost waitingPost = pWaitingPosts.onError(aMessageUid,
+				aPeer.getUid());
+		if (waitingPost != null) {
+			waitingPost.errback(this, new NoTransport(new Target(aPeer),
+					"Message not delivered: " + aError.getMessage()));
+		}
+	}
+
+	/**
+	 * Notifies a listener of a message. Called by the dispatch threads.
+	 *
+	 * @param aListener
+	 *            The listener to notify
+	 * @param aMessage
+	 *            The received message
+	 */
+	void notifyListener(final IMessageListener aListener,
+			final MessageReceived aMessage) {
+
+		try {
+			aListener.heraldMessage(this, aMessage);
+
+		} catch (final HeraldException ex) {
+			pLogger.log(LogService.LOG_WARNING, "Error notifying listener "
+					+ aListener + ": " + ex, ex);
+		}
+	}
+
+	/**
+	 * Handles a message which went through the admission queue. Called by the
+	 * admission thread, which only filters the message, looks up its
+	 * correlation and hands it off: callbacks, replies and directory updates
+	 * run in the dispatch threads.
+	 *
+	 * @param aMessage
+	 *            A message received from a transport
+	 */
+	void processMessage(final MessageReceived aMessage) {
 
-		synchronized (pGarbageToken) {
-			if (pTreatedMessages.containsValue(aMessage.getUid())) {
-				// Message already handled, ignore it
-				return;
-			} else {
-				// Store the message UID
-				pTreatedMessages.put(aMessage.getUid(),
-						System.currentTimeMillis());
-			}
+		if (!pTreatedMessages.markIfAbsent(aMessage.getUid())) {
+			// Message already handled, ignore it
+			return;
 		}
 
 		// Clean up the subject
@@ -628,120 +1208,6 @@ public class Herald implements IHerald, IHeraldInternal {
 		notify(aMessage);
 	}
 
-	/**
-	 * Component invalidated
-	 */
-	@Invalidate
-	public void invalidate() {
-
-		// Stop the garbage collector
-		pGarbageTimer.cancel();
-
-		// Stop the thread pool
-		pPool.shutdownNow();
-
-		// Clear waiting events
-		for (final EventData<?> event : pWaitingEvents.values()) {
-			event.set(null);
-		}
-
-		synchronized (pGarbageToken) {
-			final HeraldException exception = new HeraldTimeout(null,
-					"Herald stops to listen to messages", null);
-			for (final WaitingPost waiting : pWaitingPosts.values()) {
-				waiting.errback(this, exception);
-			}
-		}
-
-		// Clean up
-		pWaitingEvents.clear();
-		pWaitingPosts.clear();
-		pGarbageTimer = null;
-		pPool = null;
-	}
-
-	/**
-	 * Calls back message senders about responses or notifies the reception of a
-	 * message
-	 *
-	 * @param aMessage
-	 *            The received message
-	 */
-	private void notify(final MessageReceived aMessage) {
-
-		final String repliesTo = aMessage.getReplyTo();
-		if (repliesTo != null && !repliesTo.isEmpty()) {
-			// This message is a reply: unlock the sender of the original
-			// message
-			final EventData<Object> event = pWaitingEvents.remove(repliesTo);
-			if (event != null) {
-				// Set the data
-				event.set(aMessage.getContent());
-			}
-
-			synchronized (pGarbageToken) {
-				// Notify post() callers
-				final WaitingPost waitingPost = pWaitingPosts.get(repliesTo);
-				if (waitingPost != null) {
-					waitingPost.callback(this, aMessage);
-					if (waitingPost.isForgetOnFirst()) {
-						// Forget about the message
-						pWaitingPosts.remove(repliesTo);
-					}
-				}
-			}
-		}
-
-		// Compute the list of listeners to notify
-		final Set<IMessageListener> listeners = new LinkedHashSet<>();
-		final String subject = aMessage.getSubject();
-
-		synchronized (pListeners) {
-			for (final Entry<FnMatch, Set<IMessageListener>> entry : pListeners
-					.entrySet()) {
-				if (entry.getKey().matches(subject)) {
-					listeners.addAll(entry.getValue());
-				}
-			}
-		}
-
-		if (!listeners.isEmpty()) {
-			// Call listeners in the thread pool
-			for (final IMessageListener listener : listeners) {
-				pPool.execute(new Runnable() {
-
-					@Override
-					public void run() {
-
-						try {
-							listener.heraldMessage(Herald.this, aMessage);
-
-						} catch (final HeraldException ex) {
-							pLogger.log(LogService.LOG_WARNING,
-									"Error notifying listener " + listener
-											+ ": " + ex, ex);
-						}
-					}
-				});
-			}
-
-		} else {
-			// No listener found: send an error message
-			final Map<String, Object> content = new LinkedHashMap<>();
-			content.put("uid", aMessage.getUid());
-			content.put("subject", aMessage.getSubject());
-
-			try {
-				reply(aMessage, content, "herald/error/no-listener");
-
-			} catch (final HeraldException ex) {
-				// We can't send an error back
-				pLogger.log(LogService.LOG_ERROR,
-						"Can't send an error back to the sender: " + ex);
-			}
-		}
-	}
-
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -754,7 +1220,7 @@ public class Herald implements IHerald, IHeraldInternal {
 			final IPostCallback aCallback, final IPostErrback aErrback)
 			throws NoTransport {
 
-		return post(aPeer, aMessage, aCallback, aErrback, 180L, true);
+		return post(aPeer, aMessage, aCallback, aErrback, 180000L, true);
 	}
 
 	/*
@@ -785,11 +1251,9 @@ public class Herald implements IHerald, IHeraldInternal {
 			final Long aTimeout, final boolean aForgetOnFirst)
 			throws NoTransport {
 
-		synchronized (pGarbageToken) {
-			// Prepare an entry in the waiting posts
-			pWaitingPosts.put(aMessage.getUid(), new WaitingPost(aCallback,
-					aErrback, aTimeout, aForgetOnFirst));
-		}
+		// Prepare an entry in the waiting posts
+		storeWaitingPost(aMessage, new Target(aPeer), new WaitingPost(
+				aCallback, aErrback, aTimeout, aForgetOnFirst), aTimeout);
 
 		try {
 			// Fire the message
@@ -797,9 +1261,7 @@ public class Herald implements IHerald, IHeraldInternal {
 
 		} catch (final HeraldException ex) {
 			// Early clean up in case of exception
-			synchronized (pGarbageToken) {
-				pWaitingPosts.remove(aMessage.getUid());
-			}
+			pWaitingPosts.remove(aMessage.getUid());
 			throw ex;
 		}
 	}
@@ -816,7 +1278,7 @@ public class Herald implements IHerald, IHeraldInternal {
 			final IPostCallback aCallback, final IPostErrback aErrback)
 			throws UnknownPeer, NoTransport {
 
-		return post(aPeerUid, aMessage, aCallback, aErrback, 180L, true);
+		return post(aPeerUid, aMessage, aCallback, aErrback, 180000L, true);
 	}
 
 	/*
@@ -870,75 +1332,177 @@ public class Herald implements IHerald, IHeraldInternal {
 			throw new ValueError("Unknown group: " + aGroupName);
 		}
 
+		return postGroup(aGroupName, allPeers, aMessage, aCallback, aErrback,
+				aTimeout);
+	}
+
+	/**
+	 * Posts a message to the given peers of a group
+	 *
+	 * @param aGroupName
+	 *            The name of the group of peers
+	 * @param aPeers
+	 *            The peers of the group
+	 * @param aMessage
+	 *            A Message bean
+	 * @param aCallback
+	 *            Method to call back when a reply is received
+	 * @param aErrback
+	 *            Method to call back if an error occurs
+	 * @param aTimeout
+	 *            Time after which the message will be forgotten
+	 * @return The message UID
+	 * @throws NoTransport
+	 *             No transport found to send the message
+	 */
+	private String postGroup(final String aGroupName,
+			final Collection<Peer> aPeers, final Message aMessage,
+			final IPostCallback aCallback, final IPostErrback aErrback,
+			final Long aTimeout) throws NoTransport {
+
 		if (pTransports.isEmpty()) {
 			// Make the list of UIDs
 			throw new NoTransport(new Target(aGroupName,
-					Target.toUids(allPeers)), "No transport bound yet.");
+					Target.toUids(aPeers)), "No transport bound yet.");
 		}
 
-		synchronized (pGarbageToken) {
-			// Prepare an entry in the waiting posts
-			pWaitingPosts.put(aMessage.getUid(), new WaitingPost(aCallback,
-					aErrback, aTimeout, false));
+		// Prepare an entry in the waiting posts
+		final Collection<String> peersUids = Target.toUids(aPeers);
+		storeWaitingPost(aMessage, new Target(aGroupName, peersUids),
+				new WaitingPost(aCallback, aErrback, aTimeout, false,
+						peersUids), aTimeout);
+
+		// Send the message through all transports at once, without waiting:
+		// the peers which can't be reached won't answer
+		final String messageUid = aMessage.getUid();
+		final GroupDelivery delivery = pFanOut.fire(aGroupName, aPeers,
+				aMessage, new IGroupDeliveryListener() {
+
+					@Override
+					public void peerFailed(final GroupDelivery aDelivery,
+							final Peer aPeer, final HeraldException aError) {
+
+						// Called from transport threads
+						executeControl(new Runnable() {
+
+							@Override
+							public void run() {
+
+								notifyUndelivered(aPeer, messageUid, aError);
+							}
+						});
+					}
+
+					@Override
+					public void peerReached(final GroupDelivery aDelivery,
+							final Peer aPeer, final String aAccessId) {
+
+						// Wait for its answer
+					}
+				});
+
+		if (!delivery.isDone()) {
+			// Don't let a hung transport keep the peers pending forever
+			pTimer.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+
+					failPendingPeers(delivery);
+				}
+			}, GROUP_DELIVERY_TIMEOUT);
 		}
 
-		// Group peers by accesses
-		final Map<String, Set<Peer>> accesses = new LinkedHashMap<>();
-		for (final Peer peer : allPeers) {
-			for (final String access : peer.getAccesses()) {
-				Utilities.setDefault(accesses, access,
-						new LinkedHashSet<Peer>()).add(peer);
-			}
+		return messageUid;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.cohorte.herald.IHerald#postStream(java.lang.String,
+	 * org.cohorte.herald.Message, java.lang.Long)
+	 */
+	@Override
+	public ReplyStream postStream(final String aGroupName,
+			final Message aMessage, final Long aTimeout) {
+
+		// Get all peers known in the group
+		final Collection<Peer> allPeers = pDirectory
+				.getPeersForGroup(aGroupName);
+		final ReplyStream stream = new ReplyStream(this, aMessage.getUid(),
+				Target.toUids(allPeers));
+		if (allPeers.isEmpty()) {
+			stream.completeExceptionally(new ValueError("Unknown group: "
+					+ aGroupName));
+			return stream;
 		}
 
-		for (final Entry<String, Set<Peer>> entry : accesses.entrySet()) {
-			final String access = entry.getKey();
-			final Set<Peer> accessPeers = entry.getValue();
+		try {
+			// Post the message, feeding the stream with replies and errors
+			postGroup(aGroupName, allPeers, aMessage, new IPostCallback() {
 
-			if (accessPeers.isEmpty()) {
-				// Nothing to do
-				continue;
-			}
+				@Override
+				public void heraldCallback(final IHerald aHerald,
+						final MessageReceived aReply) {
 
-			// Find the transport for this access
-			final ITransport transport = pTransports.get(access);
-			if (transport == null) {
-				// No transport for this kind of access
-				pLogger.log(LogService.LOG_DEBUG, "No transport for " + access);
-				continue;
-			}
+					stream.offer(aReply);
+				}
+			}, new IPostErrback() {
 
-			final Collection<Peer> reachedPeers;
-			try {
-				// Try to send the message
-				reachedPeers = transport.fireGroup(aGroupName, accessPeers,
-						aMessage);
+				@Override
+				public void heraldErrback(final IHerald aHerald,
+						final HeraldException aException) {
 
-			} catch (final HeraldException ex) {
-				// Try again...
-				pLogger.log(LogService.LOG_DEBUG,
-						"Error group-firing message: " + ex, ex);
-				continue;
-			}
+					if (aException instanceof HeraldTimeout
+							|| aException instanceof ForgotMessage) {
+						// Deadline reached or request forgotten: the pending
+						// peers won't be waited for anymore
+						stream.complete();
 
-			boolean allDone = true;
-			for (final Set<Peer> remainingPeers : accesses.values()) {
-				remainingPeers.removeAll(reachedPeers);
-				if (!remainingPeers.isEmpty()) {
-					allDone = false;
+					} else if (aException.getTarget() != null
+							&& aException.getTarget().getUId() != null) {
+						// A peer answered with an error
+						stream.peerFailed(aException.getTarget().getUId());
+
+					} else {
+						stream.completeExceptionally(aException);
+					}
 				}
-			}
+			}, aTimeout);
 
-			if (allDone) {
-				break;
-			}
+		} catch (final NoTransport ex) {
+			stream.completeExceptionally(ex);
 		}
 
-		return aMessage.getUid();
+		return stream;
+	}
+
+	/**
+	 * Updates the round-trip time statistics of the access a reply has been
+	 * received through
+	 *
+	 * @param aReply
+	 *            The reply message
+	 * @param aWaitingPost
+	 *            The post the reply answers
+	 */
+	private void recordRoundTrip(final MessageReceived aReply,
+			final WaitingPost aWaitingPost) {
+
+		try {
+			pAccessRouter.recordRoundTrip(pDirectory.getPeer(aReply
+					.getSender()), aReply.getAccess(), aWaitingPost
+					.getElapsedTime());
+
+		} catch (final UnknownPeer ex) {
+			// Peer not known (yet): ignore
+		}
 	}
 
 	@Override
 	public void removeMessageListener(final IMessageListener aListener) {
+
+		pListenersOrdering.remove(aListener);
 		synchronized (pListeners) {
 			final Set<FnMatch> filters = pListenersFilters.remove(aListener);
 			if (filters == null) {
@@ -956,6 +1520,9 @@ public class Herald implements IHerald, IHeraldInternal {
 					pListeners.remove(match);
 				}
 			}
+
+			// Update the routing index
+			pRouter.rebuild(pListeners);
 		}
 	}
 
@@ -1031,43 +1598,33 @@ public class Herald implements IHerald, IHeraldInternal {
 	public Object send(final Peer aPeer, final Message aMessage,
 			final Long aTimeout) throws HeraldException {
 
-		// Prepare the event bean
-		final EventData<Object> event = new EventData<>();
-		pWaitingEvents.put(aMessage.getUid(), event);
-
+		// This thread waits for the reply anyway: transports can wait for it
+		// while sending the message
+		final ReplyFuture future;
+		pBlockingSends.add(aMessage.getUid());
 		try {
-			// Fire the message
-			fire(aPeer, aMessage);
+			future = sendAsync(aPeer, aMessage, aTimeout);
 
-			// Message sent: wait for an answer
-			if (event.waitEvent(aTimeout)) {
-				final Object data = event.getData();
-				if (data != null) {
-					return data;
+		} finally {
+			pBlockingSends.remove(aMessage.getUid());
+		}
 
-				} else {
-					// Herald is stopping...
-					throw new HeraldTimeout(new Target(aPeer),
-							"Herald stops listening to message", aMessage);
-				}
+		try {
+			// Wait for the answer
+			return future.get().getContent();
 
-			} else {
-				throw new HeraldTimeout(new Target(aPeer),
-						"Timeout reached before receiving a reply", aMessage);
-			}
+		} catch (final InterruptedException ex) {
+			// Give up
+			forget(aMessage.getUid());
+			throw new HeraldException(new Target(aPeer),
+					"Interrupted while waiting for an answer", ex);
 
-		} catch (final EventException ex) {
-			// Something went wrong waiting for the event
+		} catch (final ExecutionException ex) {
 			if (ex.getCause() instanceof HeraldException) {
 				throw (HeraldException) ex.getCause();
-			} else {
-				throw new HeraldException(new Target(aPeer),
-						"Error waiting for an answer: " + ex, ex);
 			}
-
-		} finally {
-			// Clean up
-			pWaitingEvents.remove(aMessage.getUid());
+			throw new HeraldException(new Target(aPeer),
+					"Error waiting for an answer: " + ex, ex.getCause());
 		}
 	}
 
@@ -1103,6 +1660,154 @@ public class Herald implements IHerald, IHeraldInternal {
 		return send(pDirectory.getPeer(aPeerUid), aMessage, aTimeout);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.cohorte.herald.IHerald#sendGroup(java.lang.String,
+	 * org.cohorte.herald.Message, java.lang.Long, int)
+	 */
+	@Override
+	public GroupReplies sendGroup(final String aGroupName,
+			final Message aMessage, final Long aTimeout, final int aQuorum)
+			throws ValueError, HeraldException {
+
+		// Get all peers known in the group
+		final Collection<Peer> allPeers = pDirectory
+				.getPeersForGroup(aGroupName);
+		if (allPeers.isEmpty()) {
+			throw new ValueError("Unknown group: " + aGroupName);
+		}
+
+		final GroupCollector collector = new GroupCollector(allPeers, aQuorum);
+		postGroup(aGroupName, allPeers, aMessage, collector, collector,
+				aTimeout);
+
+		try {
+			// Wait for the answers
+			return collector.await(aTimeout);
+
+		} catch (final InterruptedException ex) {
+			throw new HeraldException(new Target(aGroupName,
+					Target.toUids(allPeers)),
+					"Interrupted while waiting for answers", ex);
+
+		} finally {
+			// Release the correlation state: late answers are ignored
+			forget(aMessage.getUid());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IHerald#sendAsync(org.cohorte.herald.Peer,
+	 * org.cohorte.herald.Message, java.lang.Long)
+	 */
+	@Override
+	public ReplyFuture sendAsync(final Peer aPeer, final Message aMessage,
+			final Long aTimeout) {
+
+		final ReplyFuture future = new ReplyFuture(this, aMessage.getUid());
+		try {
+			// Post the message, completing the future on reply or error
+			post(aPeer, aMessage, new IPostCallback() {
+
+				@Override
+				public void heraldCallback(final IHerald aHerald,
+						final MessageReceived aReply) {
+
+					future.complete(aReply);
+				}
+			}, new IPostErrback() {
+
+				@Override
+				public void heraldErrback(final IHerald aHerald,
+						final HeraldException aException) {
+
+					future.completeExceptionally(aException);
+				}
+			}, aTimeout, true);
+
+		} catch (final NoTransport ex) {
+			future.completeExceptionally(ex);
+		}
+
+		return future;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IHerald#sendAsync(java.lang.String,
+	 * org.cohorte.herald.Message, java.lang.Long)
+	 */
+	@Override
+	public ReplyFuture sendAsync(final String aPeerUid,
+			final Message aMessage, final Long aTimeout) {
+
+		try {
+			return sendAsync(pDirectory.getPeer(aPeerUid), aMessage, aTimeout);
+
+		} catch (final UnknownPeer ex) {
+			final ReplyFuture future = new ReplyFuture(this, aMessage.getUid());
+			future.completeExceptionally(ex);
+			return future;
+		}
+	}
+
+	/**
+	 * Stores a waiting post and schedules the call of its error callback at
+	 * its deadline
+	 *
+	 * @param aMessage
+	 *            The posted message
+	 * @param aTarget
+	 *            The targeted peer(s)
+	 * @param aWaitingPost
+	 *            The waiting post bean
+	 * @param aTimeout
+	 *            Time to wait for a reply (in milliseconds), can be null
+	 */
+	private void storeWaitingPost(final Message aMessage,
+			final Target aTarget, final WaitingPost aWaitingPost,
+			final Long aTimeout) {
+
+		final String uid = aMessage.getUid();
+		pWaitingPosts.register(uid, aWaitingPost);
+
+		if (aTimeout == null) {
+			// Wait forever
+			return;
+		}
+
+		final ITimeout timeout = pTimer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+
+				if (!pWaitingPosts.expire(uid, aWaitingPost)) {
+					// Already forgotten
+					return;
+				}
+
+				// Call the error callback out of the timer thread, without
+				// waiting for room in the dispatch queues
+				executeControl(new Runnable() {
+
+					@Override
+					public void run() {
+
+						aWaitingPost.errback(Herald.this, new HeraldTimeout(
+								aTarget,
+								"Timeout reached before receiving a reply",
+								aMessage));
+					}
+				});
+			}
+		}, aTimeout);
+		aWaitingPost.setTimeout(timeout);
+	}
+
 	/**
 	 * A message listener has gone away
 	 *
@@ -1140,6 +1845,7 @@ public class Herald implements IHerald, IHeraldInternal {
 		synchronized (pTransports) {
 			// Forget about the service
 			pTransports.remove(accessId);
+			pRouteCache.setTransports(pTransports);
 
 			if (pTransports.isEmpty() && pSvcRegistration != null) {
 				// No more transport service: we can't provide the service
@@ -1214,6 +1920,7 @@ public class Herald implements IHerald, IHeraldInternal {
 				final FnMatch match = new FnMatch(filter);
 
 				// Remove the listener from the registry
+				currentFilters.remove(match);
 				final Set<IMessageListener> listeners = pListeners.get(match);
 				listeners.remove(aListener);
 
@@ -1222,6 +1929,32 @@ public class Herald implements IHerald, IHeraldInternal {
 					pListeners.remove(match);
 				}
 			}
+
+			// Update the routing index
+			pRouter.rebuild(pListeners);
+		}
+
+		updateOrdering(aListener, aReference);
+	}
+
+	/**
+	 * Updates the ordering required by a listener, according to its service
+	 * properties
+	 *
+	 * @param aListener
+	 *            A message listener
+	 * @param aReference
+	 *            The injected service reference
+	 */
+	private void updateOrdering(final IMessageListener aListener,
+			final ServiceReference<IMessageListener> aReference) {
+
+		final int ordering = MessageDispatcher.parseOrdering(aReference
+				.getProperty(IConstants.PROP_ORDERING));
+		if (ordering == MessageDispatcher.ORDER_NONE) {
+			pListenersOrdering.remove(aListener);
+		} else {
+			pListenersOrdering.put(aListener, ordering);
 		}
 	}
 
@@ -1231,18 +1964,35 @@ public class Herald implements IHerald, IHeraldInternal {
 	@Validate
 	public void validate() {
 
-		// Start the notification thread pool
-		pPool = Executors.newFixedThreadPool(5);
-
-		// Start the garbage collector
-		pGarbageTimer = new LoopTimer(30000, new Runnable() {
-
-			@Override
-			public void run() {
-
-				garbageCollect();
-			}
-		}, "Herald-GC", pEventFactory);
-		pGarbageTimer.start();
+		// Start the notification threads
+		pDispatcher = new MessageDispatcher(this, (int) getLongProperty(
+				IConstants.FWPROP_DISPATCH_THREADS, Runtime.getRuntime()
+						.availableProcessors()), (int) getLongProperty(
+				IConstants.FWPROP_DISPATCH_QUEUE_SIZE,
+				MessageDispatcher.DEFAULT_QUEUE_SIZE), VirtualThreads
+				.isEnabled(pContext));
+		pDispatcher.start();
+
+		// Prepare the group fan-out threads
+		pFanOut = new GroupFanOut(pRouteCache, pAccessRouter,
+				VirtualThreads.isEnabled(pContext));
+
+		// Start the admission thread
+		pAdmission = new AdmissionQueue(this, (int) getLongProperty(
+				IConstants.FWPROP_ADMISSION_CAPACITY,
+				AdmissionQueue.DEFAULT_CAPACITY), (int) getLongProperty(
+				IConstants.FWPROP_ADMISSION_CONTROL_CAPACITY,
+				AdmissionQueue.DEFAULT_CONTROL_CAPACITY), getLongProperty(
+				IConstants.FWPROP_ADMISSION_MAX_BYTES,
+				AdmissionQueue.DEFAULT_MAX_BYTES),
+				AdmissionQueue.parsePolicy(pContext
+						.getProperty(IConstants.FWPROP_ADMISSION_POLICY)));
+		pAdmission.start();
+		pAdmissionRegistration = pContext.registerService(
+				IAdmissionStatistics.class, pAdmission, null);
+
+		// Follow the directory events to keep the routes up to date
+		pRouteCacheRegistration = pContext.registerService(
+				IDirectoryListener.class, pRouteCache, null);
 	}
 }
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.core;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the UIDs of the recently received messages, to detect
+ * duplicates.
+ *
+ * UIDs are stored in a ring of generations: new UIDs go in the current
+ * generation, which is rotated out when its time slice is over or when it is
+ * full. The oldest generation is dropped on rotation, so a UID is remembered
+ * at least during the configured window, unless the maximum size is reached.
+ *
+ * Marking a UID only locks when a rotation is needed.
+ *
+ * @author Thomas Calmant
+ */
+public class MessageDeduplicator {
+
+	/**
+	 * A generation of UIDs
+	 *
+	 * @author Thomas Calmant
+	 */
+	private static final class Generation {
+
+		/** Number of UIDs in the generation */
+		private final AtomicInteger pSize = new AtomicInteger();
+
+		/** Start of the time slice of the generation */
+		private final long pStart;
+
+		/** The UIDs */
+		private final Set<String> pUids = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		/**
+		 * Sets up the generation
+		 *
+		 * @param aStart
+		 *            Start of the time slice of the generation
+		 */
+		private Generation(final long aStart) {
+
+			pStart = aStart;
+		}
+	}
+
+	/** Default maximum number of UIDs */
+	public static final int DEFAULT_MAX_SIZE = 100000;
+
+	/** Default window: 5 minutes */
+	public static final long DEFAULT_WINDOW = 300000;
+
+	/** Number of generations */
+	private static final int GENERATIONS = 4;
+
+	/**
+	 * Prepares a ring of empty generations
+	 *
+	 * @return A new ring of generations
+	 */
+	private static Generation[] newRing() {
+
+		final Generation[] generations = new Generation[GENERATIONS];
+		final long now = System.currentTimeMillis();
+		for (int i = 0; i < GENERATIONS; i++) {
+			generations[i] = new Generation(now);
+		}
+		return generations;
+	}
+
+	/**
+	 * The generations, the current one first. The array is replaced on each
+	 * rotation.
+	 */
+	private volatile Generation[] pGenerations;
+
+	/** Maximum number of UIDs per generation */
+	private final int pGenerationSize;
+
+	/** Duration of the time slice of a generation */
+	private final long pSlice;
+
+	/**
+	 * Sets up the deduplicator
+	 *
+	 * @param aWindow
+	 *            Time during which a UID is remembered, in milliseconds
+	 * @param aMaxSize
+	 *            Maximum number of UIDs kept
+	 */
+	public MessageDeduplicator(final long aWindow, final int aMaxSize) {
+
+		// The window must be covered by all generations but the current one
+		pSlice = Math.max(1, aWindow / (GENERATIONS - 1));
+		pGenerationSize = Math.max(1, aMaxSize / GENERATIONS);
+
+		pGenerations = newRing();
+	}
+
+	/**
+	 * Forgets about all UIDs
+	 */
+	public synchronized void clear() {
+
+		pGenerations = newRing();
+	}
+
+	/**
+	 * Stores the given UID if it hasn't been seen recently
+	 *
+	 * @param aUid
+	 *            A message UID
+	 * @return True if the UID is new, False if it is a duplicate
+	 */
+	public boolean markIfAbsent(final String aUid) {
+
+		Generation[] generations = pGenerations;
+		final Generation current = generations[0];
+		if (System.currentTimeMillis() - current.pStart >= pSlice
+				|| current.pSize.get() >= pGenerationSize) {
+			generations = rotate(current);
+		}
+
+		// Check older generations first
+		for (int i = 1; i < generations.length; i++) {
+			if (generations[i].pUids.contains(aUid)) {
+				return false;
+			}
+		}
+
+		// Atomic insertion in the current generation
+		final Generation head = generations[0];
+		if (head.pUids.add(aUid)) {
+			head.pSize.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Starts a new generation and drops the oldest one, if it hasn't been done
+	 * by another thread yet
+	 *
+	 * @param aExpected
+	 *            The generation which was current when the rotation has been
+	 *            decided
+	 * @return The generations after the rotation
+	 */
+	private synchronized Generation[] rotate(final Generation aExpected) {
+
+		final Generation[] generations = pGenerations;
+		if (generations[0] != aExpected) {
+			// Already rotated
+			return generations;
+		}
+
+		// Drop one generation per elapsed time slice (at least one)
+		final long now = System.currentTimeMillis();
+		final int shift = (int) Math.min(GENERATIONS,
+				Math.max(1, (now - aExpected.pStart) / pSlice));
+
+		final Generation[] rotated = new Generation[GENERATIONS];
+		for (int i = 0; i < shift; i++) {
+			rotated[i] = new Generation(now);
+		}
+		System.arraycopy(generations, 0, rotated, shift, GENERATIONS - shift);
+		pGenerations = rotated;
+		return rotated;
+	}
+}
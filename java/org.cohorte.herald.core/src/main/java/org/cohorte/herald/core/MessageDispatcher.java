@@ -0,0 +1,531 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.core;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.cohorte.herald.IConstants;
+import org.cohorte.herald.IMessageListener;
+import org.cohorte.herald.MessageReceived;
+import org.cohorte.herald.core.utils.PriorityLanes;
+import org.cohorte.herald.utils.VirtualThreads;
+
+/**
+ * Notifies listeners of the messages received by Herald, using a set of
+ * stripes: each stripe is a thread with a bounded queue of deliveries.
+ *
+ * The stripe of a delivery is selected according to the ordering required by
+ * the listener: all the deliveries sharing the same ordering key (listener,
+ * sender or subject) go through the same stripe, in order. Unordered
+ * deliveries are spread over all stripes.
+ *
+ * Each stripe has one queue per priority lane (see {@link PriorityLanes}):
+ * Herald-internal messages never wait behind application messages. Queues are
+ * rings of pre-allocated arrays: enqueuing a delivery doesn't allocate
+ * anything. When a queue is full, the caller waits for a free slot, unless it
+ * is the stripe thread itself, which then handles the delivery directly.
+ *
+ * In virtual threads mode, stripes run on virtual threads and each unordered
+ * delivery gets its own virtual thread: a listener blocked in a send() call
+ * doesn't hold a platform thread.
+ *
+ * @author Thomas Calmant
+ */
+public class MessageDispatcher {
+
+	/**
+	 * A dispatch thread and its queue
+	 *
+	 * @author Thomas Calmant
+	 */
+	private final class Stripe implements Runnable {
+
+		/** Number of queued deliveries, per lane */
+		private final int[] pCounts = new int[PriorityLanes.NB_LANES];
+
+		/** Index of the next delivery to handle, per lane */
+		private final int[] pHeads = new int[PriorityLanes.NB_LANES];
+
+		/** Lane selection */
+		private final PriorityLanes pLanes = new PriorityLanes();
+
+		/** Listeners to notify, per lane */
+		private final IMessageListener[][] pListeners;
+
+		/** Queue lock */
+		private final ReentrantLock pLock = new ReentrantLock();
+
+		/** Messages to notify, per lane */
+		private final MessageReceived[][] pMessages;
+
+		/** Signaled when a delivery is queued */
+		private final Condition pNotEmpty = pLock.newCondition();
+
+		/** Signaled when a delivery is taken from the queue */
+		private final Condition pNotFull = pLock.newCondition();
+
+		/** Tasks to run (instead of a listener notification), per lane */
+		private final Runnable[][] pTasks;
+
+		/** The stripe thread */
+		private final Thread pThread;
+
+		/**
+		 * Sets up the stripe
+		 *
+		 * @param aIndex
+		 *            Index of the stripe
+		 * @param aCapacity
+		 *            Size of the queue of each lane
+		 * @param aThreadFactory
+		 *            Factory of the stripe thread (can be null)
+		 */
+		private Stripe(final int aIndex, final int aCapacity,
+				final ThreadFactory aThreadFactory) {
+
+			pListeners = new IMessageListener[PriorityLanes.NB_LANES][aCapacity];
+			pMessages = new MessageReceived[PriorityLanes.NB_LANES][aCapacity];
+			pTasks = new Runnable[PriorityLanes.NB_LANES][aCapacity];
+			if (aThreadFactory != null) {
+				pThread = aThreadFactory.newThread(this);
+			} else {
+				pThread = new Thread(this, "Herald-Dispatch-" + aIndex);
+				pThread.setDaemon(true);
+			}
+		}
+
+		/**
+		 * Queues a delivery
+		 *
+		 * @param aListener
+		 *            Listener to notify
+		 * @param aMessage
+		 *            Message to notify
+		 * @param aTask
+		 *            Task to run, if no listener is given
+		 * @param aLane
+		 *            Priority lane of the delivery
+		 */
+		private void offer(final IMessageListener aListener,
+				final MessageReceived aMessage, final Runnable aTask,
+				final int aLane) {
+
+			final int capacity = pListeners[aLane].length;
+			pLock.lock();
+			try {
+				while (pCounts[aLane] == capacity) {
+					if (Thread.currentThread() == pThread) {
+						// Don't wait for ourselves
+						pLock.unlock();
+						try {
+							handle(aListener, aMessage, aTask);
+						} finally {
+							pLock.lock();
+						}
+						return;
+					}
+
+					if (!pRunning) {
+						// Dispatcher stopped
+						return;
+					}
+
+					pNotFull.await(WAIT_STEP, TimeUnit.MILLISECONDS);
+				}
+
+				final int tail = (pHeads[aLane] + pCounts[aLane]) % capacity;
+				pListeners[aLane][tail] = aListener;
+				pMessages[aLane][tail] = aMessage;
+				pTasks[aLane][tail] = aTask;
+				pCounts[aLane]++;
+				pNotEmpty.signal();
+
+			} catch (final InterruptedException ex) {
+				// Interrupted while waiting: drop the delivery
+				Thread.currentThread().interrupt();
+
+			} finally {
+				pLock.unlock();
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+
+			while (pRunning) {
+				final IMessageListener listener;
+				final MessageReceived message;
+				final Runnable task;
+
+				pLock.lock();
+				try {
+					int lane;
+					while ((lane = pLanes.select(pCounts)) == -1) {
+						if (!pRunning) {
+							return;
+						}
+						pNotEmpty.await();
+					}
+
+					// Pop the delivery
+					final int head = pHeads[lane];
+					listener = pListeners[lane][head];
+					message = pMessages[lane][head];
+					task = pTasks[lane][head];
+					pListeners[lane][head] = null;
+					pMessages[lane][head] = null;
+					pTasks[lane][head] = null;
+					pHeads[lane] = (head + 1) % pListeners[lane].length;
+					pCounts[lane]--;
+					pNotFull.signalAll();
+
+				} catch (final InterruptedException ex) {
+					// Dispatcher stopped
+					return;
+
+				} finally {
+					pLock.unlock();
+				}
+
+				handle(listener, message, task);
+			}
+		}
+
+		/**
+		 * Queues a task if the queue of the lane has room for it
+		 *
+		 * @param aTask
+		 *            Task to run
+		 * @param aLane
+		 *            Priority lane of the task
+		 * @return True if the task has been queued, False if the queue is
+		 *         full or the dispatcher stopped
+		 */
+		private boolean tryOffer(final Runnable aTask, final int aLane) {
+
+			pLock.lock();
+			try {
+				if (!pRunning || pCounts[aLane] == pTasks[aLane].length) {
+					return false;
+				}
+
+				final int tail = (pHeads[aLane] + pCounts[aLane])
+						% pTasks[aLane].length;
+				pTasks[aLane][tail] = aTask;
+				pCounts[aLane]++;
+				pNotEmpty.signal();
+				return true;
+
+			} finally {
+				pLock.unlock();
+			}
+		}
+
+		/**
+		 * Stops the stripe thread, dropping the queued deliveries
+		 */
+		private void stop() {
+
+			pLock.lock();
+			try {
+				for (int lane = 0; lane < PriorityLanes.NB_LANES; lane++) {
+					for (int i = 0; i < pListeners[lane].length; i++) {
+						pListeners[lane][i] = null;
+						pMessages[lane][i] = null;
+						pTasks[lane][i] = null;
+					}
+					pCounts[lane] = 0;
+				}
+				pNotEmpty.signalAll();
+				pNotFull.signalAll();
+
+			} finally {
+				pLock.unlock();
+			}
+
+			pThread.interrupt();
+		}
+	}
+
+	/** Default size of the queue of a stripe */
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	/** Ordering: per listener */
+	public static final int ORDER_LISTENER = 1;
+
+	/** Ordering: none */
+	public static final int ORDER_NONE = 0;
+
+	/** Ordering: per sender */
+	public static final int ORDER_SENDER = 2;
+
+	/** Ordering: per subject */
+	public static final int ORDER_SUBJECT = 3;
+
+	/** Maximum time to wait for a free slot before checking the state */
+	private static final long WAIT_STEP = 500;
+
+	/**
+	 * Converts the value of a listener ordering property
+	 *
+	 * @param aOrdering
+	 *            Value of the {@link IConstants#PROP_ORDERING} property
+	 * @return One of the ORDER_* constants
+	 */
+	public static int parseOrdering(final Object aOrdering) {
+
+		if (aOrdering == null) {
+			return ORDER_NONE;
+		}
+
+		switch (aOrdering.toString().trim().toLowerCase()) {
+		case IConstants.ORDERING_LISTENER:
+			return ORDER_LISTENER;
+
+		case IConstants.ORDERING_SENDER:
+			return ORDER_SENDER;
+
+		case IConstants.ORDERING_SUBJECT:
+			return ORDER_SUBJECT;
+
+		default:
+			return ORDER_NONE;
+		}
+	}
+
+	/** The Herald core */
+	private final Herald pHerald;
+
+	/** Executor for unordered deliveries, in virtual threads mode */
+	private final ExecutorService pVirtualExecutor;
+
+	/** Round-robin counter for unordered deliveries */
+	private final AtomicInteger pNextStripe = new AtomicInteger();
+
+	/** Dispatcher running flag */
+	private volatile boolean pRunning;
+
+	/** The stripes */
+	private final Stripe[] pStripes;
+
+	/**
+	 * Sets up the dispatcher
+	 *
+	 * @param aHerald
+	 *            The Herald core, which notifies listeners
+	 * @param aNbStripes
+	 *            Number of stripes (threads)
+	 * @param aQueueSize
+	 *            Size of the queue of each stripe
+	 * @param aVirtual
+	 *            Use virtual threads (must be supported by the JVM)
+	 */
+	public MessageDispatcher(final Herald aHerald, final int aNbStripes,
+			final int aQueueSize, final boolean aVirtual) {
+
+		pHerald = aHerald;
+
+		final ThreadFactory threadFactory;
+		if (aVirtual) {
+			threadFactory = VirtualThreads
+					.newThreadFactory("Herald-Dispatch-");
+			pVirtualExecutor = VirtualThreads.newExecutor();
+		} else {
+			threadFactory = null;
+			pVirtualExecutor = null;
+		}
+
+		pStripes = new Stripe[Math.max(1, aNbStripes)];
+		for (int i = 0; i < pStripes.length; i++) {
+			pStripes[i] = new Stripe(i, Math.max(1, aQueueSize),
+					threadFactory);
+		}
+	}
+
+	/**
+	 * Notifies a listener of a message, respecting the given ordering
+	 *
+	 * @param aListener
+	 *            Listener to notify
+	 * @param aMessage
+	 *            Received message
+	 * @param aOrdering
+	 *            One of the ORDER_* constants
+	 */
+	public void dispatch(final IMessageListener aListener,
+			final MessageReceived aMessage, final int aOrdering) {
+
+		final int hash;
+		switch (aOrdering) {
+		case ORDER_LISTENER:
+			hash = System.identityHashCode(aListener);
+			break;
+
+		case ORDER_SENDER:
+			hash = aMessage.getSender() != null ? aMessage.getSender()
+					.hashCode() : 0;
+			break;
+
+		case ORDER_SUBJECT:
+			hash = aMessage.getSubject().hashCode();
+			break;
+
+		default:
+			if (pVirtualExecutor != null) {
+				// One virtual thread per unordered delivery
+				execute(new Runnable() {
+
+					@Override
+					public void run() {
+
+						handle(aListener, aMessage, null);
+					}
+				});
+				return;
+			}
+
+			hash = pNextStripe.getAndIncrement();
+			break;
+		}
+
+		// Awaited replies are given to their caller by the admission thread:
+		// the listeners get them as any other message
+		pStripes[(hash & Integer.MAX_VALUE) % pStripes.length].offer(
+				aListener, aMessage, null,
+				PriorityLanes.laneOf(aMessage, false));
+	}
+
+	/**
+	 * Runs a task in one of the dispatch threads, without ordering, in the
+	 * control lane
+	 *
+	 * @param aTask
+	 *            The task to run
+	 */
+	public void execute(final Runnable aTask) {
+
+		if (pVirtualExecutor != null) {
+			try {
+				pVirtualExecutor.execute(aTask);
+
+			} catch (final RejectedExecutionException ex) {
+				// Dispatcher stopped
+			}
+			return;
+		}
+
+		pStripes[(pNextStripe.getAndIncrement() & Integer.MAX_VALUE)
+				% pStripes.length].offer(null, null, aTask,
+				PriorityLanes.CONTROL);
+	}
+
+	/**
+	 * Runs a task in one of the dispatch threads, without ordering, in the
+	 * control lane, if one of them has room for it: never waits
+	 *
+	 * @param aTask
+	 *            The task to run
+	 * @return True if the task has been queued, False if the control queues
+	 *         are all full or the dispatcher stopped
+	 */
+	public boolean tryExecute(final Runnable aTask) {
+
+		if (pVirtualExecutor != null) {
+			try {
+				pVirtualExecutor.execute(aTask);
+				return true;
+
+			} catch (final RejectedExecutionException ex) {
+				// Dispatcher stopped
+				return false;
+			}
+		}
+
+		final int first = pNextStripe.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; i < pStripes.length; i++) {
+			if (pStripes[(first + i) % pStripes.length].tryOffer(aTask,
+					PriorityLanes.CONTROL)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Handles a delivery
+	 *
+	 * @param aListener
+	 *            Listener to notify
+	 * @param aMessage
+	 *            Message to notify
+	 * @param aTask
+	 *            Task to run, if no listener is given
+	 */
+	private void handle(final IMessageListener aListener,
+			final MessageReceived aMessage, final Runnable aTask) {
+
+		try {
+			if (aListener != null) {
+				pHerald.notifyListener(aListener, aMessage);
+
+			} else if (aTask != null) {
+				aTask.run();
+			}
+
+		} catch (final RuntimeException ex) {
+			// Don't kill the stripe thread
+			pHerald.logError("Error in a dispatch thread: " + ex, ex);
+		}
+	}
+
+	/**
+	 * Starts the dispatch threads
+	 */
+	public void start() {
+
+		pRunning = true;
+		for (final Stripe stripe : pStripes) {
+			stripe.pThread.start();
+		}
+	}
+
+	/**
+	 * Stops the dispatch threads. Queued deliveries are dropped.
+	 */
+	public void stop() {
+
+		pRunning = false;
+		for (final Stripe stripe : pStripes) {
+			stripe.stop();
+		}
+
+		if (pVirtualExecutor != null) {
+			pVirtualExecutor.shutdownNow();
+		}
+	}
+}
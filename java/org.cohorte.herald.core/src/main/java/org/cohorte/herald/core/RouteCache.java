@@ -0,0 +1,248 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cohorte.herald.Access;
+import org.cohorte.herald.IDirectoryListener;
+import org.cohorte.herald.ITransport;
+import org.cohorte.herald.Peer;
+
+/**
+ * Keeps, for each peer, the routes which can be used to send it a message:
+ * the ordered array of its accesses which have a bound transport.
+ *
+ * The routes of a peer are computed once, then updated on directory events
+ * (the cache is registered as an {@link IDirectoryListener}) and on
+ * transport bind/unbind. Looking up the routes of a peer is a single map
+ * lookup, without allocation. The access data of a route is the bean stored
+ * in the peer description, so that transports can cache the endpoint they
+ * resolve from it (e.g. the URL of an HTTP access).
+ *
+ * @author Thomas Calmant
+ */
+public class RouteCache implements IDirectoryListener {
+
+	/**
+	 * A way to send messages to a peer: an access and its transport
+	 */
+	public static final class Route {
+
+		/** Access ID */
+		private final String pAccessId;
+
+		/** Access data of the peer */
+		private final Access pData;
+
+		/** The transport handling the access */
+		private final ITransport pTransport;
+
+		/**
+		 * Sets up the route
+		 *
+		 * @param aAccessId
+		 *            Access ID
+		 * @param aTransport
+		 *            The transport handling the access
+		 * @param aData
+		 *            Access data of the peer
+		 */
+		Route(final String aAccessId, final ITransport aTransport,
+				final Access aData) {
+
+			pAccessId = aAccessId;
+			pTransport = aTransport;
+			pData = aData;
+		}
+
+		/**
+		 * @return the access ID
+		 */
+		public String getAccessId() {
+
+			return pAccessId;
+		}
+
+		/**
+		 * @return the access data of the peer
+		 */
+		public Access getData() {
+
+			return pData;
+		}
+
+		/**
+		 * @return the transport handling the access
+		 */
+		public ITransport getTransport() {
+
+			return pTransport;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+
+			return pAccessId + " (" + pData + ")";
+		}
+	}
+
+	/** Routes of a peer without any usable access */
+	private static final Route[] NO_ROUTE = new Route[0];
+
+	/** Peer UID -&gt; Routes */
+	private final ConcurrentMap<String, Route[]> pRoutes = new ConcurrentHashMap<>();
+
+	/** Access ID -&gt; Transport (read-only snapshot) */
+	private volatile Map<String, ITransport> pTransports = Collections
+			.emptyMap();
+
+	/**
+	 * Clears the cache
+	 */
+	public void clear() {
+
+		pRoutes.clear();
+	}
+
+	/**
+	 * Computes the routes of the given peer
+	 *
+	 * @param aPeer
+	 *            A peer
+	 * @param aTransports
+	 *            Access ID -&gt; Transport
+	 * @return The routes of the peer, in the order of its accesses
+	 */
+	private Route[] computeRoutes(final Peer aPeer,
+			final Map<String, ITransport> aTransports) {
+
+		final List<Route> routes = new ArrayList<>();
+		for (final String accessId : aPeer.getAccesses()) {
+			final ITransport transport = aTransports.get(accessId);
+			final Access data = aPeer.getAccess(accessId);
+			if (transport != null && data != null) {
+				routes.add(new Route(accessId, transport, data));
+			}
+		}
+
+		if (routes.isEmpty()) {
+			return NO_ROUTE;
+		}
+		return routes.toArray(new Route[routes.size()]);
+	}
+
+	/**
+	 * Returns the routes of the given peer, computing them if necessary
+	 *
+	 * @param aPeer
+	 *            A peer
+	 * @return The routes of the peer (must not be modified)
+	 */
+	public Route[] getRoutes(final Peer aPeer) {
+
+		final Route[] routes = pRoutes.get(aPeer.getUid());
+		if (routes != null) {
+			return routes;
+		}
+		return update(aPeer);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.cohorte.herald.IDirectoryListener#peerRegistered(org.cohorte.herald
+	 * .Peer)
+	 */
+	@Override
+	public void peerRegistered(final Peer aPeer) {
+
+		update(aPeer);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.cohorte.herald.IDirectoryListener#peerUnregistered(org.cohorte.herald
+	 * .Peer)
+	 */
+	@Override
+	public void peerUnregistered(final Peer aPeer) {
+
+		pRoutes.remove(aPeer.getUid());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.cohorte.herald.IDirectoryListener#peerUpdated(org.cohorte.herald.
+	 * Peer, java.lang.String, org.cohorte.herald.Access,
+	 * org.cohorte.herald.Access)
+	 */
+	@Override
+	public void peerUpdated(final Peer aPeer, final String aAccessId,
+			final Access aData, final Access aPrevious) {
+
+		update(aPeer);
+	}
+
+	/**
+	 * Updates the bound transports. The routes are computed again on demand.
+	 *
+	 * @param aTransports
+	 *            Access ID -&gt; Transport
+	 */
+	public void setTransports(final Map<String, ITransport> aTransports) {
+
+		pTransports = Collections
+				.unmodifiableMap(new LinkedHashMap<>(aTransports));
+		pRoutes.clear();
+	}
+
+	/**
+	 * Computes and stores the routes of the given peer
+	 *
+	 * @param aPeer
+	 *            A peer
+	 * @return The routes of the peer
+	 */
+	private Route[] update(final Peer aPeer) {
+
+		final Map<String, ITransport> transports = pTransports;
+		final Route[] routes = computeRoutes(aPeer, transports);
+		pRoutes.put(aPeer.getUid(), routes);
+		if (pTransports != transports) {
+			// Transports changed meanwhile: compute again on next access
+			pRoutes.remove(aPeer.getUid(), routes);
+		}
+		return routes;
+	}
+}
@@ -0,0 +1,355 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cohorte.herald.IMessageListener;
+import org.cohorte.herald.utils.FnMatch;
+
+/**
+ * Subject routing index: associates message subjects to the listeners whose
+ * filters match them.
+ *
+ * Filters are indexed in a trie of "/"-separated subject parts. A part which
+ * is exactly "*" is stored as a star node (it can consume one or more subject
+ * parts, as the "*" wild card also matches "/"), a part which is exactly "?"
+ * is stored as a single character node, and filters containing any other kind
+ * of wild card are kept in a fallback list at the deepest node their literal
+ * prefix leads to, then checked with {@link FnMatch}.
+ *
+ * The index is rebuilt from the listeners registry each time it changes, and
+ * published as an immutable snapshot: lookups never lock. The listeners array
+ * computed for a subject is cached in the snapshot, so that routing a known
+ * subject doesn't allocate anything.
+ *
+ * @author Thomas Calmant
+ */
+public class SubjectRouter {
+
+	/**
+	 * A node of the routing trie. Nodes are never modified once their snapshot
+	 * has been published.
+	 *
+	 * @author Thomas Calmant
+	 */
+	private static final class Node {
+
+		/** Literal part -&gt; Child node */
+		private final Map<String, Node> pChildren = new LinkedHashMap<>();
+
+		/** Filters to check with FnMatch, from this depth */
+		private final List<Route> pFallback = new ArrayList<>();
+
+		/** Child node for a "?" part */
+		private Node pSingle;
+
+		/** Child node for a "*" part */
+		private Node pStar;
+
+		/** Listeners of the filters ending on this node */
+		private final Set<IMessageListener> pTerminal = new LinkedHashSet<>();
+
+		/**
+		 * Returns the child node for the given filter part, creating it if
+		 * necessary (only used while building)
+		 *
+		 * @param aPart
+		 *            A filter part
+		 * @return The child node
+		 */
+		private Node child(final String aPart) {
+
+			if (STAR.equals(aPart)) {
+				if (pStar == null) {
+					pStar = new Node();
+				}
+				return pStar;
+
+			} else if (SINGLE.equals(aPart)) {
+				if (pSingle == null) {
+					pSingle = new Node();
+				}
+				return pSingle;
+			}
+
+			Node child = pChildren.get(aPart);
+			if (child == null) {
+				child = new Node();
+				pChildren.put(aPart, child);
+			}
+			return child;
+		}
+	}
+
+	/**
+	 * A filter kept in a fallback list, with its listeners
+	 *
+	 * @author Thomas Calmant
+	 */
+	private static final class Route {
+
+		/** The listeners associated to the filter */
+		private final IMessageListener[] pListeners;
+
+		/** The filter */
+		private final FnMatch pMatch;
+
+		/**
+		 * Sets up the route
+		 *
+		 * @param aMatch
+		 *            The filter
+		 * @param aListeners
+		 *            The listeners associated to the filter
+		 */
+		private Route(final FnMatch aMatch,
+				final Set<IMessageListener> aListeners) {
+
+			pMatch = aMatch;
+			pListeners = aListeners.toArray(new IMessageListener[aListeners
+					.size()]);
+		}
+	}
+
+	/**
+	 * An immutable version of the routing index
+	 *
+	 * @author Thomas Calmant
+	 */
+	private static final class Snapshot {
+
+		/** Subject -&gt; Listeners cache */
+		private final ConcurrentMap<String, IMessageListener[]> pCache = new ConcurrentHashMap<>();
+
+		/** Root of the trie */
+		private final Node pRoot;
+
+		/**
+		 * Sets up the snapshot
+		 *
+		 * @param aRoot
+		 *            Root of the trie
+		 */
+		private Snapshot(final Node aRoot) {
+
+			pRoot = aRoot;
+		}
+	}
+
+	/** Maximum number of subjects kept in the cache of a snapshot */
+	private static final int CACHE_SIZE = 4096;
+
+	/** An empty array of listeners */
+	private static final IMessageListener[] NO_LISTENER = new IMessageListener[0];
+
+	/** Single character filter part */
+	private static final String SINGLE = "?";
+
+	/** Star filter part */
+	private static final String STAR = "*";
+
+	/**
+	 * Checks if the given filter part contains a wild card or an escape
+	 * character
+	 *
+	 * @param aPart
+	 *            A filter part
+	 * @return True if the part can't be indexed as a literal
+	 */
+	private static boolean isSpecial(final String aPart) {
+
+		for (int i = 0; i < aPart.length(); i++) {
+			switch (aPart.charAt(i)) {
+			case '*':
+			case '?':
+			case '\\':
+				return true;
+
+			default:
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Splits a subject or a filter on "/", keeping empty parts (unlike
+	 * {@link String#split(String)})
+	 *
+	 * @param aString
+	 *            A subject or a filter
+	 * @return The parts of the string
+	 */
+	private static String[] split(final String aString) {
+
+		final List<String> parts = new ArrayList<>();
+		int start = 0;
+		int idx;
+		while ((idx = aString.indexOf('/', start)) != -1) {
+			parts.add(aString.substring(start, idx));
+			start = idx + 1;
+		}
+		parts.add(aString.substring(start));
+		return parts.toArray(new String[parts.size()]);
+	}
+
+	/** The current snapshot */
+	private volatile Snapshot pSnapshot = new Snapshot(new Node());
+
+	/**
+	 * Collects the listeners matching the subject, walking the trie from the
+	 * given node
+	 *
+	 * @param aNode
+	 *            Current node
+	 * @param aParts
+	 *            Parts of the subject
+	 * @param aIndex
+	 *            Index of the next part to consume
+	 * @param aSubject
+	 *            The whole subject (for fallback filters)
+	 * @param aResult
+	 *            Matching listeners
+	 */
+	private void collect(final Node aNode, final String[] aParts,
+			final int aIndex, final String aSubject,
+			final Set<IMessageListener> aResult) {
+
+		// Filters which can't be walked any further
+		for (final Route route : aNode.pFallback) {
+			if (route.pMatch.matches(aSubject)) {
+				for (final IMessageListener listener : route.pListeners) {
+					aResult.add(listener);
+				}
+			}
+		}
+
+		if (aIndex == aParts.length) {
+			// End of the subject
+			aResult.addAll(aNode.pTerminal);
+			return;
+		}
+
+		// Literal part
+		final Node child = aNode.pChildren.get(aParts[aIndex]);
+		if (child != null) {
+			collect(child, aParts, aIndex + 1, aSubject, aResult);
+		}
+
+		if (aNode.pSingle != null) {
+			if (aParts[aIndex].length() == 1) {
+				// "?" matches a single character part...
+				collect(aNode.pSingle, aParts, aIndex + 1, aSubject, aResult);
+
+			} else if (aIndex + 1 < aParts.length && aParts[aIndex].isEmpty()
+					&& aParts[aIndex + 1].isEmpty()) {
+				// ... or a "/" between two empty parts
+				collect(aNode.pSingle, aParts, aIndex + 2, aSubject, aResult);
+			}
+		}
+
+		if (aNode.pStar != null) {
+			// "*" can consume one or more parts, as it also matches "/"
+			for (int next = aIndex + 1; next <= aParts.length; next++) {
+				collect(aNode.pStar, aParts, next, aSubject, aResult);
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the routing index from the given registry. The caller must
+	 * ensure that the registry is not modified during this call.
+	 *
+	 * @param aListeners
+	 *            Filter -&gt; Listeners registry
+	 */
+	public void rebuild(final Map<FnMatch, Set<IMessageListener>> aListeners) {
+
+		final Node root = new Node();
+		for (final Entry<FnMatch, Set<IMessageListener>> entry : aListeners
+				.entrySet()) {
+			final FnMatch match = entry.getKey();
+			final Set<IMessageListener> listeners = entry.getValue();
+			if (listeners.isEmpty()) {
+				continue;
+			}
+
+			// Walk down the trie as long as parts can be indexed
+			Node node = root;
+			boolean exotic = false;
+			for (final String part : split(match.getFilter())) {
+				if (isSpecial(part) && !STAR.equals(part)
+						&& !SINGLE.equals(part)) {
+					// Exotic part: check the whole filter from here
+					exotic = true;
+					break;
+				}
+				node = node.child(part);
+			}
+
+			if (exotic) {
+				node.pFallback.add(new Route(match, listeners));
+			} else {
+				node.pTerminal.addAll(listeners);
+			}
+		}
+
+		// Publish the new snapshot
+		pSnapshot = new Snapshot(root);
+	}
+
+	/**
+	 * Returns the listeners whose filters match the given subject. The
+	 * returned array is shared and must not be modified.
+	 *
+	 * @param aSubject
+	 *            A message subject
+	 * @return The matching listeners (can be empty, never null)
+	 */
+	public IMessageListener[] route(final String aSubject) {
+
+		final Snapshot snapshot = pSnapshot;
+		IMessageListener[] listeners = snapshot.pCache.get(aSubject);
+		if (listeners != null) {
+			return listeners;
+		}
+
+		// Compute the listeners
+		final Set<IMessageListener> result = new LinkedHashSet<>();
+		collect(snapshot.pRoot, split(aSubject), 0, aSubject, result);
+		if (result.isEmpty()) {
+			listeners = NO_LISTENER;
+		} else {
+			listeners = result.toArray(new IMessageListener[result.size()]);
+		}
+
+		if (snapshot.pCache.size() < CACHE_SIZE) {
+			// Cache the result (avoid growing when subjects are unique)
+			snapshot.pCache.putIfAbsent(aSubject, listeners);
+		}
+		return listeners;
+	}
+}
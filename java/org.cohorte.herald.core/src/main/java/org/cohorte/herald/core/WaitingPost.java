@@ -16,11 +16,18 @@
 
 package org.cohorte.herald.core;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.cohorte.herald.HeraldException;
 import org.cohorte.herald.IHerald;
 import org.cohorte.herald.IPostCallback;
 import org.cohorte.herald.IPostErrback;
 import org.cohorte.herald.MessageReceived;
+import org.cohorte.herald.utils.ITimeout;
 
 /**
  * A bean that describes parameters of a post() call
@@ -32,6 +39,9 @@ public class WaitingPost {
     /** Object to call back when an answer is received */
     private final IPostCallback pCallback;
 
+    /** Creation time of the post, as given by System.nanoTime() */
+    private final long pCreationTime = System.nanoTime();
+
     /** Message deadline */
     private Long pDeadline;
 
@@ -41,6 +51,15 @@ public class WaitingPost {
     /** Flag to forget message on first answer */
     private final boolean pForgetOnFirst;
 
+    /** Number of peers which haven't answered yet (null if unknown) */
+    private final AtomicInteger pPendingCount;
+
+    /** UIDs of the peers which haven't answered yet (null if unknown) */
+    private final Set<String> pPendingPeers;
+
+    /** Timer task calling the error callback at the deadline */
+    private ITimeout pTimeout;
+
     /**
      * Sets up members
      *
@@ -57,6 +76,28 @@ public class WaitingPost {
             final IPostErrback aErrback, final Long aTimeout,
             final boolean aForgetOnFirst) {
 
+        this(aCallback, aErrback, aTimeout, aForgetOnFirst, null);
+    }
+
+    /**
+     * Sets up members
+     *
+     * @param aCallback
+     *            Object to call back when an answer is received
+     * @param aErrback
+     *            Object to call back on error
+     * @param aTimeout
+     *            Time to wait before forgetting this post, in milliseconds
+     * @param aForgetOnFirst
+     *            Flag to forget message on first answer
+     * @param aPeers
+     *            UIDs of the peers expected to answer: the post is forgotten
+     *            once all of them have answered (can be null)
+     */
+    public WaitingPost(final IPostCallback aCallback,
+            final IPostErrback aErrback, final Long aTimeout,
+            final boolean aForgetOnFirst, final Collection<String> aPeers) {
+
         pCallback = aCallback;
         pErrback = aErrback;
         pForgetOnFirst = aForgetOnFirst;
@@ -64,6 +105,26 @@ public class WaitingPost {
         if (aTimeout != null) {
             pDeadline = System.currentTimeMillis() + aTimeout;
         }
+
+        if (aPeers != null) {
+            pPendingPeers = Collections
+                    .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            pPendingPeers.addAll(aPeers);
+            pPendingCount = new AtomicInteger(pPendingPeers.size());
+        } else {
+            pPendingPeers = null;
+            pPendingCount = null;
+        }
+    }
+
+    /**
+     * Cancels the timer task associated to this post, if any
+     */
+    public void cancelTimeout() {
+
+        if (pTimeout != null) {
+            pTimeout.cancel();
+        }
     }
 
     /**
@@ -96,6 +157,17 @@ public class WaitingPost {
         }
     }
 
+    /**
+     * Returns the time elapsed since the creation of the post, i.e. since the
+     * message has been sent
+     *
+     * @return The elapsed time, in milliseconds
+     */
+    public double getElapsedTime() {
+
+        return (System.nanoTime() - pCreationTime) / 1000000.0;
+    }
+
     /**
      * Checks if the deadline has been reached
      *
@@ -104,7 +176,7 @@ public class WaitingPost {
     public boolean isDead() {
 
         if (pDeadline != null) {
-            return pDeadline > System.currentTimeMillis();
+            return pDeadline <= System.currentTimeMillis();
         }
         return false;
     }
@@ -118,4 +190,35 @@ public class WaitingPost {
 
         return pForgetOnFirst;
     }
+
+    /**
+     * Notes that a peer has answered (with a reply or an error). When the last
+     * answers arrive concurrently, only one of the callers gets True.
+     *
+     * @param aPeerUid
+     *            UID of the peer
+     * @return True if the answer of this peer was the last expected one
+     */
+    public boolean peerAnswered(final String aPeerUid) {
+
+        if (pPendingPeers == null) {
+            // Unknown number of answers
+            return false;
+        }
+
+        // Only the caller which removed the peer counts its answer
+        return pPendingPeers.remove(aPeerUid)
+                && pPendingCount.decrementAndGet() == 0;
+    }
+
+    /**
+     * Sets the timer task calling the error callback at the deadline
+     *
+     * @param aTimeout
+     *            A timer task handle
+     */
+    public void setTimeout(final ITimeout aTimeout) {
+
+        pTimeout = aTimeout;
+    }
 }
@@ -1,6 +1,9 @@
 package org.cohorte.herald.core.utils;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 
 import org.cohorte.herald.Message;
 import org.cohorte.herald.MessageReceived;
@@ -14,6 +17,9 @@ import org.json.JSONObject;
 
 public class MessageUtils {
 	
+	/** Subject of a transport-level message carrying a batch of messages */
+	public static final String BATCH_SUBJECT = "herald/batch";
+	
 	/** The Jabsorb serializer */
 	private static JSONSerializer pSerializer = new JSONSerializer();
 	
@@ -27,6 +33,46 @@ public class MessageUtils {
 	}
 	
 	public static String toJSON(Message aMsg) throws MarshallException {
+		JSONObject json = toJSONObject(aMsg);
+		return json != null ? json.toString() : null;
+	}
+	
+	/**
+	 * Converts a batch of messages into a single JSON envelope: its "batch"
+	 * entry is the array of the messages, in their sending order
+	 * 
+	 * @param aMessages
+	 *            Messages to send together
+	 * @return The JSON envelope, or null on error
+	 * @throws MarshallException
+	 *             Error converting the content of a message
+	 */
+	public static String toJSONBatch(Collection<? extends Message> aMessages) throws MarshallException {
+		JSONObject json = new JSONObject();
+		try {
+			JSONObject headers = new JSONObject();
+			headers.put(Message.MESSAGE_HERALD_VERSION, Message.HERALD_SPECIFICATION_VERSION);
+			json.put(Message.MESSAGE_HEADERS, headers);
+			
+			JSONArray batch = new JSONArray();
+			for (Message msg : aMessages) {
+				JSONObject jsonMsg = toJSONObject(msg);
+				if (jsonMsg == null) {
+					return null;
+				}
+				batch.put(jsonMsg);
+			}
+			json.put(Message.MESSAGE_BATCH, batch);
+			
+		} catch (JSONException e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		return json.toString();
+	}
+	
+	private static JSONObject toJSONObject(Message aMsg) throws MarshallException {
 		JSONObject json = new JSONObject();
 		try {						
 			// headers
@@ -58,13 +104,57 @@ public class MessageUtils {
 			return null;
 		}
 		
-		return json.toString();
+		return json;
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static MessageReceived fromJSON(String json) throws UnmarshallException {
+		try {
+			return fromJSONObject(new JSONObject(json));
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Parses a JSON string containing either a single message or a batch
+	 * envelope (see {@link #toJSONBatch(Collection)})
+	 * 
+	 * @param json
+	 *            A JSON string
+	 * @return The parsed messages, in their sending order (empty on error)
+	 * @throws UnmarshallException
+	 *             Error parsing the content of a message
+	 */
+	public static List<MessageReceived> fromJSONBatch(String json) throws UnmarshallException {
+		List<MessageReceived> result = new ArrayList<MessageReceived>();
+		try {
+			JSONObject wParsed = new JSONObject(json);
+			JSONArray batch = wParsed.optJSONArray(Message.MESSAGE_BATCH);
+			if (batch == null) {
+				// Single message
+				MessageReceived wMsg = fromJSONObject(wParsed);
+				if (wMsg != null) {
+					result.add(wMsg);
+				}
+				return result;
+			}
+			
+			for (int i = 0; i < batch.length(); i++) {
+				MessageReceived wMsg = fromJSONObject(batch.getJSONObject(i));
+				if (wMsg != null) {
+					result.add(wMsg);
+				}
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return result;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static MessageReceived fromJSONObject(JSONObject wParsedMsg) throws UnmarshallException {
 		 try {
-	    	JSONObject wParsedMsg = new JSONObject(json);	    	
 	    	{
 	    		try {
 	    			// check if valid herald message (respects herald specification version)
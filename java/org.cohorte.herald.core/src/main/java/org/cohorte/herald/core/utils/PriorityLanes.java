@@ -0,0 +1,120 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.core.utils;
+
+import org.cohorte.herald.Message;
+
+/**
+ * Priority lanes of Herald queues.
+ *
+ * Herald-internal messages (subjects starting with "herald/") and the replies
+ * a local caller is waiting for go through the control lane, which always has
+ * precedence. Other replies are handled as any other message. Other messages go
+ * through the high, normal or low lane, according to their priority header;
+ * those lanes share the processing in a weighted round-robin (4:2:1), so that
+ * bulk messages are slowed down but never starved.
+ *
+ * The selection state is not thread-safe: each queue must have its own
+ * instance, used with the queue lock held.
+ *
+ * @author Thomas Calmant
+ */
+public class PriorityLanes {
+
+	/** Lane of Herald-internal messages and awaited replies */
+	public static final int CONTROL = 0;
+
+	/** Lane of messages with a positive priority */
+	public static final int HIGH = 1;
+
+	/** Lane of messages with a negative priority */
+	public static final int LOW = 3;
+
+	/** Number of lanes */
+	public static final int NB_LANES = 4;
+
+	/** Lane of messages with the default priority */
+	public static final int NORMAL = 2;
+
+	/** Prefix of Herald-internal subjects */
+	private static final String INTERNAL_PREFIX = "herald/";
+
+	/** Weight of each lane in the round-robin (control is strict) */
+	private static final int[] WEIGHTS = { 0, 4, 2, 1 };
+
+	/**
+	 * Returns the lane a message must go through
+	 *
+	 * @param aMessage
+	 *            A message
+	 * @param aAwaitedReply
+	 *            True if the message replies to a message a local caller is
+	 *            waiting for
+	 * @return One of the lane constants
+	 */
+	public static int laneOf(final Message aMessage,
+			final boolean aAwaitedReply) {
+
+		final String subject = aMessage.getSubject();
+		if (aAwaitedReply || subject != null
+				&& subject.startsWith(INTERNAL_PREFIX)) {
+			return CONTROL;
+		}
+
+		final int priority = aMessage.getPriority();
+		if (priority > 0) {
+			return HIGH;
+		} else if (priority < 0) {
+			return LOW;
+		}
+		return NORMAL;
+	}
+
+	/** Number of entries the current lane can still give */
+	private int pCredits = WEIGHTS[HIGH];
+
+	/** Current lane in the round-robin */
+	private int pLane = HIGH;
+
+	/**
+	 * Selects the lane the next entry must be taken from
+	 *
+	 * @param aCounts
+	 *            Number of entries in each lane
+	 * @return The lane to take an entry from, or -1 if all lanes are empty
+	 */
+	public int select(final int[] aCounts) {
+
+		if (aCounts[CONTROL] > 0) {
+			// Strict priority
+			return CONTROL;
+		}
+
+		// Weighted round-robin over the other lanes
+		for (int i = 0; i < 2 * NB_LANES; i++) {
+			if (pCredits > 0 && aCounts[pLane] > 0) {
+				pCredits--;
+				return pLane;
+			}
+
+			// Next lane
+			pLane = pLane == NB_LANES - 1 ? HIGH : pLane + 1;
+			pCredits = WEIGHTS[pLane];
+		}
+		return -1;
+	}
+}
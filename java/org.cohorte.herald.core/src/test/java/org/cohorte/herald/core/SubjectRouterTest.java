@@ -0,0 +1,313 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.cohorte.herald.IHerald;
+import org.cohorte.herald.IMessageListener;
+import org.cohorte.herald.MessageReceived;
+import org.cohorte.herald.utils.FnMatch;
+import org.junit.Test;
+
+/**
+ * Checks that the subject routing trie gives the same results as matching
+ * each filter with {@link FnMatch}
+ *
+ * @author Thomas Calmant
+ */
+public class SubjectRouterTest {
+
+	/**
+	 * A listener which does nothing
+	 */
+	private static final class Listener implements IMessageListener {
+
+		/** Name of the listener */
+		private final String pName;
+
+		/**
+		 * Sets up the listener
+		 *
+		 * @param aName
+		 *            Name of the listener
+		 */
+		Listener(final String aName) {
+
+			pName = aName;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * org.cohorte.herald.IMessageListener#heraldMessage(org.cohorte.herald
+		 * .IHerald, org.cohorte.herald.MessageReceived)
+		 */
+		@Override
+		public void heraldMessage(final IHerald aHerald,
+				final MessageReceived aMessage) {
+
+			// Do nothing
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+
+			return pName;
+		}
+	}
+
+	/**
+	 * Generates all the strings made of the given characters, up to the given
+	 * length (including the empty string)
+	 *
+	 * @param aAlphabet
+	 *            Characters to use
+	 * @param aMaxLength
+	 *            Maximum length of the strings
+	 * @return All the strings
+	 */
+	private static List<String> generate(final String aAlphabet,
+			final int aMaxLength) {
+
+		final List<String> result = new ArrayList<>();
+		result.add("");
+
+		int start = 0;
+		for (int length = 1; length <= aMaxLength; length++) {
+			final int end = result.size();
+			for (int i = start; i < end; i++) {
+				for (final char character : aAlphabet.toCharArray()) {
+					result.add(result.get(i) + character);
+				}
+			}
+			start = end;
+		}
+		return result;
+	}
+
+	/** Filter -&gt; Listeners registry given to the router */
+	private final Map<FnMatch, Set<IMessageListener>> pRegistry =
+			new LinkedHashMap<>();
+
+	/** The tested router */
+	private final SubjectRouter pRouter = new SubjectRouter();
+
+	/**
+	 * Associates a new listener to a filter
+	 *
+	 * @param aFilter
+	 *            A filter
+	 * @return The listener
+	 */
+	private IMessageListener add(final String aFilter) {
+
+		final IMessageListener listener = new Listener(aFilter);
+		add(aFilter, listener);
+		return listener;
+	}
+
+	/**
+	 * Associates a listener to a filter
+	 *
+	 * @param aFilter
+	 *            A filter
+	 * @param aListener
+	 *            A listener
+	 */
+	private void add(final String aFilter, final IMessageListener aListener) {
+
+		final FnMatch match = new FnMatch(aFilter);
+		Set<IMessageListener> listeners = pRegistry.get(match);
+		if (listeners == null) {
+			listeners = new LinkedHashSet<>();
+			pRegistry.put(match, listeners);
+		}
+		listeners.add(aListener);
+	}
+
+	/**
+	 * Checks the listeners routed for a subject
+	 *
+	 * @param aSubject
+	 *            A subject
+	 * @param aExpected
+	 *            The expected listeners
+	 */
+	private void check(final String aSubject,
+			final IMessageListener... aExpected) {
+
+		assertEquals("Routing '" + aSubject + "'",
+				new HashSet<>(Arrays.asList(aExpected)), new HashSet<>(
+						Arrays.asList(pRouter.route(aSubject))));
+	}
+
+	/**
+	 * Compares the trie with FnMatch on all the short filters and subjects
+	 */
+	@Test
+	public void testExhaustive() {
+
+		for (final String filter : generate("ab/*?", 4)) {
+			add(filter);
+		}
+		pRouter.rebuild(pRegistry);
+
+		for (final String subject : generate("ab/", 5)) {
+			final Set<IMessageListener> routed = new HashSet<>(
+					Arrays.asList(pRouter.route(subject)));
+			for (final Entry<FnMatch, Set<IMessageListener>> entry : pRegistry
+					.entrySet()) {
+				final boolean expected = entry.getKey().matches(subject);
+				for (final IMessageListener listener : entry.getValue()) {
+					assertEquals("'" + entry.getKey() + "' on '" + subject
+							+ "'", expected, routed.contains(listener));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parts mixing literals and wild cards are checked with FnMatch
+	 */
+	@Test
+	public void testFallback() {
+
+		final IMessageListener prefix = add("herald/dir*");
+		final IMessageListener inner = add("herald/a?c/hello");
+		final IMessageListener escaped = add("herald/\\*");
+		pRouter.rebuild(pRegistry);
+
+		check("herald/directory", prefix);
+		check("herald/dir/hello", prefix);
+		check("herald/di");
+		check("herald/abc/hello", inner);
+		check("herald/a/c/hello", inner);
+		check("herald/*", escaped);
+		check("herald/x");
+	}
+
+	/**
+	 * Filters without wild cards
+	 */
+	@Test
+	public void testLiteral() {
+
+		final IMessageListener hello = add("herald/directory/hello");
+		final IMessageListener trailing = add("herald/directory/");
+		pRouter.rebuild(pRegistry);
+
+		check("herald/directory/hello", hello);
+		check("herald/directory/", trailing);
+		check("herald/directory");
+		check("herald/directory/hello/");
+		check("herald//directory/hello");
+	}
+
+	/**
+	 * The routing index follows the registry when it is rebuilt
+	 */
+	@Test
+	public void testRebuild() {
+
+		final IMessageListener first = add("a/*");
+		pRouter.rebuild(pRegistry);
+		check("a/b", first);
+
+		// Cached results are dropped with their snapshot
+		pRegistry.clear();
+		final IMessageListener second = add("a/?");
+		pRouter.rebuild(pRegistry);
+		check("a/b", second);
+		check("a/bc");
+
+		// Filters without listeners are ignored
+		pRegistry.get(new FnMatch("a/?")).clear();
+		pRouter.rebuild(pRegistry);
+		assertArrayEquals("No listener expected", new IMessageListener[0],
+				pRouter.route("a/b"));
+	}
+
+	/**
+	 * A listener matching a subject with several filters is routed once
+	 */
+	@Test
+	public void testSharedListener() {
+
+		final IMessageListener listener = new Listener("shared");
+		add("herald/*", listener);
+		add("herald/?/*", listener);
+		add("*", listener);
+		pRouter.rebuild(pRegistry);
+
+		assertEquals(1, pRouter.route("herald/a/b").length);
+	}
+
+	/**
+	 * "?" parts match a single character, including a "/" between empty parts
+	 */
+	@Test
+	public void testSingle() {
+
+		final IMessageListener single = add("a/?/c");
+		pRouter.rebuild(pRegistry);
+
+		check("a/b/c", single);
+		check("a///c", single);
+		check("a//c");
+		check("a/bb/c");
+		check("a/b/c/");
+	}
+
+	/**
+	 * "*" parts consume one or more subject parts
+	 */
+	@Test
+	public void testStar() {
+
+		final IMessageListener all = add("*");
+		final IMessageListener tail = add("herald/*");
+		final IMessageListener middle = add("herald/*/hello");
+		pRouter.rebuild(pRegistry);
+
+		check("", all);
+		check("herald", all);
+		check("herald/", all, tail);
+		check("herald/a/b", all, tail);
+		check("herald/a/hello", all, tail, middle);
+		check("herald/a/b/hello", all, tail, middle);
+		check("herald//hello", all, tail, middle);
+		check("herald/hello", all, tail);
+	}
+}
@@ -24,6 +24,9 @@ import java.util.concurrent.locks.ReentrantLock;
 /**
  * Java implementation of an event
  *
+ * Waits rely on a {@link ReentrantLock} condition instead of a monitor, so
+ * that a virtual thread waiting for the event doesn't pin its carrier thread.
+ *
  * @author Thomas Calmant
  */
 public class JavaEvent implements IEvent {
@@ -16,6 +16,9 @@
 
 package org.cohorte.herald.http;
 
+import java.net.MalformedURLException;
+import java.net.URL;
+
 import org.cohorte.herald.Access;
 
 /**
@@ -65,6 +68,9 @@ public class HTTPAccess extends Access {
     /** HTTP server port */
     private final int pPort;
 
+    /** The URL of the Herald servlet, computed on first use */
+    private volatile URL pUrl;
+
     /**
      * Sets up the access
      *
@@ -173,6 +179,25 @@ public class HTTPAccess extends Access {
         return pPort;
     }
 
+    /**
+     * Retrieves the URL to the Herald servlet of the associated peer. The URL
+     * is computed once, then kept as the bean is immutable.
+     *
+     * @return the URL
+     * @throws MalformedURLException
+     *             Invalid host, port or path
+     */
+    public URL getUrl() throws MalformedURLException {
+
+        URL url = pUrl;
+        if (url == null) {
+            // No port given, remove it from the URL
+            url = new URL("http", pHost, pPort != 0 ? pPort : -1, pPath);
+            pUrl = url;
+        }
+        return url;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -29,12 +29,71 @@ public interface IHttpConstants {
     /** Name of the encoding charset */
     String CHARSET_UTF8 = "UTF-8";
 
+    /** HTTP client: java.net.http (Java 11+), asynchronous, HTTP/2 */
+    String CLIENT_JDK = "jdk";
+
+    /** HTTP client: pool of persistent HTTP/1.1 connections (default) */
+    String CLIENT_POOL = "pool";
+
     /** Name of the content type */
     String CONTENT_TYPE_JSON = "application/json";
 
     /** Name of the Multicast discovery component factory */
     String FACTORY_DISCOVERY_MULTICAST = "herald-http-discovery-multicast-factory";
 
+    /**
+     * Framework property: HTTP client used to send messages, one of the
+     * CLIENT_* constants. Defaults to {@link #CLIENT_POOL}.
+     */
+    String FWPROP_CLIENT = "herald.http.client";
+
+    /**
+     * Framework property: Timeout to connect a peer, in milliseconds.
+     * Defaults to 5 seconds.
+     */
+    String FWPROP_CONNECT_TIMEOUT = "herald.http.connect.timeout";
+
+    /**
+     * Framework property: Time after which an unused connection to a peer is
+     * closed, in milliseconds. Defaults to 30 seconds.
+     */
+    String FWPROP_POOL_IDLE_TIMEOUT = "herald.http.pool.idle.timeout";
+
+    /**
+     * Framework property: Maximum number of connections to a single peer.
+     * Defaults to 5.
+     */
+    String FWPROP_POOL_MAX_CONNECTIONS = "herald.http.pool.max.connections";
+
+    /**
+     * Framework property: Timeout to wait for the answer of a peer, in
+     * milliseconds. Defaults to 10 seconds.
+     */
+    String FWPROP_READ_TIMEOUT = "herald.http.read.timeout";
+
+    /**
+     * Framework property: Maximum number of requests read without blocking
+     * and handled by the threads of the receiver at a time (requires Servlet
+     * 3.1). Other requests are handled in the threads of the HTTP server.
+     * Defaults to 64; 0 disables asynchronous processing.
+     */
+    String FWPROP_RECEIVER_MAX_ASYNC = "herald.http.receiver.max.async";
+
+    /**
+     * Framework property: Time the receiver holds a request to send the
+     * reply to its message in the response body, in milliseconds, if the
+     * sender accepts it (see {@link #HTTP_HEADER_INLINE_REPLY}). Replies
+     * given after that time are posted back to the sender. Limited to half of
+     * {@link #FWPROP_READ_TIMEOUT}. Defaults to 0 (disabled).
+     */
+    String FWPROP_REPLY_WINDOW = "herald.http.reply.window";
+
+    /**
+     * HTTP request header: the sender waits for a reply to the message and
+     * accepts to read it from the response body
+     */
+    String HTTP_HEADER_INLINE_REPLY = "Herald-Inline-Reply";
+
     /** Name of the multicast group configuration property */
     String PROP_MULTICAST_GROUP = "multicast.group";
 
@@ -41,15 +41,17 @@ import org.cohorte.herald.ITransport;
 import org.cohorte.herald.Message;
 import org.cohorte.herald.Peer;
 import org.cohorte.herald.UnknownPeer;
-import org.cohorte.herald.eventapi.IEvent;
-import org.cohorte.herald.eventapi.IEventFactory;
 import org.cohorte.herald.http.HTTPAccess;
 import org.cohorte.herald.http.HTTPExtra;
 import org.cohorte.herald.http.IHttpConstants;
 import org.cohorte.herald.http.impl.IHttpReceiver;
 import org.cohorte.herald.transport.IDiscoveryConstants;
+import org.cohorte.herald.utils.ITimeout;
+import org.cohorte.herald.utils.ITimerService;
+import org.cohorte.herald.utils.VirtualThreads;
 import org.cohorte.remote.multicast.utils.IPacketListener;
 import org.cohorte.remote.multicast.utils.MulticastHandler;
+import org.osgi.framework.BundleContext;
 import org.osgi.service.log.LogService;
 
 /**
@@ -66,19 +68,27 @@ public class MulticastHeartbeat implements IPacketListener {
 	/** UDP Packet: Last beat of a peer */
 	private static final byte PACKET_TYPE_LASTBEAT = 2;
 
+	/** Interval between two heart beats: 20 seconds */
+	private static final long HEARTBEAT_PERIOD = 20000;
+
+	/** Interval between two checks of the peers LST: 1 second */
+	private static final long LST_PERIOD = 1000;
+
 	/** Maximum time without peer notification : 30 seconds */
 	private static final long PEER_TTL = 30000;
 
+	/** The bundle context */
+	private final BundleContext pContext;
+
 	/** The Herald directory */
 	@Requires
 	private IDirectory pDirectory;
 
-	/** The event factory service */
-	@Requires
-	private IEventFactory pEventFactory;
+	/** The heart beat packet */
+	private byte[] pHeartbeat;
 
-	/** The heart beat thread */
-	private Thread pHeartThread;
+	/** The heart beat timer task */
+	private ITimeout pHeartTimeout;
 
 	/** The HTTP transport implementation */
 	@Requires(filter = "(" + IConstants.PROP_ACCESS_ID + "="
@@ -111,11 +121,58 @@ public class MulticastHeartbeat implements IPacketListener {
 	@Requires
 	private IHttpReceiver pReceiver;
 
-	/** The loop-stop event */
-	private IEvent pStopEvent;
+	/** The timer service */
+	@Requires
+	private ITimerService pTimer;
+
+	/** The TTL timer task */
+	private ITimeout pTTLTimeout;
 
-	/** The TTL thread */
-	private Thread pTTLThread;
+	/**
+	 * Sets up members
+	 *
+	 * @param aContext
+	 *            The bundle context
+	 */
+	public MulticastHeartbeat(final BundleContext aContext) {
+
+		pContext = aContext;
+	}
+
+	/**
+	 * Validates the LST of all peers and removes those who took to long to
+	 * respond. Called by the timer service.
+	 */
+	private void checkLST() {
+
+		final Collection<String> toDelete = new LinkedHashSet<>();
+		synchronized (pPeerLST) {
+			final long loopStart = System.currentTimeMillis();
+
+			for (final Entry<String, Long> entry : pPeerLST.entrySet()) {
+				final String peerUid = entry.getKey();
+				final Long lastSeen = entry.getValue();
+
+				if (lastSeen == null) {
+					// No LST for this peer, ignore it
+					pLogger.log(LogService.LOG_WARNING, "Invalid LST for "
+							+ peerUid);
+
+				} else if (loopStart - lastSeen > PEER_TTL) {
+					// TTL reached
+					toDelete.add(peerUid);
+					pLogger.log(LogService.LOG_DEBUG, "Peer " + peerUid
+							+ " reached TTL.");
+				}
+			}
+
+			for (final String peerUid : toDelete) {
+				// Unregister those peers
+				pPeerLST.remove(peerUid);
+				pDirectory.unregister(peerUid);
+			}
+		}
+	}
 
 	/**
 	 * Grab the description of a peer using the Herald servlet
@@ -322,49 +379,18 @@ public class MulticastHeartbeat implements IPacketListener {
 		}
 	}
 
-	/**
-	 * Loop sending heart beats every 20 seconds
-	 */
-	private void heartLoop() {
-
-		// Prepare the packet
-		byte[] beat;
-		try {
-			beat = makeHeartbeat();
-
-		} catch (final UnsupportedEncodingException ex) {
-			// Should never happen
-			pLogger.log(LogService.LOG_ERROR, "Error encoding strings: " + ex,
-					ex);
-			return;
-		}
-
-		do {
-			try {
-				pMulticast.send(beat);
-
-			} catch (final IOException ex) {
-				pLogger.log(LogService.LOG_ERROR, "Error sending heart beat: "
-						+ ex, ex);
-			}
-		} while (!pStopEvent.waitEvent(20000L));
-	}
-
 	/**
 	 * Component invalidated
 	 */
 	@Invalidate
 	public void invalidate() {
 
-		// Stop threads
-		pStopEvent.set();
-
-		// Wait a second for threads to stop
-		try {
-			pHeartThread.join(1000);
-			pTTLThread.join(1000);
-		} catch (final InterruptedException e) {
-			// Join interrupted
+		// Stop timer tasks
+		if (pHeartTimeout != null) {
+			pHeartTimeout.cancel();
+		}
+		if (pTTLTimeout != null) {
+			pTTLTimeout.cancel();
 		}
 
 		// Stop the multicast listener
@@ -392,52 +418,9 @@ public class MulticastHeartbeat implements IPacketListener {
 		pPeerLST.clear();
 		pLocalPeer = null;
 		pMulticast = null;
-		pHeartThread = null;
-		pTTLThread = null;
-		pStopEvent = null;
-	}
-
-	/**
-	 * Loop that validates the LST of all peers and removes those who took to
-	 * long to respond
-	 */
-	private void lstLoop() {
-
-		// Instantiate the collection only once
-		final Collection<String> toDelete = new LinkedHashSet<>();
-
-		do {
-			synchronized (pPeerLST) {
-				final long loopStart = System.currentTimeMillis();
-
-				for (final Entry<String, Long> entry : pPeerLST.entrySet()) {
-					final String peerUid = entry.getKey();
-					final Long lastSeen = entry.getValue();
-
-					if (lastSeen == null) {
-						// No LST for this peer, ignore it
-						pLogger.log(LogService.LOG_WARNING, "Invalid LST for "
-								+ peerUid);
-
-					} else if (loopStart - lastSeen > PEER_TTL) {
-						// TTL reached
-						toDelete.add(peerUid);
-						pLogger.log(LogService.LOG_DEBUG, "Peer " + peerUid
-								+ " reached TTL.");
-					}
-				}
-
-				for (final String peerUid : toDelete) {
-					// Unregister those peers
-					pPeerLST.remove(peerUid);
-					pDirectory.unregister(peerUid);
-				}
-			}
-
-			// Clean up and wait for next loop
-			toDelete.clear();
-
-		} while (!pStopEvent.waitEvent(1000L));
+		pHeartbeat = null;
+		pHeartTimeout = null;
+		pTTLTimeout = null;
 	}
 
 	/**
@@ -546,25 +529,42 @@ public class MulticastHeartbeat implements IPacketListener {
 		return buffer.array();
 	}
 
+	/**
+	 * Sends a heart beat. Called by the timer service every 20 seconds.
+	 */
+	private void sendHeartbeat() {
+
+		final MulticastHandler multicast = pMulticast;
+		final byte[] beat = pHeartbeat;
+		if (multicast == null || beat == null) {
+			// Component invalidated
+			return;
+		}
+
+		try {
+			multicast.send(beat);
+
+		} catch (final IOException ex) {
+			pLogger.log(LogService.LOG_ERROR, "Error sending heart beat: "
+					+ ex, ex);
+		}
+	}
+
 	/**
 	 * Component validated
 	 */
 	@Validate
 	public void validate() {
 
-		// Create an event using the factory
-		pStopEvent = pEventFactory.createEvent();
-
-		// Reset the stop event
-		pStopEvent.clear();
-
 		// Get the local peer
 		pLocalPeer = pDirectory.getLocalPeer();
 
 		// Start the multicast listener
 		try {
 			pMulticast = new MulticastHandler(this,
-					InetAddress.getByName(pMulticastGroup), pMulticastPort);
+					InetAddress.getByName(pMulticastGroup), pMulticastPort,
+					VirtualThreads.isEnabled(pContext) ? VirtualThreads
+							.newExecutor() : null);
 			pMulticast.start();
 
 		} catch (final IOException ex) {
@@ -585,26 +585,34 @@ public class MulticastHeartbeat implements IPacketListener {
 			return;
 		}
 
-		// Start threads
-		pTTLThread = new Thread(new Runnable() {
+		// Prepare the heart beat packet
+		try {
+			pHeartbeat = makeHeartbeat();
+
+		} catch (final UnsupportedEncodingException ex) {
+			// Should never happen
+			pLogger.log(LogService.LOG_ERROR, "Error encoding strings: " + ex,
+					ex);
+			return;
+		}
+
+		// Schedule timer tasks
+		pTTLTimeout = pTimer.scheduleAtFixedRate(new Runnable() {
 
 			@Override
 			public void run() {
 
-				lstLoop();
+				checkLST();
 			}
-		}, "Herald-HTTP-LST");
+		}, LST_PERIOD, LST_PERIOD);
 
-		pHeartThread = new Thread(new Runnable() {
+		pHeartTimeout = pTimer.scheduleAtFixedRate(new Runnable() {
 
 			@Override
 			public void run() {
 
-				heartLoop();
+				sendHeartbeat();
 			}
-		}, "Herald-HTTP-HeartBeat");
-
-		pHeartThread.start();
-		pTTLThread.start();
+		}, 0, HEARTBEAT_PERIOD);
 	}
 }
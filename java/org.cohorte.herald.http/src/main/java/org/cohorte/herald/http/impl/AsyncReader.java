@@ -0,0 +1,307 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.http.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Reads the body of a request without blocking a thread of the servlet
+ * container, using the asynchronous processing of Servlet 3.1, when
+ * available.
+ *
+ * Herald is compiled against the Servlet 2.5 API: the asynchronous API is
+ * used by reflection. The request stays open until {@link #complete()} is
+ * called.
+ *
+ * @author Thomas Calmant
+ */
+final class AsyncReader {
+
+	/**
+	 * Notified once the body of the request has been read
+	 */
+	interface Handler {
+
+		/**
+		 * The whole body has been read. Called from a container thread.
+		 *
+		 * @param aReader
+		 *            The reader of the request
+		 * @param aBody
+		 *            The body of the request
+		 */
+		void bodyRead(AsyncReader aReader, byte[] aBody);
+
+		/**
+		 * The body couldn't be read. Called from a container thread.
+		 *
+		 * @param aReader
+		 *            The reader of the request
+		 * @param aError
+		 *            The error which occurred: an {@link IOException} if
+		 *            the body couldn't be read from the client
+		 */
+		void readFailed(AsyncReader aReader, Throwable aError);
+	}
+
+	/** AsyncContext.complete() */
+	private static final Method COMPLETE;
+
+	/** ServletRequest.isAsyncSupported() */
+	private static final Method IS_ASYNC_SUPPORTED;
+
+	/** ServletInputStream.isReady() */
+	private static final Method IS_READY;
+
+	/** The javax.servlet.ReadListener interface */
+	private static final Class<?> READ_LISTENER;
+
+	/** ServletInputStream.setReadListener(ReadListener) */
+	private static final Method SET_READ_LISTENER;
+
+	/** AsyncContext.setTimeout(long) */
+	private static final Method SET_TIMEOUT;
+
+	/** ServletRequest.startAsync() */
+	private static final Method START_ASYNC;
+
+	static {
+		Method isAsyncSupported = null;
+		Method startAsync = null;
+		Method setTimeout = null;
+		Method complete = null;
+		Method setReadListener = null;
+		Method isReady = null;
+		Class<?> readListener = null;
+		try {
+			final ClassLoader loader = ServletInputStream.class
+					.getClassLoader();
+			final Class<?> requestClass = Class.forName(
+					"javax.servlet.ServletRequest", false, loader);
+			final Class<?> contextClass = Class.forName(
+					"javax.servlet.AsyncContext", false, loader);
+			readListener = Class.forName("javax.servlet.ReadListener", false,
+					loader);
+
+			isAsyncSupported = requestClass.getMethod("isAsyncSupported");
+			startAsync = requestClass.getMethod("startAsync");
+			setTimeout = contextClass.getMethod("setTimeout", long.class);
+			complete = contextClass.getMethod("complete");
+			setReadListener = ServletInputStream.class.getMethod(
+					"setReadListener", readListener);
+			isReady = ServletInputStream.class.getMethod("isReady");
+
+		} catch (final ReflectiveOperationException ex) {
+			// Servlet 3.1 not available
+			startAsync = null;
+		}
+
+		IS_ASYNC_SUPPORTED = isAsyncSupported;
+		START_ASYNC = startAsync;
+		SET_TIMEOUT = setTimeout;
+		COMPLETE = complete;
+		SET_READ_LISTENER = setReadListener;
+		IS_READY = isReady;
+		READ_LISTENER = readListener;
+	}
+
+	/**
+	 * Checks if the given request can be read asynchronously
+	 *
+	 * @param aRequest
+	 *            A request
+	 * @return True if the container and the servlet support it
+	 */
+	static boolean isAsyncSupported(final HttpServletRequest aRequest) {
+
+		if (!isSupported()) {
+			return false;
+		}
+
+		try {
+			return (Boolean) IS_ASYNC_SUPPORTED.invoke(aRequest);
+
+		} catch (final ReflectiveOperationException | LinkageError ex) {
+			// Older container
+			return false;
+		}
+	}
+
+	/**
+	 * Checks if the Servlet 3.1 API is available
+	 *
+	 * @return True if requests can be read asynchronously
+	 */
+	static boolean isSupported() {
+
+		return START_ASYNC != null;
+	}
+
+	/**
+	 * Converts an exception thrown by a method called by reflection
+	 *
+	 * @param aException
+	 *            The reflection exception
+	 * @return An I/O exception
+	 */
+	private static IOException toIOException(
+			final ReflectiveOperationException aException) {
+
+		Throwable cause = aException;
+		if (aException instanceof InvocationTargetException) {
+			cause = aException.getCause();
+		}
+
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		return new IOException("Error calling the servlet container: "
+				+ cause, cause);
+	}
+
+	/** The body read so far */
+	private final ByteArrayOutputStream pBody = new ByteArrayOutputStream();
+
+	/** The asynchronous context of the request */
+	private final Object pContext;
+
+	/** The handler to notify */
+	private final Handler pHandler;
+
+	/** The input stream of the request */
+	private final ServletInputStream pInput;
+
+	/**
+	 * Puts the request in asynchronous mode and starts reading its body
+	 *
+	 * @param aRequest
+	 *            The request, which must support asynchronous processing
+	 * @param aHandler
+	 *            The handler to notify once the body has been read
+	 * @throws IOException
+	 *             The request couldn't be put in asynchronous mode: it must
+	 *             be handled synchronously
+	 */
+	AsyncReader(final HttpServletRequest aRequest, final Handler aHandler)
+			throws IOException {
+
+		pHandler = aHandler;
+		pInput = aRequest.getInputStream();
+		try {
+			pContext = START_ASYNC.invoke(aRequest);
+
+		} catch (final ReflectiveOperationException ex) {
+			throw toIOException(ex);
+		}
+
+		try {
+			// The number of readers is bounded by the caller and the reads
+			// by the container idle timeout: no need for another timeout
+			SET_TIMEOUT.invoke(pContext, 0L);
+
+			// Proxy of the ReadListener given to the input stream
+			final Object listener = Proxy.newProxyInstance(
+					READ_LISTENER.getClassLoader(),
+					new Class<?>[] { READ_LISTENER }, new InvocationHandler() {
+
+						@Override
+						public Object invoke(final Object aProxy,
+								final Method aMethod, final Object[] aArgs)
+								throws IOException {
+
+							switch (aMethod.getName()) {
+							case "onDataAvailable":
+								dataAvailable();
+								return null;
+
+							case "onAllDataRead":
+								pHandler.bodyRead(AsyncReader.this,
+										pBody.toByteArray());
+								return null;
+
+							case "onError":
+								pHandler.readFailed(AsyncReader.this,
+										(Throwable) aArgs[0]);
+								return null;
+
+							case "equals":
+								return aProxy == aArgs[0];
+
+							case "hashCode":
+								return System.identityHashCode(aProxy);
+
+							default:
+								return "AsyncReader listener";
+							}
+						}
+					});
+			SET_READ_LISTENER.invoke(pInput, listener);
+
+		} catch (final ReflectiveOperationException ex) {
+			// Asynchronous mode started: the request can't be handled anymore.
+			// The container failed, not the client.
+			pHandler.readFailed(this,
+					ex instanceof InvocationTargetException ? ex.getCause()
+							: ex);
+		}
+	}
+
+	/**
+	 * Ends the processing of the request: the response is sent
+	 */
+	void complete() {
+
+		try {
+			COMPLETE.invoke(pContext);
+
+		} catch (final ReflectiveOperationException ex) {
+			// Already completed or connection lost: nothing to do
+		}
+	}
+
+	/**
+	 * Reads the available bytes, without blocking
+	 *
+	 * @throws IOException
+	 *             Error reading the body
+	 */
+	private void dataAvailable() throws IOException {
+
+		final byte[] buffer = new byte[8192];
+		try {
+			while ((Boolean) IS_READY.invoke(pInput)) {
+				final int read = pInput.read(buffer);
+				if (read < 0) {
+					// End of the body: onAllDataRead() will be called
+					return;
+				}
+				pBody.write(buffer, 0, read);
+			}
+
+		} catch (final ReflectiveOperationException ex) {
+			throw toIOException(ex);
+		}
+	}
+}
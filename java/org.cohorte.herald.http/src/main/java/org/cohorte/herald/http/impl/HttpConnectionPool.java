@@ -0,0 +1,944 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.http.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.cohorte.herald.IConnectionPoolStatistics;
+
+/**
+ * A pool of persistent HTTP/1.1 connections to the peers, used to post the
+ * Herald messages.
+ *
+ * The pool keeps at most a given number of connections to each peer
+ * (host:port): a sender waits for one of them to be released when the limit
+ * is reached. Connections are reused as long as the peer keeps them alive and
+ * are closed once they have been idle for too long, by {@link #evictIdle()}.
+ *
+ * The pool state is protected by a {@link ReentrantLock}: senders waiting for
+ * a connection rely on one of its conditions, and sockets are closed outside
+ * of it whenever possible.
+ *
+ * @author Thomas Calmant
+ */
+class HttpConnectionPool implements IConnectionPoolStatistics {
+
+	/**
+	 * A connection to a peer
+	 */
+	private static final class PooledConnection {
+
+		/** Read buffer */
+		private final InputStream pInput;
+
+		/** Pool key of the connection (host:port) */
+		private final String pKey;
+
+		/** Time of the last release (System.nanoTime()) */
+		private long pLastUsed;
+
+		/** Write buffer */
+		private final OutputStream pOutput;
+
+		/** The connection has already been used */
+		private boolean pReused;
+
+		/** The socket */
+		private final Socket pSocket;
+
+		/**
+		 * Sets up the connection
+		 *
+		 * @param aKey
+		 *            Pool key of the connection
+		 * @param aSocket
+		 *            A connected socket
+		 * @throws IOException
+		 *             Error getting the socket streams
+		 */
+		PooledConnection(final String aKey, final Socket aSocket)
+				throws IOException {
+
+			pKey = aKey;
+			pSocket = aSocket;
+			pInput = new BufferedInputStream(aSocket.getInputStream(),
+					BUFFER_SIZE);
+			pOutput = new BufferedOutputStream(aSocket.getOutputStream(),
+					BUFFER_SIZE);
+		}
+
+		/**
+		 * Closes the socket
+		 */
+		void close() {
+
+			try {
+				pSocket.close();
+			} catch (final IOException ex) {
+				// Ignore
+			}
+		}
+	}
+
+	/** Size of the socket buffers */
+	private static final int BUFFER_SIZE = 8192;
+
+	/** Default connection timeout (milliseconds) */
+	static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+	/** Default time after which an idle connection is closed (milliseconds) */
+	static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+	/** Default maximum number of connections to a peer */
+	static final int DEFAULT_MAX_CONNECTIONS = 5;
+
+	/** Default read timeout (milliseconds) */
+	static final int DEFAULT_READ_TIMEOUT = 10000;
+
+	/** Encoding of the HTTP request line and headers */
+	private static final String HEADERS_CHARSET = "ISO-8859-1";
+
+	/** Maximum length of a response line */
+	private static final int MAX_LINE_LENGTH = 8192;
+
+	/** Number of connections handed to senders */
+	private int pActive;
+
+	/** Signaled when a connection is released or closed */
+	private final Condition pChanged;
+
+	/** The pool has been closed */
+	private boolean pClosed;
+
+	/** Connection timeout (milliseconds) */
+	private final int pConnectTimeout;
+
+	/** Number of opened connections */
+	private long pCreated;
+
+	/** Number of connections closed after being idle for too long */
+	private long pEvicted;
+
+	/** Idle connections: host:port -&gt; connections, most recent first */
+	private final Map<String, Deque<PooledConnection>> pIdle = new HashMap<>();
+
+	/** Time after which an idle connection is closed (nanoseconds) */
+	private final long pIdleTimeout;
+
+	/** Lock protecting the pool state */
+	private final ReentrantLock pLock = new ReentrantLock();
+
+	/** Maximum number of connections to a peer */
+	private final int pMaxConnections;
+
+	/** Number of open connections (active or idle): host:port -&gt; count */
+	private final Map<String, Integer> pOpen = new HashMap<>();
+
+	/** Read timeout (milliseconds) */
+	private final int pReadTimeout;
+
+	/**
+	 * Sets up the pool
+	 *
+	 * @param aMaxConnections
+	 *            Maximum number of connections to a peer
+	 * @param aIdleTimeout
+	 *            Time after which an idle connection is closed (milliseconds)
+	 * @param aConnectTimeout
+	 *            Connection timeout (milliseconds)
+	 * @param aReadTimeout
+	 *            Read timeout (milliseconds)
+	 */
+	HttpConnectionPool(final int aMaxConnections, final long aIdleTimeout,
+			final int aConnectTimeout, final int aReadTimeout) {
+
+		pMaxConnections = Math.max(1, aMaxConnections);
+		pIdleTimeout = aIdleTimeout * 1000000L;
+		pConnectTimeout = aConnectTimeout;
+		pReadTimeout = aReadTimeout;
+		pChanged = pLock.newCondition();
+	}
+
+	/**
+	 * Computes the pool key of a peer
+	 *
+	 * @param aHost
+	 *            Host of the peer
+	 * @param aPort
+	 *            Port of the peer
+	 * @return The pool key
+	 */
+	private static String makeKey(final String aHost, final int aPort) {
+
+		return aHost + ":" + aPort;
+	}
+
+	/**
+	 * Gets a connection to a peer: an idle one if possible, else a new one if
+	 * the limit of connections to the peer hasn't been reached, else waits
+	 * for a connection to be released.
+	 *
+	 * @param aHost
+	 *            Host of the peer
+	 * @param aPort
+	 *            Port of the peer
+	 * @param aFresh
+	 *            If true, the idle connections to the peer are closed and a
+	 *            new one is opened
+	 * @return A connection
+	 * @throws IOException
+	 *             Error connecting the peer or no connection available in
+	 *             time
+	 */
+	private PooledConnection acquire(final String aHost, final int aPort,
+			final boolean aFresh) throws IOException {
+
+		final String key = makeKey(aHost, aPort);
+		pLock.lock();
+		try {
+			if (aFresh) {
+				closeIdle(key);
+			}
+
+			// A busy connection is released at worst after the timeouts
+			final long wait = pConnectTimeout + pReadTimeout;
+			final long deadline = System.nanoTime() + wait * 1000000L;
+			while (true) {
+				if (pClosed) {
+					throw new IOException("HTTP connection pool closed");
+				}
+
+				final Deque<PooledConnection> idle = pIdle.get(key);
+				if (idle != null && !idle.isEmpty()) {
+					final PooledConnection connection = idle.pop();
+					if (idle.isEmpty()) {
+						pIdle.remove(key);
+					}
+					pActive++;
+					return connection;
+				}
+
+				final int open = openCount(key);
+				if (open < pMaxConnections) {
+					// Reserve the new connection
+					pOpen.put(key, open + 1);
+					pActive++;
+					break;
+				}
+
+				final long remaining = (deadline - System.nanoTime()) / 1000000L;
+				if (remaining <= 0) {
+					throw new IOException("No HTTP connection to " + key
+							+ " available after " + wait + " ms");
+				}
+
+				try {
+					pChanged.await(remaining, TimeUnit.MILLISECONDS);
+
+				} catch (final InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException(
+							"Interrupted while waiting for an HTTP connection");
+				}
+			}
+
+		} finally {
+			pLock.unlock();
+		}
+
+		try {
+			return connect(aHost, aPort, key);
+
+		} catch (final IOException ex) {
+			pLock.lock();
+			try {
+				pActive--;
+				forget(key);
+			} finally {
+				pLock.unlock();
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * Closes the pool and all the idle connections. Active connections are
+	 * closed when released.
+	 */
+	void close() {
+
+		pLock.lock();
+		try {
+			pClosed = true;
+			for (final String key : new ArrayList<>(pIdle.keySet())) {
+				closeIdle(key);
+			}
+			pChanged.signalAll();
+		} finally {
+			pLock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the idle connections to a peer (the peer left, or restarted)
+	 *
+	 * @param aHost
+	 *            Host of the peer
+	 * @param aPort
+	 *            Port of the peer
+	 */
+	void closeIdle(final String aHost, final int aPort) {
+
+		pLock.lock();
+		try {
+			closeIdle(makeKey(aHost, aPort));
+		} finally {
+			pLock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the idle connections with the given key. Must be called while
+	 * holding the pool lock.
+	 *
+	 * @param aKey
+	 *            A pool key
+	 */
+	private void closeIdle(final String aKey) {
+
+		final Deque<PooledConnection> idle = pIdle.remove(aKey);
+		if (idle != null) {
+			for (final PooledConnection connection : idle) {
+				connection.close();
+				forget(aKey);
+			}
+		}
+	}
+
+	/**
+	 * Opens a new connection
+	 *
+	 * @param aHost
+	 *            Host of the peer
+	 * @param aPort
+	 *            Port of the peer
+	 * @param aKey
+	 *            Pool key of the connection
+	 * @return The connection
+	 * @throws IOException
+	 *             Error connecting the peer
+	 */
+	private PooledConnection connect(final String aHost, final int aPort,
+			final String aKey) throws IOException {
+
+		final Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(aHost, aPort),
+					pConnectTimeout);
+			socket.setSoTimeout(pReadTimeout);
+
+			final PooledConnection connection = new PooledConnection(aKey,
+					socket);
+			pLock.lock();
+			try {
+				pCreated++;
+			} finally {
+				pLock.unlock();
+			}
+			return connection;
+
+		} catch (final IOException ex) {
+			try {
+				socket.close();
+			} catch (final IOException ex2) {
+				// Ignore
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * Reads a response body of known length
+	 *
+	 * @param aInput
+	 *            The input stream
+	 * @param aLength
+	 *            Number of bytes to read
+	 * @param aBuffer
+	 *            A work buffer
+	 * @param aBody
+	 *            Receives the bytes read (if null, they are dropped)
+	 * @throws IOException
+	 *             Error reading the body or body too short
+	 */
+	private void drain(final InputStream aInput, long aLength,
+			final byte[] aBuffer, final OutputStream aBody)
+			throws IOException {
+
+		while (aLength > 0) {
+			final int read = aInput.read(aBuffer, 0,
+					(int) Math.min(aBuffer.length, aLength));
+			if (read < 0) {
+				throw new EOFException("Truncated HTTP response body");
+			}
+			if (aBody != null) {
+				aBody.write(aBuffer, 0, read);
+			}
+			aLength -= read;
+		}
+	}
+
+	/**
+	 * Closes the connections which have been idle for too long. The sockets
+	 * are closed once the pool lock has been released, to keep the timer task
+	 * short.
+	 */
+	void evictIdle() {
+
+		final List<PooledConnection> evicted = new ArrayList<>();
+		pLock.lock();
+		try {
+			final long limit = System.nanoTime() - pIdleTimeout;
+			final Iterator<Entry<String, Deque<PooledConnection>>> iterator =
+					pIdle.entrySet().iterator();
+			while (iterator.hasNext()) {
+				final Entry<String, Deque<PooledConnection>> entry = iterator
+						.next();
+
+				// Oldest connections are at the end of the deque
+				final Deque<PooledConnection> idle = entry.getValue();
+				while (!idle.isEmpty()
+						&& idle.peekLast().pLastUsed - limit < 0) {
+					evicted.add(idle.pollLast());
+					forget(entry.getKey());
+					pEvicted++;
+				}
+
+				if (idle.isEmpty()) {
+					iterator.remove();
+				}
+			}
+		} finally {
+			pLock.unlock();
+		}
+
+		for (final PooledConnection connection : evicted) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Forgets about a closed connection. Must be called while holding the pool
+	 * lock.
+	 *
+	 * @param aKey
+	 *            Pool key of the connection
+	 */
+	private void forget(final String aKey) {
+
+		final int open = openCount(aKey) - 1;
+		if (open > 0) {
+			pOpen.put(aKey, open);
+		} else {
+			pOpen.remove(aKey);
+		}
+		pChanged.signalAll();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IConnectionPoolStatistics#getActiveCount()
+	 */
+	@Override
+	public int getActiveCount() {
+
+		pLock.lock();
+		try {
+			return pActive;
+		} finally {
+			pLock.unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IConnectionPoolStatistics#getCreatedCount()
+	 */
+	@Override
+	public long getCreatedCount() {
+
+		pLock.lock();
+		try {
+			return pCreated;
+		} finally {
+			pLock.unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IConnectionPoolStatistics#getEvictedCount()
+	 */
+	@Override
+	public long getEvictedCount() {
+
+		pLock.lock();
+		try {
+			return pEvicted;
+		} finally {
+			pLock.unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IConnectionPoolStatistics#getIdleCount()
+	 */
+	@Override
+	public int getIdleCount() {
+
+		pLock.lock();
+		try {
+			int count = 0;
+			for (final Deque<PooledConnection> idle : pIdle.values()) {
+				count += idle.size();
+			}
+			return count;
+		} finally {
+			pLock.unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.cohorte.herald.IConnectionPoolStatistics#getMaxConnectionsPerPeer()
+	 */
+	@Override
+	public int getMaxConnectionsPerPeer() {
+
+		return pMaxConnections;
+	}
+
+	/**
+	 * Returns the number of open connections with the given key. Must be
+	 * called while holding the pool lock.
+	 *
+	 * @param aKey
+	 *            A pool key
+	 * @return The number of open connections
+	 */
+	private int openCount(final String aKey) {
+
+		final Integer open = pOpen.get(aKey);
+		return open != null ? open : 0;
+	}
+
+	/**
+	 * Posts a request to a peer and reads the whole response
+	 *
+	 * @param aUrl
+	 *            URL to the peer
+	 * @param aHeaders
+	 *            Request headers
+	 * @param aContent
+	 *            Body of the request, from its position to its limit; the
+	 *            buffer itself is not modified, so that it can be shared
+	 * @return The HTTP status code of the response
+	 * @throws IOException
+	 *             Error sending the request or reading the response
+	 */
+	int post(final URL aUrl, final Map<String, String> aHeaders,
+			final ByteBuffer aContent) throws IOException {
+
+		return post(aUrl, aHeaders, aContent, null);
+	}
+
+	/**
+	 * Posts a request to a peer and reads the whole response
+	 *
+	 * @param aUrl
+	 *            URL to the peer
+	 * @param aHeaders
+	 *            Request headers
+	 * @param aContent
+	 *            Body of the request, from its position to its limit; the
+	 *            buffer itself is not modified, so that it can be shared
+	 * @param aBody
+	 *            Receives the body of the response (if null, it is dropped)
+	 * @return The HTTP status code of the response
+	 * @throws IOException
+	 *             Error sending the request or reading the response
+	 */
+	int post(final URL aUrl, final Map<String, String> aHeaders,
+			final ByteBuffer aContent, final ByteArrayOutputStream aBody)
+			throws IOException {
+
+		final String host = aUrl.getHost();
+		final int port = aUrl.getPort() != -1 ? aUrl.getPort() : aUrl
+				.getDefaultPort();
+
+		boolean fresh = false;
+		while (true) {
+			final PooledConnection connection = acquire(host, port, fresh);
+			final boolean reused = connection.pReused;
+			final boolean[] received = { false };
+			boolean keepAlive = false;
+			try {
+				writeRequest(connection, aUrl, aHeaders, aContent);
+				final int[] status = { 0 };
+				keepAlive = readResponse(connection, status, received, aBody);
+				return status[0];
+
+			} catch (final IOException ex) {
+				if (!reused || received[0] || fresh) {
+					throw ex;
+				}
+
+				if (aBody != null) {
+					aBody.reset();
+				}
+
+				// The peer closed the connection while it was idle: retry
+				// once, with a new connection
+				fresh = true;
+
+			} finally {
+				release(connection, keepAlive);
+			}
+		}
+	}
+
+	/**
+	 * Reads a response line
+	 *
+	 * @param aInput
+	 *            The input stream
+	 * @return The line, without its end of line characters
+	 * @throws IOException
+	 *             Error reading the line or line too long
+	 */
+	private String readLine(final InputStream aInput) throws IOException {
+
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+		int read;
+		while ((read = aInput.read()) != '\n') {
+			if (read < 0) {
+				throw new EOFException("Connection closed by the HTTP server");
+
+			} else if (line.size() >= MAX_LINE_LENGTH) {
+				throw new IOException("HTTP response line too long");
+
+			} else if (read != '\r') {
+				line.write(read);
+			}
+		}
+		return line.toString(HEADERS_CHARSET);
+	}
+
+	/**
+	 * Reads a response
+	 *
+	 * @param aConnection
+	 *            The connection
+	 * @param aStatus
+	 *            Receives the status code of the response
+	 * @param aReceived
+	 *            Set to true once the response started to be received
+	 * @param aBody
+	 *            Receives the body of the response (if null, it is dropped)
+	 * @return True if the connection can be reused
+	 * @throws IOException
+	 *             Error reading the response
+	 */
+	private boolean readResponse(final PooledConnection aConnection,
+			final int[] aStatus, final boolean[] aReceived,
+			final OutputStream aBody) throws IOException {
+
+		final InputStream input = aConnection.pInput;
+
+		// Status line, skipping informational responses
+		String statusLine;
+		do {
+			statusLine = readLine(input);
+			aReceived[0] = true;
+			final String[] parts = statusLine.split(" ", 3);
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+				throw new IOException("Invalid HTTP status line: "
+						+ statusLine);
+			}
+
+			try {
+				aStatus[0] = Integer.parseInt(parts[1]);
+			} catch (final NumberFormatException ex) {
+				throw new IOException("Invalid HTTP status line: "
+						+ statusLine);
+			}
+
+			if (aStatus[0] / 100 == 1) {
+				// Skip the headers of the informational response
+				while (!readLine(input).isEmpty()) {
+					// Ignore
+				}
+			}
+		} while (aStatus[0] / 100 == 1);
+
+		// Headers
+		boolean keepAlive = !statusLine.startsWith("HTTP/1.0");
+		boolean chunked = false;
+		long length = -1;
+		String line;
+		while (!(line = readLine(input)).isEmpty()) {
+			final int colon = line.indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+
+			final String name = line.substring(0, colon).trim();
+			final String value = line.substring(colon + 1).trim();
+			if ("Content-Length".equalsIgnoreCase(name)) {
+				try {
+					length = Long.parseLong(value);
+				} catch (final NumberFormatException ex) {
+					throw new IOException("Invalid HTTP content length: "
+							+ value);
+				}
+
+			} else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+				chunked = value.toLowerCase().contains("chunked");
+
+			} else if ("Connection".equalsIgnoreCase(name)) {
+				if ("close".equalsIgnoreCase(value)) {
+					keepAlive = false;
+				} else if ("keep-alive".equalsIgnoreCase(value)) {
+					keepAlive = true;
+				}
+			}
+		}
+
+		// Body: read in bulk
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		if (aStatus[0] == 204 || aStatus[0] == 304) {
+			// No body
+
+		} else if (chunked) {
+			long chunkSize;
+			do {
+				final String sizeLine = readLine(input);
+				final int extension = sizeLine.indexOf(';');
+				try {
+					chunkSize = Long.parseLong((extension >= 0 ? sizeLine
+							.substring(0, extension) : sizeLine).trim(), 16);
+				} catch (final NumberFormatException ex) {
+					throw new IOException("Invalid HTTP chunk size: "
+							+ sizeLine);
+				}
+
+				drain(input, chunkSize, buffer, aBody);
+				if (chunkSize > 0) {
+					// End of the chunk
+					readLine(input);
+				}
+			} while (chunkSize > 0);
+
+			// Trailers
+			while (!readLine(input).isEmpty()) {
+				// Ignore
+			}
+
+		} else if (length >= 0) {
+			drain(input, length, buffer, aBody);
+
+		} else {
+			// Body ends with the connection
+			int read;
+			while ((read = input.read(buffer)) >= 0) {
+				if (aBody != null) {
+					aBody.write(buffer, 0, read);
+				}
+			}
+			keepAlive = false;
+		}
+
+		return keepAlive;
+	}
+
+	/**
+	 * Gives back a connection to the pool
+	 *
+	 * @param aConnection
+	 *            The connection
+	 * @param aReusable
+	 *            If false, the connection is closed
+	 */
+	private void release(final PooledConnection aConnection,
+			final boolean aReusable) {
+
+		pLock.lock();
+		try {
+			pActive--;
+			if (aReusable && !pClosed) {
+				aConnection.pReused = true;
+				aConnection.pLastUsed = System.nanoTime();
+
+				Deque<PooledConnection> idle = pIdle.get(aConnection.pKey);
+				if (idle == null) {
+					idle = new ArrayDeque<>();
+					pIdle.put(aConnection.pKey, idle);
+				}
+				idle.push(aConnection);
+				pChanged.signalAll();
+				return;
+			}
+
+			forget(aConnection.pKey);
+		} finally {
+			pLock.unlock();
+		}
+
+		aConnection.close();
+	}
+
+	/**
+	 * Opens a connection to a peer in advance, unless one is already open
+	 *
+	 * @param aHost
+	 *            Host of the peer
+	 * @param aPort
+	 *            Port of the peer
+	 * @throws IOException
+	 *             Error connecting the peer
+	 */
+	void warmUp(final String aHost, final int aPort) throws IOException {
+
+		final String key = makeKey(aHost, aPort);
+		pLock.lock();
+		try {
+			if (pClosed || openCount(key) > 0) {
+				return;
+			}
+
+			// Reserve the connection
+			pOpen.put(key, 1);
+			pActive++;
+		} finally {
+			pLock.unlock();
+		}
+
+		final PooledConnection connection;
+		try {
+			connection = connect(aHost, aPort, key);
+
+		} catch (final IOException ex) {
+			pLock.lock();
+			try {
+				pActive--;
+				forget(key);
+			} finally {
+				pLock.unlock();
+			}
+			throw ex;
+		}
+
+		release(connection, true);
+	}
+
+	/**
+	 * Writes a POST request
+	 *
+	 * @param aConnection
+	 *            The connection
+	 * @param aUrl
+	 *            URL to the peer
+	 * @param aHeaders
+	 *            Request headers
+	 * @param aContent
+	 *            Body of the request (not modified)
+	 * @throws IOException
+	 *             Error writing the request
+	 */
+	private void writeRequest(final PooledConnection aConnection,
+			final URL aUrl, final Map<String, String> aHeaders,
+			final ByteBuffer aContent) throws IOException {
+
+		String path = aUrl.getFile();
+		if (path == null || path.isEmpty()) {
+			path = "/";
+		}
+
+		final StringBuilder builder = new StringBuilder(256);
+		builder.append("POST ").append(path).append(" HTTP/1.1\r\n");
+		builder.append("Host: ").append(aUrl.getHost());
+		if (aUrl.getPort() != -1) {
+			builder.append(':').append(aUrl.getPort());
+		}
+		builder.append("\r\n");
+		for (final Entry<String, String> header : aHeaders.entrySet()) {
+			builder.append(header.getKey()).append(": ")
+					.append(header.getValue()).append("\r\n");
+		}
+		builder.append("Content-Length: ").append(aContent.remaining())
+				.append("\r\n\r\n");
+
+		final OutputStream output = aConnection.pOutput;
+		output.write(builder.toString().getBytes(HEADERS_CHARSET));
+
+		// Read the body through our own view of the buffer
+		final ByteBuffer content = aContent.duplicate();
+		if (content.hasArray()) {
+			output.write(content.array(),
+					content.arrayOffset() + content.position(),
+					content.remaining());
+		} else {
+			final byte[] chunk = new byte[Math.min(BUFFER_SIZE,
+					content.remaining())];
+			while (content.hasRemaining()) {
+				final int length = Math.min(chunk.length, content.remaining());
+				content.get(chunk, 0, length);
+				output.write(chunk, 0, length);
+			}
+		}
+		output.flush();
+	}
+}
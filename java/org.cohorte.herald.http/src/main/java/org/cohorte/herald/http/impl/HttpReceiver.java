@@ -23,6 +23,12 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 
@@ -40,6 +46,7 @@ import org.cohorte.herald.HeraldException;
 import org.cohorte.herald.IDirectory;
 import org.cohorte.herald.IHeraldInternal;
 import org.cohorte.herald.MessageReceived;
+import org.cohorte.herald.Overloaded;
 import org.cohorte.herald.Peer;
 import org.cohorte.herald.ValueError;
 import org.cohorte.herald.http.HTTPAccess;
@@ -48,9 +55,11 @@ import org.cohorte.herald.http.IHttpConstants;
 import org.cohorte.herald.transport.IContactHook;
 import org.cohorte.herald.transport.IDiscoveryConstants;
 import org.cohorte.herald.transport.PeerContact;
+import org.cohorte.herald.utils.VirtualThreads;
 import org.jabsorb.ng.JSONSerializer;
 import org.jabsorb.ng.serializer.MarshallException;
 import org.jabsorb.ng.serializer.UnmarshallException;
+import org.osgi.framework.BundleContext;
 import org.osgi.service.http.HttpService;
 import org.osgi.service.http.NamespaceException;
 import org.osgi.service.log.LogService;
@@ -65,6 +74,9 @@ import org.osgi.service.log.LogService;
 @Instantiate(name = "herald-http-receiver")
 public class HttpReceiver implements IHttpReceiver, IContactHook {
 
+    /** Default maximum number of requests handled asynchronously */
+    private static final int DEFAULT_MAX_ASYNC = 64;
+
     /** HTTP service port property */
     private static final String HTTP_SERVICE_PORT = "org.osgi.service.http.port";
 
@@ -74,6 +86,9 @@ public class HttpReceiver implements IHttpReceiver, IContactHook {
     /** The peer contact utility */
     private PeerContact pContact;
 
+    /** The bundle context */
+    private final BundleContext pContext;
+
     /** Service controller */
     @ServiceController(value = false)
     private boolean pController;
@@ -82,6 +97,9 @@ public class HttpReceiver implements IHttpReceiver, IContactHook {
     @Requires
     private IDirectory pDirectory;
 
+    /** The threads handling the requests read asynchronously */
+    private ExecutorService pExecutor;
+
     /** Herald core service (internal: always on) */
     @Requires
     private IHeraldInternal pHerald;
@@ -97,10 +115,16 @@ public class HttpReceiver implements IHttpReceiver, IContactHook {
     @Requires(id = IPOJO_ID_HTTP, filter = "(" + HTTP_SERVICE_PORT + "=*)")
     private HttpService pHttpService;
 
+    /** Requests held for a reply: Message UID -&gt; Exchange */
+    private final ConcurrentMap<String, InlineReply> pInlineReplies = new ConcurrentHashMap<>();
+
     /** The log service */
     @Requires(optional = true)
     private LogService pLogger;
 
+    /** Time to hold a request for a reply (milliseconds, 0: disabled) */
+    private long pReplyWindow;
+
     /** The Jabsorb serializer */
     private JSONSerializer pSerializer;
 
@@ -108,6 +132,17 @@ public class HttpReceiver implements IHttpReceiver, IContactHook {
     @ServiceProperty(name = "servlet.path", value = IHttpConstants.SERVLET_PATH)
     private String pServletPath;
 
+    /**
+     * Sets up members
+     *
+     * @param aContext
+     *            The bundle context
+     */
+    public HttpReceiver(final BundleContext aContext) {
+
+        pContext = aContext;
+    }
+
     /**
      * HTTP service ready
      *
@@ -198,6 +233,46 @@ public class HttpReceiver implements IHttpReceiver, IContactHook {
         return pDirectory.getLocalPeer();
     }
 
+    /**
+     * Gets a numeric bundle context / system property
+     *
+     * @param aKey
+     *            Property name
+     * @param aDefault
+     *            Value to use if the property is missing or invalid
+     * @return Property value, or the default one
+     */
+    private long getProperty(final String aKey, final long aDefault) {
+
+        String value = pContext.getProperty(aKey);
+        if (value == null) {
+            // Not done in Equinox
+            value = System.getProperty(aKey);
+        }
+
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+
+            } catch (final NumberFormatException ex) {
+                pLogger.log(LogService.LOG_WARNING, "Invalid value for "
+                        + aKey + ": " + value);
+            }
+        }
+        return aDefault;
+    }
+
+    /**
+     * Returns the time to hold a request for the reply to its message
+     *
+     * @return A time in milliseconds, 0 if replies are never sent in the
+     *         response body
+     */
+    long getReplyWindow() {
+
+        return pReplyWindow;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -286,8 +361,13 @@ public class HttpReceiver implements IHttpReceiver, IContactHook {
      *
      * @param aMessage
      *            The received message
+     * @param aSize
+     *            Size of the request body, in bytes
+     * @throws Overloaded
+     *             The message has been refused by Herald core
      */
-    public void handleMessage(final MessageReceived aMessage) {
+    public void handleMessage(final MessageReceived aMessage, final int aSize)
+            throws Overloaded {
 
         if (aMessage.getSubject().startsWith(
                 IDiscoveryConstants.SUBJECT_DISCOVERY_PREFIX)) {
@@ -303,8 +383,31 @@ public class HttpReceiver implements IHttpReceiver, IContactHook {
 
         } else {
             // Standard message
-            pHerald.handleMessage(aMessage);
+            pHerald.handleMessage(aMessage, aSize);
+        }
+    }
+
+    /**
+     * Prepares to hold the request carrying the given message until a reply
+     * is given
+     *
+     * @param aMessageUid
+     *            UID of the received message
+     * @return The exchange to wait for, or null if replies are not sent in
+     *         the response body
+     */
+    InlineReply holdReply(final String aMessageUid) {
+
+        if (pReplyWindow <= 0) {
+            return null;
         }
+
+        final InlineReply exchange = new InlineReply();
+        if (pInlineReplies.putIfAbsent(aMessageUid, exchange) != null) {
+            // Message received twice: the first request gets the reply
+            return null;
+        }
+        return exchange;
     }
 
     /**
@@ -345,6 +448,18 @@ public class HttpReceiver implements IHttpReceiver, IContactHook {
     @Invalidate
     public void invalidate() {
 
+        // Release the held requests
+        for (final InlineReply exchange : pInlineReplies.values()) {
+            exchange.close();
+        }
+        pInlineReplies.clear();
+
+        // Let the requests in progress end
+        if (pExecutor != null) {
+            pExecutor.shutdown();
+            pExecutor = null;
+        }
+
         pContact.clear();
         pContact = null;
     }
@@ -378,6 +493,34 @@ public class HttpReceiver implements IHttpReceiver, IContactHook {
         pLogger.log(aLogLevel, aMessage, aThrowable);
     }
 
+    /**
+     * Stops holding a request for a reply
+     *
+     * @param aMessageUid
+     *            UID of the received message
+     * @param aExchange
+     *            The exchange returned by {@link #holdReply(String)}
+     */
+    void releaseReply(final String aMessageUid, final InlineReply aExchange) {
+
+        aExchange.close();
+        pInlineReplies.remove(aMessageUid, aExchange);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.cohorte.herald.http.impl.IHttpReceiver#replyInline(java.lang.String,
+     * java.lang.String)
+     */
+    @Override
+    public boolean replyInline(final String aMessageUid, final String aContent) {
+
+        final InlineReply exchange = pInlineReplies.get(aMessageUid);
+        return exchange != null && exchange.complete(aContent);
+    }
+
     /**
      * Converts an object to a JSON dump (using Jabsorb)
      *
@@ -439,6 +582,20 @@ public class HttpReceiver implements IHttpReceiver, IContactHook {
         // Disable the service
         pController = false;
 
+        // Time to hold the requests for a reply: the response must reach
+        // the sender before its read timeout (peers share that setting)
+        final long readTimeout = getProperty(
+                IHttpConstants.FWPROP_READ_TIMEOUT,
+                HttpConnectionPool.DEFAULT_READ_TIMEOUT);
+        pReplyWindow = Math.max(0,
+                getProperty(IHttpConstants.FWPROP_REPLY_WINDOW, 0));
+        if (pReplyWindow > readTimeout / 2) {
+            pLogger.log(LogService.LOG_WARNING, "Reply window of "
+                    + pReplyWindow + " ms too close to the read timeout ("
+                    + readTimeout + " ms): using " + readTimeout / 2 + " ms");
+            pReplyWindow = readTimeout / 2;
+        }
+
         // Setup the peer contact
         pContact = new PeerContact(pDirectory, this, pLogger);
 
@@ -452,8 +609,36 @@ public class HttpReceiver implements IHttpReceiver, IContactHook {
             return;
         }
 
+        // Prepare the threads handling the requests out of the HTTP server
+        final int maxAsync = (int) getProperty(
+                IHttpConstants.FWPROP_RECEIVER_MAX_ASYNC, DEFAULT_MAX_ASYNC);
+        pExecutor = null;
+        if (maxAsync > 0 && AsyncReader.isSupported()) {
+            if (VirtualThreads.isEnabled(pContext)) {
+                pExecutor = VirtualThreads.newExecutor();
+            }
+
+            if (pExecutor == null) {
+                // Threads are created on demand, and stopped when idle
+                final AtomicInteger counter = new AtomicInteger();
+                pExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable aRunnable) {
+
+                        final Thread thread = new Thread(aRunnable,
+                                "Herald-HTTP-Receiver-"
+                                        + counter.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+
         // Prepare and register the servlet
-        final HttpReceiverServlet servlet = new HttpReceiverServlet(this);
+        final HttpReceiverServlet servlet = new HttpReceiverServlet(this,
+                pExecutor, maxAsync);
         try {
             pHttpService.registerServlet(pServletPath, servlet, null, null);
 
@@ -17,7 +17,12 @@
 package org.cohorte.herald.http.impl;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -26,6 +31,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.cohorte.herald.Message;
 import org.cohorte.herald.MessageReceived;
+import org.cohorte.herald.Overloaded;
 import org.cohorte.herald.ValueError;
 import org.cohorte.herald.core.utils.MessageUtils;
 import org.cohorte.herald.http.HTTPExtra;
@@ -37,6 +43,12 @@ import org.osgi.service.log.LogService;
 /**
  * The Herald HTTP reception servlet
  *
+ * When the container supports it (Servlet 3.1), the body of a POST request is
+ * read without blocking and the request is handled by the threads of the
+ * receiver: the container threads only do the network I/O. The requests
+ * exceeding the maximum number of asynchronous requests are handled in the
+ * container threads.
+ *
  * @author Thomas Calmant
  */
 public class HttpReceiverServlet extends HttpServlet {
@@ -44,18 +56,59 @@ public class HttpReceiverServlet extends HttpServlet {
     /** Serial version UID */
     private static final long serialVersionUID = 1L;
 
+    /** Permits to handle a request asynchronously (null if disabled) */
+    private final Semaphore pAsyncPermits;
+
+    /** The threads handling the requests read asynchronously */
+    private final Executor pExecutor;
+
     /** The parent HTTP receiver service */
     private final HttpReceiver pReceiver;
 
     /**
-     * Sets up members
+     * Sets up members: requests are handled in the container threads
      *
      * @param aHttpReceiver
      *            The parent HTTP receiver service
      */
     public HttpReceiverServlet(final HttpReceiver aHttpReceiver) {
 
+        this(aHttpReceiver, null, 0);
+    }
+
+    /**
+     * Sets up members
+     *
+     * @param aHttpReceiver
+     *            The parent HTTP receiver service
+     * @param aExecutor
+     *            The threads handling the requests read asynchronously (if
+     *            null, requests are handled in the container threads)
+     * @param aMaxAsync
+     *            Maximum number of requests handled asynchronously at a time
+     */
+    public HttpReceiverServlet(final HttpReceiver aHttpReceiver,
+            final Executor aExecutor, final int aMaxAsync) {
+
         pReceiver = aHttpReceiver;
+        pExecutor = aExecutor;
+        if (aExecutor != null && aMaxAsync > 0 && AsyncReader.isSupported()) {
+            pAsyncPermits = new Semaphore(aMaxAsync);
+        } else {
+            pAsyncPermits = null;
+        }
+    }
+
+    /**
+     * Ends the asynchronous processing of a request: the response is sent
+     *
+     * @param aReader
+     *            The reader of the request
+     */
+    private void endAsync(final AsyncReader aReader) {
+
+        aReader.complete();
+        pAsyncPermits.release();
     }
 
     /*
@@ -121,100 +174,276 @@ public class HttpReceiverServlet extends HttpServlet {
 	            return;
 	        }
 	
-	        // Parse the content
-	        final byte[] rawData = pReceiver.inputStreamToBytes(aReq
-	                .getInputStream());
-	
-	        String charsetName = aReq.getCharacterEncoding();
-	        if (charsetName == null) {
-	            charsetName = IHttpConstants.CHARSET_UTF8;
+	        if (startAsync(aReq, aResp)) {
+	            // Body read and handled out of the container thread
+	            return;
 	        }
-	        final String strData = new String(rawData, charsetName);
-	        
-	        try {
-	            
-	        	final MessageReceived rcv_msg;
-	        	//final Object content;
-	        	if(!strData.isEmpty())
-	        	{	
-	        		rcv_msg = MessageUtils.fromJSON(strData);
-	        		if (rcv_msg != null) {
-	        			// content = rcv_msg.getContent();
-	        		//else {
-	        			//content = null;	        			
-	        		}
-	        	} else {
-	        		rcv_msg = null;
-	        		//content = null;
-	        	}	        	        	
-	        	
-	        	// Extract headers
-		        //String subject = null;
-		        String msgUid = null;
-		        //String replyTo = null;
-		        String senderUid = null;
-		        String senderPath = null;
-		        //Long timestamp = null;
-		
-		        HTTPExtra extra = null; 
-		        
-		        if (rcv_msg != null) {
-		        	//subject = rcv_msg.getSubject();
-			        msgUid = rcv_msg.getUid();
-			        //replyTo = rcv_msg.getReplyTo();
-			        senderUid = rcv_msg.getSender();
-			        Object wPath = rcv_msg.getHeader(IHttpConstants.MESSAGE_HEADER_PATH);
-			        senderPath = (wPath != null) ? wPath.toString() : null;
-			        //timestamp = rcv_msg.getTimestamp();		        
-			
-			        // Get sender port
-			        int port;
-			        try {
-			        	Object wPort = rcv_msg.getHeader(IHttpConstants.MESSAGE_HEADER_PORT);
-			            port = (wPort != null) ? new Integer(wPort.toString()).intValue() : 80;
-			        } catch (final NumberFormatException ex) {
-			            port = 80;
-			        }
-			
-			        // Store sender information
-			        final String host = aReq.getRemoteAddr();
-			        extra = new HTTPExtra(host, port, senderPath, msgUid);
-			
-			        try {
-			            // Check sender access
-			            if (!pReceiver.checkAccess(senderUid, host, port)) {
-			                // Check failed: invalid UID
-			                senderUid = "<invalid>";
-			            }
-			        } catch (final ValueError ex) {
-			            // Unknown peer: keep the sender UID as is
-			        }	
-			        
-			        rcv_msg.addHeader(Message.MESSAGE_HEADER_SENDER_UID, senderUid);
-			        rcv_msg.setAccess(IHttpConstants.ACCESS_ID);
-			        rcv_msg.setExtra(extra);
-		        }	        	
-	
-	            // Let Herald handle the message
-	            pReceiver.handleMessage(rcv_msg);
-	
-	            // Send response
-	            aResp.setStatus(HttpServletResponse.SC_OK);
-	            aResp.setContentLength(0);
 	
-	        } catch (final UnmarshallException ex) {
-	            // Error parsing the message
-	            pReceiver.log(LogService.LOG_ERROR,
-	                    "Error parsing message content: " + ex, ex);
-	
-	            // Send the error
-	            aResp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-	                    "Error parsing message content: " + ex);
-	        }
+	        // Read and handle the request in the container thread
+	        handlePost(aReq, aResp,
+	                pReceiver.inputStreamToBytes(aReq.getInputStream()));
     	} catch(Throwable ex)
         {
             pReceiver.log(LogService.LOG_ERROR, "Error on do_Post : "
                     + ex, ex);
+            sendError(aResp, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Error handling the request");
+        }
+    }
+
+    /**
+     * Parses the body of a request and lets Herald handle its messages
+     *
+     * @param aReq
+     *            The request
+     * @param aResp
+     *            The response
+     * @param aRawData
+     *            The body of the request
+     * @throws IOException
+     *             Error writing the response
+     */
+    private void handlePost(final HttpServletRequest aReq,
+            final HttpServletResponse aResp, final byte[] aRawData)
+            throws IOException {
+
+        String charsetName = aReq.getCharacterEncoding();
+        if (charsetName == null) {
+            charsetName = IHttpConstants.CHARSET_UTF8;
+        }
+        final String strData = new String(aRawData, charsetName);
+
+        try {
+            // A request can contain a single message or a batch
+            final List<MessageReceived> messages;
+            if (!strData.isEmpty()) {
+                messages = MessageUtils.fromJSONBatch(strData);
+            } else {
+                messages = Collections.emptyList();
+            }
+
+            // Share the request size among its messages
+            final int size = messages.isEmpty() ? 0 : aRawData.length
+                    / messages.size();
+            boolean overloaded = false;
+
+            // Hold the request until the message is replied, if the sender
+            // reads the reply from the response
+            InlineReply inlineReply = null;
+            String inlineUid = null;
+            if (messages.size() == 1
+                    && aReq.getHeader(IHttpConstants.HTTP_HEADER_INLINE_REPLY) != null) {
+                inlineUid = messages.get(0).getUid();
+                inlineReply = pReceiver.holdReply(inlineUid);
+            }
+
+            try {
+                for (final MessageReceived rcv_msg : messages) {
+                    // Extract headers
+                    final String msgUid = rcv_msg.getUid();
+                    String senderUid = rcv_msg.getSender();
+                    Object wPath = rcv_msg
+                            .getHeader(IHttpConstants.MESSAGE_HEADER_PATH);
+                    final String senderPath = (wPath != null) ? wPath
+                            .toString() : null;
+
+                    // Get sender port
+                    int port;
+                    try {
+                        Object wPort = rcv_msg
+                                .getHeader(IHttpConstants.MESSAGE_HEADER_PORT);
+                        port = (wPort != null) ? new Integer(wPort.toString())
+                                .intValue() : 80;
+                    } catch (final NumberFormatException ex) {
+                        port = 80;
+                    }
+
+                    // Store sender information
+                    final String host = aReq.getRemoteAddr();
+                    final HTTPExtra extra = new HTTPExtra(host, port,
+                            senderPath, msgUid);
+
+                    try {
+                        // Check sender access
+                        if (!pReceiver.checkAccess(senderUid, host, port)) {
+                            // Check failed: invalid UID
+                            senderUid = "<invalid>";
+                        }
+                    } catch (final ValueError ex) {
+                        // Unknown peer: keep the sender UID as is
+                    }
+
+                    rcv_msg.addHeader(Message.MESSAGE_HEADER_SENDER_UID,
+                            senderUid);
+                    rcv_msg.setAccess(IHttpConstants.ACCESS_ID);
+                    rcv_msg.setExtra(extra);
+
+                    try {
+                        // Let Herald handle the message
+                        pReceiver.handleMessage(rcv_msg, size);
+
+                    } catch (final Overloaded ex) {
+                        // Message refused: handle the rest of the batch anyway
+                        overloaded = true;
+                    }
+                }
+
+                if (overloaded) {
+                    // Some messages have been refused by the admission queue:
+                    // the error status is enough for the sender
+                    aResp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                            "Herald overloaded");
+                    return;
+                }
+
+                if (inlineReply != null) {
+                    // Wait for the reply: later ones are posted to the sender
+                    final String reply = inlineReply.await(pReceiver
+                            .getReplyWindow());
+                    if (reply != null) {
+                        // Send the reply in the response
+                        final byte[] data = reply
+                                .getBytes(IHttpConstants.CHARSET_UTF8);
+                        aResp.setStatus(HttpServletResponse.SC_OK);
+                        aResp.setCharacterEncoding(IHttpConstants.CHARSET_UTF8);
+                        aResp.setContentType(IHttpConstants.CONTENT_TYPE_JSON);
+                        aResp.setContentLength(data.length);
+                        aResp.getOutputStream().write(data);
+                        aResp.getOutputStream().flush();
+                        return;
+                    }
+                }
+
+            } finally {
+                if (inlineReply != null) {
+                    // Stop holding the request, whatever happened
+                    pReceiver.releaseReply(inlineUid, inlineReply);
+                }
+            }
+
+            // Send response
+            aResp.setStatus(HttpServletResponse.SC_OK);
+            aResp.setContentLength(0);
+
+        } catch (final UnmarshallException ex) {
+            // Error parsing the message
+            pReceiver.log(LogService.LOG_ERROR,
+                    "Error parsing message content: " + ex, ex);
+
+            // Send the error
+            aResp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Error parsing message content: " + ex);
+        }
+    }
+
+    /**
+     * Sends an error status, unless the response has already been committed
+     *
+     * @param aResp
+     *            The response
+     * @param aStatus
+     *            HTTP status code
+     * @param aMessage
+     *            Error message
+     */
+    private void sendError(final HttpServletResponse aResp, final int aStatus,
+            final String aMessage) {
+
+        if (aResp.isCommitted()) {
+            // Too late
+            return;
+        }
+
+        try {
+            aResp.sendError(aStatus, aMessage);
+
+        } catch (final IOException | IllegalStateException ex) {
+            // Connection lost or response already sent: nothing to do
+        }
+    }
+
+    /**
+     * Reads the body of the request without blocking the container thread,
+     * then handles the request in the threads of the receiver
+     *
+     * @param aReq
+     *            The request
+     * @param aResp
+     *            The response
+     * @return True if the request is handled asynchronously, False if the
+     *         caller must handle it
+     */
+    private boolean startAsync(final HttpServletRequest aReq,
+            final HttpServletResponse aResp) {
+
+        if (pAsyncPermits == null || !AsyncReader.isAsyncSupported(aReq)
+                || !pAsyncPermits.tryAcquire()) {
+            // Not supported or too many requests in progress
+            return false;
+        }
+
+        try {
+            new AsyncReader(aReq, new AsyncReader.Handler() {
+
+                @Override
+                public void bodyRead(final AsyncReader aReader,
+                        final byte[] aBody) {
+
+                    try {
+                        pExecutor.execute(new Runnable() {
+
+                            @Override
+                            public void run() {
+
+                                try {
+                                    handlePost(aReq, aResp, aBody);
+
+                                } catch (final Throwable ex) {
+                                    pReceiver.log(LogService.LOG_ERROR,
+                                            "Error on do_Post : " + ex, ex);
+                                    sendError(
+                                            aResp,
+                                            HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                                            "Error handling the request");
+
+                                } finally {
+                                    endAsync(aReader);
+                                }
+                            }
+                        });
+
+                    } catch (final RejectedExecutionException ex) {
+                        // Receiver stopped
+                        sendError(aResp,
+                                HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                "Herald stopped");
+                        endAsync(aReader);
+                    }
+                }
+
+                @Override
+                public void readFailed(final AsyncReader aReader,
+                        final Throwable aError) {
+
+                    pReceiver.log(LogService.LOG_DEBUG,
+                            "Error reading a request: " + aError);
+                    if (aError instanceof IOException) {
+                        sendError(aResp, HttpServletResponse.SC_BAD_REQUEST,
+                                "Error reading the request");
+                    } else {
+                        sendError(aResp,
+                                HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                                "Error reading the request");
+                    }
+                    endAsync(aReader);
+                }
+            });
+            return true;
+
+        } catch (final IOException ex) {
+            // Request not in asynchronous mode: the caller must handle it
+            pAsyncPermits.release();
+            return false;
         }
     }
 }
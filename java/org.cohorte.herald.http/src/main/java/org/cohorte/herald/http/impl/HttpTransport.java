@@ -16,22 +16,25 @@
 
 package org.cohorte.herald.http.impl;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.ipojo.annotations.Component;
 import org.apache.felix.ipojo.annotations.Instantiate;
@@ -41,39 +44,70 @@ import org.apache.felix.ipojo.annotations.Requires;
 import org.apache.felix.ipojo.annotations.ServiceController;
 import org.apache.felix.ipojo.annotations.ServiceProperty;
 import org.apache.felix.ipojo.annotations.Validate;
+import org.cohorte.herald.Access;
+import org.cohorte.herald.GroupDelivery;
 import org.cohorte.herald.HeraldException;
+import org.cohorte.herald.IAsyncGroupTransport;
+import org.cohorte.herald.IAsyncTransport;
+import org.cohorte.herald.IBatchTransport;
+import org.cohorte.herald.IConnectionPoolStatistics;
 import org.cohorte.herald.IConstants;
+import org.cohorte.herald.IDeliveryListener;
 import org.cohorte.herald.IDirectory;
+import org.cohorte.herald.IDirectoryListener;
+import org.cohorte.herald.IGroupDeliveryListener;
+import org.cohorte.herald.IHeraldInternal;
 import org.cohorte.herald.ITransport;
 import org.cohorte.herald.InvalidPeerAccess;
 import org.cohorte.herald.Message;
+import org.cohorte.herald.MessageReceived;
 import org.cohorte.herald.Peer;
 import org.cohorte.herald.Target;
 import org.cohorte.herald.core.utils.MessageUtils;
 import org.cohorte.herald.http.HTTPAccess;
 import org.cohorte.herald.http.HTTPExtra;
 import org.cohorte.herald.http.IHttpConstants;
-import org.cohorte.herald.utils.PelixFuture;
-import org.cohorte.herald.utils.PelixFuture.Callable;
-import org.cohorte.herald.utils.PelixFuture.Callback;
+import org.cohorte.herald.utils.ITimeout;
+import org.cohorte.herald.utils.ITimerService;
+import org.cohorte.herald.utils.VirtualThreads;
 import org.jabsorb.ng.JSONSerializer;
 import org.jabsorb.ng.serializer.MarshallException;
+import org.jabsorb.ng.serializer.UnmarshallException;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.log.LogService;
 
 /**
- * HTTP sender for Herald
+ * HTTP sender for Herald.
+ *
+ * Requests are posted through a pool of persistent connections to each peer.
+ * The transport follows the directory to open a connection to the new peers
+ * in advance, and to close the connections to the peers which left.
+ *
+ * On Java 11+, the java.net.http client can be used instead (see
+ * {@link IHttpConstants#FWPROP_CLIENT}): messages are then sent
+ * asynchronously, over HTTP/2 when the peer supports it, and delivery results
+ * are reported to Herald core afterwards.
+ *
+ * When a caller waits for the reply to a message, the peer is allowed to
+ * send that reply in the response, instead of a new request (see
+ * {@link IHttpConstants#FWPROP_REPLY_WINDOW}).
  *
  * @author Thomas Calmant
  */
 @Component
 @Provides(specifications = ITransport.class)
 @Instantiate(name = "herald-http-transport")
-public class HttpTransport implements ITransport {
+public class HttpTransport implements IBatchTransport, IAsyncTransport,
+		IAsyncGroupTransport, IDirectoryListener {
 
 	/** Access ID property */
 	@ServiceProperty(name = IConstants.PROP_ACCESS_ID, value = IHttpConstants.ACCESS_ID)
 	private String pAccessId;
 
+	/** The bundle context */
+	private final BundleContext pContext;
+
 	/** The service controller */
 	@ServiceController
 	private boolean pController;
@@ -82,8 +116,21 @@ public class HttpTransport implements ITransport {
 	@Requires
 	private IDirectory pDirectory;
 
-	/** The thread pool */
-	private ExecutorService pExecutor;
+	/**
+	 * The threads sending group messages and opening connections in advance
+	 * with the connection pool: one per task, without a fixed limit
+	 */
+	private ExecutorService pGroupExecutor;
+
+	/** Herald core service */
+	@Requires
+	private IHeraldInternal pHerald;
+
+	/** The java.net.http client, if selected (replaces pPool) */
+	private JdkHttpClient pJdkClient;
+
+	/** Registration of the directory listener service */
+	private ServiceRegistration<IDirectoryListener> pListenerRegistration;
 
 	/** Local peer UID */
 	private String pLocalUid;
@@ -92,6 +139,15 @@ public class HttpTransport implements ITransport {
 	@Requires(optional = true)
 	private LogService pLogger;
 
+	/** The pool of connections to the peers */
+	private HttpConnectionPool pPool;
+
+	/** The timer task closing the idle connections */
+	private ITimeout pPoolEvictor;
+
+	/** Registration of the connection pool statistics service */
+	private ServiceRegistration<IConnectionPoolStatistics> pPoolRegistration;
+
 	/** HTTP Reception component */
 	@Requires
 	private IHttpReceiver pReceiver;
@@ -99,6 +155,47 @@ public class HttpTransport implements ITransport {
 	/** The Jabsorb serializer */
 	private JSONSerializer pSerializer;
 
+	/** The timer service */
+	@Requires
+	private ITimerService pTimer;
+
+	/** The virtual threads executor, if enabled */
+	private ExecutorService pVirtualExecutor;
+
+	/**
+	 * Sets up members
+	 *
+	 * @param aContext
+	 *            The bundle context
+	 */
+	public HttpTransport(final BundleContext aContext) {
+
+		pContext = aContext;
+	}
+
+	/**
+	 * Closes the idle connections to the given HTTP access
+	 *
+	 * @param aAccess
+	 *            An access (can be null)
+	 */
+	private void closeIdle(final Access aAccess) {
+
+		final HttpConnectionPool pool = pPool;
+		if (pool == null || !(aAccess instanceof HTTPAccess)) {
+			return;
+		}
+
+		try {
+			final URL url = ((HTTPAccess) aAccess).getUrl();
+			pool.closeIdle(url.getHost(),
+					url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+
+		} catch (final MalformedURLException ex) {
+			// Nothing was connected
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -122,16 +219,35 @@ public class HttpTransport implements ITransport {
 	public void fire(final Peer aPeer, final Message aMessage,
 			final Object aExtra) throws HeraldException {
 
+		fire(aPeer, aMessage, aExtra, null);
+	}
+
+	/**
+	 * Sends a message to a peer
+	 *
+	 * @param aPeer
+	 *            The targeted peer
+	 * @param aMessage
+	 *            The message to send
+	 * @param aExtra
+	 *            Extra information given by the receiver (can be null)
+	 * @param aListener
+	 *            Notified of the result of the delivery (if null, delivery
+	 *            errors are reported to Herald core)
+	 * @throws HeraldException
+	 *             Error sending the message
+	 */
+	private void fire(final Peer aPeer, final Message aMessage,
+			final Object aExtra, final IDeliveryListener aListener)
+			throws HeraldException {
+
 		// Compute parent UID, in case of reply
 		String parentUid = null;
 		if (aExtra instanceof HTTPExtra) {
 			parentUid = ((HTTPExtra) aExtra).getParentUid();
 		}
 
-		// Try to compute the URL to access the peer
-		final URL url = getAccessUrl(aPeer, aExtra);
-
-		// Send the HTTP request (blocking)
+		// Prepare the message
 		final Map<String, String> headers = makeHeaders(aMessage, parentUid, aPeer, null);
 		String content;
 		try {
@@ -142,7 +258,86 @@ public class HttpTransport implements ITransport {
 					"Error marshalling the message content", ex);
 		}
 
-		sendRequest(aPeer, url, headers, content);
+		if (parentUid != null && pReceiver.replyInline(parentUid, content)) {
+			// Reply sent in the response to the original request
+			if (aListener != null) {
+				aListener.messageDelivered(aPeer, aMessage.getUid());
+			}
+			return;
+		}
+
+		// The peer can send the reply in the response. The blocking client
+		// holds the sending thread until then: only ask for it when that
+		// thread is a send() waiting for the reply anyway
+		final String uid = aMessage.getUid();
+		if (pJdkClient != null ? pHerald.isWaitingReply(uid) : pHerald
+				.isBlockedOnReply(uid)) {
+			headers.put(IHttpConstants.HTTP_HEADER_INLINE_REPLY, "true");
+		}
+
+		// Try to compute the URL to access the peer
+		final URL url = getAccessUrl(aPeer, aExtra);
+
+		// Send the HTTP request
+		sendRequest(aPeer, url, headers, content,
+				Collections.singletonList(aMessage.getUid()), aListener);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IAsyncTransport#fireAsync(org.cohorte.herald.Peer,
+	 * org.cohorte.herald.Message, org.cohorte.herald.IDeliveryListener)
+	 */
+	@Override
+	public void fireAsync(final Peer aPeer, final Message aMessage,
+			final IDeliveryListener aListener) throws HeraldException {
+
+		fire(aPeer, aMessage, null, aListener);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.IBatchTransport#fireBatch(org.cohorte.herald.Peer,
+	 * java.util.List)
+	 */
+	@Override
+	public void fireBatch(final Peer aPeer, final List<Message> aMessages)
+			throws HeraldException {
+
+		if (aMessages.isEmpty()) {
+			return;
+
+		} else if (aMessages.size() == 1) {
+			// No need for a batch envelope
+			fire(aPeer, aMessages.get(0), null);
+			return;
+		}
+
+		// Try to compute the URL to access the peer
+		final URL url = getAccessUrl(aPeer, null);
+
+		// Send all messages in a single HTTP request (blocking)
+		final Map<String, String> headers = new LinkedHashMap<>();
+		for (final Message message : aMessages) {
+			headers.putAll(makeHeaders(message, null, aPeer, null));
+		}
+
+		final String content;
+		try {
+			content = MessageUtils.toJSONBatch(aMessages);
+
+		} catch (final MarshallException ex) {
+			throw new HeraldException(new Target(aPeer),
+					"Error marshalling the message content", ex);
+		}
+
+		final List<String> uids = new ArrayList<>(aMessages.size());
+		for (final Message message : aMessages) {
+			uids.add(message.getUid());
+		}
+		sendRequest(aPeer, url, headers, content, uids, null);
 	}
 
 	/*
@@ -156,94 +351,127 @@ public class HttpTransport implements ITransport {
 			final Collection<Peer> aPeers, final Message aMessage)
 			throws HeraldException {
 
-		// Prepare the message
-		final Map<String, String> headers = makeHeaders(aMessage, null, null, aGroup);
-		final String content;
+		final GroupDelivery delivery = fireGroupAsync(aGroup, aPeers,
+				aMessage, null);
+
+		// Wait 10 sec. max for answers
 		try {
-			content = makeContent(aMessage);
+			if (!delivery.await(10000)) {
+				pLogger.log(LogService.LOG_WARNING,
+						"Not all peers have been reached after 10 seconds.");
+			}
+		} catch (final InterruptedException ex) {
+			pLogger.log(LogService.LOG_WARNING,
+					"Interrupted while waiting for peers to receive the message");
+		}
 
-		} catch (final MarshallException ex) {
+		// Return a copy of the access peers set
+		return new LinkedHashSet<Peer>(delivery.getReachedPeers().keySet());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.cohorte.herald.IAsyncGroupTransport#fireGroupAsync(java.lang.String,
+	 * java.util.Collection, org.cohorte.herald.Message,
+	 * org.cohorte.herald.IGroupDeliveryListener)
+	 */
+	@Override
+	public GroupDelivery fireGroupAsync(final String aGroup,
+			final Collection<Peer> aPeers, final Message aMessage,
+			final IGroupDeliveryListener aListener) throws HeraldException {
+
+		final HttpConnectionPool pool = pPool;
+		final JdkHttpClient jdkClient = pJdkClient;
+		final ExecutorService groupExecutor = pGroupExecutor;
+		if (pool == null && jdkClient == null) {
+			throw new HeraldException(new Target(aGroup,
+					Target.toUids(aPeers)), "HTTP transport is stopped");
+		}
+
+		// Prepare the message once for all peers
+		final Map<String, String> headers;
+		final byte[] rawContent;
+		try {
+			headers = toRequestHeaders(makeHeaders(aMessage, null, null,
+					aGroup));
+			rawContent = toRequestBody(makeContent(aMessage));
+
+		} catch (final MarshallException | IOException ex) {
 			throw new HeraldException(
 					new Target(aGroup, Target.toUids(aPeers)),
 					"Error marshalling the message content", ex);
 		}
 
-		// Keep track of the peers we reached
-		final Set<Peer> accessedPeers = new LinkedHashSet<>();
-		final CountDownLatch countdown = new CountDownLatch(aPeers.size());
-
-		final Callback<Object, Peer> peerResult = new Callback<Object, Peer>() {
-
-			/*
-			 * (non-Javadoc)
-			 * 
-			 * @see
-			 * org.cohorte.herald.utils.PelixFuture.Callback#run(java.lang.Object
-			 * , java.lang.Throwable, java.lang.Object)
-			 */
-			@Override
-			public void run(final Object aResult, final Throwable aThrowable,
-					final Peer aPeer) {
-
-				if (aThrowable == null) {
-					// No error
-					accessedPeers.add(aPeer);
-
-				} else {
-					// Log the error
-					pLogger.log(LogService.LOG_DEBUG,
-							"Error posting a message to " + aPeer + ": "
-									+ aThrowable, aThrowable);
-				}
+		// All requests read the same bytes, through their own view
+		final ByteBuffer content = ByteBuffer.wrap(rawContent)
+				.asReadOnlyBuffer();
 
-				// Update the count down in any case
-				countdown.countDown();
-			}
-		};
+		final GroupDelivery delivery = new GroupDelivery(aMessage.getUid(),
+				aPeers, aListener);
 
-		// Send a request to each peer
+		// Send a request to each peer, all at once
 		for (final Peer peer : aPeers) {
+			final URL url;
 			try {
 				// Compute the access URL
-				final URL url = getAccessUrl(peer, null);
-
-				// Prepare the future call
-				final PelixFuture<Object, Peer> future = new PelixFuture<Object, Peer>();
-				future.setCallback(peerResult, peer);
-				future.setMethod(new Callable<Object>() {
-
-					@Override
-					public Object run() throws Exception {
-
-						sendRequest(peer, url, headers, content);
-						return null;
-					}
-				});
-
-				// Call it from the thread pool
-				pExecutor.execute(future);
+				url = getAccessUrl(peer, null);
 
 			} catch (final InvalidPeerAccess ex) {
 				// No HTTP access description
 				pLogger.log(LogService.LOG_DEBUG, "No "
 						+ IHttpConstants.ACCESS_ID + " access found for "
 						+ peer);
+				delivery.peerFailed(peer, ex);
+				continue;
 			}
-		}
 
-		// Wait 10 sec. max for answers
-		try {
-			if (!countdown.await(10, TimeUnit.SECONDS)) {
-				pLogger.log(LogService.LOG_WARNING,
-						"Not all peers have been reached after 10 seconds.");
+			if (jdkClient != null) {
+				// Asynchronous request: no thread involved
+				try {
+					jdkClient.post(url, headers, rawContent,
+							new JdkHttpClient.Callback() {
+
+								@Override
+								public void completed(final int aStatus,
+										final byte[] aBody,
+										final Throwable aError) {
+
+									peerResult(delivery, peer, aStatus,
+											aError);
+								}
+							});
+
+				} catch (final IOException ex) {
+					peerResult(delivery, peer, 0, ex);
+				}
+
+			} else {
+				// Blocking request, in its own thread
+				try {
+					groupExecutor.execute(new Runnable() {
+
+						@Override
+						public void run() {
+
+							try {
+								peerResult(delivery, peer,
+										pool.post(url, headers, content), null);
+
+							} catch (final IOException ex) {
+								peerResult(delivery, peer, 0, ex);
+							}
+						}
+					});
+
+				} catch (final RejectedExecutionException ex) {
+					peerResult(delivery, peer, 0, ex);
+				}
 			}
-		} catch (final InterruptedException ex) {
-			pLogger.log(LogService.LOG_WARNING,
-					"Interrupted while waiting for peers to receive the message");
 		}
 
-		// Return a copy of the access peers set
-		return new LinkedHashSet<Peer>(accessedPeers);
+		return delivery;
 	}
 
 	/**
@@ -273,12 +501,19 @@ public class HttpTransport implements ITransport {
 		}
 
 		if (aPeer != null && (host == null || host.isEmpty())) {
-			// Use the peer description, if any
+			// Use the peer description, if any: its URL is computed once
 			final HTTPAccess peerAccess = (HTTPAccess) aPeer
 					.getAccess(IHttpConstants.ACCESS_ID);
-			host = peerAccess.getHost();
-			port = peerAccess.getPort();
-			path = peerAccess.getPath();
+			if (peerAccess != null && peerAccess.getHost() != null
+					&& !peerAccess.getHost().isEmpty()) {
+				try {
+					return peerAccess.getUrl();
+
+				} catch (final MalformedURLException ex) {
+					throw new InvalidPeerAccess(new Target(aPeer),
+							"Invalid access URL: " + ex);
+				}
+			}
 		}
 
 		// If we have nothing at this point, we can't compute an access
@@ -302,17 +537,147 @@ public class HttpTransport implements ITransport {
 		}
 	}
 
+	/**
+	 * Gets a bundle context / system property
+	 *
+	 * @param aKey
+	 *            Property name
+	 * @param aDefault
+	 *            Value to use if the property is missing
+	 * @return Property value, or the default one
+	 */
+	private String getProperty(final String aKey, final String aDefault) {
+
+		String value = pContext.getProperty(aKey);
+		if (value == null) {
+			// Not done in Equinox
+			value = System.getProperty(aKey);
+		}
+		return value != null ? value.trim() : aDefault;
+	}
+
+	/**
+	 * Gets an integer bundle context / system property
+	 *
+	 * @param aKey
+	 *            Property name
+	 * @param aDefault
+	 *            Value to use if the property is missing or invalid
+	 * @return Property value, or the default one
+	 */
+	private int getProperty(final String aKey, final int aDefault) {
+
+		final String value = getProperty(aKey, null);
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+
+			} catch (final NumberFormatException ex) {
+				pLogger.log(LogService.LOG_WARNING, "Invalid value for "
+						+ aKey + ": " + value);
+			}
+		}
+		return aDefault;
+	}
+
+	/**
+	 * Lets Herald core handle the reply sent by a peer in the response to a
+	 * request, if any
+	 *
+	 * @param aPeer
+	 *            The targeted peer
+	 * @param aUrl
+	 *            The URL to the targeted peer
+	 * @param aBody
+	 *            Body of the response
+	 */
+	private void handleInlineReply(final Peer aPeer, final URL aUrl,
+			final byte[] aBody) {
+
+		if (aBody.length == 0) {
+			// No reply in the response
+			return;
+		}
+
+		final MessageReceived reply;
+		try {
+			reply = MessageUtils.fromJSON(new String(aBody,
+					IHttpConstants.CHARSET_UTF8));
+
+		} catch (final UnmarshallException | IOException ex) {
+			pLogger.log(LogService.LOG_WARNING, "Invalid reply from "
+					+ aPeer + ": " + ex);
+			return;
+		}
+
+		if (reply == null) {
+			// Parse or version error: the message has still been delivered
+			pLogger.log(LogService.LOG_WARNING, "Unreadable reply from "
+					+ aPeer + ": ignored");
+			return;
+		}
+
+		// Same information as a reply posted by the peer
+		int port = aUrl.getPort();
+		final Object rawPort = reply
+				.getHeader(IHttpConstants.MESSAGE_HEADER_PORT);
+		if (rawPort != null) {
+			try {
+				port = Integer.parseInt(rawPort.toString());
+			} catch (final NumberFormatException ex) {
+				// Keep the port of the request
+			}
+		}
+		final Object path = reply
+				.getHeader(IHttpConstants.MESSAGE_HEADER_PATH);
+
+		reply.setAccess(IHttpConstants.ACCESS_ID);
+		reply.setExtra(new HTTPExtra(aUrl.getHost(), port,
+				path != null ? path.toString() : aUrl.getPath(), reply
+						.getUid()));
+		pHerald.handleMessage(reply);
+	}
+
 	/**
 	 * Component invalidated
 	 */
 	@Invalidate
 	public void invalidate() {
 
-		// Stop the thread pool
-		pExecutor.shutdownNow();
+		// Stop following the directory
+		if (pListenerRegistration != null) {
+			pListenerRegistration.unregister();
+			pListenerRegistration = null;
+		}
+
+		// Close the connections
+		if (pPoolRegistration != null) {
+			pPoolRegistration.unregister();
+			pPoolRegistration = null;
+		}
+		if (pPoolEvictor != null) {
+			pPoolEvictor.cancel();
+			pPoolEvictor = null;
+		}
+		if (pPool != null) {
+			pPool.close();
+			pPool = null;
+		}
+		pJdkClient = null;
+
+		// Stop the group requests threads
+		if (pGroupExecutor != null && pGroupExecutor != pVirtualExecutor) {
+			pGroupExecutor.shutdownNow();
+		}
+		pGroupExecutor = null;
+
+		// Stop the virtual threads
+		if (pVirtualExecutor != null) {
+			pVirtualExecutor.shutdownNow();
+		}
 
 		// Clean up
-		pExecutor = null;
+		pVirtualExecutor = null;
 		pLocalUid = null;
 		pSerializer = null;
 	}
@@ -360,6 +725,79 @@ public class HttpTransport implements ITransport {
 		return headers;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.cohorte.herald.IDirectoryListener#peerRegistered(org.cohorte.herald
+	 * .Peer)
+	 */
+	@Override
+	public void peerRegistered(final Peer aPeer) {
+
+		warmUp(aPeer.getAccess(IHttpConstants.ACCESS_ID));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.cohorte.herald.IDirectoryListener#peerUnregistered(org.cohorte.herald
+	 * .Peer)
+	 */
+	@Override
+	public void peerUnregistered(final Peer aPeer) {
+
+		closeIdle(aPeer.getAccess(IHttpConstants.ACCESS_ID));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.cohorte.herald.IDirectoryListener#peerUpdated(org.cohorte.herald.
+	 * Peer, java.lang.String, org.cohorte.herald.Access,
+	 * org.cohorte.herald.Access)
+	 */
+	@Override
+	public void peerUpdated(final Peer aPeer, final String aAccessId,
+			final Access aData, final Access aPrevious) {
+
+		if (IHttpConstants.ACCESS_ID.equals(aAccessId)) {
+			if (aPrevious != null && !aPrevious.equals(aData)) {
+				closeIdle(aPrevious);
+			}
+			warmUp(aData);
+		}
+	}
+
+	/**
+	 * Updates the delivery of a group message with the result of the request
+	 * sent to one of its peers
+	 *
+	 * @param aDelivery
+	 *            The group delivery
+	 * @param aPeer
+	 *            The targeted peer
+	 * @param aStatus
+	 *            HTTP status code of the response
+	 * @param aError
+	 *            Error sending the request (null on success)
+	 */
+	private void peerResult(final GroupDelivery aDelivery, final Peer aPeer,
+			final int aStatus, final Throwable aError) {
+
+		final HeraldException error = toError(aPeer, aStatus, aError);
+		if (error == null) {
+			aDelivery.peerReached(aPeer, IHttpConstants.ACCESS_ID);
+
+		} else {
+			pLogger.log(LogService.LOG_DEBUG, "Error posting a message to "
+					+ aPeer + ": " + error, aError);
+			aDelivery.peerFailed(aPeer, error);
+		}
+	}
+
 	/**
 	 * Sends a POST request and reads the answer
 	 *
@@ -371,97 +809,177 @@ public class HttpTransport implements ITransport {
 	 *            Request headers
 	 * @param aContent
 	 *            Body of the POST request
+	 * @return The body of the response (can be empty)
 	 * @throws HeraldException
 	 *             Error sending the request
 	 */
-	private void sendRequest(final Peer aPeer, final URL aUrl,
+	private byte[] sendRequest(final Peer aPeer, final URL aUrl,
 			final Map<String, String> aHeaders, final String aContent)
 			throws HeraldException {
 
-		// Open the connection
-		HttpURLConnection httpConnection = null;
-		try {
-			httpConnection = (HttpURLConnection) aUrl.openConnection();
-
-			// POST message
-			httpConnection.setRequestMethod("POST");
-			httpConnection.setUseCaches(false);
-			httpConnection.setDoOutput(true);
-
-			// Headers
-			for (final Entry<String, String> header : aHeaders.entrySet()) {
-				httpConnection.setRequestProperty(header.getKey(),
-						header.getValue());
-			}
+		final HttpConnectionPool pool = pPool;
+		final JdkHttpClient jdkClient = pJdkClient;
+		if (pool == null && jdkClient == null) {
+			throw new HeraldException(new Target(aPeer),
+					"HTTP transport is stopped");
+		}
 
-			// Convert the content to bytes
-			final byte[] rawContent;
-			if (aContent == null) {
-				rawContent = new byte[0];
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int responseCode = 0;
+		IOException socketError = null;
+		try {
+			final Map<String, String> headers = toRequestHeaders(aHeaders);
+			final byte[] rawContent = toRequestBody(aContent);
+			if (jdkClient != null) {
+				responseCode = jdkClient.post(aUrl, headers, rawContent, body);
 			} else {
-				rawContent = aContent.getBytes(IHttpConstants.CHARSET_UTF8);
+				responseCode = pool.post(aUrl, headers,
+						ByteBuffer.wrap(rawContent), body);
 			}
 
-			// Also add content properties headers
-			httpConnection.setRequestProperty("Content-Type",
-					IHttpConstants.CONTENT_TYPE_JSON);
-			httpConnection.setRequestProperty("Content-Encoding",
-					IHttpConstants.CHARSET_UTF8);
-			httpConnection.setRequestProperty("Content-Length",
-					Integer.toString(rawContent.length));
+		} catch (final IOException ex) {
+			socketError = ex;
+		}
 
-			// After fields, before content
-			httpConnection.connect();
+		final HeraldException error = toError(aPeer, responseCode,
+				socketError);
+		if (error != null) {
+			throw error;
+		}
+		return body.toByteArray();
+	}
 
-			// Write the event in the request body, if any
-			if (rawContent.length > 0) {
-				final OutputStream outStream = httpConnection.getOutputStream();
-				try {
-					outStream.write(rawContent);
-					outStream.flush();
-				} finally {
-					// Always be nice...
-					outStream.close();
+	/**
+	 * Sends a POST request for the given messages. With the java.net.http
+	 * client, the method returns as soon as the request is queued: the result
+	 * is given to the listener afterwards, or to Herald core if there is none.
+	 * A reply sent by the peer in the response is given to Herald core.
+	 *
+	 * @param aPeer
+	 *            The targeted peer
+	 * @param aUrl
+	 *            The URL to the targeted peer
+	 * @param aHeaders
+	 *            Request headers
+	 * @param aContent
+	 *            Body of the POST request
+	 * @param aMessageUids
+	 *            UIDs of the messages in the request
+	 * @param aListener
+	 *            Notified of the result of the delivery (can be null)
+	 * @throws HeraldException
+	 *             Error sending the request
+	 */
+	private void sendRequest(final Peer aPeer, final URL aUrl,
+			final Map<String, String> aHeaders, final String aContent,
+			final List<String> aMessageUids, final IDeliveryListener aListener)
+			throws HeraldException {
+
+		final JdkHttpClient jdkClient = pJdkClient;
+		if (jdkClient == null) {
+			// Blocking request: errors are raised
+			final byte[] body = sendRequest(aPeer, aUrl, aHeaders, aContent);
+			if (aListener != null) {
+				for (final String uid : aMessageUids) {
+					aListener.messageDelivered(aPeer, uid);
 				}
 			}
+			handleInlineReply(aPeer, aUrl, body);
+			return;
+		}
 
-			// Flush the request
-			final int responseCode = httpConnection.getResponseCode();
-			if (responseCode != HttpURLConnection.HTTP_OK) {
-				throw new HeraldException(new Target(aPeer),
-						"HTTP request failed (server error): " + responseCode);
-			}
+		try {
+			jdkClient.post(aUrl, toRequestHeaders(aHeaders),
+					toRequestBody(aContent), new JdkHttpClient.Callback() {
+
+						@Override
+						public void completed(final int aStatus,
+								final byte[] aBody, final Throwable aError) {
+
+							final HeraldException error = toError(aPeer,
+									aStatus, aError);
+							for (final String uid : aMessageUids) {
+								if (aListener == null) {
+									if (error != null) {
+										pHerald.deliveryFailed(aPeer,
+												IHttpConstants.ACCESS_ID, uid,
+												error);
+									}
+								} else if (error == null) {
+									aListener.messageDelivered(aPeer, uid);
+								} else {
+									aListener.messageFailed(aPeer, uid, error);
+								}
+							}
+
+							if (error == null) {
+								handleInlineReply(aPeer, aUrl, aBody);
+							}
+						}
+					});
 
 		} catch (final IOException ex) {
 			throw new HeraldException(new Target(aPeer),
 					"HTTP request failed (socket error): " + ex);
+		}
+	}
 
-		} finally {
-			if (httpConnection != null) {
-				// Read the whole response if needed
-				InputStream inStream;
-				try {
-					inStream = httpConnection.getInputStream();
-				} catch (IOException ex) {
-					inStream = httpConnection.getErrorStream();
-				}
+	/**
+	 * Converts the result of a request into an exception
+	 *
+	 * @param aPeer
+	 *            The targeted peer
+	 * @param aStatus
+	 *            HTTP status code of the response
+	 * @param aError
+	 *            Error sending the request (can be null)
+	 * @return The exception describing the failure, or null on success
+	 */
+	private HeraldException toError(final Peer aPeer, final int aStatus,
+			final Throwable aError) {
 
-				try {
-					while (inStream.read() > 0) {
-						// Don't care about the answer content
-					}
-				} catch (IOException ex) {
-					// Log it ?
-				} finally {
-					try {
-						// Close the stream
-						inStream.close();
-					} catch (IOException e) {
-						// Log it ?
-					}
-				}
-			}
+		if (aError != null) {
+			return new HeraldException(new Target(aPeer),
+					"HTTP request failed (socket error): " + aError);
+
+		} else if (aStatus != 200) {
+			return new HeraldException(new Target(aPeer),
+					"HTTP request failed (server error): " + aStatus);
 		}
+		return null;
+	}
+
+	/**
+	 * Converts the body of a request to bytes
+	 *
+	 * @param aContent
+	 *            Body of the request (can be null)
+	 * @return The bytes to send
+	 * @throws IOException
+	 *             Unsupported charset
+	 */
+	private byte[] toRequestBody(final String aContent) throws IOException {
+
+		if (aContent == null) {
+			return new byte[0];
+		}
+		return aContent.getBytes(IHttpConstants.CHARSET_UTF8);
+	}
+
+	/**
+	 * Adds the content properties to the headers of a request
+	 *
+	 * @param aHeaders
+	 *            Message headers
+	 * @return The request headers
+	 */
+	private Map<String, String> toRequestHeaders(
+			final Map<String, String> aHeaders) {
+
+		final Map<String, String> headers = new LinkedHashMap<>(aHeaders);
+		headers.put("Content-Type", IHttpConstants.CONTENT_TYPE_JSON);
+		headers.put("Content-Encoding", IHttpConstants.CHARSET_UTF8);
+		return headers;
 	}
 
 	/**
@@ -485,10 +1003,131 @@ public class HttpTransport implements ITransport {
 		// Store the UID of the local peer
 		pLocalUid = pDirectory.getLocalUid();
 
-		// Start the thread pool
-		pExecutor = Executors.newFixedThreadPool(5);
+		// Use virtual threads, if enabled
+		pVirtualExecutor = null;
+		if (VirtualThreads.isEnabled(pContext)) {
+			pVirtualExecutor = VirtualThreads.newExecutor();
+		}
+
+		final int connectTimeout = getProperty(
+				IHttpConstants.FWPROP_CONNECT_TIMEOUT,
+				HttpConnectionPool.DEFAULT_CONNECT_TIMEOUT);
+		final int readTimeout = getProperty(
+				IHttpConstants.FWPROP_READ_TIMEOUT,
+				HttpConnectionPool.DEFAULT_READ_TIMEOUT);
+
+		// Prepare the java.net.http client, if selected
+		pJdkClient = null;
+		if (IHttpConstants.CLIENT_JDK.equals(getProperty(
+				IHttpConstants.FWPROP_CLIENT, IHttpConstants.CLIENT_POOL))) {
+			try {
+				pJdkClient = new JdkHttpClient(connectTimeout, readTimeout);
+
+			} catch (final IOException ex) {
+				pLogger.log(LogService.LOG_WARNING,
+						"Can't use the java.net.http client, "
+								+ "using the connection pool: " + ex);
+			}
+		}
+
+		if (pJdkClient == null) {
+			// Prepare the connection pool
+			final int idleTimeout = getProperty(
+					IHttpConstants.FWPROP_POOL_IDLE_TIMEOUT,
+					(int) HttpConnectionPool.DEFAULT_IDLE_TIMEOUT);
+			pPool = new HttpConnectionPool(getProperty(
+					IHttpConstants.FWPROP_POOL_MAX_CONNECTIONS,
+					HttpConnectionPool.DEFAULT_MAX_CONNECTIONS), idleTimeout,
+					connectTimeout, readTimeout);
+
+			final int evictionPeriod = Math.max(1000, idleTimeout / 2);
+			pPoolEvictor = pTimer.scheduleAtFixedRate(new Runnable() {
+
+				@Override
+				public void run() {
+
+					pPool.evictIdle();
+				}
+			}, evictionPeriod, evictionPeriod);
+
+			final Dictionary<String, Object> properties = new Hashtable<>();
+			properties.put(IConstants.PROP_ACCESS_ID,
+					IHttpConstants.ACCESS_ID);
+			pPoolRegistration = pContext.registerService(
+					IConnectionPoolStatistics.class, pPool, properties);
+
+			// Group requests are sent all at once, each in its own thread.
+			// Those threads also open the connections in advance.
+			if (pVirtualExecutor != null) {
+				pGroupExecutor = pVirtualExecutor;
+			} else {
+				// Threads are created on demand, and stopped when idle
+				final AtomicInteger counter = new AtomicInteger();
+				pGroupExecutor = Executors
+						.newCachedThreadPool(new ThreadFactory() {
+
+							@Override
+							public Thread newThread(final Runnable aRunnable) {
+
+								final Thread thread = new Thread(aRunnable,
+										"Herald-HTTP-Group-"
+												+ counter.getAndIncrement());
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+			}
+		}
+
+		// Follow the directory to open and close connections in advance
+		pListenerRegistration = pContext.registerService(
+				IDirectoryListener.class, this, null);
 
 		// Everything is OK
 		pController = true;
 	}
+
+	/**
+	 * Opens a connection to the given HTTP access in advance, in the threads
+	 * of the group requests
+	 *
+	 * @param aAccess
+	 *            An access (can be null)
+	 */
+	private void warmUp(final Access aAccess) {
+
+		final HttpConnectionPool pool = pPool;
+		final ExecutorService executor = pGroupExecutor;
+		if (pool == null || executor == null
+				|| !(aAccess instanceof HTTPAccess)) {
+			return;
+		}
+
+		final HTTPAccess access = (HTTPAccess) aAccess;
+		if (access.getHost() == null || access.getHost().isEmpty()) {
+			return;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+
+					try {
+						final URL url = access.getUrl();
+						pool.warmUp(url.getHost(), url.getPort() != -1 ? url
+								.getPort() : url.getDefaultPort());
+
+					} catch (final IOException ex) {
+						pLogger.log(LogService.LOG_DEBUG,
+								"Error connecting " + access + ": " + ex);
+					}
+				}
+			});
+
+		} catch (final RejectedExecutionException ex) {
+			// Transport stopped
+		}
+	}
 }
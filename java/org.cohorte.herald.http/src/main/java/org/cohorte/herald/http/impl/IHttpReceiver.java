@@ -46,4 +46,17 @@ public interface IHttpReceiver {
      * @return The result of the Peer's dump() method, or null
      */
     Map<String, Object> grabPeer(String aHostAddress, int aPort, String aPath);
+
+    /**
+     * Sends a reply in the response to the request which carried the
+     * original message, if that request is still held
+     *
+     * @param aMessageUid
+     *            UID of the message the reply answers
+     * @param aContent
+     *            JSON content of the reply
+     * @return True if the reply will be sent in the response, False if it
+     *         must be posted to the sender
+     */
+    boolean replyInline(String aMessageUid, String aContent);
 }
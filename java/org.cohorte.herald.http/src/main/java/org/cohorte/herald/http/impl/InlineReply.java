@@ -0,0 +1,119 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.http.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A request held by the reception servlet until a reply to its message is
+ * given, so that the reply is sent in the response body instead of a new
+ * request to the sender
+ *
+ * @author Thomas Calmant
+ */
+final class InlineReply {
+
+    /** Signaled when the reply is given or the exchange closed */
+    private final Condition pChanged;
+
+    /** The reply can't be accepted anymore */
+    private boolean pClosed;
+
+    /** JSON content of the reply */
+    private String pContent;
+
+    /** Lock protecting the exchange */
+    private final ReentrantLock pLock = new ReentrantLock();
+
+    /**
+     * Sets up the exchange
+     */
+    InlineReply() {
+
+        pChanged = pLock.newCondition();
+    }
+
+    /**
+     * Waits for the reply, then closes the exchange: later replies are
+     * refused
+     *
+     * @param aTimeout
+     *            Maximum time to wait, in milliseconds
+     * @return The JSON content of the reply, or null
+     */
+    String await(final long aTimeout) {
+
+        pLock.lock();
+        try {
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(aTimeout);
+                while (pContent == null && !pClosed && remaining > 0) {
+                    remaining = pChanged.awaitNanos(remaining);
+                }
+
+            } catch (final InterruptedException ex) {
+                // Stop waiting
+                Thread.currentThread().interrupt();
+            }
+
+            pClosed = true;
+            return pContent;
+        } finally {
+            pLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the exchange without waiting: later replies are refused
+     */
+    void close() {
+
+        pLock.lock();
+        try {
+            pClosed = true;
+            pChanged.signalAll();
+        } finally {
+            pLock.unlock();
+        }
+    }
+
+    /**
+     * Gives the reply to send in the response body
+     *
+     * @param aContent
+     *            JSON content of the reply
+     * @return True if the reply has been accepted, False if the exchange is
+     *         closed or already has a reply
+     */
+    boolean complete(final String aContent) {
+
+        pLock.lock();
+        try {
+            if (pClosed || pContent != null) {
+                return false;
+            }
+
+            pContent = aContent;
+            pChanged.signalAll();
+            return true;
+        } finally {
+            pLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,458 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.http.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous HTTP client based on the java.net.http.HttpClient of the JVM,
+ * when available (Java 11+).
+ *
+ * Herald is compiled for Java 7: the client is used by reflection. It prefers
+ * HTTP/2, negotiated in clear text (h2c) when the peer supports it, so that
+ * concurrent requests to a peer share a single connection; it falls back to
+ * HTTP/1.1 otherwise.
+ *
+ * @author Thomas Calmant
+ */
+final class JdkHttpClient {
+
+	/**
+	 * Notified of the end of a request
+	 */
+	interface Callback {
+
+		/**
+		 * The request has been answered or failed
+		 *
+		 * @param aStatus
+		 *            The HTTP status code of the response (0 on error)
+		 * @param aBody
+		 *            The body of the response (empty on error)
+		 * @param aError
+		 *            The error which occurred, or null
+		 */
+		void completed(int aStatus, byte[] aBody, Throwable aError);
+	}
+
+	/** The java.util.function.BiConsumer interface */
+	private static final Class<?> BI_CONSUMER;
+
+	/** HttpResponse.BodyHandlers.ofByteArray() */
+	private static final Method BODY_HANDLER_OF_BYTE_ARRAY;
+
+	/** HttpRequest.BodyPublishers.ofByteArray(byte[]) */
+	private static final Method BODY_OF_BYTE_ARRAY;
+
+	/** HttpClient.Builder.build() */
+	private static final Method CLIENT_BUILD;
+
+	/** HttpClient.Builder.connectTimeout(Duration) */
+	private static final Method CLIENT_CONNECT_TIMEOUT;
+
+	/** HttpClient.Builder.version(HttpClient.Version) */
+	private static final Method CLIENT_VERSION;
+
+	/** Duration.ofMillis(long) */
+	private static final Method DURATION_OF_MILLIS;
+
+	/** HttpClient.Version.HTTP_2 */
+	private static final Object HTTP_2;
+
+	/** Body of the failed requests */
+	private static final byte[] NO_BODY = new byte[0];
+
+	/** HttpClient.newBuilder() */
+	private static final Method NEW_CLIENT_BUILDER;
+
+	/** HttpRequest.newBuilder(URI) */
+	private static final Method NEW_REQUEST_BUILDER;
+
+	/** HttpRequest.Builder.build() */
+	private static final Method REQUEST_BUILD;
+
+	/** HttpRequest.Builder.header(String, String) */
+	private static final Method REQUEST_HEADER;
+
+	/** HttpRequest.Builder.POST(BodyPublisher) */
+	private static final Method REQUEST_POST;
+
+	/** HttpRequest.Builder.timeout(Duration) */
+	private static final Method REQUEST_TIMEOUT;
+
+	/** HttpResponse.body() */
+	private static final Method RESPONSE_BODY;
+
+	/** HttpClient.sendAsync(HttpRequest, BodyHandler) */
+	private static final Method SEND_ASYNC;
+
+	/** HttpResponse.statusCode() */
+	private static final Method STATUS_CODE;
+
+	/** CompletableFuture.whenComplete(BiConsumer) */
+	private static final Method WHEN_COMPLETE;
+
+	static {
+		Method newClientBuilder = null;
+		Method clientVersion = null;
+		Method clientConnectTimeout = null;
+		Method clientBuild = null;
+		Object http2 = null;
+		Method newRequestBuilder = null;
+		Method requestTimeout = null;
+		Method requestHeader = null;
+		Method requestPost = null;
+		Method requestBuild = null;
+		Method bodyOfByteArray = null;
+		Method bodyHandlerOfByteArray = null;
+		Method sendAsync = null;
+		Method statusCode = null;
+		Method responseBody = null;
+		Method durationOfMillis = null;
+		Method whenComplete = null;
+		Class<?> biConsumer = null;
+		try {
+			final Class<?> clientClass = Class
+					.forName("java.net.http.HttpClient");
+			final Class<?> clientBuilderClass = Class
+					.forName("java.net.http.HttpClient$Builder");
+			final Class<?> versionClass = Class
+					.forName("java.net.http.HttpClient$Version");
+			final Class<?> requestClass = Class
+					.forName("java.net.http.HttpRequest");
+			final Class<?> requestBuilderClass = Class
+					.forName("java.net.http.HttpRequest$Builder");
+			final Class<?> publisherClass = Class
+					.forName("java.net.http.HttpRequest$BodyPublisher");
+			final Class<?> handlerClass = Class
+					.forName("java.net.http.HttpResponse$BodyHandler");
+			final Class<?> durationClass = Class.forName("java.time.Duration");
+			final Class<?> futureClass = Class
+					.forName("java.util.concurrent.CompletableFuture");
+			biConsumer = Class.forName("java.util.function.BiConsumer");
+
+			newClientBuilder = clientClass.getMethod("newBuilder");
+			clientVersion = clientBuilderClass.getMethod("version",
+					versionClass);
+			clientConnectTimeout = clientBuilderClass.getMethod(
+					"connectTimeout", durationClass);
+			clientBuild = clientBuilderClass.getMethod("build");
+			http2 = versionClass.getField("HTTP_2").get(null);
+
+			newRequestBuilder = requestClass.getMethod("newBuilder",
+					java.net.URI.class);
+			requestTimeout = requestBuilderClass.getMethod("timeout",
+					durationClass);
+			requestHeader = requestBuilderClass.getMethod("header",
+					String.class, String.class);
+			requestPost = requestBuilderClass.getMethod("POST",
+					publisherClass);
+			requestBuild = requestBuilderClass.getMethod("build");
+
+			bodyOfByteArray = Class.forName(
+					"java.net.http.HttpRequest$BodyPublishers").getMethod(
+					"ofByteArray", byte[].class);
+			bodyHandlerOfByteArray = Class.forName(
+					"java.net.http.HttpResponse$BodyHandlers").getMethod(
+					"ofByteArray");
+			sendAsync = clientClass.getMethod("sendAsync", requestClass,
+					handlerClass);
+			final Class<?> responseClass = Class
+					.forName("java.net.http.HttpResponse");
+			statusCode = responseClass.getMethod("statusCode");
+			responseBody = responseClass.getMethod("body");
+
+			durationOfMillis = durationClass.getMethod("ofMillis", long.class);
+			whenComplete = futureClass.getMethod("whenComplete", biConsumer);
+
+		} catch (final ReflectiveOperationException ex) {
+			// java.net.http not available
+			newClientBuilder = null;
+		}
+
+		NEW_CLIENT_BUILDER = newClientBuilder;
+		CLIENT_VERSION = clientVersion;
+		CLIENT_CONNECT_TIMEOUT = clientConnectTimeout;
+		CLIENT_BUILD = clientBuild;
+		HTTP_2 = http2;
+		NEW_REQUEST_BUILDER = newRequestBuilder;
+		REQUEST_TIMEOUT = requestTimeout;
+		REQUEST_HEADER = requestHeader;
+		REQUEST_POST = requestPost;
+		REQUEST_BUILD = requestBuild;
+		BODY_OF_BYTE_ARRAY = bodyOfByteArray;
+		BODY_HANDLER_OF_BYTE_ARRAY = bodyHandlerOfByteArray;
+		SEND_ASYNC = sendAsync;
+		STATUS_CODE = statusCode;
+		RESPONSE_BODY = responseBody;
+		DURATION_OF_MILLIS = durationOfMillis;
+		WHEN_COMPLETE = whenComplete;
+		BI_CONSUMER = biConsumer;
+	}
+
+	/**
+	 * Checks if the JVM provides java.net.http
+	 *
+	 * @return True if the client can be used
+	 */
+	static boolean isSupported() {
+
+		return NEW_CLIENT_BUILDER != null;
+	}
+
+	/**
+	 * Converts an exception thrown by a method called by reflection
+	 *
+	 * @param aException
+	 *            The reflection exception
+	 * @return An I/O exception
+	 */
+	private static IOException toIOException(
+			final ReflectiveOperationException aException) {
+
+		Throwable cause = aException;
+		if (aException instanceof InvocationTargetException) {
+			cause = aException.getCause();
+		}
+
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		return new IOException("Error calling the HTTP client: " + cause,
+				cause);
+	}
+
+	/** The java.net.http.HttpClient */
+	private final Object pClient;
+
+	/** Maximum time to wait for a blocking request (milliseconds) */
+	private final long pMaxWait;
+
+	/** The timeout of a request (java.time.Duration) */
+	private final Object pRequestTimeout;
+
+	/**
+	 * Sets up the client
+	 *
+	 * @param aConnectTimeout
+	 *            Connection timeout (milliseconds)
+	 * @param aReadTimeout
+	 *            Time to wait for a response (milliseconds)
+	 * @throws IOException
+	 *             java.net.http is not available
+	 */
+	JdkHttpClient(final int aConnectTimeout, final int aReadTimeout)
+			throws IOException {
+
+		if (!isSupported()) {
+			throw new IOException("java.net.http is not available");
+		}
+
+		try {
+			Object builder = NEW_CLIENT_BUILDER.invoke(null);
+			builder = CLIENT_VERSION.invoke(builder, HTTP_2);
+			builder = CLIENT_CONNECT_TIMEOUT.invoke(builder,
+					DURATION_OF_MILLIS.invoke(null, (long) aConnectTimeout));
+			pClient = CLIENT_BUILD.invoke(builder);
+			pRequestTimeout = DURATION_OF_MILLIS.invoke(null,
+					(long) aReadTimeout);
+
+		} catch (final ReflectiveOperationException ex) {
+			throw toIOException(ex);
+		}
+
+		pMaxWait = aConnectTimeout + aReadTimeout;
+	}
+
+	/**
+	 * Posts a request and waits for its response
+	 *
+	 * @param aUrl
+	 *            URL to the peer
+	 * @param aHeaders
+	 *            Request headers
+	 * @param aContent
+	 *            Body of the request
+	 * @param aBody
+	 *            Receives the body of the response (can be null)
+	 * @return The HTTP status code of the response
+	 * @throws IOException
+	 *             Error sending the request or reading the response
+	 */
+	int post(final URL aUrl, final Map<String, String> aHeaders,
+			final byte[] aContent, final OutputStream aBody)
+			throws IOException {
+
+		final CountDownLatch done = new CountDownLatch(1);
+		final int[] status = { 0 };
+		final byte[][] body = { null };
+		final Throwable[] error = { null };
+		post(aUrl, aHeaders, aContent, new Callback() {
+
+			@Override
+			public void completed(final int aStatus, final byte[] aBody,
+					final Throwable aError) {
+
+				status[0] = aStatus;
+				body[0] = aBody;
+				error[0] = aError;
+				done.countDown();
+			}
+		});
+
+		try {
+			if (!done.await(pMaxWait, TimeUnit.MILLISECONDS)) {
+				throw new IOException("No HTTP response after " + pMaxWait
+						+ " ms");
+			}
+
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a response");
+		}
+
+		if (error[0] instanceof IOException) {
+			throw (IOException) error[0];
+		} else if (error[0] != null) {
+			throw new IOException("HTTP request failed: " + error[0],
+					error[0]);
+		}
+
+		if (aBody != null) {
+			aBody.write(body[0]);
+		}
+		return status[0];
+	}
+
+	/**
+	 * Posts a request without waiting for its response: the callback is
+	 * notified from a thread of the HTTP client
+	 *
+	 * @param aUrl
+	 *            URL to the peer
+	 * @param aHeaders
+	 *            Request headers
+	 * @param aContent
+	 *            Body of the request
+	 * @param aCallback
+	 *            Notified of the response or of the error
+	 * @throws IOException
+	 *             Error preparing the request
+	 */
+	void post(final URL aUrl, final Map<String, String> aHeaders,
+			final byte[] aContent, final Callback aCallback)
+			throws IOException {
+
+		// Proxy of the BiConsumer given to CompletableFuture.whenComplete()
+		final Object consumer = Proxy.newProxyInstance(
+				JdkHttpClient.class.getClassLoader(),
+				new Class<?>[] { BI_CONSUMER }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object aProxy,
+							final Method aMethod, final Object[] aArgs) {
+
+						switch (aMethod.getName()) {
+						case "accept":
+							completed(aArgs[0], (Throwable) aArgs[1],
+									aCallback);
+							return null;
+
+						case "equals":
+							return aProxy == aArgs[0];
+
+						case "hashCode":
+							return System.identityHashCode(aProxy);
+
+						default:
+							return "JdkHttpClient callback";
+						}
+					}
+				});
+
+		try {
+			Object builder = NEW_REQUEST_BUILDER.invoke(null, aUrl.toURI());
+			builder = REQUEST_TIMEOUT.invoke(builder, pRequestTimeout);
+			for (final Entry<String, String> header : aHeaders.entrySet()) {
+				builder = REQUEST_HEADER.invoke(builder, header.getKey(),
+						header.getValue());
+			}
+			builder = REQUEST_POST.invoke(builder,
+					BODY_OF_BYTE_ARRAY.invoke(null, (Object) aContent));
+
+			final Object future = SEND_ASYNC.invoke(pClient,
+					REQUEST_BUILD.invoke(builder),
+					BODY_HANDLER_OF_BYTE_ARRAY.invoke(null));
+			WHEN_COMPLETE.invoke(future, consumer);
+
+		} catch (final URISyntaxException ex) {
+			throw new IOException("Invalid URL: " + aUrl, ex);
+
+		} catch (final ReflectiveOperationException ex) {
+			throw toIOException(ex);
+		}
+	}
+
+	/**
+	 * Notifies the callback of the end of a request
+	 *
+	 * @param aResponse
+	 *            The HttpResponse, or null
+	 * @param aError
+	 *            The error, or null
+	 * @param aCallback
+	 *            The callback to notify
+	 */
+	private void completed(final Object aResponse, final Throwable aError,
+			final Callback aCallback) {
+
+		if (aError != null) {
+			// Errors are wrapped in a CompletionException
+			final Throwable cause = aError.getCause();
+			aCallback.completed(0, NO_BODY, cause != null ? cause : aError);
+			return;
+		}
+
+		int status;
+		byte[] body;
+		Throwable error = null;
+		try {
+			status = (Integer) STATUS_CODE.invoke(aResponse);
+			body = (byte[]) RESPONSE_BODY.invoke(aResponse);
+			if (body == null) {
+				body = NO_BODY;
+			}
+
+		} catch (final ReflectiveOperationException ex) {
+			status = 0;
+			body = NO_BODY;
+			error = toIOException(ex);
+		}
+		aCallback.completed(status, body, error);
+	}
+}
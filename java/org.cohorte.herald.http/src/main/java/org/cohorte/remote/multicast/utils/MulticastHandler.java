@@ -67,6 +67,9 @@ public class MulticastHandler {
     /** The listeners invocation thread "pool" */
     private ExecutorService pExecutor;
 
+    /** The executor given by the owner of the handler (can be null) */
+    private final ExecutorService pGivenExecutor;
+
     /** Joined group on different interfaces */
     private final List<MembershipKey> pJoinedGroups = new LinkedList<>();
 
@@ -100,9 +103,31 @@ public class MulticastHandler {
     public MulticastHandler(final IPacketListener aListener,
             final InetAddress aAddress, final int aPort) {
 
+        this(aListener, aAddress, aPort, null);
+    }
+
+    /**
+     * Sets up the receiver
+     *
+     * @param aListener
+     *            The multicast packets listener
+     * @param aAddress
+     *            A multicast group address
+     * @param aPort
+     *            A socket port
+     * @param aExecutor
+     *            The executor used to notify the listener (for example, a
+     *            virtual thread per task executor). It will be shut down by
+     *            {@link #stop()}. If null, a single thread is used.
+     */
+    public MulticastHandler(final IPacketListener aListener,
+            final InetAddress aAddress, final int aPort,
+            final ExecutorService aExecutor) {
+
         pListener = aListener;
         pAddress = aAddress;
         pPort = aPort;
+        pGivenExecutor = aExecutor;
     }
 
     /**
@@ -423,7 +448,11 @@ public class MulticastHandler {
         });
 
         // Start the listener notifier
-        pExecutor = Executors.newFixedThreadPool(1);
+        if (pGivenExecutor != null) {
+            pExecutor = pGivenExecutor;
+        } else {
+            pExecutor = Executors.newFixedThreadPool(1);
+        }
 
         // Start the thread
         pThreadRun = true;
@@ -0,0 +1,34 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.local;
+
+/**
+ * Constants used by the local (in-JVM) transport implementation
+ *
+ * @author Thomas Calmant
+ */
+public interface ILocalConstants {
+
+    /** Access ID used by the local transport implementation */
+    String ACCESS_ID = "local";
+
+    /**
+     * Name of the platform MBean holding the registry of the Herald peers of
+     * the JVM
+     */
+    String REGISTRY_MBEAN = "org.cohorte.herald.local:type=Registry";
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.local;
+
+import org.cohorte.herald.Access;
+
+/**
+ * Description of a local access: the peer runs in the same JVM and is found
+ * by its UID in the local registry
+ *
+ * @author Thomas Calmant
+ */
+public class LocalAccess extends Access {
+
+    /**
+     * Creates a bean from the result {@link #dump()}
+     *
+     * @param aDump
+     *            The result of {@link #dump()}
+     * @return The created bean, or null
+     */
+    public static LocalAccess load(final Object aDump) {
+
+        if (aDump instanceof String && !((String) aDump).isEmpty()) {
+            return new LocalAccess((String) aDump);
+        }
+
+        // Unreadable content
+        return null;
+    }
+
+    /** UID of the peer in the local registry */
+    private final String pPeerUid;
+
+    /**
+     * Sets up the access
+     *
+     * @param aPeerUid
+     *            UID of the peer in the local registry
+     */
+    public LocalAccess(final String aPeerUid) {
+
+        pPeerUid = aPeerUid;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    @Override
+    public int compareTo(final Access aOther) {
+
+        if (aOther instanceof LocalAccess) {
+            return pPeerUid.compareTo(((LocalAccess) aOther).pPeerUid);
+        }
+
+        // Can't compare
+        return 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.herald.Access#dump()
+     */
+    @Override
+    public Object dump() {
+
+        return pPeerUid;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(final Object aObj) {
+
+        if (aObj instanceof LocalAccess) {
+            return pPeerUid.equals(((LocalAccess) aObj).pPeerUid);
+        }
+
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.herald.Access#getAccessId()
+     */
+    @Override
+    public String getAccessId() {
+
+        return ILocalConstants.ACCESS_ID;
+    }
+
+    /**
+     * Retrieves the UID of the peer in the local registry
+     *
+     * @return the peer UID
+     */
+    public String getPeerUid() {
+
+        return pPeerUid;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+
+        return pPeerUid.hashCode();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+
+        return "local://" + pPeerUid;
+    }
+}
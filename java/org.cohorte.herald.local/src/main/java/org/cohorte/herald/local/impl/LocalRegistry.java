@@ -0,0 +1,369 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.local.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.modelmbean.DescriptorSupport;
+import javax.management.modelmbean.ModelMBeanAttributeInfo;
+import javax.management.modelmbean.ModelMBeanInfoSupport;
+import javax.management.modelmbean.RequiredModelMBean;
+
+import org.cohorte.herald.local.ILocalConstants;
+
+/**
+ * Access to the registry of the Herald peers of the JVM.
+ *
+ * The peers of a JVM can be hosted by different OSGi frameworks, which don't
+ * share the classes of this bundle, so the registry only contains JDK types:
+ * it associates the UID of each peer to its inbox, a {@link Queue} which
+ * hands the envelopes it is offered to the peer. An envelope is a map of JDK
+ * types (maps, lists, arrays, strings, numbers, ...), copied by the sender.
+ *
+ * The registry is published by a {@link RequiredModelMBean} of the platform
+ * MBean server, as the default value of its "Registry" attribute: that MBean
+ * and its descriptors are JDK classes, visible from all the frameworks, and
+ * the MBean server returns the registry itself to local callers. The
+ * registry map is also the lock shared by the frameworks to join and leave
+ * it; the MBean is unregistered when the last peer leaves, so that it
+ * doesn't keep the class loader of a stopped framework.
+ *
+ * @author Thomas Calmant
+ */
+final class LocalRegistry {
+
+	/** Envelope entry: content of the message */
+	static final String KEY_CONTENT = "content";
+
+	/** Envelope entry: description of the sender peer (hello, welcome) */
+	static final String KEY_DESCRIPTION = "description";
+
+	/** Envelope entry: headers of the message */
+	static final String KEY_HEADERS = "headers";
+
+	/** Envelope entry: message as a JSON string, when it can't be copied */
+	static final String KEY_JSON = "json";
+
+	/** Envelope entry: kind of envelope */
+	static final String KEY_KIND = "kind";
+
+	/** Envelope entry: metadata of the message */
+	static final String KEY_METADATA = "metadata";
+
+	/** Envelope entry: subject of the message */
+	static final String KEY_SUBJECT = "subject";
+
+	/** Envelope entry: UID of the peer leaving the registry (bye) */
+	static final String KEY_UID = "uid";
+
+	/** Envelope kind: a peer left the registry */
+	static final String KIND_BYE = "bye";
+
+	/** Envelope kind: a peer joined the registry */
+	static final String KIND_HELLO = "hello";
+
+	/** Envelope kind: a Herald message */
+	static final String KIND_MESSAGE = "message";
+
+	/** Envelope kind: answer of a peer to a hello */
+	static final String KIND_WELCOME = "welcome";
+
+	/** Result of {@link #copy(Object)} for values which can't be copied */
+	static final Object NOT_COPYABLE = new Object();
+
+	/** Attribute of the registry MBean giving the registry */
+	private static final String REGISTRY_ATTRIBUTE = "Registry";
+
+	/**
+	 * Returns a copy of the given value, made of JDK types only. Immutable
+	 * values (strings, numbers, ...) are returned as is.
+	 *
+	 * @param aValue
+	 *            A value
+	 * @return A copy of the value, or {@link #NOT_COPYABLE} if it contains a
+	 *         type which is not known to be shareable
+	 */
+	static Object copy(final Object aValue) {
+
+		if (aValue == null || aValue instanceof String
+				|| aValue instanceof Boolean || aValue instanceof Character
+				|| aValue instanceof Integer || aValue instanceof Long
+				|| aValue instanceof Double || aValue instanceof Float
+				|| aValue instanceof Short || aValue instanceof Byte
+				|| aValue instanceof BigInteger
+				|| aValue instanceof BigDecimal) {
+			// Immutable
+			return aValue;
+
+		} else if (aValue instanceof Map) {
+			final Map<Object, Object> copy = new LinkedHashMap<>();
+			for (final Entry<?, ?> entry : ((Map<?, ?>) aValue).entrySet()) {
+				final Object key = copy(entry.getKey());
+				final Object value = copy(entry.getValue());
+				if (key == NOT_COPYABLE || value == NOT_COPYABLE) {
+					return NOT_COPYABLE;
+				}
+				copy.put(key, value);
+			}
+			return copy;
+
+		} else if (aValue instanceof Collection) {
+			final Collection<Object> copy;
+			if (aValue instanceof Set) {
+				copy = new LinkedHashSet<>();
+			} else {
+				copy = new ArrayList<>(((Collection<?>) aValue).size());
+			}
+			for (final Object item : (Collection<?>) aValue) {
+				final Object value = copy(item);
+				if (value == NOT_COPYABLE) {
+					return NOT_COPYABLE;
+				}
+				copy.add(value);
+			}
+			return copy;
+
+		} else if (aValue.getClass().isArray()) {
+			final Class<?> componentType = aValue.getClass()
+					.getComponentType();
+			if (componentType.getClassLoader() != null) {
+				// Array of application objects
+				return NOT_COPYABLE;
+			}
+
+			final int length = Array.getLength(aValue);
+			final Object copy = Array.newInstance(componentType, length);
+			if (componentType.isPrimitive()) {
+				System.arraycopy(aValue, 0, copy, 0, length);
+				return copy;
+			}
+
+			for (int i = 0; i < length; i++) {
+				final Object value = copy(Array.get(aValue, i));
+				if (value == NOT_COPYABLE) {
+					return NOT_COPYABLE;
+				}
+				Array.set(copy, i, value);
+			}
+			return copy;
+		}
+
+		// Unknown type: its class might not be visible from the other peers
+		return NOT_COPYABLE;
+	}
+
+	/**
+	 * Retrieves the registry published in the MBean server
+	 *
+	 * @param aServer
+	 *            The platform MBean server
+	 * @param aName
+	 *            Name of the registry MBean
+	 * @return The registry, or null if it isn't published
+	 * @throws IllegalStateException
+	 *             Error reading the MBean
+	 */
+	@SuppressWarnings("unchecked")
+	private static ConcurrentMap<String, Queue<Object>> findRegistry(
+			final MBeanServer aServer, final ObjectName aName) {
+
+		try {
+			return (ConcurrentMap<String, Queue<Object>>) aServer
+					.getAttribute(aName, REGISTRY_ATTRIBUTE);
+
+		} catch (final InstanceNotFoundException ex) {
+			// Not published yet, or unregistered by the last peer
+			return null;
+
+		} catch (final JMException ex) {
+			throw new IllegalStateException(
+					"Can't read the local peers registry MBean", ex);
+		}
+	}
+
+	/**
+	 * Retrieves the registry published in the MBean server, publishing a new
+	 * one if necessary
+	 *
+	 * @param aServer
+	 *            The platform MBean server
+	 * @param aName
+	 *            Name of the registry MBean
+	 * @return The registry
+	 * @throws IllegalStateException
+	 *             Error reading or registering the MBean
+	 */
+	private static ConcurrentMap<String, Queue<Object>> getRegistry(
+			final MBeanServer aServer, final ObjectName aName) {
+
+		while (true) {
+			final ConcurrentMap<String, Queue<Object>> found = findRegistry(
+					aServer, aName);
+			if (found != null) {
+				return found;
+			}
+
+			final ConcurrentMap<String, Queue<Object>> registry =
+					new ConcurrentHashMap<>();
+			try {
+				// Only JDK classes: no framework class loader is kept
+				final DescriptorSupport descriptor = new DescriptorSupport(
+						new String[] { "name=" + REGISTRY_ATTRIBUTE,
+								"descriptorType=attribute" });
+				descriptor.setField("default", registry);
+
+				final ModelMBeanAttributeInfo attribute =
+						new ModelMBeanAttributeInfo(REGISTRY_ATTRIBUTE,
+								ConcurrentMap.class.getName(),
+								"Peer UID -> Inbox", true, false, false,
+								descriptor);
+				aServer.registerMBean(new RequiredModelMBean(
+						new ModelMBeanInfoSupport(RequiredModelMBean.class
+								.getName(), "Herald local peers registry",
+								new ModelMBeanAttributeInfo[] { attribute },
+								null, null, null)), aName);
+				return registry;
+
+			} catch (final InstanceAlreadyExistsException ex) {
+				// Published by another framework in the meantime: use it
+
+			} catch (final JMException ex) {
+				throw new IllegalStateException(
+						"Can't register the local peers registry MBean", ex);
+			}
+		}
+	}
+
+	/**
+	 * Returns the name of the registry MBean
+	 *
+	 * @return The name of the registry MBean
+	 * @throws IllegalStateException
+	 *             Invalid MBean name
+	 */
+	private static ObjectName getRegistryName() {
+
+		try {
+			return new ObjectName(ILocalConstants.REGISTRY_MBEAN);
+
+		} catch (final JMException ex) {
+			throw new IllegalStateException("Invalid registry MBean name", ex);
+		}
+	}
+
+	/**
+	 * Adds a peer to the registry of the JVM, creating the registry if
+	 * necessary
+	 *
+	 * @param aUid
+	 *            UID of the peer
+	 * @param aInbox
+	 *            Inbox of the peer
+	 * @return The registry: peer UID -&gt; inbox
+	 * @throws IllegalStateException
+	 *             The registry MBean can't be accessed
+	 */
+	static ConcurrentMap<String, Queue<Object>> join(final String aUid,
+			final Queue<Object> aInbox) {
+
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = getRegistryName();
+		while (true) {
+			final ConcurrentMap<String, Queue<Object>> registry = getRegistry(
+					server, name);
+
+			// The registry is the lock shared by all frameworks
+			synchronized (registry) {
+				if (registry == findRegistry(server, name)) {
+					registry.put(aUid, aInbox);
+					return registry;
+				}
+			}
+
+			// The last peer left in the meantime: use a new registry
+		}
+	}
+
+	/**
+	 * Removes a peer from the registry of the JVM. The registry MBean is
+	 * unregistered once the registry is empty.
+	 *
+	 * @param aRegistry
+	 *            The registry returned by {@link #join(String, Queue)}
+	 * @param aUid
+	 *            UID of the peer
+	 * @param aInbox
+	 *            Inbox of the peer
+	 */
+	static void leave(final ConcurrentMap<String, Queue<Object>> aRegistry,
+			final String aUid, final Queue<Object> aInbox) {
+
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = getRegistryName();
+		synchronized (aRegistry) {
+			aRegistry.remove(aUid, aInbox);
+			if (aRegistry.isEmpty()
+					&& aRegistry == findRegistry(server, name)) {
+				try {
+					server.unregisterMBean(name);
+
+				} catch (final JMException ex) {
+					// Already unregistered
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prepares an envelope
+	 *
+	 * @param aKind
+	 *            Kind of envelope
+	 * @return The envelope, to be filled
+	 */
+	static Map<String, Object> makeEnvelope(final String aKind) {
+
+		final Map<String, Object> envelope = new LinkedHashMap<>();
+		envelope.put(KEY_KIND, aKind);
+		return envelope;
+	}
+
+	/**
+	 * Hidden constructor
+	 */
+	private LocalRegistry() {
+
+	}
+}
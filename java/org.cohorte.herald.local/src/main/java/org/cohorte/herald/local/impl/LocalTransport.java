@@ -0,0 +1,523 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.local.impl;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.ServiceProperty;
+import org.apache.felix.ipojo.annotations.Validate;
+import org.cohorte.herald.Access;
+import org.cohorte.herald.HeraldException;
+import org.cohorte.herald.IConstants;
+import org.cohorte.herald.IDirectory;
+import org.cohorte.herald.IHeraldInternal;
+import org.cohorte.herald.ITransport;
+import org.cohorte.herald.InvalidPeerAccess;
+import org.cohorte.herald.Message;
+import org.cohorte.herald.MessageReceived;
+import org.cohorte.herald.Overloaded;
+import org.cohorte.herald.Peer;
+import org.cohorte.herald.Target;
+import org.cohorte.herald.UnknownPeer;
+import org.cohorte.herald.ValueError;
+import org.cohorte.herald.core.utils.MessageUtils;
+import org.cohorte.herald.local.ILocalConstants;
+import org.cohorte.herald.local.LocalAccess;
+import org.cohorte.herald.local.LocalExtra;
+import org.jabsorb.ng.serializer.MarshallException;
+import org.jabsorb.ng.serializer.UnmarshallException;
+import org.osgi.service.log.LogService;
+
+/**
+ * Local (in-JVM) transport for Herald: messages are handed over directly to
+ * the peers of the same JVM, found in the local registry, without
+ * serialization nor socket. Their content is copied, so that the sender and
+ * the receiver never share a mutable object.
+ *
+ * @author Thomas Calmant
+ */
+@Component
+@Provides(specifications = ITransport.class)
+@Instantiate(name = "herald-local-transport")
+public class LocalTransport implements ITransport {
+
+	/**
+	 * The inbox of the local peer: envelopes offered by the other peers are
+	 * handed to Herald in the caller thread, nothing is kept in the queue.
+	 */
+	private class Inbox extends AbstractQueue<Object> {
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractCollection#iterator()
+		 */
+		@Override
+		public Iterator<Object> iterator() {
+
+			return Collections.emptyIterator();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.Queue#offer(java.lang.Object)
+		 */
+		@Override
+		public boolean offer(final Object aEnvelope) {
+
+			// Refuse envelopes once the transport is invalidated
+			return pInbox == this && receive(aEnvelope);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.Queue#peek()
+		 */
+		@Override
+		public Object peek() {
+
+			return null;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.Queue#poll()
+		 */
+		@Override
+		public Object poll() {
+
+			return null;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.AbstractCollection#size()
+		 */
+		@Override
+		public int size() {
+
+			return 0;
+		}
+	}
+
+	/** Access ID property */
+	@ServiceProperty(name = IConstants.PROP_ACCESS_ID, value = ILocalConstants.ACCESS_ID)
+	private String pAccessId;
+
+	/** Herald core directory */
+	@Requires
+	private IDirectory pDirectory;
+
+	/** Herald core service */
+	@Requires
+	private IHeraldInternal pHerald;
+
+	/** The inbox of the local peer, null when invalidated */
+	private volatile Inbox pInbox;
+
+	/** Local peer UID */
+	private String pLocalUid;
+
+	/** The log service */
+	@Requires(optional = true)
+	private LogService pLogger;
+
+	/** The registry of the peers of the JVM */
+	private ConcurrentMap<String, Queue<Object>> pRegistry;
+
+	/**
+	 * Sends an envelope to all the other peers of the registry
+	 *
+	 * @param aEnvelope
+	 *            The envelope to send
+	 */
+	private void broadcast(final Map<String, Object> aEnvelope) {
+
+		for (final Entry<String, Queue<Object>> entry : pRegistry.entrySet()) {
+			if (!entry.getKey().equals(pLocalUid)) {
+				// Each peer gets its own copy
+				entry.getValue().offer(LocalRegistry.copy(aEnvelope));
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.ITransport#fire(org.cohorte.herald.Peer,
+	 * org.cohorte.herald.Message)
+	 */
+	@Override
+	public void fire(final Peer aPeer, final Message aMessage)
+			throws HeraldException {
+
+		fire(aPeer, aMessage, null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.ITransport#fire(org.cohorte.herald.Peer,
+	 * org.cohorte.herald.Message, java.lang.Object)
+	 */
+	@Override
+	public void fire(final Peer aPeer, final Message aMessage,
+			final Object aExtra) throws HeraldException {
+
+		// Compute parent UID and sender, in case of reply
+		String parentUid = null;
+		String targetUid = null;
+		if (aExtra instanceof LocalExtra) {
+			parentUid = ((LocalExtra) aExtra).getParentUid();
+			targetUid = ((LocalExtra) aExtra).getSenderUid();
+		}
+
+		if (aPeer != null) {
+			// Use the peer description, if any
+			final Access access = aPeer.getAccess(ILocalConstants.ACCESS_ID);
+			if (access instanceof LocalAccess) {
+				targetUid = ((LocalAccess) access).getPeerUid();
+			}
+		}
+
+		if (targetUid == null) {
+			throw new InvalidPeerAccess(new Target(aPeer), "No "
+					+ ILocalConstants.ACCESS_ID + " access found");
+		}
+
+		aMessage.addHeader(Message.MESSAGE_HEADER_SENDER_UID, pLocalUid);
+		aMessage.addHeader(Message.MESSAGE_HEADER_TARGET_PEER, targetUid);
+		if (parentUid != null && !parentUid.isEmpty()) {
+			aMessage.addHeader(Message.MESSAGE_HEADER_REPLIES_TO, parentUid);
+		}
+
+		send(targetUid, aMessage);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.ITransport#fireGroup(java.lang.String,
+	 * java.util.Collection, org.cohorte.herald.Message)
+	 */
+	@Override
+	public Collection<Peer> fireGroup(final String aGroup,
+			final Collection<Peer> aPeers, final Message aMessage)
+			throws HeraldException {
+
+		aMessage.addHeader(Message.MESSAGE_HEADER_SENDER_UID, pLocalUid);
+		aMessage.addHeader(Message.MESSAGE_HEADER_TARGET_GROUP, aGroup);
+
+		// Hand the message to each peer: this doesn't block
+		final Set<Peer> accessedPeers = new LinkedHashSet<>();
+		for (final Peer peer : aPeers) {
+			final Access access = peer.getAccess(ILocalConstants.ACCESS_ID);
+			if (!(access instanceof LocalAccess)) {
+				// No local access description
+				pLogger.log(LogService.LOG_DEBUG, "No "
+						+ ILocalConstants.ACCESS_ID + " access found for "
+						+ peer);
+				continue;
+			}
+
+			try {
+				send(((LocalAccess) access).getPeerUid(), aMessage);
+				accessedPeers.add(peer);
+
+			} catch (final HeraldException ex) {
+				pLogger.log(LogService.LOG_DEBUG, "Error posting a message to "
+						+ peer + ": " + ex, ex);
+			}
+		}
+
+		return accessedPeers;
+	}
+
+	/**
+	 * Lets Herald handle the message described by the given envelope
+	 *
+	 * @param aEnvelope
+	 *            A message envelope
+	 * @throws Overloaded
+	 *             The message has been refused by Herald core
+	 */
+	@SuppressWarnings("unchecked")
+	private void handleMessage(final Map<String, Object> aEnvelope)
+			throws Overloaded {
+
+		final MessageReceived message;
+		final Object json = aEnvelope.get(LocalRegistry.KEY_JSON);
+		if (json != null) {
+			// The content couldn't be copied
+			try {
+				message = MessageUtils.fromJSON((String) json);
+
+			} catch (final UnmarshallException ex) {
+				pLogger.log(LogService.LOG_ERROR,
+						"Error reading a local message: " + ex, ex);
+				return;
+			}
+			if (message == null) {
+				return;
+			}
+
+		} else {
+			final Map<String, Object> headers = (Map<String, Object>) aEnvelope
+					.get(LocalRegistry.KEY_HEADERS);
+			message = new MessageReceived(
+					(String) headers.get(Message.MESSAGE_HEADER_UID),
+					(String) aEnvelope.get(LocalRegistry.KEY_SUBJECT),
+					aEnvelope.get(LocalRegistry.KEY_CONTENT), null, null,
+					null, null, null);
+			for (final Entry<String, Object> entry : headers.entrySet()) {
+				message.addHeader(entry.getKey(), entry.getValue());
+			}
+
+			final Map<String, Object> metadata = (Map<String, Object>) aEnvelope
+					.get(LocalRegistry.KEY_METADATA);
+			for (final Entry<String, Object> entry : metadata.entrySet()) {
+				message.addMetadata(entry.getKey(), entry.getValue());
+			}
+		}
+
+		message.setAccess(ILocalConstants.ACCESS_ID);
+		message.setExtra(new LocalExtra(message.getSender(), message.getUid()));
+		pHerald.handleMessage(message, 0);
+	}
+
+	/**
+	 * Component invalidated
+	 */
+	@Invalidate
+	public void invalidate() {
+
+		// Leave the registry
+		LocalRegistry.leave(pRegistry, pLocalUid, pInbox);
+		pInbox = null;
+
+		final Map<String, Object> bye = LocalRegistry
+				.makeEnvelope(LocalRegistry.KIND_BYE);
+		bye.put(LocalRegistry.KEY_UID, pLocalUid);
+		broadcast(bye);
+
+		// Forget about the local accesses
+		pDirectory.getLocalPeer().unsetAccess(ILocalConstants.ACCESS_ID);
+		for (final Peer peer : pDirectory.getPeers()) {
+			peer.unsetAccess(ILocalConstants.ACCESS_ID);
+		}
+
+		pRegistry = null;
+		pLocalUid = null;
+	}
+
+	/**
+	 * Prepares the envelope of a message. Its content is copied: if it can't
+	 * be, the message is converted to JSON, unless it targets the local peer.
+	 *
+	 * @param aMessage
+	 *            The message to send
+	 * @param aLocal
+	 *            The message targets the local peer
+	 * @return The envelope
+	 * @throws HeraldException
+	 *             Error converting the message to JSON
+	 */
+	private Map<String, Object> makeEnvelope(final Message aMessage,
+			final boolean aLocal) throws HeraldException {
+
+		final Map<String, Object> envelope = LocalRegistry
+				.makeEnvelope(LocalRegistry.KIND_MESSAGE);
+
+		final Object headers = LocalRegistry.copy(aMessage.getHeaders());
+		final Object metadata = LocalRegistry.copy(aMessage.getMetadata());
+		Object content = LocalRegistry.copy(aMessage.getContent());
+		if (content == LocalRegistry.NOT_COPYABLE && aLocal) {
+			// Same class loader: the content can be shared
+			content = aMessage.getContent();
+		}
+
+		if (headers == LocalRegistry.NOT_COPYABLE
+				|| metadata == LocalRegistry.NOT_COPYABLE
+				|| content == LocalRegistry.NOT_COPYABLE) {
+			// Rely on Jabsorb to convert application beans
+			try {
+				envelope.put(LocalRegistry.KEY_JSON,
+						MessageUtils.toJSON(aMessage));
+
+			} catch (final MarshallException ex) {
+				throw new HeraldException(new Target(pLocalUid),
+						"Error marshalling the message content", ex);
+			}
+
+		} else {
+			envelope.put(LocalRegistry.KEY_HEADERS, headers);
+			envelope.put(LocalRegistry.KEY_SUBJECT, aMessage.getSubject());
+			envelope.put(LocalRegistry.KEY_CONTENT, content);
+			envelope.put(LocalRegistry.KEY_METADATA, metadata);
+		}
+
+		return envelope;
+	}
+
+	/**
+	 * Prepares an envelope describing the local peer
+	 *
+	 * @param aKind
+	 *            Kind of envelope (hello or welcome)
+	 * @return The envelope
+	 */
+	private Map<String, Object> makeHello(final String aKind) {
+
+		final Map<String, Object> envelope = LocalRegistry.makeEnvelope(aKind);
+		envelope.put(LocalRegistry.KEY_DESCRIPTION, pDirectory.getLocalPeer()
+				.dump());
+		return envelope;
+	}
+
+	/**
+	 * Handles an envelope sent by another peer of the JVM
+	 *
+	 * @param aEnvelope
+	 *            The envelope
+	 * @return False if the envelope has been refused
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean receive(final Object aEnvelope) {
+
+		if (!(aEnvelope instanceof Map)) {
+			// Unknown format
+			return false;
+		}
+
+		final Map<String, Object> envelope = (Map<String, Object>) aEnvelope;
+		final Object kind = envelope.get(LocalRegistry.KEY_KIND);
+		if (LocalRegistry.KIND_MESSAGE.equals(kind)) {
+			try {
+				handleMessage(envelope);
+
+			} catch (final Overloaded ex) {
+				// Message refused
+				return false;
+			}
+
+		} else if (LocalRegistry.KIND_HELLO.equals(kind)
+				|| LocalRegistry.KIND_WELCOME.equals(kind)) {
+			// A peer joined the registry
+			final Map<String, Object> description = (Map<String, Object>) envelope
+					.get(LocalRegistry.KEY_DESCRIPTION);
+			try {
+				pDirectory.register(description);
+
+			} catch (final ValueError ex) {
+				pLogger.log(LogService.LOG_ERROR,
+						"Error registering a local peer: " + ex, ex);
+				return false;
+			}
+
+			if (LocalRegistry.KIND_HELLO.equals(kind)) {
+				// Let it know about us
+				final Queue<Object> inbox = pRegistry.get(description
+						.get("uid"));
+				if (inbox != null) {
+					inbox.offer(LocalRegistry.copy(makeHello(
+							LocalRegistry.KIND_WELCOME)));
+				}
+			}
+
+		} else if (LocalRegistry.KIND_BYE.equals(kind)) {
+			// A peer left the registry
+			try {
+				pDirectory.getPeer((String) envelope.get(LocalRegistry.KEY_UID))
+						.unsetAccess(ILocalConstants.ACCESS_ID);
+
+			} catch (final UnknownPeer ex) {
+				// Peer already gone
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Hands a message to a peer of the JVM. Messages to the local peer are
+	 * directly given to Herald.
+	 *
+	 * @param aPeerUid
+	 *            UID of the target peer
+	 * @param aMessage
+	 *            The message to send
+	 * @throws HeraldException
+	 *             The peer is gone or refused the message
+	 */
+	private void send(final String aPeerUid, final Message aMessage)
+			throws HeraldException {
+
+		if (aPeerUid.equals(pLocalUid)) {
+			// Short-circuit
+			handleMessage(makeEnvelope(aMessage, true));
+			return;
+		}
+
+		final Queue<Object> inbox = pRegistry.get(aPeerUid);
+		if (inbox == null) {
+			throw new InvalidPeerAccess(new Target(aPeerUid),
+					"Peer left the local registry");
+		}
+
+		if (!inbox.offer(makeEnvelope(aMessage, false))) {
+			throw new HeraldException(new Target(aPeerUid),
+					"Message refused by the peer");
+		}
+	}
+
+	/**
+	 * Component validated
+	 */
+	@Validate
+	public void validate() {
+
+		final Peer localPeer = pDirectory.getLocalPeer();
+		pLocalUid = localPeer.getUid();
+
+		// Register our local access
+		localPeer.setAccess(ILocalConstants.ACCESS_ID, new LocalAccess(
+				pLocalUid));
+
+		// Join the registry and say hello to the other peers
+		pInbox = new Inbox();
+		pRegistry = LocalRegistry.join(pLocalUid, pInbox);
+		broadcast(makeHello(LocalRegistry.KIND_HELLO));
+	}
+}
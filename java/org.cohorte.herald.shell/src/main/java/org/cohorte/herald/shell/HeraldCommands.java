@@ -18,6 +18,9 @@ package org.cohorte.herald.shell;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import org.apache.felix.ipojo.annotations.Component;
@@ -25,6 +28,7 @@ import org.apache.felix.ipojo.annotations.Instantiate;
 import org.apache.felix.ipojo.annotations.Provides;
 import org.apache.felix.ipojo.annotations.Requires;
 import org.apache.felix.ipojo.annotations.ServiceProperty;
+import org.cohorte.herald.AccessStatistics;
 import org.cohorte.herald.HeraldException;
 import org.cohorte.herald.HeraldTimeout;
 import org.cohorte.herald.IDirectory;
@@ -340,6 +344,18 @@ public class HeraldCommands {
                     .append(aPeer.getAccess(accessId)).append("\n");
         }
 
+        // Statistics about the use of the accesses
+        final Map<String, AccessStatistics> statistics = new TreeMap<>(
+                aPeer.getStatistics());
+        if (!statistics.isEmpty()) {
+            builder.append("\t- Routing..:").append("\n");
+            for (final Entry<String, AccessStatistics> entry : statistics
+                    .entrySet()) {
+                builder.append("\t\t- ").append(entry.getKey()).append(": ")
+                        .append(entry.getValue()).append("\n");
+            }
+        }
+
         // Print everything at once
         System.out.println(builder);
     }
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.shm;
+
+/**
+ * Constants used by the shared memory transport implementation
+ *
+ * @author Thomas Calmant
+ */
+public interface IShmConstants {
+
+    /** Access ID used by the shared memory transport implementation */
+    String ACCESS_ID = "shm";
+
+    /** Default size of the ring buffer of a peer, in bytes */
+    int DEFAULT_CAPACITY = 1024 * 1024;
+
+    /**
+     * Framework property: size of the ring buffer of the local peer, in bytes
+     */
+    String FWPROP_CAPACITY = "herald.shm.capacity";
+
+    /**
+     * Framework property: parent of the node directories where the ring
+     * buffers are stored (default: a "herald-shm" folder in the temporary
+     * directory)
+     */
+    String FWPROP_DIRECTORY = "herald.shm.directory";
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.shm;
+
+/**
+ * Stores extra information for shared memory replies
+ *
+ * @author Thomas Calmant
+ */
+public class ShmExtra {
+
+    /** UID of the message we reply to */
+    private final String pParentUid;
+
+    /** UID of the sender peer */
+    private final String pSenderUid;
+
+    /**
+     * Sets up the bean
+     */
+    public ShmExtra(final String aSenderUid, final String aParentUid) {
+
+        pSenderUid = aSenderUid;
+        pParentUid = aParentUid;
+    }
+
+    /**
+     * @return the parentUid
+     */
+    public String getParentUid() {
+
+        return pParentUid;
+    }
+
+    /**
+     * @return the senderUid
+     */
+    public String getSenderUid() {
+
+        return pSenderUid;
+    }
+}
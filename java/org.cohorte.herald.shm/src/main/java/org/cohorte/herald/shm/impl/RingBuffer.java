@@ -0,0 +1,381 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.shm.impl;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * A multiple-producers, single-consumer ring buffer stored in a memory-mapped
+ * file, shared by the processes of a node.
+ *
+ * The file starts with a header giving the capacity of the data area, the
+ * read (head) and write (tail) positions, and the state of the consumer. The
+ * data area contains records made of their length and their bytes, aligned
+ * on 4 bytes; a record never wraps around the end of the area: a padding
+ * marker tells the consumer to restart at its beginning.
+ *
+ * Producers and the consumer take a lock on the header of the file while
+ * they update it. The lock is held for the time of a memory copy.
+ *
+ * @author Thomas Calmant
+ */
+final class RingBuffer {
+
+	/** Size of the header, before the data area */
+	static final int HEADER_SIZE = 64;
+
+	/** Magic number identifying a ring buffer file */
+	private static final int MAGIC = 0x48524c44;
+
+	/** Header: capacity of the data area (int) */
+	private static final int OFFSET_CAPACITY = 4;
+
+	/** Header: read position (long) */
+	private static final int OFFSET_HEAD = 24;
+
+	/** Header: magic number (int) */
+	private static final int OFFSET_MAGIC = 0;
+
+	/** Header: 1 while the consumer reads the buffer (int) */
+	private static final int OFFSET_OPEN = 8;
+
+	/** Header: UDP port waking up the consumer (int) */
+	private static final int OFFSET_PORT = 16;
+
+	/** Header: 1 while the consumer waits for a wake-up signal (int) */
+	private static final int OFFSET_SLEEPING = 12;
+
+	/** Header: write position (long) */
+	private static final int OFFSET_TAIL = 32;
+
+	/** Record length marking the end of the data area */
+	private static final int PADDING = -1;
+
+	/**
+	 * Creates the ring buffer of a consumer, replacing the existing file
+	 *
+	 * @param aFile
+	 *            Ring buffer file
+	 * @param aCapacity
+	 *            Size of the data area, in bytes
+	 * @param aPort
+	 *            UDP port waking up the consumer
+	 * @return The ring buffer
+	 * @throws IOException
+	 *             Error creating the file
+	 */
+	static RingBuffer create(final File aFile, final int aCapacity,
+			final int aPort) throws IOException {
+
+		if (aFile.exists() && !aFile.delete()) {
+			throw new IOException("Can't replace the ring buffer file "
+					+ aFile);
+		}
+
+		// Keep the records aligned
+		final int capacity = align(Math.max(aCapacity, 1024));
+
+		final RandomAccessFile file = new RandomAccessFile(aFile, "rw");
+		try {
+			file.setLength(HEADER_SIZE + capacity);
+			final RingBuffer ring = new RingBuffer(file, capacity);
+			ring.pBuffer.putInt(OFFSET_CAPACITY, capacity);
+			ring.pBuffer.putLong(OFFSET_HEAD, 0);
+			ring.pBuffer.putLong(OFFSET_TAIL, 0);
+			ring.pBuffer.putInt(OFFSET_SLEEPING, 0);
+			ring.pBuffer.putInt(OFFSET_PORT, aPort);
+			ring.pBuffer.putInt(OFFSET_OPEN, 1);
+			ring.pBuffer.putInt(OFFSET_MAGIC, MAGIC);
+			return ring;
+
+		} catch (final IOException ex) {
+			file.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Opens the ring buffer of a consumer, to produce records
+	 *
+	 * @param aFile
+	 *            Ring buffer file
+	 * @return The ring buffer
+	 * @throws IOException
+	 *             Invalid or missing file
+	 */
+	static RingBuffer open(final File aFile) throws IOException {
+
+		if (!aFile.isFile()) {
+			throw new FileNotFoundException("No ring buffer file " + aFile);
+		}
+
+		final RandomAccessFile file = new RandomAccessFile(aFile, "rw");
+		try {
+			final long length = file.length();
+			if (length <= HEADER_SIZE) {
+				throw new IOException("Invalid ring buffer file " + aFile);
+			}
+
+			final RingBuffer ring = new RingBuffer(file,
+					(int) (length - HEADER_SIZE));
+			if (ring.pBuffer.getInt(OFFSET_MAGIC) != MAGIC
+					|| ring.pBuffer.getInt(OFFSET_CAPACITY) != ring.pCapacity) {
+				throw new IOException("Invalid ring buffer file " + aFile);
+			}
+			return ring;
+
+		} catch (final IOException ex) {
+			file.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Aligns a size on 4 bytes
+	 *
+	 * @param aSize
+	 *            A size
+	 * @return The aligned size
+	 */
+	private static int align(final int aSize) {
+
+		return (aSize + 3) & ~3;
+	}
+
+	/** The mapped file */
+	private final MappedByteBuffer pBuffer;
+
+	/** Size of the data area */
+	private final int pCapacity;
+
+	/** The file channel, used for locking */
+	private final FileChannel pChannel;
+
+	/** The ring buffer file */
+	private final RandomAccessFile pFile;
+
+	/**
+	 * Maps the given file
+	 *
+	 * @param aFile
+	 *            Ring buffer file
+	 * @param aCapacity
+	 *            Size of the data area
+	 * @throws IOException
+	 *             Error mapping the file
+	 */
+	private RingBuffer(final RandomAccessFile aFile, final int aCapacity)
+			throws IOException {
+
+		pFile = aFile;
+		pChannel = aFile.getChannel();
+		pCapacity = aCapacity;
+		pBuffer = pChannel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + aCapacity);
+	}
+
+	/**
+	 * Closes the ring buffer. If this is the consumer side, producers are told
+	 * that the buffer isn't read anymore.
+	 *
+	 * @param aConsumer
+	 *            Close the consumer side
+	 */
+	synchronized void close(final boolean aConsumer) {
+
+		try {
+			if (aConsumer) {
+				final FileLock lock = lock();
+				try {
+					pBuffer.putInt(OFFSET_OPEN, 0);
+				} finally {
+					lock.release();
+				}
+			}
+
+			pChannel.close();
+			pFile.close();
+
+		} catch (final IOException ex) {
+			// Ignore: nothing more can be done
+		}
+	}
+
+	/**
+	 * Returns the maximum size of a record
+	 *
+	 * @return The maximum size of a record, in bytes
+	 */
+	int getMaxRecordSize() {
+
+		// Half the buffer, so that a padding never prevents a write
+		return pCapacity / 2 - 4;
+	}
+
+	/**
+	 * Returns the UDP port which wakes up the consumer
+	 *
+	 * @return A UDP port on the loopback interface
+	 */
+	int getPort() {
+
+		return pBuffer.getInt(OFFSET_PORT);
+	}
+
+	/**
+	 * Checks if the consumer waits for a wake-up signal
+	 *
+	 * @return True if the consumer has to be woken up
+	 */
+	boolean isSleeping() {
+
+		return pBuffer.getInt(OFFSET_SLEEPING) != 0;
+	}
+
+	/**
+	 * Locks the header of the ring buffer
+	 *
+	 * @return The lock
+	 * @throws IOException
+	 *             Error locking the file
+	 */
+	private FileLock lock() throws IOException {
+
+		while (true) {
+			try {
+				return pChannel.lock(0, HEADER_SIZE, false);
+
+			} catch (final OverlappingFileLockException ex) {
+				// Another framework of this JVM holds the lock
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * Writes a record in the ring buffer
+	 *
+	 * @param aRecord
+	 *            The record to write
+	 * @return False if the buffer is full
+	 * @throws IOException
+	 *             The consumer closed the buffer, or error locking the file
+	 */
+	synchronized boolean offer(final byte[] aRecord) throws IOException {
+
+		if (aRecord.length > getMaxRecordSize()) {
+			return false;
+		}
+
+		final int recordSize = align(4 + aRecord.length);
+		final FileLock lock = lock();
+		try {
+			if (pBuffer.getInt(OFFSET_OPEN) == 0) {
+				throw new IOException("Ring buffer closed by its consumer");
+			}
+
+			final long head = pBuffer.getLong(OFFSET_HEAD);
+			long tail = pBuffer.getLong(OFFSET_TAIL);
+			int position = (int) (tail % pCapacity);
+
+			// Records don't wrap around: skip the end of the area if necessary
+			final int toEnd = pCapacity - position;
+			final int needed = recordSize <= toEnd ? recordSize : toEnd
+					+ recordSize;
+			if (needed > pCapacity - (tail - head)) {
+				// Full
+				return false;
+			}
+
+			if (recordSize > toEnd) {
+				pBuffer.putInt(HEADER_SIZE + position, PADDING);
+				tail += toEnd;
+				position = 0;
+			}
+
+			pBuffer.putInt(HEADER_SIZE + position, aRecord.length);
+			final ByteBuffer data = pBuffer.duplicate();
+			data.position(HEADER_SIZE + position + 4);
+			data.put(aRecord);
+
+			// Publish the record
+			pBuffer.putLong(OFFSET_TAIL, tail + recordSize);
+			return true;
+
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Reads the next record of the ring buffer
+	 *
+	 * @return The next record, or null if the buffer is empty
+	 * @throws IOException
+	 *             Error locking the file
+	 */
+	synchronized byte[] poll() throws IOException {
+
+		final FileLock lock = lock();
+		try {
+			long head = pBuffer.getLong(OFFSET_HEAD);
+			final long tail = pBuffer.getLong(OFFSET_TAIL);
+			byte[] record = null;
+			while (record == null && head < tail) {
+				final int position = (int) (head % pCapacity);
+				final int length = pBuffer.getInt(HEADER_SIZE + position);
+				if (length == PADDING) {
+					// Restart at the beginning of the area
+					head += pCapacity - position;
+
+				} else {
+					record = new byte[length];
+					final ByteBuffer data = pBuffer.duplicate();
+					data.position(HEADER_SIZE + position + 4);
+					data.get(record);
+					head += align(4 + length);
+				}
+			}
+
+			// Free the space
+			pBuffer.putLong(OFFSET_HEAD, head);
+			return record;
+
+		} finally {
+			lock.release();
+		}
+	}
+
+	/**
+	 * Tells producers if the consumer waits for a wake-up signal
+	 *
+	 * @param aSleeping
+	 *            True if the consumer waits for a signal
+	 */
+	void setSleeping(final boolean aSleeping) {
+
+		pBuffer.putInt(OFFSET_SLEEPING, aSleeping ? 1 : 0);
+	}
+}
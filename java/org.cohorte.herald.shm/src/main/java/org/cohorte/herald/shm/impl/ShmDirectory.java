@@ -0,0 +1,83 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.shm.impl;
+
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.ServiceProperty;
+import org.cohorte.herald.Access;
+import org.cohorte.herald.IConstants;
+import org.cohorte.herald.ITransportDirectory;
+import org.cohorte.herald.Peer;
+import org.cohorte.herald.shm.IShmConstants;
+import org.cohorte.herald.shm.ShmAccess;
+
+/**
+ * Shared memory Directory for Herald. The ring buffers of the peers are opened
+ * by the transport on first use: this directory only has to load their
+ * accesses.
+ *
+ * @author Thomas Calmant
+ */
+@Component
+@Provides(specifications = ITransportDirectory.class)
+@Instantiate(name = "herald-shm-directory")
+public class ShmDirectory implements ITransportDirectory {
+
+    /** Access ID property */
+    @ServiceProperty(name = IConstants.PROP_ACCESS_ID,
+            value = IShmConstants.ACCESS_ID)
+    private String pAccessId;
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.herald.ITransportDirectory#loadAccess(java.lang.Object)
+     */
+    @Override
+    public Access loadAccess(final Object aData) {
+
+        return ShmAccess.load(aData);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.herald.ITransportDirectory#peerAccessSet(org.cohorte.herald
+     * .Peer, org.cohorte.herald.Access)
+     */
+    @Override
+    public void peerAccessSet(final Peer aPeer, final Access aData) {
+
+        // Nothing to do: the transport opens ring buffers on demand
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.herald.ITransportDirectory#peerAccessUnset(org.cohorte.herald
+     * .Peer, org.cohorte.herald.Access)
+     */
+    @Override
+    public void peerAccessUnset(final Peer aPeer, final Access aData) {
+
+        // Nothing to do: the transport opens ring buffers on demand
+    }
+}
@@ -0,0 +1,585 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.shm.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.ServiceProperty;
+import org.apache.felix.ipojo.annotations.Validate;
+import org.cohorte.herald.Access;
+import org.cohorte.herald.HeraldException;
+import org.cohorte.herald.IConstants;
+import org.cohorte.herald.IDirectory;
+import org.cohorte.herald.IHeraldInternal;
+import org.cohorte.herald.ITransport;
+import org.cohorte.herald.InvalidPeerAccess;
+import org.cohorte.herald.Message;
+import org.cohorte.herald.MessageReceived;
+import org.cohorte.herald.Overloaded;
+import org.cohorte.herald.Peer;
+import org.cohorte.herald.Target;
+import org.cohorte.herald.core.utils.MessageUtils;
+import org.cohorte.herald.shm.IShmConstants;
+import org.cohorte.herald.shm.ShmAccess;
+import org.cohorte.herald.shm.ShmExtra;
+import org.jabsorb.ng.serializer.MarshallException;
+import org.jabsorb.ng.serializer.UnmarshallException;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+
+/**
+ * Shared memory transport for Herald: the peers of a node write the messages
+ * in the memory-mapped ring buffer of their target, which reads it in a
+ * dedicated thread.
+ *
+ * The reading thread spins for a while when the buffer is empty, then sleeps
+ * until a producer sends it a one-byte UDP datagram on the loopback
+ * interface, or until the polling interval is elapsed.
+ *
+ * @author Thomas Calmant
+ */
+@Component
+@Provides(specifications = ITransport.class)
+@Instantiate(name = "herald-shm-transport")
+public class ShmTransport implements ITransport {
+
+	/** Name of the message encoding charset */
+	private static final String CHARSET_UTF8 = "UTF-8";
+
+	/** Maximum time between two reads of an idle buffer (milliseconds) */
+	private static final int POLL_INTERVAL = 100;
+
+	/** Number of empty reads before sleeping */
+	private static final int SPIN_COUNT = 100;
+
+	/** Access ID property */
+	@ServiceProperty(name = IConstants.PROP_ACCESS_ID, value = IShmConstants.ACCESS_ID)
+	private String pAccessId;
+
+	/** The bundle context */
+	private final BundleContext pContext;
+
+	/** Herald core directory */
+	@Requires
+	private IDirectory pDirectory;
+
+	/** Herald core service */
+	@Requires
+	private IHeraldInternal pHerald;
+
+	/** The ring buffer of the local peer */
+	private RingBuffer pInbox;
+
+	/** Path to the ring buffer file of the local peer */
+	private String pInboxPath;
+
+	/** The loopback address, target of the wake-up signals */
+	private InetAddress pLoopback;
+
+	/** The log service */
+	@Requires(optional = true)
+	private LogService pLogger;
+
+	/** UID of the node of the local peer */
+	private String pNodeUid;
+
+	/** The reading thread */
+	private Thread pReader;
+
+	/** Ring buffers of the other peers: path -&gt; ring buffer */
+	private final ConcurrentMap<String, RingBuffer> pRings = new ConcurrentHashMap<>();
+
+	/** The reading thread must continue */
+	private volatile boolean pRunning;
+
+	/** The wake-up socket of the local peer, also used to wake up others */
+	private DatagramSocket pSocket;
+
+	/**
+	 * Sets up members
+	 *
+	 * @param aContext
+	 *            The bundle context
+	 */
+	public ShmTransport(final BundleContext aContext) {
+
+		pContext = aContext;
+	}
+
+	/**
+	 * Converts a message to the bytes of a record
+	 *
+	 * @param aMessage
+	 *            The message to convert
+	 * @param aTarget
+	 *            Target of the message, for errors
+	 * @return The record
+	 * @throws HeraldException
+	 *             Error converting the message
+	 */
+	private byte[] encode(final Message aMessage, final Target aTarget)
+			throws HeraldException {
+
+		try {
+			return MessageUtils.toJSON(aMessage).getBytes(CHARSET_UTF8);
+
+		} catch (final MarshallException | UnsupportedEncodingException ex) {
+			throw new HeraldException(aTarget,
+					"Error marshalling the message content", ex);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.ITransport#fire(org.cohorte.herald.Peer,
+	 * org.cohorte.herald.Message)
+	 */
+	@Override
+	public void fire(final Peer aPeer, final Message aMessage)
+			throws HeraldException {
+
+		fire(aPeer, aMessage, null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.ITransport#fire(org.cohorte.herald.Peer,
+	 * org.cohorte.herald.Message, java.lang.Object)
+	 */
+	@Override
+	public void fire(final Peer aPeer, final Message aMessage,
+			final Object aExtra) throws HeraldException {
+
+		// Compute parent UID, in case of reply
+		String parentUid = null;
+		if (aExtra instanceof ShmExtra) {
+			parentUid = ((ShmExtra) aExtra).getParentUid();
+		}
+
+		final ShmAccess access = getAccess(aPeer);
+		if (access == null) {
+			throw new InvalidPeerAccess(new Target(aPeer), "No "
+					+ IShmConstants.ACCESS_ID + " access found on this node");
+		}
+
+		aMessage.addHeader(Message.MESSAGE_HEADER_SENDER_UID,
+				pDirectory.getLocalPeer().getUid());
+		aMessage.addHeader(Message.MESSAGE_HEADER_TARGET_PEER, aPeer.getUid());
+		if (parentUid != null && !parentUid.isEmpty()) {
+			aMessage.addHeader(Message.MESSAGE_HEADER_REPLIES_TO, parentUid);
+		}
+
+		final Target target = new Target(aPeer);
+		send(access, encode(aMessage, target), target);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.ITransport#fireGroup(java.lang.String,
+	 * java.util.Collection, org.cohorte.herald.Message)
+	 */
+	@Override
+	public Collection<Peer> fireGroup(final String aGroup,
+			final Collection<Peer> aPeers, final Message aMessage)
+			throws HeraldException {
+
+		// Prepare the message once
+		aMessage.addHeader(Message.MESSAGE_HEADER_SENDER_UID,
+				pDirectory.getLocalPeer().getUid());
+		aMessage.addHeader(Message.MESSAGE_HEADER_TARGET_GROUP, aGroup);
+		final byte[] record = encode(aMessage,
+				new Target(aGroup, Target.toUids(aPeers)));
+
+		// Write it in each ring buffer: this doesn't block
+		final Set<Peer> accessedPeers = new LinkedHashSet<>();
+		for (final Peer peer : aPeers) {
+			final ShmAccess access = getAccess(peer);
+			if (access == null) {
+				// Not on this node
+				pLogger.log(LogService.LOG_DEBUG, "No "
+						+ IShmConstants.ACCESS_ID + " access found for "
+						+ peer);
+				continue;
+			}
+
+			try {
+				send(access, record, new Target(peer));
+				accessedPeers.add(peer);
+
+			} catch (final HeraldException ex) {
+				pLogger.log(LogService.LOG_DEBUG, "Error posting a message to "
+						+ peer + ": " + ex, ex);
+			}
+		}
+
+		return accessedPeers;
+	}
+
+	/**
+	 * Returns the shared memory access of a peer of the local node
+	 *
+	 * @param aPeer
+	 *            A peer
+	 * @return The access of the peer, or null if it is not on this node
+	 */
+	private ShmAccess getAccess(final Peer aPeer) {
+
+		if (aPeer == null || pInbox == null) {
+			return null;
+		}
+
+		final Access access = aPeer.getAccess(IShmConstants.ACCESS_ID);
+		if (access instanceof ShmAccess
+				&& pNodeUid.equals(((ShmAccess) access).getNodeUid())) {
+			return (ShmAccess) access;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Gets a bundle context / system property
+	 *
+	 * @param aKey
+	 *            Property name
+	 * @return Property value, or null
+	 */
+	private String getProperty(final String aKey) {
+
+		String value = pContext.getProperty(aKey);
+		if (value == null) {
+			// Not done in Equinox
+			value = System.getProperty(aKey);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the ring buffer of a peer, opening it if necessary
+	 *
+	 * @param aPath
+	 *            Path to the ring buffer file
+	 * @return The ring buffer
+	 * @throws IOException
+	 *             Error opening the ring buffer
+	 */
+	private RingBuffer getRing(final String aPath) throws IOException {
+
+		if (aPath.equals(pInboxPath)) {
+			// Message to the local peer
+			return pInbox;
+		}
+
+		RingBuffer ring = pRings.get(aPath);
+		if (ring == null) {
+			ring = RingBuffer.open(new File(aPath));
+			final RingBuffer previous = pRings.putIfAbsent(aPath, ring);
+			if (previous != null) {
+				// Opened concurrently
+				ring.close(false);
+				ring = previous;
+			}
+		}
+		return ring;
+	}
+
+	/**
+	 * Lets Herald handle a record read from the ring buffer
+	 *
+	 * @param aRecord
+	 *            The record
+	 */
+	private void handleRecord(final byte[] aRecord) {
+
+		final MessageReceived message;
+		try {
+			message = MessageUtils.fromJSON(new String(aRecord, CHARSET_UTF8));
+
+		} catch (final UnmarshallException | UnsupportedEncodingException ex) {
+			pLogger.log(LogService.LOG_ERROR,
+					"Error reading a shared memory message: " + ex, ex);
+			return;
+		}
+
+		if (message == null) {
+			// Invalid message
+			return;
+		}
+
+		message.setAccess(IShmConstants.ACCESS_ID);
+		message.setExtra(new ShmExtra(message.getSender(), message.getUid()));
+		try {
+			pHerald.handleMessage(message, aRecord.length);
+
+		} catch (final Overloaded ex) {
+			// Admission queue full, with the "reject" policy: the record has
+			// left the ring, so the message is lost. Herald core only tries
+			// to send a herald/error/overloaded reply.
+			pLogger.log(LogService.LOG_WARNING,
+					"Shared memory message dropped by the admission queue: "
+							+ ex);
+		}
+	}
+
+	/**
+	 * Component invalidated
+	 */
+	@Invalidate
+	public void invalidate() {
+
+		if (pInbox != null) {
+			pDirectory.getLocalPeer().unsetAccess(IShmConstants.ACCESS_ID);
+		}
+
+		// Stop the reading thread
+		pRunning = false;
+		if (pReader != null) {
+			wakeUp(pSocket.getLocalPort());
+			try {
+				pReader.join(POLL_INTERVAL * 10);
+
+			} catch (final InterruptedException ex) {
+				// Ignore
+			}
+			pReader = null;
+		}
+
+		if (pInbox != null) {
+			pInbox.close(true);
+			pInbox = null;
+			pInboxPath = null;
+		}
+
+		for (final RingBuffer ring : pRings.values()) {
+			ring.close(false);
+		}
+		pRings.clear();
+
+		if (pSocket != null) {
+			pSocket.close();
+			pSocket = null;
+		}
+
+		pNodeUid = null;
+	}
+
+	/**
+	 * Reads the ring buffer of the local peer until the component is
+	 * invalidated
+	 */
+	private void read() {
+
+		final DatagramPacket signal = new DatagramPacket(new byte[1], 1);
+		int emptyReads = 0;
+		while (pRunning) {
+			try {
+				byte[] record = pInbox.poll();
+				if (record == null && ++emptyReads > SPIN_COUNT) {
+					// Tell producers to wake us up, then check a last time
+					pInbox.setSleeping(true);
+					record = pInbox.poll();
+					if (record == null) {
+						try {
+							pSocket.receive(signal);
+						} catch (final SocketTimeoutException ex) {
+							// Polling fallback
+						}
+					}
+					pInbox.setSleeping(false);
+				}
+
+				if (record == null) {
+					Thread.yield();
+				} else {
+					emptyReads = 0;
+					handleRecord(record);
+				}
+
+			} catch (final IOException ex) {
+				if (pRunning) {
+					pLogger.log(LogService.LOG_ERROR,
+							"Error reading the shared memory ring buffer: "
+									+ ex, ex);
+					emptyReads = 0;
+					try {
+						Thread.sleep(POLL_INTERVAL);
+					} catch (final InterruptedException ex2) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a record in the ring buffer of a peer
+	 *
+	 * @param aAccess
+	 *            Access to the peer
+	 * @param aRecord
+	 *            The record
+	 * @param aTarget
+	 *            Target of the message, for errors
+	 * @throws HeraldException
+	 *             The buffer is full or can't be opened
+	 */
+	private void send(final ShmAccess aAccess, final byte[] aRecord,
+			final Target aTarget) throws HeraldException {
+
+		RingBuffer ring = null;
+		boolean written = false;
+		for (int attempt = 0; attempt < 2 && ring == null; attempt++) {
+			try {
+				ring = getRing(aAccess.getPath());
+				written = ring.offer(aRecord);
+
+			} catch (final IOException ex) {
+				// The consumer restarted or left: reopen the file once
+				if (ring != null && ring != pInbox) {
+					pRings.remove(aAccess.getPath(), ring);
+					ring.close(false);
+				}
+				ring = null;
+
+				if (attempt > 0) {
+					throw new InvalidPeerAccess(aTarget,
+							"Can't write in the ring buffer: " + ex);
+				}
+			}
+		}
+
+		if (!written) {
+			throw new HeraldException(aTarget,
+					"The ring buffer of the peer is full");
+		}
+
+		if (ring.isSleeping()) {
+			wakeUp(ring.getPort());
+		}
+	}
+
+	/**
+	 * Component validated
+	 */
+	@Validate
+	public void validate() {
+
+		final Peer localPeer = pDirectory.getLocalPeer();
+
+		// Compute the node directory
+		String root = getProperty(IShmConstants.FWPROP_DIRECTORY);
+		if (root == null || root.isEmpty()) {
+			root = new File(System.getProperty("java.io.tmpdir"), "herald-shm")
+					.getPath();
+		}
+		final File directory = new File(root, localPeer.getNodeUid());
+
+		int capacity = IShmConstants.DEFAULT_CAPACITY;
+		final String rawCapacity = getProperty(IShmConstants.FWPROP_CAPACITY);
+		if (rawCapacity != null) {
+			try {
+				capacity = Integer.parseInt(rawCapacity);
+			} catch (final NumberFormatException ex) {
+				pLogger.log(LogService.LOG_WARNING,
+						"Invalid shared memory capacity: " + rawCapacity);
+			}
+		}
+
+		// Prepare the wake-up socket and the ring buffer
+		final File file = new File(directory, localPeer.getUid() + ".ring");
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Can't create " + directory);
+			}
+
+			pLoopback = InetAddress.getByName("127.0.0.1");
+			pSocket = new DatagramSocket(0, pLoopback);
+			pSocket.setSoTimeout(POLL_INTERVAL);
+			pInbox = RingBuffer.create(file, capacity, pSocket.getLocalPort());
+			file.deleteOnExit();
+
+		} catch (final IOException ex) {
+			pLogger.log(LogService.LOG_ERROR,
+					"Error setting up the shared memory transport: " + ex, ex);
+			if (pSocket != null) {
+				pSocket.close();
+				pSocket = null;
+			}
+			return;
+		}
+
+		pInboxPath = file.getAbsolutePath();
+		pNodeUid = localPeer.getNodeUid();
+
+		// Start reading
+		pRunning = true;
+		pReader = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				read();
+			}
+		}, "Herald-Shm-Reader");
+		pReader.setDaemon(true);
+		pReader.start();
+
+		// Register our local access
+		localPeer.setAccess(IShmConstants.ACCESS_ID,
+				new ShmAccess(pNodeUid, pInboxPath));
+	}
+
+	/**
+	 * Sends a wake-up signal to the consumer of a ring buffer
+	 *
+	 * @param aPort
+	 *            UDP port of the consumer
+	 */
+	private void wakeUp(final int aPort) {
+
+		final DatagramSocket socket = pSocket;
+		if (socket == null) {
+			return;
+		}
+
+		try {
+			socket.send(new DatagramPacket(new byte[1], 1, pLoopback, aPort));
+
+		} catch (final IOException ex) {
+			// The consumer will poll its buffer anyway
+		}
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.tcp;
+
+/**
+ * Constants used by the TCP transport implementation
+ *
+ * @author Thomas Calmant
+ */
+public interface ITcpConstants {
+
+    /** Access ID used by the TCP transport implementation */
+    String ACCESS_ID = "tcp";
+
+    /** Default number of connections to each peer */
+    int DEFAULT_CONNECTIONS = 1;
+
+    /**
+     * Framework property: number of connections opened to each peer. With
+     * more than one connection, messages to a peer can be reordered.
+     */
+    String FWPROP_CONNECTIONS = "herald.tcp.connections";
+
+    /**
+     * Framework property: host name or address advertised to the other
+     * peers (default: the address of the local host)
+     */
+    String FWPROP_HOST = "herald.tcp.host";
+
+    /** Framework property: listening port (default: a free port) */
+    String FWPROP_PORT = "herald.tcp.port";
+
+    /** Maximum size of a frame, in bytes */
+    int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+}
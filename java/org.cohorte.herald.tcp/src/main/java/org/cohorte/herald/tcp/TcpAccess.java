@@ -0,0 +1,173 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.tcp;
+
+import org.cohorte.herald.Access;
+
+/**
+ * Description of a TCP access
+ *
+ * @author Thomas Calmant
+ */
+public class TcpAccess extends Access {
+
+    /**
+     * Creates a bean from the result {@link #dump()}
+     *
+     * @param aDump
+     *            The result of {@link #dump()}
+     * @return The created bean, or null
+     */
+    public static TcpAccess load(final Object aDump) {
+
+        if (aDump instanceof Object[] && ((Object[]) aDump).length == 2) {
+
+            final Object[] dump = (Object[]) aDump;
+            final String host = (String) dump[0];
+            final Object rawPort = dump[1];
+
+            // Convert the port to an integer
+            final int port;
+            if (rawPort instanceof Number) {
+                port = ((Number) rawPort).intValue();
+            } else {
+                port = Integer.valueOf((String) rawPort);
+            }
+
+            return new TcpAccess(host, port);
+        }
+
+        // Unreadable content
+        return null;
+    }
+
+    /** The host name */
+    private final String pHost;
+
+    /** TCP server port */
+    private final int pPort;
+
+    /**
+     * Sets up the access
+     *
+     * @param aHost
+     *            TCP server host
+     * @param aPort
+     *            TCP server port
+     */
+    public TcpAccess(final String aHost, final int aPort) {
+
+        pHost = aHost;
+        pPort = aPort;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    @Override
+    public int compareTo(final Access aOther) {
+
+        if (aOther instanceof TcpAccess) {
+            return toString().compareTo(aOther.toString());
+        }
+
+        // Can't compare
+        return 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.herald.Access#dump()
+     */
+    @Override
+    public Object dump() {
+
+        return new Object[] { pHost, pPort };
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(final Object aObj) {
+
+        if (aObj instanceof TcpAccess) {
+            final TcpAccess other = (TcpAccess) aObj;
+            return pHost.equals(other.pHost) && pPort == other.pPort;
+        }
+
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.herald.Access#getAccessId()
+     */
+    @Override
+    public String getAccessId() {
+
+        return ITcpConstants.ACCESS_ID;
+    }
+
+    /**
+     * Retrieves the host address of the associated peer
+     *
+     * @return the host
+     */
+    public String getHost() {
+
+        return pHost;
+    }
+
+    /**
+     * Retrieves the TCP port of the associated peer
+     *
+     * @return the port
+     */
+    public int getPort() {
+
+        return pPort;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+
+        return toString().hashCode();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+
+        return "tcp://" + pHost + ":" + pPort;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.tcp;
+
+/**
+ * Stores extra information for TCP replies
+ *
+ * @author Thomas Calmant
+ */
+public class TcpExtra {
+
+    /** Address of the sender, as seen by the local peer */
+    private final String pHost;
+
+    /** UID of the message we reply to */
+    private final String pParentUid;
+
+    /** UID of the sender peer */
+    private final String pSenderUid;
+
+    /**
+     * Sets up the bean
+     */
+    public TcpExtra(final String aHost, final String aSenderUid,
+            final String aParentUid) {
+
+        pHost = aHost;
+        pSenderUid = aSenderUid;
+        pParentUid = aParentUid;
+    }
+
+    /**
+     * @return the host
+     */
+    public String getHost() {
+
+        return pHost;
+    }
+
+    /**
+     * @return the parentUid
+     */
+    public String getParentUid() {
+
+        return pParentUid;
+    }
+
+    /**
+     * @return the senderUid
+     */
+    public String getSenderUid() {
+
+        return pSenderUid;
+    }
+}
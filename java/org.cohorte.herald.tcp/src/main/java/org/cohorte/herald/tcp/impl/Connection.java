@@ -0,0 +1,372 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.tcp.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cohorte.herald.Peer;
+import org.cohorte.herald.tcp.ITcpConstants;
+
+/**
+ * A TCP connection, in non-blocking mode, served by the {@link EventLoop}.
+ *
+ * Any thread can queue frames with {@link #offer(ByteBuffer, Peer, String)}:
+ * the event loop writes all the frames queued since its last flush with
+ * gathering writes, so that a burst of messages costs a few system calls. All
+ * other methods must be called by the event loop thread.
+ *
+ * A frame is considered delivered once written to the socket: delivery is at
+ * most once. The frames which haven't been completely written when the
+ * connection is closed are reported to the event loop handler.
+ *
+ * @author Thomas Calmant
+ */
+final class Connection {
+
+	/**
+	 * A frame waiting to be written
+	 */
+	private static final class Pending {
+
+		/** The frame, ready to be read */
+		private final ByteBuffer pFrame;
+
+		/** UID of the message in the frame */
+		private final String pMessageUid;
+
+		/** The targeted peer */
+		private final Peer pPeer;
+
+		/**
+		 * Sets up the pending frame
+		 *
+		 * @param aFrame
+		 *            The frame
+		 * @param aPeer
+		 *            The targeted peer
+		 * @param aMessageUid
+		 *            UID of the message in the frame
+		 */
+		private Pending(final ByteBuffer aFrame, final Peer aPeer,
+				final String aMessageUid) {
+
+			pFrame = aFrame;
+			pPeer = aPeer;
+			pMessageUid = aMessageUid;
+		}
+	}
+
+	/** Maximum number of bytes queued and not yet written */
+	private static final long MAX_PENDING_BYTES = 16 * 1024 * 1024;
+
+	/** Size of the reading buffer */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/** Maximum number of buffers given to a gathering write */
+	private static final int WRITE_BATCH_SIZE = 64;
+
+	/**
+	 * Prepares a frame: its length, then its content
+	 *
+	 * @param aContent
+	 *            Content of the frame
+	 * @return A buffer containing the frame, ready to be read
+	 */
+	static ByteBuffer frame(final byte[] aContent) {
+
+		final ByteBuffer frame = ByteBuffer.allocate(4 + aContent.length);
+		frame.putInt(aContent.length).put(aContent).flip();
+		return frame;
+	}
+
+	/** The socket channel */
+	private final SocketChannel pChannel;
+
+	/** The connection has been closed */
+	private volatile boolean pClosed;
+
+	/** A flush has been requested to the event loop */
+	private final AtomicBoolean pFlushScheduled = new AtomicBoolean();
+
+	/** The selection key, once registered */
+	private SelectionKey pKey;
+
+	/** The event loop serving this connection */
+	private final EventLoop pLoop;
+
+	/** Number of bytes queued and not yet written */
+	private final AtomicLong pPendingBytes = new AtomicLong();
+
+	/** Frames queued by the senders */
+	private final Queue<Pending> pQueue = new ConcurrentLinkedQueue<>();
+
+	/** Read bytes, not yet handled (write mode) */
+	private ByteBuffer pReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	/** Remote host address */
+	private final String pRemoteHost;
+
+	/** Buffers given to gathering writes */
+	private final ByteBuffer[] pWriteBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+
+	/** Frames being written by the event loop */
+	private final Queue<Pending> pWriting = new ArrayDeque<>();
+
+	/**
+	 * Sets up the connection
+	 *
+	 * @param aChannel
+	 *            A connected channel, in non-blocking mode
+	 * @param aLoop
+	 *            The event loop serving the connection
+	 */
+	Connection(final SocketChannel aChannel, final EventLoop aLoop) {
+
+		pChannel = aChannel;
+		pLoop = aLoop;
+
+		final SocketAddress remote = aChannel.socket()
+				.getRemoteSocketAddress();
+		if (remote instanceof InetSocketAddress) {
+			pRemoteHost = ((InetSocketAddress) remote).getAddress()
+					.getHostAddress();
+		} else {
+			pRemoteHost = null;
+		}
+	}
+
+	/**
+	 * Closes the connection. Frames which have not been completely written are
+	 * reported to the handler of the event loop.
+	 */
+	void close() {
+
+		pClosed = true;
+		if (pKey != null) {
+			pKey.cancel();
+		}
+
+		try {
+			pChannel.close();
+		} catch (final IOException ex) {
+			// Ignore
+		}
+
+		final List<Pending> lost = new ArrayList<>(pWriting);
+		pWriting.clear();
+		Pending pending;
+		while ((pending = pQueue.poll()) != null) {
+			lost.add(pending);
+		}
+
+		for (final Pending frame : lost) {
+			pLoop.frameLost(frame.pPeer, frame.pMessageUid);
+		}
+	}
+
+	/**
+	 * Returns the address of the remote host
+	 *
+	 * @return The remote host address, or null
+	 */
+	String getRemoteHost() {
+
+		return pRemoteHost;
+	}
+
+	/**
+	 * Checks if the connection has been closed
+	 *
+	 * @return True if the connection is closed
+	 */
+	boolean isClosed() {
+
+		return pClosed;
+	}
+
+	/**
+	 * Queues a frame to be written by the event loop
+	 *
+	 * @param aFrame
+	 *            A frame, prepared by {@link #frame(byte[])}; it must not be
+	 *            modified afterwards
+	 * @param aPeer
+	 *            The targeted peer
+	 * @param aMessageUid
+	 *            UID of the message in the frame
+	 * @return False if too many bytes are waiting to be written
+	 * @throws ClosedChannelException
+	 *             The connection has been closed
+	 */
+	boolean offer(final ByteBuffer aFrame, final Peer aPeer,
+			final String aMessageUid) throws ClosedChannelException {
+
+		if (pClosed) {
+			throw new ClosedChannelException();
+		}
+
+		final int size = aFrame.remaining();
+		if (pPendingBytes.addAndGet(size) > MAX_PENDING_BYTES) {
+			pPendingBytes.addAndGet(-size);
+			return false;
+		}
+
+		pQueue.add(new Pending(aFrame, aPeer, aMessageUid));
+		if (pFlushScheduled.compareAndSet(false, true)) {
+			// The loop will write all the frames queued until then
+			pLoop.flush(this);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the available bytes and handles the complete frames
+	 *
+	 * @param aHandler
+	 *            The handler of the received frames
+	 * @return False if the connection has been closed by the peer
+	 * @throws IOException
+	 *             Error reading the connection or invalid frame
+	 */
+	boolean read(final EventLoop.Handler aHandler) throws IOException {
+
+		if (pChannel.read(pReadBuffer) < 0) {
+			return false;
+		}
+
+		pReadBuffer.flip();
+		while (pReadBuffer.remaining() >= 4) {
+			final int length = pReadBuffer.getInt(pReadBuffer.position());
+			if (length < 0 || length > ITcpConstants.MAX_FRAME_SIZE) {
+				throw new IOException("Invalid frame size: " + length);
+			}
+
+			if (pReadBuffer.remaining() < 4 + length) {
+				if (4 + length > pReadBuffer.capacity()) {
+					// Make room for the whole frame
+					final ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+					buffer.put(pReadBuffer);
+					pReadBuffer = buffer;
+					return true;
+				}
+				break;
+			}
+
+			pReadBuffer.getInt();
+			final byte[] frame = new byte[length];
+			pReadBuffer.get(frame);
+			aHandler.frameReceived(this, frame);
+		}
+
+		if (pReadBuffer.capacity() > READ_BUFFER_SIZE
+				&& !pReadBuffer.hasRemaining()) {
+			// Release the room made for a large frame
+			pReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		} else {
+			pReadBuffer.compact();
+		}
+		return true;
+	}
+
+	/**
+	 * Registers the connection to the selector of the event loop
+	 *
+	 * @param aSelector
+	 *            The selector of the event loop
+	 * @throws ClosedChannelException
+	 *             The connection has been closed
+	 */
+	void register(final Selector aSelector) throws ClosedChannelException {
+
+		int ops = SelectionKey.OP_READ;
+		if (!pWriting.isEmpty()) {
+			// Frames have been partially written before the registration
+			ops |= SelectionKey.OP_WRITE;
+		}
+		pKey = pChannel.register(aSelector, ops, this);
+	}
+
+	/**
+	 * Writes the queued frames, as long as the socket accepts them. If some
+	 * frames remain, the connection waits for the socket to be writable.
+	 *
+	 * @throws IOException
+	 *             Error writing to the socket
+	 */
+	void write() throws IOException {
+
+		// Frames queued after this point will be flushed on next call
+		pFlushScheduled.set(false);
+
+		Pending frame;
+		while ((frame = pQueue.poll()) != null) {
+			pWriting.add(frame);
+		}
+
+		while (!pWriting.isEmpty()) {
+			// Gather as many frames as possible
+			int count = 0;
+			long expected = 0;
+			for (final Pending pending : pWriting) {
+				pWriteBatch[count++] = pending.pFrame;
+				expected += pending.pFrame.remaining();
+				if (count == WRITE_BATCH_SIZE) {
+					break;
+				}
+			}
+
+			final long written = pChannel.write(pWriteBatch, 0, count);
+			pPendingBytes.addAndGet(-written);
+			while (!pWriting.isEmpty()
+					&& !pWriting.peek().pFrame.hasRemaining()) {
+				pWriting.poll();
+			}
+
+			if (written < expected) {
+				// The socket buffer is full
+				break;
+			}
+		}
+
+		for (int i = 0; i < WRITE_BATCH_SIZE && pWriteBatch[i] != null; i++) {
+			pWriteBatch[i] = null;
+		}
+
+		if (pKey != null && pKey.isValid()) {
+			final int ops = pKey.interestOps();
+			if (pWriting.isEmpty()) {
+				pKey.interestOps(ops & ~SelectionKey.OP_WRITE);
+			} else {
+				pKey.interestOps(ops | SelectionKey.OP_WRITE);
+			}
+		}
+	}
+}
@@ -0,0 +1,353 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.tcp.impl;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.cohorte.herald.Peer;
+import org.osgi.service.log.LogService;
+
+/**
+ * The thread serving all the TCP connections of the transport: it accepts the
+ * incoming connections, reads the frames of all connections and writes the
+ * queued frames.
+ *
+ * Frames are written once the read events of a loop iteration have been
+ * handled: the frames queued in the meantime are then written together.
+ *
+ * @author Thomas Calmant
+ */
+final class EventLoop {
+
+	/**
+	 * Handler of the frames received by the event loop
+	 */
+	interface Handler {
+
+		/**
+		 * A frame queued for a peer couldn't be written before its connection
+		 * was closed
+		 *
+		 * @param aPeer
+		 *            The targeted peer
+		 * @param aMessageUid
+		 *            UID of the message in the frame
+		 */
+		void frameLost(Peer aPeer, String aMessageUid);
+
+		/**
+		 * A frame has been received
+		 *
+		 * @param aConnection
+		 *            The connection which received the frame
+		 * @param aFrame
+		 *            Content of the frame
+		 */
+		void frameReceived(Connection aConnection, byte[] aFrame);
+	}
+
+	/** Connections to flush */
+	private final Queue<Connection> pFlushes = new ConcurrentLinkedQueue<>();
+
+	/** The handler of received frames */
+	private final Handler pHandler;
+
+	/** The log service */
+	private final LogService pLogger;
+
+	/** Connections to register */
+	private final Queue<Connection> pRegistrations = new ConcurrentLinkedQueue<>();
+
+	/** The loop must continue */
+	private volatile boolean pRunning;
+
+	/** The selector */
+	private final Selector pSelector;
+
+	/** The listening socket */
+	private final ServerSocketChannel pServer;
+
+	/** The loop thread */
+	private Thread pThread;
+
+	/** The selector has been woken up since the beginning of the iteration */
+	private final AtomicBoolean pWokenUp = new AtomicBoolean();
+
+	/**
+	 * Sets up the event loop
+	 *
+	 * @param aServer
+	 *            The listening socket, bound
+	 * @param aHandler
+	 *            The handler of received frames
+	 * @param aLogger
+	 *            The log service
+	 * @throws IOException
+	 *             Error opening the selector
+	 */
+	EventLoop(final ServerSocketChannel aServer, final Handler aHandler,
+			final LogService aLogger) throws IOException {
+
+		pServer = aServer;
+		pHandler = aHandler;
+		pLogger = aLogger;
+
+		pServer.configureBlocking(false);
+		pSelector = Selector.open();
+		pServer.register(pSelector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Accepts an incoming connection
+	 *
+	 * @throws IOException
+	 *             Error accepting the connection
+	 */
+	private void accept() throws IOException {
+
+		final SocketChannel channel = pServer.accept();
+		if (channel != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			new Connection(channel, this).register(pSelector);
+		}
+	}
+
+	/**
+	 * Asks the loop to write the frames queued in a connection
+	 *
+	 * @param aConnection
+	 *            A connection
+	 */
+	void flush(final Connection aConnection) {
+
+		pFlushes.add(aConnection);
+		wakeup();
+	}
+
+	/**
+	 * Notifies the handler that a frame couldn't be written
+	 *
+	 * @param aPeer
+	 *            The targeted peer
+	 * @param aMessageUid
+	 *            UID of the message in the frame
+	 */
+	void frameLost(final Peer aPeer, final String aMessageUid) {
+
+		pHandler.frameLost(aPeer, aMessageUid);
+	}
+
+	/**
+	 * Writes the frames of the connections to flush
+	 */
+	private void processFlushes() {
+
+		Connection connection;
+		while ((connection = pFlushes.poll()) != null) {
+			if (connection.isClosed()) {
+				continue;
+			}
+
+			try {
+				connection.write();
+
+			} catch (final IOException ex) {
+				pLogger.log(LogService.LOG_DEBUG,
+						"Closing a TCP connection: " + ex);
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Registers the new outgoing connections
+	 */
+	private void processRegistrations() {
+
+		Connection connection;
+		while ((connection = pRegistrations.poll()) != null) {
+			try {
+				connection.register(pSelector);
+
+			} catch (final ClosedChannelException ex) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Handles the events of the selected keys
+	 */
+	private void processSelectedKeys() {
+
+		final Iterator<SelectionKey> iterator = pSelector.selectedKeys()
+				.iterator();
+		while (iterator.hasNext()) {
+			final SelectionKey key = iterator.next();
+			iterator.remove();
+
+			final Connection connection = (Connection) key.attachment();
+			try {
+				if (!key.isValid()) {
+					continue;
+
+				} else if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+
+				if (key.isReadable() && !connection.read(pHandler)) {
+					// Connection closed by the peer
+					connection.close();
+					continue;
+				}
+
+				if (key.isValid() && key.isWritable()) {
+					connection.write();
+				}
+
+			} catch (final IOException ex) {
+				if (connection == null) {
+					pLogger.log(LogService.LOG_WARNING,
+							"Error accepting a TCP connection: " + ex);
+				} else {
+					// Drop the connection
+					pLogger.log(LogService.LOG_DEBUG,
+							"Closing a TCP connection: " + ex);
+					connection.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands a new outgoing connection to the loop
+	 *
+	 * @param aConnection
+	 *            A connection
+	 */
+	void register(final Connection aConnection) {
+
+		pRegistrations.add(aConnection);
+		wakeup();
+	}
+
+	/**
+	 * Serves the connections until the loop is stopped
+	 */
+	private void run() {
+
+		while (pRunning) {
+			pWokenUp.set(false);
+			try {
+				if (pFlushes.isEmpty() && pRegistrations.isEmpty()) {
+					pSelector.select();
+				} else {
+					pSelector.selectNow();
+				}
+
+			} catch (final IOException ex) {
+				pLogger.log(LogService.LOG_ERROR,
+						"Error waiting for TCP events: " + ex, ex);
+				return;
+			}
+
+			processRegistrations();
+			processSelectedKeys();
+
+			// Flush on idle: write what has been queued during the iteration
+			processFlushes();
+		}
+	}
+
+	/**
+	 * Starts the loop thread
+	 */
+	void start() {
+
+		pRunning = true;
+		pThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				EventLoop.this.run();
+			}
+		}, "Herald-TCP-Loop");
+		pThread.setDaemon(true);
+		pThread.start();
+	}
+
+	/**
+	 * Stops the loop thread and closes all connections
+	 */
+	void stop() {
+
+		pRunning = false;
+		if (pThread != null) {
+			pSelector.wakeup();
+			try {
+				pThread.join(1000);
+
+			} catch (final InterruptedException ex) {
+				// Ignore
+			}
+			pThread = null;
+		}
+
+		for (final SelectionKey key : pSelector.keys()) {
+			final Object attachment = key.attachment();
+			if (attachment instanceof Connection) {
+				((Connection) attachment).close();
+			}
+		}
+
+		Connection connection;
+		while ((connection = pRegistrations.poll()) != null) {
+			connection.close();
+		}
+		pFlushes.clear();
+
+		try {
+			pSelector.close();
+		} catch (final IOException ex) {
+			// Ignore
+		}
+	}
+
+	/**
+	 * Wakes up the selector, unless it has already been done during this
+	 * iteration of the loop
+	 */
+	private void wakeup() {
+
+		if (Thread.currentThread() != pThread
+				&& pWokenUp.compareAndSet(false, true)) {
+			pSelector.wakeup();
+		}
+	}
+}
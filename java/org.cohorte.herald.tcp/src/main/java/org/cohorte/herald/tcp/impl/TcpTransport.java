@@ -0,0 +1,555 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.tcp.impl;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.ServiceProperty;
+import org.apache.felix.ipojo.annotations.Validate;
+import org.cohorte.herald.Access;
+import org.cohorte.herald.HeraldException;
+import org.cohorte.herald.IConstants;
+import org.cohorte.herald.IDirectory;
+import org.cohorte.herald.IHeraldInternal;
+import org.cohorte.herald.ITransport;
+import org.cohorte.herald.InvalidPeerAccess;
+import org.cohorte.herald.Message;
+import org.cohorte.herald.MessageReceived;
+import org.cohorte.herald.Overloaded;
+import org.cohorte.herald.Peer;
+import org.cohorte.herald.Target;
+import org.cohorte.herald.core.utils.MessageUtils;
+import org.cohorte.herald.tcp.ITcpConstants;
+import org.cohorte.herald.tcp.TcpAccess;
+import org.cohorte.herald.tcp.TcpExtra;
+import org.cohorte.herald.transport.IContactHook;
+import org.cohorte.herald.transport.IDiscoveryConstants;
+import org.cohorte.herald.transport.PeerContact;
+import org.jabsorb.ng.serializer.MarshallException;
+import org.jabsorb.ng.serializer.UnmarshallException;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+
+/**
+ * TCP transport for Herald.
+ *
+ * Messages are sent as frames (a 4-bytes length, then the JSON message)
+ * through persistent connections to each peer. Sending a message only queues
+ * its frame: a single event loop thread writes the queued frames, reads the
+ * incoming connections and accepts new ones.
+ *
+ * @author Thomas Calmant
+ */
+@Component
+@Provides(specifications = ITransport.class)
+@Instantiate(name = "herald-tcp-transport")
+public class TcpTransport implements ITransport, IContactHook {
+
+	/** Name of the message encoding charset */
+	private static final String CHARSET_UTF8 = "UTF-8";
+
+	/** Connection timeout, in milliseconds */
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	/** Access ID property */
+	@ServiceProperty(name = IConstants.PROP_ACCESS_ID, value = ITcpConstants.ACCESS_ID)
+	private String pAccessId;
+
+	/** Connections to the peers: "host:port#index" -&gt; connection */
+	private final ConcurrentMap<String, Connection> pConnections = new ConcurrentHashMap<>();
+
+	/** Number of connections to each peer */
+	private int pConnectionsPerPeer;
+
+	/** The peer contact handler */
+	private PeerContact pContact;
+
+	/** The bundle context */
+	private final BundleContext pContext;
+
+	/** Herald core directory */
+	@Requires
+	private IDirectory pDirectory;
+
+	/** Herald core service */
+	@Requires
+	private IHeraldInternal pHerald;
+
+	/** The log service */
+	@Requires(optional = true)
+	private LogService pLogger;
+
+	/** The event loop */
+	private EventLoop pLoop;
+
+	/** Index of the next connection to use */
+	private final AtomicInteger pNextConnection = new AtomicInteger();
+
+	/**
+	 * Sets up members
+	 *
+	 * @param aContext
+	 *            The bundle context
+	 */
+	public TcpTransport(final BundleContext aContext) {
+
+		pContext = aContext;
+	}
+
+	/**
+	 * Converts a message to a frame
+	 *
+	 * @param aMessage
+	 *            The message to convert
+	 * @param aTarget
+	 *            Target of the message, for errors
+	 * @return The frame
+	 * @throws HeraldException
+	 *             Error converting the message
+	 */
+	private ByteBuffer encode(final Message aMessage, final Target aTarget)
+			throws HeraldException {
+
+		try {
+			return Connection.frame(MessageUtils.toJSON(aMessage).getBytes(
+					CHARSET_UTF8));
+
+		} catch (final MarshallException | UnsupportedEncodingException ex) {
+			throw new HeraldException(aTarget,
+					"Error marshalling the message content", ex);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.ITransport#fire(org.cohorte.herald.Peer,
+	 * org.cohorte.herald.Message)
+	 */
+	@Override
+	public void fire(final Peer aPeer, final Message aMessage)
+			throws HeraldException {
+
+		fire(aPeer, aMessage, null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.ITransport#fire(org.cohorte.herald.Peer,
+	 * org.cohorte.herald.Message, java.lang.Object)
+	 */
+	@Override
+	public void fire(final Peer aPeer, final Message aMessage,
+			final Object aExtra) throws HeraldException {
+
+		// Compute parent UID, in case of reply
+		String parentUid = null;
+		if (aExtra instanceof TcpExtra) {
+			parentUid = ((TcpExtra) aExtra).getParentUid();
+		}
+
+		final Access access = aPeer.getAccess(ITcpConstants.ACCESS_ID);
+		if (!(access instanceof TcpAccess)) {
+			throw new InvalidPeerAccess(new Target(aPeer), "No "
+					+ ITcpConstants.ACCESS_ID + " access found");
+		}
+
+		aMessage.addHeader(Message.MESSAGE_HEADER_SENDER_UID,
+				pDirectory.getLocalPeer().getUid());
+		aMessage.addHeader(Message.MESSAGE_HEADER_TARGET_PEER, aPeer.getUid());
+		if (parentUid != null && !parentUid.isEmpty()) {
+			aMessage.addHeader(Message.MESSAGE_HEADER_REPLIES_TO, parentUid);
+		}
+
+		final Target target = new Target(aPeer);
+		send((TcpAccess) access, encode(aMessage, target), aPeer,
+				aMessage.getUid());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.ITransport#fireGroup(java.lang.String,
+	 * java.util.Collection, org.cohorte.herald.Message)
+	 */
+	@Override
+	public Collection<Peer> fireGroup(final String aGroup,
+			final Collection<Peer> aPeers, final Message aMessage)
+			throws HeraldException {
+
+		// Prepare the message once
+		aMessage.addHeader(Message.MESSAGE_HEADER_SENDER_UID,
+				pDirectory.getLocalPeer().getUid());
+		aMessage.addHeader(Message.MESSAGE_HEADER_TARGET_GROUP, aGroup);
+		final ByteBuffer frame = encode(aMessage, new Target(aGroup,
+				Target.toUids(aPeers)));
+
+		final Set<Peer> accessedPeers = new LinkedHashSet<>();
+		for (final Peer peer : aPeers) {
+			final Access access = peer.getAccess(ITcpConstants.ACCESS_ID);
+			if (!(access instanceof TcpAccess)) {
+				pLogger.log(LogService.LOG_DEBUG, "No "
+						+ ITcpConstants.ACCESS_ID + " access found for "
+						+ peer);
+				continue;
+			}
+
+			try {
+				// Each connection reads its own view of the frame
+				send((TcpAccess) access, frame.duplicate(), peer,
+						aMessage.getUid());
+				accessedPeers.add(peer);
+
+			} catch (final HeraldException ex) {
+				pLogger.log(LogService.LOG_DEBUG, "Error posting a message to "
+						+ peer + ": " + ex, ex);
+			}
+		}
+
+		return accessedPeers;
+	}
+
+	/**
+	 * Returns a connection to a peer, opening it if necessary. The
+	 * connections to a peer are used in turn.
+	 *
+	 * @param aAccess
+	 *            Access to the peer
+	 * @return The connection
+	 * @throws IOException
+	 *             Error connecting the peer
+	 */
+	private Connection getConnection(final TcpAccess aAccess)
+			throws IOException {
+
+		final int index = (pNextConnection.getAndIncrement() & Integer.MAX_VALUE)
+				% pConnectionsPerPeer;
+		final String key = aAccess.getHost() + ":" + aAccess.getPort() + "#"
+				+ index;
+
+		Connection connection = pConnections.get(key);
+		if (connection == null || connection.isClosed()) {
+			if (connection != null) {
+				pConnections.remove(key, connection);
+			}
+
+			final SocketChannel channel = SocketChannel.open();
+			try {
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().connect(
+						new InetSocketAddress(aAccess.getHost(), aAccess
+								.getPort()), CONNECT_TIMEOUT);
+				channel.configureBlocking(false);
+
+			} catch (final IOException ex) {
+				channel.close();
+				throw ex;
+			}
+
+			connection = new Connection(channel, pLoop);
+			final Connection previous = pConnections.putIfAbsent(key,
+					connection);
+			if (previous != null) {
+				// Connected concurrently
+				connection.close();
+				connection = previous;
+			} else {
+				pLoop.register(connection);
+			}
+		}
+		return connection;
+	}
+
+	/**
+	 * Gets a bundle context / system property
+	 *
+	 * @param aKey
+	 *            Property name
+	 * @return Property value, or null
+	 */
+	private String getProperty(final String aKey) {
+
+		String value = pContext.getProperty(aKey);
+		if (value == null) {
+			// Not done in Equinox
+			value = System.getProperty(aKey);
+		}
+		return value;
+	}
+
+	/**
+	 * Gets an integer bundle context / system property
+	 *
+	 * @param aKey
+	 *            Property name
+	 * @param aDefault
+	 *            Value to use if the property is missing or invalid
+	 * @return Property value, or the default one
+	 */
+	private int getProperty(final String aKey, final int aDefault) {
+
+		final String value = getProperty(aKey);
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+
+			} catch (final NumberFormatException ex) {
+				pLogger.log(LogService.LOG_WARNING, "Invalid value for "
+						+ aKey + ": " + value);
+			}
+		}
+		return aDefault;
+	}
+
+	/**
+	 * Lets Herald handle a received frame. Called by the event loop.
+	 *
+	 * @param aConnection
+	 *            The connection which received the frame
+	 * @param aFrame
+	 *            Content of the frame
+	 */
+	private void handleFrame(final Connection aConnection, final byte[] aFrame) {
+
+		final MessageReceived message;
+		try {
+			message = MessageUtils.fromJSON(new String(aFrame, CHARSET_UTF8));
+
+		} catch (final UnmarshallException | UnsupportedEncodingException ex) {
+			pLogger.log(LogService.LOG_ERROR,
+					"Error reading a TCP message: " + ex, ex);
+			return;
+		}
+
+		if (message == null) {
+			// Invalid message
+			return;
+		}
+
+		message.setAccess(ITcpConstants.ACCESS_ID);
+		message.setExtra(new TcpExtra(aConnection.getRemoteHost(), message
+				.getSender(), message.getUid()));
+
+		if (message.getSubject().startsWith(
+				IDiscoveryConstants.SUBJECT_DISCOVERY_PREFIX)) {
+			// Handle discovery message
+			try {
+				pContact.handleDiscoveryMessage(pHerald, message);
+
+			} catch (final HeraldException ex) {
+				pLogger.log(LogService.LOG_ERROR,
+						"Error replying to a discovery message: " + ex, ex);
+			}
+			return;
+		}
+
+		try {
+			pHerald.handleMessage(message, aFrame.length);
+
+		} catch (final Overloaded ex) {
+			// No room in the admission queue: the message is lost, unless
+			// the sender retries on the herald/error/overloaded reply Herald
+			// core tried to send
+			pLogger.log(LogService.LOG_WARNING, "TCP message rejected: " + ex);
+		}
+	}
+
+	/**
+	 * Component invalidated
+	 */
+	@Invalidate
+	public void invalidate() {
+
+		if (pLoop != null) {
+			pDirectory.getLocalPeer().unsetAccess(ITcpConstants.ACCESS_ID);
+
+			// Stops the loop and closes all connections
+			pLoop.stop();
+			pLoop = null;
+		}
+		pConnections.clear();
+
+		if (pContact != null) {
+			pContact.clear();
+			pContact = null;
+		}
+	}
+
+	/**
+	 * Sends a frame to a peer, through one of its persistent connections
+	 *
+	 * @param aAccess
+	 *            Access to the peer
+	 * @param aFrame
+	 *            The frame
+	 * @param aPeer
+	 *            The targeted peer
+	 * @param aMessageUid
+	 *            UID of the message in the frame
+	 * @throws HeraldException
+	 *             Error connecting the peer or too many frames waiting to be
+	 *             written
+	 */
+	private void send(final TcpAccess aAccess, final ByteBuffer aFrame,
+			final Peer aPeer, final String aMessageUid) throws HeraldException {
+
+		final Target target = new Target(aPeer);
+		for (int attempt = 0;; attempt++) {
+			try {
+				if (getConnection(aAccess).offer(aFrame, aPeer, aMessageUid)) {
+					return;
+				}
+
+				throw new HeraldException(target,
+						"Too many TCP messages waiting to be sent to "
+								+ aAccess);
+
+			} catch (final IOException ex) {
+				// The peer restarted or left: reconnect once
+				if (attempt > 0) {
+					throw new InvalidPeerAccess(target,
+							"Can't connect the TCP access " + aAccess + ": "
+									+ ex);
+				}
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.cohorte.herald.transport.IContactHook#updateDescription(org.cohorte
+	 * .herald.MessageReceived, java.util.Map)
+	 */
+	@Override
+	public Map<String, Object> updateDescription(
+			final MessageReceived aMessage,
+			final Map<String, Object> aDescription) {
+
+		if (ITcpConstants.ACCESS_ID.equals(aMessage.getAccess())) {
+			// Use the address the peer has been seen from
+			@SuppressWarnings("unchecked")
+			final Map<String, Object> accessDump = (Map<String, Object>) aDescription
+					.get("accesses");
+			final TcpAccess access = TcpAccess.load(accessDump
+					.get(ITcpConstants.ACCESS_ID));
+			final String host = ((TcpExtra) aMessage.getExtra()).getHost();
+			if (access != null && host != null) {
+				accessDump.put(ITcpConstants.ACCESS_ID, new TcpAccess(host,
+						access.getPort()).dump());
+			}
+		}
+
+		return aDescription;
+	}
+
+	/**
+	 * Component validated
+	 */
+	@Validate
+	public void validate() {
+
+		pConnectionsPerPeer = Math.max(1, getProperty(
+				ITcpConstants.FWPROP_CONNECTIONS,
+				ITcpConstants.DEFAULT_CONNECTIONS));
+
+		// Setup the peer contact
+		pContact = new PeerContact(pDirectory, this, pLogger);
+
+		final int port;
+		final ServerSocketChannel server;
+		try {
+			server = ServerSocketChannel.open();
+			try {
+				server.socket().setReuseAddress(true);
+				server.socket().bind(
+						new InetSocketAddress(getProperty(
+								ITcpConstants.FWPROP_PORT, 0)));
+				port = server.socket().getLocalPort();
+
+				pLoop = new EventLoop(server, new EventLoop.Handler() {
+
+					@Override
+					public void frameLost(final Peer aPeer,
+							final String aMessageUid) {
+
+						// Accepted by fire(), but never written
+						pHerald.deliveryFailed(aPeer,
+								ITcpConstants.ACCESS_ID, aMessageUid,
+								new HeraldException(new Target(aPeer),
+										"TCP connection closed before the "
+												+ "message was sent"));
+					}
+
+					@Override
+					public void frameReceived(final Connection aConnection,
+							final byte[] aFrame) {
+
+						handleFrame(aConnection, aFrame);
+					}
+				}, pLogger);
+
+			} catch (final IOException ex) {
+				server.close();
+				throw ex;
+			}
+
+		} catch (final IOException ex) {
+			pLogger.log(LogService.LOG_ERROR,
+					"Error setting up the TCP transport: " + ex, ex);
+			invalidate();
+			return;
+		}
+
+		// Compute the advertised host
+		String host = getProperty(ITcpConstants.FWPROP_HOST);
+		if (host == null || host.isEmpty()) {
+			try {
+				host = InetAddress.getLocalHost().getHostAddress();
+
+			} catch (final IOException ex) {
+				host = "localhost";
+			}
+		}
+
+		pLoop.start();
+
+		// Register our local access
+		pDirectory.getLocalPeer().setAccess(ITcpConstants.ACCESS_ID,
+				new TcpAccess(host, port));
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.uds;
+
+/**
+ * Constants used by the Unix domain socket transport implementation
+ *
+ * @author Thomas Calmant
+ */
+public interface IUdsConstants {
+
+    /** Access ID used by the Unix domain socket transport implementation */
+    String ACCESS_ID = "uds";
+
+    /**
+     * Framework property: parent of the node directories where the sockets
+     * are bound (default: a "herald-uds" folder in the temporary directory)
+     */
+    String FWPROP_DIRECTORY = "herald.uds.directory";
+
+    /** Maximum size of a frame, in bytes */
+    int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.uds;
+
+import org.cohorte.herald.Access;
+
+/**
+ * Description of a Unix domain socket access: the socket file of a peer,
+ * usable by the peers of the same node
+ *
+ * @author Thomas Calmant
+ */
+public class UdsAccess extends Access {
+
+    /**
+     * Creates a bean from the result {@link #dump()}
+     *
+     * @param aDump
+     *            The result of {@link #dump()}
+     * @return The created bean, or null
+     */
+    public static UdsAccess load(final Object aDump) {
+
+        if (aDump instanceof Object[] && ((Object[]) aDump).length == 2) {
+
+            final Object[] dump = (Object[]) aDump;
+            return new UdsAccess((String) dump[0], (String) dump[1]);
+        }
+
+        // Unreadable content
+        return null;
+    }
+
+    /** UID of the node of the peer */
+    private final String pNodeUid;
+
+    /** Path to the socket file of the peer */
+    private final String pPath;
+
+    /**
+     * Sets up the access
+     *
+     * @param aNodeUid
+     *            UID of the node of the peer
+     * @param aPath
+     *            Path to the socket file of the peer
+     */
+    public UdsAccess(final String aNodeUid, final String aPath) {
+
+        pNodeUid = aNodeUid;
+        pPath = aPath;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    @Override
+    public int compareTo(final Access aOther) {
+
+        if (aOther instanceof UdsAccess) {
+            return toString().compareTo(aOther.toString());
+        }
+
+        // Can't compare
+        return 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.herald.Access#dump()
+     */
+    @Override
+    public Object dump() {
+
+        return new Object[] { pNodeUid, pPath };
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(final Object aObj) {
+
+        if (aObj instanceof UdsAccess) {
+            final UdsAccess other = (UdsAccess) aObj;
+            return pNodeUid.equals(other.pNodeUid) && pPath.equals(other.pPath);
+        }
+
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.herald.Access#getAccessId()
+     */
+    @Override
+    public String getAccessId() {
+
+        return IUdsConstants.ACCESS_ID;
+    }
+
+    /**
+     * Retrieves the UID of the node of the peer: the access can only be used
+     * by the peers of this node
+     *
+     * @return the node UID
+     */
+    public String getNodeUid() {
+
+        return pNodeUid;
+    }
+
+    /**
+     * Retrieves the path to the socket file of the peer
+     *
+     * @return the path
+     */
+    public String getPath() {
+
+        return pPath;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+
+        return toString().hashCode();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+
+        return "unix://" + pNodeUid + pPath;
+    }
+}
@@ -0,0 +1,692 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.uds.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.ServiceProperty;
+import org.apache.felix.ipojo.annotations.Validate;
+import org.cohorte.herald.Access;
+import org.cohorte.herald.HeraldException;
+import org.cohorte.herald.IConstants;
+import org.cohorte.herald.IDirectory;
+import org.cohorte.herald.IHeraldInternal;
+import org.cohorte.herald.ITransport;
+import org.cohorte.herald.InvalidPeerAccess;
+import org.cohorte.herald.Message;
+import org.cohorte.herald.MessageReceived;
+import org.cohorte.herald.Overloaded;
+import org.cohorte.herald.Peer;
+import org.cohorte.herald.Target;
+import org.cohorte.herald.core.utils.MessageUtils;
+import org.cohorte.herald.uds.IUdsConstants;
+import org.cohorte.herald.uds.UdsAccess;
+import org.cohorte.herald.uds.UdsExtra;
+import org.jabsorb.ng.serializer.MarshallException;
+import org.jabsorb.ng.serializer.UnmarshallException;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+
+/**
+ * Unix domain socket transport for Herald, for the peers of the same node.
+ *
+ * Messages are sent as frames (a 4-bytes length, then the JSON message)
+ * through persistent connections, one per target peer. Incoming connections
+ * are read by a single thread, driven by a selector. The transport requires
+ * Java 16+: on older JVMs, the local peer doesn't get a Unix domain socket
+ * access.
+ *
+ * @author Thomas Calmant
+ */
+@Component
+@Provides(specifications = ITransport.class)
+@Instantiate(name = "herald-uds-transport")
+public class UdsTransport implements ITransport {
+
+	/**
+	 * A connection to a peer: frames are written by one thread at a time
+	 */
+	private static final class Link {
+
+		/** The socket channel, in blocking mode */
+		private final SocketChannel pChannel;
+
+		/**
+		 * Connects the peer
+		 *
+		 * @param aPath
+		 *            Path to the socket of the peer
+		 * @throws IOException
+		 *             Error connecting the peer
+		 */
+		Link(final String aPath) throws IOException {
+
+			pChannel = UnixSockets.connect(new File(aPath));
+		}
+
+		/**
+		 * Closes the connection
+		 */
+		void close() {
+
+			try {
+				pChannel.close();
+			} catch (final IOException ex) {
+				// Ignore
+			}
+		}
+
+		/**
+		 * Writes a frame
+		 *
+		 * @param aFrame
+		 *            Content of the frame
+		 * @throws IOException
+		 *             Error writing the frame
+		 */
+		synchronized void write(final byte[] aFrame) throws IOException {
+
+			final ByteBuffer length = ByteBuffer.allocate(4);
+			length.putInt(aFrame.length).flip();
+
+			// Gathering write: a single system call in most cases
+			final ByteBuffer[] buffers = { length, ByteBuffer.wrap(aFrame) };
+			while (buffers[1].hasRemaining()) {
+				pChannel.write(buffers);
+			}
+		}
+	}
+
+	/**
+	 * The reading side of an incoming connection
+	 */
+	private final class Reader {
+
+		/** Read bytes, not yet handled (write mode) */
+		private ByteBuffer pBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		/**
+		 * Reads the available bytes and handles the complete frames
+		 *
+		 * @param aChannel
+		 *            The connection
+		 * @return False if the connection has been closed by the peer
+		 * @throws IOException
+		 *             Error reading the connection or invalid frame
+		 */
+		boolean read(final SocketChannel aChannel) throws IOException {
+
+			if (aChannel.read(pBuffer) < 0) {
+				return false;
+			}
+
+			pBuffer.flip();
+			while (pBuffer.remaining() >= 4) {
+				final int length = pBuffer.getInt(pBuffer.position());
+				if (length < 0 || length > IUdsConstants.MAX_FRAME_SIZE) {
+					throw new IOException("Invalid frame size: " + length);
+				}
+
+				if (pBuffer.remaining() < 4 + length) {
+					if (4 + length > pBuffer.capacity()) {
+						// Make room for the whole frame
+						final ByteBuffer buffer = ByteBuffer
+								.allocate(4 + length);
+						buffer.put(pBuffer);
+						pBuffer = buffer;
+						return true;
+					}
+					break;
+				}
+
+				pBuffer.getInt();
+				final byte[] frame = new byte[length];
+				pBuffer.get(frame);
+				handleFrame(frame);
+			}
+
+			if (pBuffer.capacity() > READ_BUFFER_SIZE
+					&& !pBuffer.hasRemaining()) {
+				// Release the room made for a large frame
+				pBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			} else {
+				pBuffer.compact();
+			}
+			return true;
+		}
+	}
+
+	/** Name of the message encoding charset */
+	private static final String CHARSET_UTF8 = "UTF-8";
+
+	/** Size of the reading buffer of a connection */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/** Access ID property */
+	@ServiceProperty(name = IConstants.PROP_ACCESS_ID, value = IUdsConstants.ACCESS_ID)
+	private String pAccessId;
+
+	/** The bundle context */
+	private final BundleContext pContext;
+
+	/** Herald core directory */
+	@Requires
+	private IDirectory pDirectory;
+
+	/** Herald core service */
+	@Requires
+	private IHeraldInternal pHerald;
+
+	/** Connections to the peers: socket path -&gt; connection */
+	private final ConcurrentMap<String, Link> pLinks = new ConcurrentHashMap<>();
+
+	/** The log service */
+	@Requires(optional = true)
+	private LogService pLogger;
+
+	/** UID of the node of the local peer */
+	private String pNodeUid;
+
+	/** The receiving thread */
+	private Thread pReceiver;
+
+	/** The receiving thread must continue */
+	private volatile boolean pRunning;
+
+	/** The selector of the receiving thread */
+	private Selector pSelector;
+
+	/** The listening socket */
+	private ServerSocketChannel pServer;
+
+	/** The socket file */
+	private File pSocketFile;
+
+	/**
+	 * Sets up members
+	 *
+	 * @param aContext
+	 *            The bundle context
+	 */
+	public UdsTransport(final BundleContext aContext) {
+
+		pContext = aContext;
+	}
+
+	/**
+	 * Accepts an incoming connection
+	 *
+	 * @throws IOException
+	 *             Error accepting the connection
+	 */
+	private void accept() throws IOException {
+
+		final SocketChannel channel = pServer.accept();
+		if (channel != null) {
+			channel.configureBlocking(false);
+			channel.register(pSelector, SelectionKey.OP_READ, new Reader());
+		}
+	}
+
+	/**
+	 * Converts a message to the content of a frame
+	 *
+	 * @param aMessage
+	 *            The message to convert
+	 * @param aTarget
+	 *            Target of the message, for errors
+	 * @return The frame content
+	 * @throws HeraldException
+	 *             Error converting the message
+	 */
+	private byte[] encode(final Message aMessage, final Target aTarget)
+			throws HeraldException {
+
+		try {
+			return MessageUtils.toJSON(aMessage).getBytes(CHARSET_UTF8);
+
+		} catch (final MarshallException | UnsupportedEncodingException ex) {
+			throw new HeraldException(aTarget,
+					"Error marshalling the message content", ex);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.ITransport#fire(org.cohorte.herald.Peer,
+	 * org.cohorte.herald.Message)
+	 */
+	@Override
+	public void fire(final Peer aPeer, final Message aMessage)
+			throws HeraldException {
+
+		fire(aPeer, aMessage, null);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.ITransport#fire(org.cohorte.herald.Peer,
+	 * org.cohorte.herald.Message, java.lang.Object)
+	 */
+	@Override
+	public void fire(final Peer aPeer, final Message aMessage,
+			final Object aExtra) throws HeraldException {
+
+		// Compute parent UID, in case of reply
+		String parentUid = null;
+		if (aExtra instanceof UdsExtra) {
+			parentUid = ((UdsExtra) aExtra).getParentUid();
+		}
+
+		final UdsAccess access = getAccess(aPeer);
+		if (access == null) {
+			throw new InvalidPeerAccess(new Target(aPeer), "No "
+					+ IUdsConstants.ACCESS_ID + " access found on this node");
+		}
+
+		aMessage.addHeader(Message.MESSAGE_HEADER_SENDER_UID,
+				pDirectory.getLocalPeer().getUid());
+		aMessage.addHeader(Message.MESSAGE_HEADER_TARGET_PEER, aPeer.getUid());
+		if (parentUid != null && !parentUid.isEmpty()) {
+			aMessage.addHeader(Message.MESSAGE_HEADER_REPLIES_TO, parentUid);
+		}
+
+		final Target target = new Target(aPeer);
+		send(access, encode(aMessage, target), target);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cohorte.herald.ITransport#fireGroup(java.lang.String,
+	 * java.util.Collection, org.cohorte.herald.Message)
+	 */
+	@Override
+	public Collection<Peer> fireGroup(final String aGroup,
+			final Collection<Peer> aPeers, final Message aMessage)
+			throws HeraldException {
+
+		// Prepare the message once
+		aMessage.addHeader(Message.MESSAGE_HEADER_SENDER_UID,
+				pDirectory.getLocalPeer().getUid());
+		aMessage.addHeader(Message.MESSAGE_HEADER_TARGET_GROUP, aGroup);
+		final byte[] frame = encode(aMessage,
+				new Target(aGroup, Target.toUids(aPeers)));
+
+		final Set<Peer> accessedPeers = new LinkedHashSet<>();
+		for (final Peer peer : aPeers) {
+			final UdsAccess access = getAccess(peer);
+			if (access == null) {
+				// Not on this node
+				pLogger.log(LogService.LOG_DEBUG, "No "
+						+ IUdsConstants.ACCESS_ID + " access found for "
+						+ peer);
+				continue;
+			}
+
+			try {
+				send(access, frame, new Target(peer));
+				accessedPeers.add(peer);
+
+			} catch (final HeraldException ex) {
+				pLogger.log(LogService.LOG_DEBUG, "Error posting a message to "
+						+ peer + ": " + ex, ex);
+			}
+		}
+
+		return accessedPeers;
+	}
+
+	/**
+	 * Returns the Unix domain socket access of a peer of the local node
+	 *
+	 * @param aPeer
+	 *            A peer
+	 * @return The access of the peer, or null if it is not on this node
+	 */
+	private UdsAccess getAccess(final Peer aPeer) {
+
+		if (aPeer == null || pNodeUid == null) {
+			return null;
+		}
+
+		final Access access = aPeer.getAccess(IUdsConstants.ACCESS_ID);
+		if (access instanceof UdsAccess
+				&& pNodeUid.equals(((UdsAccess) access).getNodeUid())) {
+			return (UdsAccess) access;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the connection to a peer, opening it if necessary
+	 *
+	 * @param aPath
+	 *            Path to the socket of the peer
+	 * @return The connection
+	 * @throws IOException
+	 *             Error connecting the peer
+	 */
+	private Link getLink(final String aPath) throws IOException {
+
+		Link link = pLinks.get(aPath);
+		if (link == null) {
+			link = new Link(aPath);
+			final Link previous = pLinks.putIfAbsent(aPath, link);
+			if (previous != null) {
+				// Connected concurrently
+				link.close();
+				link = previous;
+			}
+		}
+		return link;
+	}
+
+	/**
+	 * Gets a bundle context / system property
+	 *
+	 * @param aKey
+	 *            Property name
+	 * @return Property value, or null
+	 */
+	private String getProperty(final String aKey) {
+
+		String value = pContext.getProperty(aKey);
+		if (value == null) {
+			// Not done in Equinox
+			value = System.getProperty(aKey);
+		}
+		return value;
+	}
+
+	/**
+	 * Lets Herald handle a received frame
+	 *
+	 * @param aFrame
+	 *            Content of the frame
+	 */
+	private void handleFrame(final byte[] aFrame) {
+
+		final MessageReceived message;
+		try {
+			message = MessageUtils.fromJSON(new String(aFrame, CHARSET_UTF8));
+
+		} catch (final UnmarshallException | UnsupportedEncodingException ex) {
+			pLogger.log(LogService.LOG_ERROR,
+					"Error reading a Unix domain socket message: " + ex, ex);
+			return;
+		}
+
+		if (message == null) {
+			// Invalid message
+			return;
+		}
+
+		message.setAccess(IUdsConstants.ACCESS_ID);
+		message.setExtra(new UdsExtra(message.getSender(), message.getUid()));
+		try {
+			pHerald.handleMessage(message, aFrame.length);
+
+		} catch (final Overloaded ex) {
+			// Rejected by the admission queue: the frame is dropped. The
+			// sender only learns it if the herald/error/overloaded reply of
+			// Herald core reaches it.
+			pLogger.log(LogService.LOG_WARNING,
+					"Unix domain socket message rejected: " + ex);
+		}
+	}
+
+	/**
+	 * Component invalidated
+	 */
+	@Invalidate
+	public void invalidate() {
+
+		if (pServer != null) {
+			pDirectory.getLocalPeer().unsetAccess(IUdsConstants.ACCESS_ID);
+		}
+
+		// Stop the receiving thread
+		pRunning = false;
+		if (pReceiver != null) {
+			pSelector.wakeup();
+			try {
+				pReceiver.join(1000);
+
+			} catch (final InterruptedException ex) {
+				// Ignore
+			}
+			pReceiver = null;
+		}
+
+		if (pSelector != null) {
+			for (final SelectionKey key : pSelector.keys()) {
+				try {
+					key.channel().close();
+				} catch (final IOException ex) {
+					// Ignore
+				}
+			}
+
+			try {
+				pSelector.close();
+			} catch (final IOException ex) {
+				// Ignore
+			}
+			pSelector = null;
+		}
+
+		if (pServer != null) {
+			try {
+				pServer.close();
+			} catch (final IOException ex) {
+				// Ignore
+			}
+			pServer = null;
+		}
+
+		if (pSocketFile != null) {
+			pSocketFile.delete();
+			pSocketFile = null;
+		}
+
+		for (final Link link : pLinks.values()) {
+			link.close();
+		}
+		pLinks.clear();
+
+		pNodeUid = null;
+	}
+
+	/**
+	 * Accepts connections and reads them until the component is invalidated
+	 */
+	private void receive() {
+
+		while (pRunning) {
+			try {
+				pSelector.select();
+
+			} catch (final IOException ex) {
+				pLogger.log(LogService.LOG_ERROR,
+						"Error waiting for Unix domain socket events: " + ex,
+						ex);
+				return;
+			}
+
+			final Iterator<SelectionKey> iterator = pSelector.selectedKeys()
+					.iterator();
+			while (iterator.hasNext()) {
+				final SelectionKey key = iterator.next();
+				iterator.remove();
+
+				try {
+					if (!key.isValid()) {
+						continue;
+
+					} else if (key.isAcceptable()) {
+						accept();
+
+					} else if (key.isReadable()
+							&& !((Reader) key.attachment())
+									.read((SocketChannel) key.channel())) {
+						// Connection closed by the peer
+						key.cancel();
+						key.channel().close();
+					}
+
+				} catch (final IOException ex) {
+					// Drop the connection
+					pLogger.log(LogService.LOG_DEBUG,
+							"Closing a Unix domain socket connection: " + ex);
+					key.cancel();
+					try {
+						key.channel().close();
+					} catch (final IOException ex2) {
+						// Ignore
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends a frame to a peer, through its persistent connection
+	 *
+	 * @param aAccess
+	 *            Access to the peer
+	 * @param aFrame
+	 *            Content of the frame
+	 * @param aTarget
+	 *            Target of the message, for errors
+	 * @throws HeraldException
+	 *             Error connecting the peer or writing the frame
+	 */
+	private void send(final UdsAccess aAccess, final byte[] aFrame,
+			final Target aTarget) throws HeraldException {
+
+		for (int attempt = 0;; attempt++) {
+			Link link = null;
+			try {
+				link = getLink(aAccess.getPath());
+				link.write(aFrame);
+				return;
+
+			} catch (final IOException ex) {
+				// The peer restarted or left: reconnect once
+				if (link != null) {
+					pLinks.remove(aAccess.getPath(), link);
+					link.close();
+				}
+
+				if (attempt > 0) {
+					throw new InvalidPeerAccess(aTarget,
+							"Can't write to the Unix domain socket: " + ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Component validated
+	 */
+	@Validate
+	public void validate() {
+
+		if (!UnixSockets.isSupported()) {
+			pLogger.log(LogService.LOG_INFO,
+					"Unix domain sockets are not supported by this JVM");
+			return;
+		}
+
+		final Peer localPeer = pDirectory.getLocalPeer();
+
+		// Compute the node directory
+		String root = getProperty(IUdsConstants.FWPROP_DIRECTORY);
+		if (root == null || root.isEmpty()) {
+			root = new File(System.getProperty("java.io.tmpdir"), "herald-uds")
+					.getPath();
+		}
+		final File directory = new File(root, localPeer.getNodeUid());
+		final File socketFile = new File(directory, localPeer.getUid()
+				+ ".sock");
+
+		pSocketFile = socketFile;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Can't create " + directory);
+			}
+
+			// Remove the socket left by a previous run
+			socketFile.delete();
+
+			pServer = UnixSockets.openServer(socketFile);
+			pServer.configureBlocking(false);
+
+			pSelector = Selector.open();
+			pServer.register(pSelector, SelectionKey.OP_ACCEPT);
+
+		} catch (final IOException ex) {
+			pLogger.log(LogService.LOG_ERROR,
+					"Error setting up the Unix domain socket transport: "
+							+ ex, ex);
+			invalidate();
+			return;
+		}
+
+		socketFile.deleteOnExit();
+		pNodeUid = localPeer.getNodeUid();
+
+		// Start receiving
+		pRunning = true;
+		pReceiver = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				receive();
+			}
+		}, "Herald-UDS-Receiver");
+		pReceiver.setDaemon(true);
+		pReceiver.start();
+
+		// Register our local access
+		localPeer.setAccess(IUdsConstants.ACCESS_ID, new UdsAccess(pNodeUid,
+				socketFile.getAbsolutePath()));
+	}
+}
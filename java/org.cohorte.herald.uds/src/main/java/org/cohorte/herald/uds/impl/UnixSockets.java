@@ -0,0 +1,195 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cohorte.herald.uds.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Access to the Unix domain sockets of the JVM, when available (Java 16+).
+ *
+ * Herald is compiled for Java 7: the sockets are opened by reflection. All
+ * methods throw an {@link UnsupportedOperationException} when the JVM doesn't
+ * support them.
+ *
+ * @author Thomas Calmant
+ */
+final class UnixSockets {
+
+	/** UnixDomainSocketAddress.of(Path) */
+	private static final Method ADDRESS_OF;
+
+	/** ServerSocketChannel.open(ProtocolFamily) */
+	private static final Method OPEN_SERVER;
+
+	/** SocketChannel.open(ProtocolFamily) */
+	private static final Method OPEN_SOCKET;
+
+	/** StandardProtocolFamily.UNIX */
+	private static final ProtocolFamily UNIX;
+
+	static {
+		Method addressOf = null;
+		Method openServer = null;
+		Method openSocket = null;
+		ProtocolFamily unix = null;
+		try {
+			addressOf = Class.forName("java.net.UnixDomainSocketAddress")
+					.getMethod("of", Path.class);
+			openServer = ServerSocketChannel.class.getMethod("open",
+					ProtocolFamily.class);
+			openSocket = SocketChannel.class.getMethod("open",
+					ProtocolFamily.class);
+			unix = StandardProtocolFamily.valueOf("UNIX");
+
+		} catch (final ReflectiveOperationException
+				| IllegalArgumentException ex) {
+			// Unix domain sockets not supported
+			addressOf = null;
+		}
+
+		ADDRESS_OF = addressOf;
+		OPEN_SERVER = openServer;
+		OPEN_SOCKET = openSocket;
+		UNIX = unix;
+	}
+
+	/**
+	 * Returns the address of a socket file
+	 *
+	 * @param aFile
+	 *            The socket file
+	 * @return The socket address
+	 */
+	static SocketAddress address(final File aFile) {
+
+		checkSupported();
+		try {
+			return (SocketAddress) ADDRESS_OF.invoke(null, aFile.toPath());
+
+		} catch (final ReflectiveOperationException ex) {
+			throw new UnsupportedOperationException(ex);
+		}
+	}
+
+	/**
+	 * Fails if the JVM doesn't support Unix domain sockets
+	 */
+	private static void checkSupported() {
+
+		if (!isSupported()) {
+			throw new UnsupportedOperationException(
+					"Unix domain sockets require Java 16+");
+		}
+	}
+
+	/**
+	 * Connects a Unix domain socket, in blocking mode
+	 *
+	 * @param aFile
+	 *            The socket file
+	 * @return The connected channel
+	 * @throws IOException
+	 *             Error connecting the socket
+	 */
+	static SocketChannel connect(final File aFile) throws IOException {
+
+		final SocketChannel channel = (SocketChannel) open(OPEN_SOCKET);
+		try {
+			channel.connect(address(aFile));
+			return channel;
+
+		} catch (final IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Checks if the JVM supports Unix domain sockets
+	 *
+	 * @return True if Unix domain sockets can be used
+	 */
+	static boolean isSupported() {
+
+		return ADDRESS_OF != null;
+	}
+
+	/**
+	 * Calls a channel factory method with the Unix protocol family
+	 *
+	 * @param aMethod
+	 *            The factory method
+	 * @return The new channel
+	 * @throws IOException
+	 *             Error opening the channel
+	 */
+	private static Object open(final Method aMethod) throws IOException {
+
+		checkSupported();
+		try {
+			return aMethod.invoke(null, UNIX);
+
+		} catch (final InvocationTargetException ex) {
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			throw new UnsupportedOperationException(ex.getCause());
+
+		} catch (final ReflectiveOperationException ex) {
+			throw new UnsupportedOperationException(ex);
+		}
+	}
+
+	/**
+	 * Opens a Unix domain server socket bound to the given file
+	 *
+	 * @param aFile
+	 *            The socket file, which must not exist
+	 * @return The bound channel, in blocking mode
+	 * @throws IOException
+	 *             Error binding the socket
+	 */
+	static ServerSocketChannel openServer(final File aFile)
+			throws IOException {
+
+		final ServerSocketChannel channel = (ServerSocketChannel) open(OPEN_SERVER);
+		try {
+			channel.bind(address(aFile));
+			return channel;
+
+		} catch (final IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Hidden constructor
+	 */
+	private UnixSockets() {
+
+	}
+}
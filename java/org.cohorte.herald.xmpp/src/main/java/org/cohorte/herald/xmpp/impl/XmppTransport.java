@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.felix.ipojo.annotations.Component;
@@ -31,6 +32,7 @@ import org.apache.felix.ipojo.annotations.ServiceController;
 import org.apache.felix.ipojo.annotations.ServiceProperty;
 import org.apache.felix.ipojo.annotations.Validate;
 import org.cohorte.herald.HeraldException;
+import org.cohorte.herald.IBatchTransport;
 import org.cohorte.herald.IConstants;
 import org.cohorte.herald.IDirectory;
 import org.cohorte.herald.IHeraldInternal;
@@ -38,6 +40,7 @@ import org.cohorte.herald.ITransport;
 import org.cohorte.herald.InvalidPeerAccess;
 import org.cohorte.herald.Message;
 import org.cohorte.herald.MessageReceived;
+import org.cohorte.herald.Overloaded;
 import org.cohorte.herald.Peer;
 import org.cohorte.herald.Target;
 import org.cohorte.herald.UnknownPeer;
@@ -70,7 +73,7 @@ import rocks.xmpp.extensions.muc.Occupant;
  */
 @Component(name = "herald-xmpp-transport-factory")
 @Provides(specifications = ITransport.class)
-public class XmppTransport implements ITransport, IBotListener, IRoomListener {
+public class XmppTransport implements IBatchTransport, IBotListener, IRoomListener {
 
     @ServiceProperty(name = IConstants.PROP_ACCESS_ID,
             value = IXmppConstants.ACCESS_ID)
@@ -272,6 +275,59 @@ public class XmppTransport implements ITransport, IBotListener, IRoomListener {
         }
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.herald.IBatchTransport#fireBatch(org.cohorte.herald.Peer,
+     * java.util.List)
+     */
+    @Override
+    public void fireBatch(final Peer aPeer, final List<Message> aMessages)
+            throws HeraldException {
+
+        if (aMessages.isEmpty()) {
+            return;
+
+        } else if (aMessages.size() == 1) {
+            // No need for a batch envelope
+            fire(aPeer, aMessages.get(0), null);
+            return;
+        }
+
+        // Try to find the JID of the target
+        final Jid jid = getJid(aPeer, null);
+        if (jid == null) {
+            // No XMPP access information
+            throw new InvalidPeerAccess(new Target(aPeer),
+                    "No XMPP access found");
+        }
+
+        // Update headers
+        final String localUid = pDirectory.getLocalUid();
+        for (final Message message : aMessages) {
+            message.addHeader(Message.MESSAGE_HEADER_TARGET_PEER,
+                    aPeer.getUid());
+            message.addHeader(Message.MESSAGE_HEADER_SENDER_UID, localUid);
+        }
+
+        // Send all messages in a single XMPP message
+        final String content;
+        try {
+            content = MessageUtils.toJSONBatch(aMessages);
+
+        } catch (final MarshallException ex) {
+            throw new HeraldException(new Target(aPeer),
+                    "Error converting the content of the message to JSON: "
+                            + ex, ex);
+        }
+
+        final rocks.xmpp.core.stanza.model.client.Message xmppMsg = new rocks.xmpp.core.stanza.model.client.Message(
+                jid, Type.CHAT, content);
+        xmppMsg.setFrom(pBot.getJid());
+        xmppMsg.setSubject(MessageUtils.BATCH_SUBJECT);
+        pBot.send(xmppMsg);
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -352,6 +408,39 @@ public class XmppTransport implements ITransport, IBotListener, IRoomListener {
         return new Jid(aRoomName, pMucDomain);
     }
 
+    /**
+     * Lets the core service or the discovery handler handle a received message
+     *
+     * @param aMessage
+     *            The received message
+     * @param aSize
+     *            Size of the message body
+     */
+    private void handleReceived(final MessageReceived aMessage, final int aSize) {
+
+        if (aMessage.getSubject().startsWith(
+                IDiscoveryConstants.SUBJECT_DISCOVERY_PREFIX)) {
+            // Handle discovery message
+            try {
+                pContact.handleDiscoveryMessage(pHerald, aMessage);
+
+            } catch (final HeraldException ex) {
+                // Error replying to a discovered peer
+                pLogger.log(LogService.LOG_ERROR,
+                        "Error replying to a discovered peer: " + ex, ex);
+            }
+        } else {
+            try {
+                pHerald.handleMessage(aMessage, aSize);
+
+            } catch (final Overloaded ex) {
+                // Message refused: the core tried to send a
+                // herald/error/overloaded reply, unless it is an error itself
+                pLogger.log(LogService.LOG_WARNING, "Message refused: " + ex);
+            }
+        }
+    }
+
     /**
      * Component invalidated
      */
@@ -415,6 +504,30 @@ public class XmppTransport implements ITransport, IBotListener, IRoomListener {
             }
         }
 
+        if (MessageUtils.BATCH_SUBJECT.equals(subject)) {
+            // Batch of messages: each one carries its own headers
+            final List<MessageReceived> messages;
+            try {
+                messages = MessageUtils.fromJSONBatch(aMessage.getBody());
+
+            } catch (final UnmarshallException ex) {
+                pLogger.log(LogService.LOG_ERROR,
+                        "Error parsing a batch of messages: " + ex, ex);
+                return;
+            }
+
+            final int size = messages.isEmpty() ? 0 : aMessage.getBody()
+                    .length() / messages.size();
+            for (final MessageReceived batchMsg : messages) {
+                batchMsg.addHeader(Message.MESSAGE_HEADER_SENDER_UID,
+                        senderUid);
+                batchMsg.setAccess(IXmppConstants.ACCESS_ID);
+                batchMsg.setExtra(new XmppExtra(senderJid, batchMsg.getUid()));
+                handleReceived(batchMsg, size);
+            }
+            return;
+        }
+
         // Get message information
         final String msgUid = aMessage.getThread();
         final String replyTo = aMessage.getParentThread();
@@ -450,20 +563,7 @@ public class XmppTransport implements ITransport, IBotListener, IRoomListener {
         rcv_msg.setExtra(extra);
         
         // Call back the core service
-
-        if (subject.startsWith(IDiscoveryConstants.SUBJECT_DISCOVERY_PREFIX)) {
-            // Handle discovery message
-            try {
-                pContact.handleDiscoveryMessage(pHerald, rcv_msg);
-
-            } catch (final HeraldException ex) {
-                // Error replying to a discovered peer
-                pLogger.log(LogService.LOG_ERROR,
-                        "Error replying to a discovered peer: " + ex, ex);
-            }
-        } else {
-            pHerald.handleMessage(rcv_msg);
-        }
+        handleReceived(rcv_msg, aMessage.getBody().length());
     }
 
     /*